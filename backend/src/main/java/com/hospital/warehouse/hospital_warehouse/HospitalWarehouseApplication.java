@@ -2,8 +2,10 @@ package com.hospital.warehouse.hospital_warehouse;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class HospitalWarehouseApplication {
 
 	public static void main(String[] args) {
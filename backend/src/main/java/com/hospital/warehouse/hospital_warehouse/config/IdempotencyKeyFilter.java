@@ -0,0 +1,116 @@
+package com.hospital.warehouse.hospital_warehouse.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hospital.warehouse.hospital_warehouse.dto.ApiResponse;
+import com.hospital.warehouse.hospital_warehouse.service.IdempotencyService;
+import com.hospital.warehouse.hospital_warehouse.service.NguoiDungHienTai;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.ContentCachingResponseWrapper;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+/**
+ * Header Idempotency-Key cho duyệt / hủy / hủy duyệt phiếu nhập và phiếu xuất - xem IdempotencyService.
+ *
+ * Chạy sau AuthorizationFilter (khóa gắn với người dùng đã đăng nhập). Yêu cầu không có header giữ nguyên hành vi cũ.
+ */
+@Component
+@RequiredArgsConstructor
+public class IdempotencyKeyFilter extends OncePerRequestFilter {
+
+    public static final String HEADER = "Idempotency-Key";
+    public static final String HEADER_LAP_LAI = "Idempotent-Replayed";
+
+    private static final Pattern DUONG_DAN_AP_DUNG =
+            Pattern.compile("^/api/phieu-(nhap|xuat)/\\d+/(duyet|huy|huy-duyet)$");
+    private static final Pattern KHOA_HOP_LE = Pattern.compile("^[A-Za-z0-9._:-]{1,100}$");
+
+    private final IdempotencyService idempotencyService;
+    private final NguoiDungHienTai nguoiDungHienTai;
+    private final ObjectMapper objectMapper;
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !"PATCH".equals(request.getMethod())
+                || request.getHeader(HEADER) == null
+                || !DUONG_DAN_AP_DUNG.matcher(request.getRequestURI().substring(request.getContextPath().length())).matches();
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String khoaGoc = request.getHeader(HEADER).trim();
+        if (!KHOA_HOP_LE.matcher(khoaGoc).matches()) {
+            guiLoi(response, HttpStatus.BAD_REQUEST,
+                    HEADER + " không hợp lệ (1-100 ký tự gồm chữ, số và . _ : -)");
+            return;
+        }
+
+        Optional<NguoiDungHienTai.ThongTin> nguoiDung = nguoiDungHienTai.layThongTin();
+        if (nguoiDung.isEmpty()) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        String khoa = nguoiDung.get().tenDangNhap() + ":" + khoaGoc;
+        String yeuCau = request.getMethod() + " " + request.getRequestURI()
+                + (request.getQueryString() != null ? "?" + request.getQueryString() : "");
+
+        IdempotencyService.LanGui lanGui = idempotencyService.batDau(khoa, yeuCau, request.getRequestURI());
+        switch (lanGui.loai()) {
+            case LAP_LAI -> guiLai(response, lanGui.ketQua());
+            case KHOA_DA_DUNG -> guiLoi(response, HttpStatus.UNPROCESSABLE_ENTITY,
+                    HEADER + " này đã được dùng cho một yêu cầu khác");
+            case DANG_XU_LY -> guiLoi(response, HttpStatus.CONFLICT,
+                    "Yêu cầu với " + HEADER + " này đang được xử lý, vui lòng thử lại sau");
+            case LAN_DAU -> xuLyLanDau(request, response, chain, khoa);
+        }
+    }
+
+    private void xuLyLanDau(HttpServletRequest request, HttpServletResponse response, FilterChain chain, String khoa)
+            throws ServletException, IOException {
+        ContentCachingResponseWrapper wrapper = new ContentCachingResponseWrapper(response);
+        try {
+            chain.doFilter(request, wrapper);
+        } catch (ServletException | IOException | RuntimeException e) {
+            idempotencyService.ketThuc(khoa, HttpStatus.INTERNAL_SERVER_ERROR.value(), null, null);
+            throw e;
+        }
+
+        // Phản hồi JSON luôn là UTF-8
+        idempotencyService.ketThuc(khoa, wrapper.getStatus(), wrapper.getContentType(),
+                new String(wrapper.getContentAsByteArray(), StandardCharsets.UTF_8));
+        wrapper.copyBodyToResponse();
+    }
+
+    private void guiLai(HttpServletResponse response, IdempotencyService.KetQuaDaLuu ketQua) throws IOException {
+        response.setStatus(ketQua.maHttp());
+        response.setHeader(HEADER_LAP_LAI, "true");
+        if (ketQua.kieuNoiDung() != null) {
+            response.setContentType(ketQua.kieuNoiDung());
+        }
+        if (ketQua.noiDung() != null && !ketQua.noiDung().isEmpty()) {
+            byte[] noiDung = ketQua.noiDung().getBytes(StandardCharsets.UTF_8);
+            response.setContentLength(noiDung.length);
+            response.getOutputStream().write(noiDung);
+        }
+    }
+
+    private void guiLoi(HttpServletResponse response, HttpStatus status, String thongBao) throws IOException {
+        response.setStatus(status.value());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.getWriter().write(objectMapper.writeValueAsString(ApiResponse.error(thongBao)));
+    }
+}
@@ -1,6 +1,7 @@
 package com.hospital.warehouse.hospital_warehouse.config;
 
 import com.hospital.warehouse.hospital_warehouse.service.JwtService;
+import com.hospital.warehouse.hospital_warehouse.service.NguoiDungHienTai;
 import com.hospital.warehouse.hospital_warehouse.service.UserService;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.ServletException;
@@ -70,6 +71,12 @@ public class JwtRequestFilter extends OncePerRequestFilter {
                         new UsernamePasswordAuthenticationToken(userDetails, null, userDetails.getAuthorities());
                 auth.setDetails(new WebAuthenticationDetailsSource().buildDetails(request));
                 SecurityContextHolder.getContext().setAuthentication(auth);
+
+                // Gắn người dùng hiện tại vào request → service không phải tra lại bảng user
+                NguoiDungHienTai.ThongTin nguoiDung = jwtService.extractNguoiDung(jwtToken);
+                if (nguoiDung != null) {
+                    request.setAttribute(NguoiDungHienTai.REQUEST_ATTRIBUTE, nguoiDung);
+                }
             }
         }
         chain.doFilter(request, response);
@@ -16,6 +16,7 @@ import org.springframework.security.config.http.SessionCreationPolicy;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.web.SecurityFilterChain;
+import org.springframework.security.web.access.intercept.AuthorizationFilter;
 import org.springframework.security.web.authentication.UsernamePasswordAuthenticationFilter;
 import org.springframework.web.cors.CorsConfiguration;
 import org.springframework.web.cors.CorsConfigurationSource;
@@ -29,14 +30,17 @@ import java.util.List;
 public class SecurityConfig {
 
     private final JwtRequestFilter jwtRequestFilter;
+    private final IdempotencyKeyFilter idempotencyKeyFilter;
     private final UserService userService;
 
     @Value("${VPS_HOST:localhost}")
     private String vpsHost;
 
     @Autowired
-    public SecurityConfig(JwtRequestFilter jwtRequestFilter, @Lazy UserService userService) {
+    public SecurityConfig(JwtRequestFilter jwtRequestFilter, IdempotencyKeyFilter idempotencyKeyFilter,
+                          @Lazy UserService userService) {
         this.jwtRequestFilter = jwtRequestFilter;
+        this.idempotencyKeyFilter = idempotencyKeyFilter;
         this.userService = userService;
     }
 
@@ -97,7 +101,8 @@ public class SecurityConfig {
                         })
                 )
                 .sessionManagement(session -> session.sessionCreationPolicy(SessionCreationPolicy.STATELESS))
-                .addFilterBefore(jwtRequestFilter, UsernamePasswordAuthenticationFilter.class);
+                .addFilterBefore(jwtRequestFilter, UsernamePasswordAuthenticationFilter.class)
+                .addFilterAfter(idempotencyKeyFilter, AuthorizationFilter.class);
 
         return http.build();
     }
@@ -117,7 +122,8 @@ public class SecurityConfig {
 
         configuration.setAllowedOrigins(allowedOrigins);
         configuration.setAllowedMethods(Arrays.asList("GET", "POST", "PUT", "DELETE","PATCH", "OPTIONS"));
-        configuration.setAllowedHeaders(Arrays.asList("Authorization", "Content-Type"));
+        configuration.setAllowedHeaders(Arrays.asList("Authorization", "Content-Type", IdempotencyKeyFilter.HEADER));
+        configuration.setExposedHeaders(List.of(IdempotencyKeyFilter.HEADER_LAP_LAI));
         configuration.setAllowCredentials(true);
 
         UrlBasedCorsConfigurationSource source = new UrlBasedCorsConfigurationSource();
@@ -0,0 +1,49 @@
+package com.hospital.warehouse.hospital_warehouse.config;
+
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+
+/**
+ * Đếm số câu lệnh SQL Hibernate gửi xuống DB trong một luồng xử lý.
+ *
+ * Được đăng ký qua thuộc tính hibernate.session_factory.statement_inspector.
+ * Chỉ đếm khi luồng hiện tại đã gọi {@link #batDau()}, các luồng khác không bị ảnh hưởng.
+ * Câu lệnh chạy theo JDBC batch chỉ được tính một lần cho mỗi lần chuẩn bị statement.
+ */
+public class SqlStatementCounter implements StatementInspector {
+
+    private static final ThreadLocal<long[]> COUNTER = new ThreadLocal<>();
+
+    /**
+     * Bắt đầu đếm cho luồng hiện tại
+     */
+    public static void batDau() {
+        COUNTER.set(new long[1]);
+    }
+
+    /**
+     * Số câu lệnh đã chạy tới thời điểm này, vẫn tiếp tục đếm (0 nếu chưa bắt đầu).
+     * Nơi gọi {@link #batDau()} chỉ gọi {@link #ketThuc()} trong finally.
+     */
+    public static long dem() {
+        long[] counter = COUNTER.get();
+        return counter != null ? counter[0] : 0;
+    }
+
+    /**
+     * Kết thúc đếm và trả về số câu lệnh đã chạy (0 nếu chưa bắt đầu)
+     */
+    public static long ketThuc() {
+        long[] counter = COUNTER.get();
+        COUNTER.remove();
+        return counter != null ? counter[0] : 0;
+    }
+
+    @Override
+    public String inspect(String sql) {
+        long[] counter = COUNTER.get();
+        if (counter != null) {
+            counter[0]++;
+        }
+        return sql;
+    }
+}
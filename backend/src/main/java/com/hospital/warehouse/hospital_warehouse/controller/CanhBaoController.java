@@ -6,6 +6,7 @@ import com.hospital.warehouse.hospital_warehouse.dto.ThongKeCanhBaoDTO;
 import com.hospital.warehouse.hospital_warehouse.dto.XuLyCanhBaoRequest;
 import com.hospital.warehouse.hospital_warehouse.entity.CanhBaoHeThong;
 import com.hospital.warehouse.hospital_warehouse.service.CanhBaoService;
+import com.hospital.warehouse.hospital_warehouse.service.SinhCanhBaoService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
@@ -14,9 +15,12 @@ import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.Map;
+
 @RestController
 @RequestMapping("/api/canh-bao")
 @Slf4j
@@ -26,6 +30,9 @@ public class CanhBaoController {
     @Autowired
     private CanhBaoService canhBaoService;
 
+    @Autowired
+    private SinhCanhBaoService sinhCanhBaoService;
+
     /**
      * GET /api/canh-bao - Lấy tất cả cảnh báo
      */
@@ -179,4 +186,20 @@ public class CanhBaoController {
                     .body(ApiResponse.error("Lỗi: " + e.getMessage()));
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * POST /api/canh-bao/quet - Quét sinh cảnh báo hết hạn / tồn kho thấp ngay (job cũng chạy định kỳ)
+     */
+    @PostMapping("/quet")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<ApiResponse<Map<CanhBaoHeThong.LoaiCanhBao, Integer>>> quetCanhBao() {
+        try {
+            Map<CanhBaoHeThong.LoaiCanhBao, Integer> soCanhBao = sinhCanhBaoService.quet();
+            return ResponseEntity.ok(ApiResponse.success("Quét cảnh báo thành công", soCanhBao));
+        } catch (Exception e) {
+            log.error("❌ Error generating canh bao", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(ApiResponse.error("Lỗi: " + e.getMessage()));
+        }
+    }
+}
@@ -3,8 +3,10 @@ package com.hospital.warehouse.hospital_warehouse.controller;
 import com.hospital.warehouse.hospital_warehouse.dto.ApiResponse;
 import com.hospital.warehouse.hospital_warehouse.dto.HangHoaDTO;
 import com.hospital.warehouse.hospital_warehouse.dto.PageResponse;
+import com.hospital.warehouse.hospital_warehouse.dto.TonKhoTheoKhoDTO;
 import com.hospital.warehouse.hospital_warehouse.entity.HangHoa;
 import com.hospital.warehouse.hospital_warehouse.service.HangHoaService;
+import com.hospital.warehouse.hospital_warehouse.service.TonKhoTheoKhoService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.domain.PageRequest;
@@ -24,6 +26,7 @@ import java.util.List;
 public class HangHoaController {
 
     private final HangHoaService hangHoaService;
+    private final TonKhoTheoKhoService tonKhoTheoKhoService;
 
     @GetMapping
     @PreAuthorize("hasAnyRole('ADMIN', 'QUAN_LY_KHO', 'NHAN_VIEN_KHO')")
@@ -31,6 +34,7 @@ public class HangHoaController {
             @RequestParam(defaultValue = "") String search,
             @RequestParam(required = false) Long danhMucId,
             @RequestParam(required = false) HangHoa.TrangThaiHangHoa trangThai,
+            @RequestParam(required = false) Long khoId,
             @RequestParam(defaultValue = "0") int page,
             @RequestParam(defaultValue = "10") int size,
             @RequestParam(defaultValue = "tenHangHoa") String sortBy,
@@ -43,7 +47,7 @@ public class HangHoaController {
 
         HangHoa.TrangThaiHangHoa status = trangThai != null ? trangThai : HangHoa.TrangThaiHangHoa.HOAT_DONG;
 
-        PageResponse<HangHoaDTO> response = hangHoaService.getAllHangHoa(search, danhMucId, status, pageable);
+        PageResponse<HangHoaDTO> response = hangHoaService.getAllHangHoa(search, danhMucId, status, khoId, pageable);
 
         return ResponseEntity.ok(ApiResponse.success(response));
     }
@@ -70,6 +74,35 @@ public class HangHoaController {
                 .orElse(ResponseEntity.notFound().build());
     }
 
+    /**
+     * Tồn kho của hàng hóa theo từng kho
+     */
+    @GetMapping("/{id}/ton-kho-theo-kho")
+    @PreAuthorize("hasAnyRole('ADMIN', 'QUAN_LY_KHO', 'NHAN_VIEN_KHO')")
+    public ResponseEntity<ApiResponse<List<TonKhoTheoKhoDTO>>> getTonKhoTheoKho(@PathVariable Long id) {
+        return ResponseEntity.ok(ApiResponse.success(tonKhoTheoKhoService.getTonKhoCacKho(id)));
+    }
+
+    /**
+     * Số lượng có thể xuất của hàng hóa tại một kho
+     */
+    @GetMapping("/{id}/ton-kho")
+    @PreAuthorize("hasAnyRole('ADMIN', 'QUAN_LY_KHO', 'NHAN_VIEN_KHO')")
+    public ResponseEntity<ApiResponse<Integer>> getSoLuongCoTheXuatTaiKho(
+            @PathVariable Long id, @RequestParam Long khoId) {
+        return ResponseEntity.ok(ApiResponse.success(tonKhoTheoKhoService.getSoLuongCoTheXuat(id, khoId)));
+    }
+
+    /**
+     * Tính lại bảng tồn kho theo kho từ lô hàng (hàng có lô) và chứng từ đã duyệt (hàng không có lô)
+     */
+    @PostMapping("/ton-kho-theo-kho/dong-bo")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<ApiResponse<Integer>> dongBoTonKhoTheoKho() {
+        int soDong = tonKhoTheoKhoService.dongBoLai();
+        return ResponseEntity.ok(ApiResponse.success("Đồng bộ tồn kho theo kho thành công", soDong));
+    }
+
     @GetMapping("/ma/{maHangHoa}")
     @PreAuthorize("hasAnyRole('ADMIN', 'QUAN_LY_KHO', 'NHAN_VIEN_KHO')")
     public ResponseEntity<ApiResponse<HangHoaDTO>> getHangHoaByMa(@PathVariable String maHangHoa) {
@@ -1,20 +1,36 @@
 package com.hospital.warehouse.hospital_warehouse.controller;
 
 import com.hospital.warehouse.hospital_warehouse.dto.ApiResponse;
+import com.hospital.warehouse.hospital_warehouse.dto.BienDongTonKhoDTO;
+import com.hospital.warehouse.hospital_warehouse.dto.GiaTriTonKhoDTO;
 import com.hospital.warehouse.hospital_warehouse.dto.KhoDTO;
+import com.hospital.warehouse.hospital_warehouse.dto.KiemTraBienDongTonKhoDTO;
 import com.hospital.warehouse.hospital_warehouse.dto.PageResponse;
+import com.hospital.warehouse.hospital_warehouse.dto.ThongKeHangDoiDuyetDTO;
 import com.hospital.warehouse.hospital_warehouse.entity.Kho;
+import com.hospital.warehouse.hospital_warehouse.entity.LichSuTonKho;
+import com.hospital.warehouse.hospital_warehouse.service.BienDongTonKhoService;
+import com.hospital.warehouse.hospital_warehouse.service.HangDoiDuyetService;
 import com.hospital.warehouse.hospital_warehouse.service.KhoService;
+import com.hospital.warehouse.hospital_warehouse.service.TheKhoService;
+import com.hospital.warehouse.hospital_warehouse.service.ThongKePhieuService;
+import com.hospital.warehouse.hospital_warehouse.service.TonKhoTheoKhoService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import jakarta.validation.Valid;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
 import java.util.List;
 
 @Slf4j
@@ -24,6 +40,11 @@ import java.util.List;
 public class KhoController {
 
     private final KhoService khoService;
+    private final HangDoiDuyetService hangDoiDuyetService;
+    private final TonKhoTheoKhoService tonKhoTheoKhoService;
+    private final ThongKePhieuService thongKePhieuService;
+    private final BienDongTonKhoService bienDongTonKhoService;
+    private final TheKhoService theKhoService;
 
     @GetMapping
     @PreAuthorize("hasAnyRole('ADMIN', 'QUAN_LY_KHO', 'NHAN_VIEN_KHO')")
@@ -130,6 +151,131 @@ public class KhoController {
         }
     }
 
+    /**
+     * Bật / tắt duyệt phiếu bất đồng bộ (hàng đợi duyệt riêng của kho)
+     */
+    @PatchMapping("/{id}/duyet-bat-dong-bo")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<ApiResponse<KhoDTO>> datCheDoDuyet(
+            @PathVariable Long id,
+            @RequestParam boolean batDongBo) {
+        try {
+            KhoDTO kho = khoService.datCheDoDuyet(id, batDongBo);
+            return ResponseEntity.ok(ApiResponse.success(
+                    batDongBo ? "Đã bật duyệt bất đồng bộ" : "Đã tắt duyệt bất đồng bộ", kho));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.notFound().build();
+        }
+    }
+
+    /**
+     * Số liệu hàng đợi duyệt theo kho: số phiếu đang chờ, thời gian chờ, số transaction
+     */
+    @GetMapping("/hang-doi-duyet")
+    @PreAuthorize("hasAnyRole('ADMIN', 'QUAN_LY_KHO')")
+    public ResponseEntity<ApiResponse<List<ThongKeHangDoiDuyetDTO>>> getThongKeHangDoiDuyet() {
+        return ResponseEntity.ok(ApiResponse.success(hangDoiDuyetService.thongKe()));
+    }
+
+    @GetMapping("/gia-tri-ton")
+    @PreAuthorize("hasAnyRole('ADMIN', 'QUAN_LY_KHO')")
+    public ResponseEntity<ApiResponse<List<GiaTriTonKhoDTO>>> getGiaTriTonTheoKho() {
+        return ResponseEntity.ok(ApiResponse.success(tonKhoTheoKhoService.getGiaTriTheoKho()));
+    }
+
+    /**
+     * Tính lại bảng thống kê phiếu nhập / xuất theo ngày từ bảng phiếu
+     */
+    @PostMapping("/thong-ke-phieu/dong-bo")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<ApiResponse<Integer>> dongBoThongKePhieu() {
+        int soDong = thongKePhieuService.dongBoLai();
+        return ResponseEntity.ok(ApiResponse.success("Đồng bộ thống kê phiếu theo ngày thành công", soDong));
+    }
+
+    /**
+     * Tổng nhập / xuất theo mặt hàng × kho (đọc bảng tổng hợp theo ngày, không quét lịch sử tồn kho)
+     */
+    @GetMapping("/bien-dong-ton-kho")
+    @PreAuthorize("hasAnyRole('ADMIN', 'QUAN_LY_KHO')")
+    public ResponseEntity<ApiResponse<List<BienDongTonKhoDTO>>> getBienDongTheoHangHoa(
+            @RequestParam(required = false) Long khoId,
+            @RequestParam(required = false) Long hangHoaId,
+            @RequestParam(required = false) LichSuTonKho.LoaiBienDong loaiBienDong,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate tuNgay,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate denNgay) {
+        return ResponseEntity.ok(ApiResponse.success(
+                bienDongTonKhoService.tongHopTheoHangHoa(khoId, hangHoaId, loaiBienDong, tuNgay, denNgay)));
+    }
+
+    /**
+     * Tổng nhập / xuất theo tháng
+     */
+    @GetMapping("/bien-dong-ton-kho/theo-thang")
+    @PreAuthorize("hasAnyRole('ADMIN', 'QUAN_LY_KHO')")
+    public ResponseEntity<ApiResponse<List<BienDongTonKhoDTO>>> getBienDongTheoThang(
+            @RequestParam(required = false) Long khoId,
+            @RequestParam(required = false) Long hangHoaId,
+            @RequestParam(required = false) LichSuTonKho.LoaiBienDong loaiBienDong,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate tuNgay,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate denNgay) {
+        return ResponseEntity.ok(ApiResponse.success(
+                bienDongTonKhoService.tongHopTheoThang(khoId, hangHoaId, loaiBienDong, tuNgay, denNgay)));
+    }
+
+    /**
+     * Đối chiếu bảng tổng hợp biến động với lịch sử tồn kho (mặc định 30 ngày gần nhất)
+     */
+    @GetMapping("/bien-dong-ton-kho/kiem-tra")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<ApiResponse<KiemTraBienDongTonKhoDTO>> kiemTraBienDongTonKho(
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate tuNgay,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate denNgay) {
+        return ResponseEntity.ok(ApiResponse.success(bienDongTonKhoService.kiemTra(tuNgay, denNgay)));
+    }
+
+    /**
+     * Tính lại bảng tổng hợp biến động tồn kho theo ngày từ lịch sử
+     */
+    @PostMapping("/bien-dong-ton-kho/dong-bo")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<ApiResponse<Integer>> dongBoBienDongTonKho() {
+        int soDong = bienDongTonKhoService.dongBoLai();
+        return ResponseEntity.ok(ApiResponse.success("Đồng bộ biến động tồn kho theo ngày thành công", soDong));
+    }
+
+    /**
+     * Thẻ kho của một mặt hàng trong kho (tồn đầu kỳ, từng biến động kèm tồn lũy kế, tồn cuối kỳ),
+     * ghi thẳng ra phản hồi dạng JSON hoặc CSV. Mặc định từ đầu tháng tới hôm nay.
+     */
+    @GetMapping("/{khoId}/the-kho")
+    @PreAuthorize("hasAnyRole('ADMIN', 'QUAN_LY_KHO', 'NHAN_VIEN_KHO')")
+    public ResponseEntity<StreamingResponseBody> getTheKho(
+            @PathVariable Long khoId,
+            @RequestParam Long hangHoaId,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate tuNgay,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate denNgay,
+            @RequestParam(defaultValue = "json") String dinhDang) {
+
+        boolean csv = "csv".equalsIgnoreCase(dinhDang);
+        if (!csv && !"json".equalsIgnoreCase(dinhDang)) {
+            throw new IllegalArgumentException("Định dạng không hỗ trợ: " + dinhDang + " (json hoặc csv)");
+        }
+        // Kiểm tra tham số + tồn đầu kỳ trước khi bắt đầu ghi → lỗi vẫn trả về dạng ApiResponse
+        TheKhoService.TheKho theKho = theKhoService.chuanBi(hangHoaId, khoId, tuNgay, denNgay);
+
+        if (csv) {
+            String tenFile = "the-kho-" + khoId + "-" + hangHoaId + "-" + theKho.tuNgay() + "-" + theKho.denNgay() + ".csv";
+            return ResponseEntity.ok()
+                    .contentType(new MediaType("text", "csv", StandardCharsets.UTF_8))
+                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + tenFile + "\"")
+                    .body(out -> theKhoService.ghiCsv(theKho, out));
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(out -> theKhoService.ghiJson(theKho, out));
+    }
+
     @GetMapping("/statistics/count")
     @PreAuthorize("hasAnyRole('ADMIN', 'QUAN_LY_KHO')")
     public ResponseEntity<ApiResponse<Long>> countKhoHoatDong() {
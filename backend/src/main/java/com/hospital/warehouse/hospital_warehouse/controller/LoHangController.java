@@ -3,8 +3,13 @@ package com.hospital.warehouse.hospital_warehouse.controller;
 import com.hospital.warehouse.hospital_warehouse.dto.ApiResponse;
 import com.hospital.warehouse.hospital_warehouse.dto.LoHangDTO;
 import com.hospital.warehouse.hospital_warehouse.dto.PageResponse;
+import com.hospital.warehouse.hospital_warehouse.dto.PhanBoXuatLoDTO;
+import com.hospital.warehouse.hospital_warehouse.dto.ThongKeLoHangDTO;
 import com.hospital.warehouse.hospital_warehouse.entity.LoHang;
+import com.hospital.warehouse.hospital_warehouse.service.ChiMucHanSuDungService;
 import com.hospital.warehouse.hospital_warehouse.service.LoHangService;
+import com.hospital.warehouse.hospital_warehouse.service.ThongKeLoHangService;
+import com.hospital.warehouse.hospital_warehouse.service.TrangThaiLoHangService;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
 import org.springframework.data.domain.PageRequest;
@@ -18,6 +23,7 @@ import org.springframework.web.bind.annotation.*;
 
 import java.time.LocalDate;
 import java.util.List;
+import java.util.Map;
 
 @RestController
 @RequestMapping("/api/lo-hang")
@@ -25,6 +31,9 @@ import java.util.List;
 public class LoHangController {
 
     private final LoHangService loHangService;
+    private final TrangThaiLoHangService trangThaiLoHangService;
+    private final ChiMucHanSuDungService chiMucHanSuDungService;
+    private final ThongKeLoHangService thongKeLoHangService;
 
     /**
      * Lấy danh sách lô hàng có phân trang và lọc
@@ -68,11 +77,52 @@ public class LoHangController {
      */
     @GetMapping("/sap-het-han")
     public ResponseEntity<ApiResponse<List<LoHangDTO>>> getLoHangSapHetHan(
-            @RequestParam(defaultValue = "30") int soNgay) {
-        List<LoHangDTO> list = loHangService.getLoHangSapHetHan(soNgay);
+            @RequestParam(defaultValue = "30") int soNgay,
+            @RequestParam(required = false) Long khoId,
+            @RequestParam(required = false) Long hangHoaId) {
+        List<LoHangDTO> list = loHangService.getLoHangSapHetHan(soNgay, khoId, hangHoaId);
         return ResponseEntity.ok(ApiResponse.success(list)); // ✅ WRAP
     }
 
+    /**
+     * Số lô / tổng số lượng sắp hết hạn (dashboard) - đọc chỉ mục trong bộ nhớ
+     */
+    @GetMapping("/sap-het-han/tong-hop")
+    public ResponseEntity<ApiResponse<ChiMucHanSuDungService.TongHop>> tongHopSapHetHan(
+            @RequestParam(defaultValue = "30") int soNgay,
+            @RequestParam(required = false) Long khoId,
+            @RequestParam(required = false) Long hangHoaId) {
+        return ResponseEntity.ok(ApiResponse.success(loHangService.tongHopSapHetHan(soNgay, khoId, hangHoaId)));
+    }
+
+    /**
+     * Kích thước / bộ nhớ ước tính của chỉ mục hạn sử dụng
+     */
+    @GetMapping("/chi-muc-han-su-dung")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<ApiResponse<ChiMucHanSuDungService.BoNho>> baoCaoChiMucHanSuDung() {
+        return ResponseEntity.ok(ApiResponse.success(chiMucHanSuDungService.baoCaoBoNho()));
+    }
+
+    /**
+     * Thống kê lô theo trạng thái / theo kho (đọc bộ đếm, không GROUP BY lo_hang)
+     */
+    @GetMapping("/thong-ke")
+    @PreAuthorize("hasAnyRole('ADMIN', 'QUAN_LY_KHO', 'NHAN_VIEN_KHO')")
+    public ResponseEntity<ApiResponse<ThongKeLoHangDTO>> getThongKe() {
+        return ResponseEntity.ok(ApiResponse.success(thongKeLoHangService.layThongKe()));
+    }
+
+    /**
+     * Đối chiếu bộ đếm thống kê lô ngay (job cũng chạy hằng đêm)
+     */
+    @PostMapping("/thong-ke/doi-chieu")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<ApiResponse<ThongKeLoHangService.DoiChieu>> doiChieuThongKe() {
+        return ResponseEntity.ok(ApiResponse.success("Đối chiếu thống kê lô hàng thành công",
+                thongKeLoHangService.doiChieu()));
+    }
+
     /**
      * Lấy danh sách lô đã hết hàng
      */
@@ -93,6 +143,16 @@ public class LoHangController {
                 .orElse(ResponseEntity.notFound().build());
     }
 
+    /**
+     * Truy vết lô: các lần xuất của lô (phiếu, khoa phòng nhận, vị trí, số lượng)
+     */
+    @GetMapping("/{id}/phan-bo-xuat")
+    @PreAuthorize("hasAnyRole('ADMIN', 'QUAN_LY_KHO', 'NHAN_VIEN_KHO')")
+    public ResponseEntity<ApiResponse<List<PhanBoXuatLoDTO>>> getPhanBoXuatTheoLo(@PathVariable Long id) {
+        List<PhanBoXuatLoDTO> list = loHangService.getPhanBoXuatTheoLo(id);
+        return ResponseEntity.ok(ApiResponse.success(list));
+    }
+
     /**
      * Tạo lô hàng mới
      */
@@ -152,12 +212,12 @@ public class LoHangController {
     }
 
     /**
-     * Cập nhật trạng thái tất cả lô hàng (chạy định kỳ hoặc thủ công)
+     * Cập nhật trạng thái tất cả lô hàng ngay (job cũng chạy hằng đêm) - trả về số lô đổi theo từng trạng thái
      */
     @PostMapping("/update-status")
     @PreAuthorize("hasRole('ADMIN')")
-    public ResponseEntity<Void> updateAllLoHangStatus() {
-        loHangService.updateAllLoHangStatus();
-        return ResponseEntity.ok().build();
+    public ResponseEntity<ApiResponse<Map<LoHang.TrangThaiLoHang, Integer>>> updateAllLoHangStatus() {
+        Map<LoHang.TrangThaiLoHang, Integer> soLoDaDoi = trangThaiLoHangService.capNhatTrangThai();
+        return ResponseEntity.ok(ApiResponse.success("Cập nhật trạng thái lô hàng thành công", soLoDaDoi));
     }
 }
\ No newline at end of file
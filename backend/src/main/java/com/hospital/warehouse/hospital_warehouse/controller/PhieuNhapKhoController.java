@@ -1,9 +1,17 @@
 package com.hospital.warehouse.hospital_warehouse.controller;
 
+import com.hospital.warehouse.hospital_warehouse.config.SqlStatementCounter;
 import com.hospital.warehouse.hospital_warehouse.dto.ApiResponse;
+import com.hospital.warehouse.hospital_warehouse.dto.CongViecDuyetDTO;
+import com.hospital.warehouse.hospital_warehouse.dto.DuyetHangLoatRequest;
+import com.hospital.warehouse.hospital_warehouse.dto.KetQuaDuyetHangLoatDTO;
 import com.hospital.warehouse.hospital_warehouse.dto.PageResponse;
 import com.hospital.warehouse.hospital_warehouse.dto.PhieuNhapKhoDTO;
+import com.hospital.warehouse.hospital_warehouse.dto.TienTrinhNhapFileDTO;
 import com.hospital.warehouse.hospital_warehouse.entity.PhieuNhapKho;
+import com.hospital.warehouse.hospital_warehouse.service.DuyetHangLoatService;
+import com.hospital.warehouse.hospital_warehouse.service.HangDoiDuyetService;
+import com.hospital.warehouse.hospital_warehouse.service.NhapFilePhieuNhapService;
 import com.hospital.warehouse.hospital_warehouse.service.PhieuNhapKhoService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -15,10 +23,12 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
 
 import jakarta.validation.Valid;
 import java.time.LocalDate;
 import java.util.List;
+import java.util.Optional;
 
 @Slf4j
 @RestController
@@ -26,7 +36,10 @@ import java.util.List;
 @RequiredArgsConstructor
 public class PhieuNhapKhoController {
 
+    private final DuyetHangLoatService duyetHangLoatService;
+    private final HangDoiDuyetService hangDoiDuyetService;
     private final PhieuNhapKhoService phieuNhapKhoService;
+    private final NhapFilePhieuNhapService nhapFilePhieuNhapService;
 
     @GetMapping
     @PreAuthorize("hasAnyRole('ADMIN', 'QUAN_LY_KHO', 'NHAN_VIEN_KHO')")
@@ -99,10 +112,45 @@ public class PhieuNhapKhoController {
         }
     }
 
+    /**
+     * Nhập chi tiết phiếu (chưa duyệt) từ file CSV / XLSX - xử lý nền, theo dõi qua /nhap-file/{maTienTrinh}
+     * Cột bắt buộc: Mã hàng hóa, Mã vị trí, Số lượng, Đơn giá; tùy chọn: Tỷ lệ thuế, Số lô, Ngày sản xuất, Hạn sử dụng, Ghi chú
+     */
+    @PostMapping("/{id}/nhap-file")
+    @PreAuthorize("hasAnyRole('ADMIN', 'QUAN_LY_KHO', 'NHAN_VIEN_KHO')")
+    public ResponseEntity<ApiResponse<TienTrinhNhapFileDTO>> nhapChiTietTuFile(
+            @PathVariable Long id,
+            @RequestParam("file") MultipartFile file,
+            @RequestParam(defaultValue = "false") boolean boQuaDongLoi) {
+        try {
+            TienTrinhNhapFileDTO tienTrinh = nhapFilePhieuNhapService.batDauNhap(id, file, boQuaDongLoi);
+            return ResponseEntity.status(HttpStatus.ACCEPTED)
+                    .body(ApiResponse.success("Đã nhận file, đang xử lý", tienTrinh));
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            return ResponseEntity.badRequest().body(ApiResponse.error(e.getMessage()));
+        }
+    }
+
+    @GetMapping("/nhap-file/{maTienTrinh}")
+    @PreAuthorize("hasAnyRole('ADMIN', 'QUAN_LY_KHO', 'NHAN_VIEN_KHO')")
+    public ResponseEntity<ApiResponse<TienTrinhNhapFileDTO>> getTienTrinhNhapFile(@PathVariable String maTienTrinh) {
+        return nhapFilePhieuNhapService.layTienTrinh(maTienTrinh)
+                .map(tienTrinh -> ResponseEntity.ok(ApiResponse.success(tienTrinh)))
+                .orElse(ResponseEntity.notFound().build());
+    }
+
     @PatchMapping("/{id}/duyet")
     @PreAuthorize("hasAnyRole('ADMIN', 'QUAN_LY_KHO')")
-    public ResponseEntity<ApiResponse<PhieuNhapKhoDTO>> duyetPhieuNhap(@PathVariable Long id) {
+    public ResponseEntity<ApiResponse<?>> duyetPhieuNhap(@PathVariable Long id) {
         try {
+            // Kho bật duyệt bất đồng bộ: chỉ xếp hàng, kết quả xem qua /cong-viec-duyet/{maCongViec}
+            Optional<CongViecDuyetDTO> congViec =
+                    hangDoiDuyetService.xepHangNeuBatDongBo(CongViecDuyetDTO.LoaiPhieu.NHAP, id);
+            if (congViec.isPresent()) {
+                return ResponseEntity.status(HttpStatus.ACCEPTED)
+                        .body(ApiResponse.success("Đã xếp phiếu nhập vào hàng đợi duyệt của kho", congViec.get()));
+            }
+
             PhieuNhapKhoDTO approved = phieuNhapKhoService.duyetPhieuNhap(id);
             return ResponseEntity.ok(ApiResponse.success("Duyệt phiếu nhập thành công", approved));
         } catch (IllegalArgumentException e) {
@@ -123,6 +171,43 @@ public class PhieuNhapKhoController {
         }
     }
 
+    /**
+     * Kết quả duyệt bất đồng bộ (kho bật hàng đợi duyệt)
+     */
+    @GetMapping("/cong-viec-duyet/{maCongViec}")
+    @PreAuthorize("hasAnyRole('ADMIN', 'QUAN_LY_KHO')")
+    public ResponseEntity<ApiResponse<CongViecDuyetDTO>> getCongViecDuyet(@PathVariable String maCongViec) {
+        return hangDoiDuyetService.layCongViec(maCongViec)
+                .filter(congViec -> congViec.getLoaiPhieu() == CongViecDuyetDTO.LoaiPhieu.NHAP)
+                .map(congViec -> ResponseEntity.ok(ApiResponse.success(congViec)))
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Duyệt hàng loạt: mỗi phiếu chạy trong transaction riêng, phiếu lỗi không ảnh hưởng phiếu khác
+     */
+    @PostMapping("/duyet-hang-loat")
+    @PreAuthorize("hasAnyRole('ADMIN', 'QUAN_LY_KHO')")
+    public ResponseEntity<ApiResponse<List<KetQuaDuyetHangLoatDTO>>> duyetHangLoat(
+            @Valid @RequestBody DuyetHangLoatRequest request) {
+        SqlStatementCounter.batDau();
+        try {
+            List<KetQuaDuyetHangLoatDTO> ketQua = duyetHangLoatService.duyetPhieuNhapHangLoat(request.getIds());
+            long soCauLenhSql = SqlStatementCounter.dem();
+            long soThanhCong = ketQua.stream().filter(KetQuaDuyetHangLoatDTO::getThanhCong).count();
+            log.info("📊 Duyệt hàng loạt {} phiếu nhập: {} câu lệnh SQL", ketQua.size(), soCauLenhSql);
+            return ResponseEntity.ok(ApiResponse.success(
+                            "Đã duyệt " + soThanhCong + "/" + ketQua.size() + " phiếu nhập", ketQua)
+                    .withMeta("soThanhCong", soThanhCong)
+                    .withMeta("soThatBai", ketQua.size() - soThanhCong)
+                    .withMeta("soCauLenhSql", soCauLenhSql));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.badRequest().body(ApiResponse.error(e.getMessage()));
+        } finally {
+            SqlStatementCounter.ketThuc();
+        }
+    }
+
     @PatchMapping("/{id}/huy")
     @PreAuthorize("hasAnyRole('ADMIN', 'QUAN_LY_KHO')")
     public ResponseEntity<ApiResponse<PhieuNhapKhoDTO>> huyPhieuNhap(
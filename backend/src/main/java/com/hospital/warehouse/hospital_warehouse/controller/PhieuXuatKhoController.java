@@ -1,9 +1,16 @@
 package com.hospital.warehouse.hospital_warehouse.controller;
 
+import com.hospital.warehouse.hospital_warehouse.config.SqlStatementCounter;
 import com.hospital.warehouse.hospital_warehouse.dto.ApiResponse;
+import com.hospital.warehouse.hospital_warehouse.dto.CongViecDuyetDTO;
+import com.hospital.warehouse.hospital_warehouse.dto.DuyetHangLoatRequest;
+import com.hospital.warehouse.hospital_warehouse.dto.KeHoachXuatDTO;
+import com.hospital.warehouse.hospital_warehouse.dto.KetQuaDuyetHangLoatDTO;
 import com.hospital.warehouse.hospital_warehouse.dto.PageResponse;
 import com.hospital.warehouse.hospital_warehouse.dto.PhieuXuatKhoDTO;
 import com.hospital.warehouse.hospital_warehouse.entity.PhieuXuatKho;
+import com.hospital.warehouse.hospital_warehouse.service.DuyetHangLoatService;
+import com.hospital.warehouse.hospital_warehouse.service.HangDoiDuyetService;
 import com.hospital.warehouse.hospital_warehouse.service.PhieuXuatKhoService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -19,6 +26,7 @@ import org.springframework.web.bind.annotation.*;
 import jakarta.validation.Valid;
 import java.time.LocalDate;
 import java.util.List;
+import java.util.Optional;
 
 @Slf4j
 @RestController
@@ -26,6 +34,8 @@ import java.util.List;
 @RequiredArgsConstructor
 public class PhieuXuatKhoController {
 
+    private final DuyetHangLoatService duyetHangLoatService;
+    private final HangDoiDuyetService hangDoiDuyetService;
     private final PhieuXuatKhoService phieuXuatKhoService;
 
     @GetMapping
@@ -62,6 +72,23 @@ public class PhieuXuatKhoController {
                 .orElse(ResponseEntity.notFound().build());
     }
 
+    /**
+     * Xem trước kế hoạch lấy hàng (lô, HSD, vị trí, số lượng, giá vốn) và phần thiếu - không thay đổi tồn kho
+     */
+    @GetMapping("/{id}/ke-hoach-xuat")
+    @PreAuthorize("hasAnyRole('ADMIN', 'QUAN_LY_KHO', 'NHAN_VIEN_KHO')")
+    public ResponseEntity<ApiResponse<KeHoachXuatDTO>> getKeHoachXuat(@PathVariable Long id) {
+        try {
+            KeHoachXuatDTO keHoach = phieuXuatKhoService.getKeHoachXuat(id);
+            return ResponseEntity.ok(ApiResponse.success(
+                    keHoach.getDuHang() ? "Đủ hàng để xuất" : "Kho không đủ hàng cho một số dòng", keHoach));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.notFound().build();
+        } catch (IllegalStateException e) {
+            return ResponseEntity.badRequest().body(ApiResponse.error(e.getMessage()));
+        }
+    }
+
     @GetMapping("/ma/{maPhieuXuat}")
     @PreAuthorize("hasAnyRole('ADMIN', 'QUAN_LY_KHO', 'NHAN_VIEN_KHO')")
     public ResponseEntity<ApiResponse<PhieuXuatKhoDTO>> getPhieuXuatByMa(@PathVariable String maPhieuXuat) {
@@ -101,10 +128,23 @@ public class PhieuXuatKhoController {
 
     @PatchMapping("/{id}/duyet")
     @PreAuthorize("hasAnyRole('ADMIN', 'QUAN_LY_KHO')")
-    public ResponseEntity<ApiResponse<PhieuXuatKhoDTO>> duyetPhieuXuat(@PathVariable Long id) {
+    public ResponseEntity<ApiResponse<?>> duyetPhieuXuat(@PathVariable Long id) {
+        SqlStatementCounter.batDau();
         try {
+            // Kho bật duyệt bất đồng bộ: chỉ xếp hàng, kết quả xem qua /cong-viec-duyet/{maCongViec}
+            Optional<CongViecDuyetDTO> congViec =
+                    hangDoiDuyetService.xepHangNeuBatDongBo(CongViecDuyetDTO.LoaiPhieu.XUAT, id);
+            if (congViec.isPresent()) {
+                return ResponseEntity.status(HttpStatus.ACCEPTED)
+                        .body(ApiResponse.success("Đã xếp phiếu xuất vào hàng đợi duyệt của kho", congViec.get()));
+            }
+
             PhieuXuatKhoDTO approved = phieuXuatKhoService.duyetPhieuXuat(id);
-            return ResponseEntity.ok(ApiResponse.success("Duyệt phiếu xuất thành công", approved));
+            // Đếm sau khi transaction đã commit → bao gồm cả các câu lệnh flush
+            long soCauLenhSql = SqlStatementCounter.dem();
+            log.info("📊 Duyệt phiếu xuất ID {}: {} câu lệnh SQL", id, soCauLenhSql);
+            return ResponseEntity.ok(ApiResponse.success("Duyệt phiếu xuất thành công", approved)
+                    .withMeta("soCauLenhSql", soCauLenhSql));
         } catch (IllegalArgumentException e) {
             log.error("Không tìm thấy phiếu xuất ID: {}", id);
             return ResponseEntity.status(HttpStatus.NOT_FOUND)
@@ -117,6 +157,45 @@ public class PhieuXuatKhoController {
             log.error("Lỗi không xác định khi duyệt phiếu xuất ID {}: {}", id, e.getMessage(), e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
                     .body(ApiResponse.error("Lỗi hệ thống: " + e.getMessage()));
+        } finally {
+            SqlStatementCounter.ketThuc();
+        }
+    }
+
+    /**
+     * Kết quả duyệt bất đồng bộ (kho bật hàng đợi duyệt)
+     */
+    @GetMapping("/cong-viec-duyet/{maCongViec}")
+    @PreAuthorize("hasAnyRole('ADMIN', 'QUAN_LY_KHO')")
+    public ResponseEntity<ApiResponse<CongViecDuyetDTO>> getCongViecDuyet(@PathVariable String maCongViec) {
+        return hangDoiDuyetService.layCongViec(maCongViec)
+                .filter(congViec -> congViec.getLoaiPhieu() == CongViecDuyetDTO.LoaiPhieu.XUAT)
+                .map(congViec -> ResponseEntity.ok(ApiResponse.success(congViec)))
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Duyệt hàng loạt: mỗi phiếu chạy trong transaction riêng, phiếu lỗi không ảnh hưởng phiếu khác
+     */
+    @PostMapping("/duyet-hang-loat")
+    @PreAuthorize("hasAnyRole('ADMIN', 'QUAN_LY_KHO')")
+    public ResponseEntity<ApiResponse<List<KetQuaDuyetHangLoatDTO>>> duyetHangLoat(
+            @Valid @RequestBody DuyetHangLoatRequest request) {
+        SqlStatementCounter.batDau();
+        try {
+            List<KetQuaDuyetHangLoatDTO> ketQua = duyetHangLoatService.duyetPhieuXuatHangLoat(request.getIds());
+            long soCauLenhSql = SqlStatementCounter.dem();
+            long soThanhCong = ketQua.stream().filter(KetQuaDuyetHangLoatDTO::getThanhCong).count();
+            log.info("📊 Duyệt hàng loạt {} phiếu xuất: {} câu lệnh SQL", ketQua.size(), soCauLenhSql);
+            return ResponseEntity.ok(ApiResponse.success(
+                            "Đã duyệt " + soThanhCong + "/" + ketQua.size() + " phiếu xuất", ketQua)
+                    .withMeta("soThanhCong", soThanhCong)
+                    .withMeta("soThatBai", ketQua.size() - soThanhCong)
+                    .withMeta("soCauLenhSql", soCauLenhSql));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.badRequest().body(ApiResponse.error(e.getMessage()));
+        } finally {
+            SqlStatementCounter.ketThuc();
         }
     }
 
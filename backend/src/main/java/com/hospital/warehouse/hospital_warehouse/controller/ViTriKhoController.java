@@ -124,6 +124,16 @@ public class ViTriKhoController {
         }
     }
 
+    /**
+     * Tính lại bộ đếm sức chứa của mọi vị trí từ hàng hóa - vị trí
+     */
+    @PostMapping("/dong-bo-suc-chua")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<ApiResponse<Integer>> dongBoSucChua() {
+        int soViTri = viTriKhoService.dongBoSucChua();
+        return ResponseEntity.ok(ApiResponse.success("Đồng bộ sức chứa vị trí kho thành công", soViTri));
+    }
+
     /**
      * Xóa vị trí kho
      */
@@ -1,12 +1,15 @@
 package com.hospital.warehouse.hospital_warehouse.dto;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.springframework.data.domain.Page;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 @Data
 @NoArgsConstructor
@@ -19,6 +22,18 @@ public class ApiResponse<T> {
     private String errorCode;
     private long timestamp;
 
+    // Thông tin phụ (vd: số câu lệnh SQL đã chạy) - chỉ xuất hiện khi có
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    private Map<String, Object> meta;
+
+    public ApiResponse<T> withMeta(String key, Object value) {
+        if (this.meta == null) {
+            this.meta = new LinkedHashMap<>();
+        }
+        this.meta.put(key, value);
+        return this;
+    }
+
     public static <T> ApiResponse<T> success(T data) {
         return ApiResponse.<T>builder()
                 .success(true)
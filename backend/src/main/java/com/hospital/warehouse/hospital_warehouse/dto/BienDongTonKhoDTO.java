@@ -0,0 +1,44 @@
+package com.hospital.warehouse.hospital_warehouse.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+
+/**
+ * Một dòng báo cáo nhập / xuất (tổng hợp từ bien_dong_ton_kho_ngay):
+ * theo mặt hàng × kho, hoặc theo tháng
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class BienDongTonKhoDTO {
+
+    private Long hangHoaId;
+
+    private String maHangHoa;
+
+    private String tenHangHoa;
+
+    private Long khoId;
+
+    private String tenKho;
+
+    /**
+     * Chỉ có ở báo cáo theo tháng
+     */
+    private Integer nam;
+
+    private Integer thang;
+
+    private Long soLuongVao;
+
+    private Long soLuongRa;
+
+    private BigDecimal giaTriVao;
+
+    private BigDecimal giaTriRa;
+}
@@ -0,0 +1,60 @@
+package com.hospital.warehouse.hospital_warehouse.dto;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Công việc duyệt phiếu trong hàng đợi duyệt của kho (chế độ duyệt bất đồng bộ)
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class CongViecDuyetDTO {
+
+    private String maCongViec;
+
+    private LoaiPhieu loaiPhieu;
+
+    private Long phieuId;
+
+    private String maPhieu;
+
+    private Long khoId;
+
+    private String tenKho;
+
+    private TrangThai trangThai;
+
+    /**
+     * Lý do khi thất bại
+     */
+    private String thongBao;
+
+    /**
+     * Thời gian chờ trong hàng đợi (ms) - tới lúc bắt đầu duyệt, hoặc tới hiện tại nếu còn chờ
+     */
+    private Long thoiGianChoMs;
+
+    @JsonFormat(pattern = "yyyy-MM-dd HH:mm:ss")
+    private LocalDateTime xepHangLuc;
+
+    @JsonFormat(pattern = "yyyy-MM-dd HH:mm:ss")
+    private LocalDateTime batDauLuc;
+
+    @JsonFormat(pattern = "yyyy-MM-dd HH:mm:ss")
+    private LocalDateTime ketThucLuc;
+
+    public enum LoaiPhieu {
+        NHAP, XUAT
+    }
+
+    public enum TrangThai {
+        CHO_XU_LY, DANG_XU_LY, THANH_CONG, THAT_BAI
+    }
+}
@@ -0,0 +1,17 @@
+package com.hospital.warehouse.hospital_warehouse.dto;
+
+import jakarta.validation.constraints.NotEmpty;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DuyetHangLoatRequest {
+
+    @NotEmpty(message = "Danh sách phiếu cần duyệt không được để trống")
+    private List<Long> ids;
+}
@@ -0,0 +1,34 @@
+package com.hospital.warehouse.hospital_warehouse.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+
+/**
+ * Giá trị tồn của một kho (tổng hợp từ ton_kho_theo_kho)
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class GiaTriTonKhoDTO {
+
+    private Long khoId;
+
+    private String tenKho;
+
+    /**
+     * Số mặt hàng còn tồn
+     */
+    private Long soMatHang;
+
+    private Long tongSoLuong;
+
+    /**
+     * Tổng giá trị tồn (đồng)
+     */
+    private BigDecimal giaTriTon;
+}
@@ -116,6 +116,12 @@ public class HangHoaDTO {
     private LocalDateTime createdAt;
     private LocalDateTime updatedAt;
 
+    // Tồn kho tại một kho cụ thể (chỉ có khi lọc theo khoId)
+    private Long khoId;
+    private Integer tongSoLuongTaiKho;
+    private Integer soLuongCoTheXuatTaiKho;
+    private Integer soLuongDaDatTaiKho;
+
     // Computed fields for display
     private String trangThaiTonKho;
     private boolean isTonKhoThap;
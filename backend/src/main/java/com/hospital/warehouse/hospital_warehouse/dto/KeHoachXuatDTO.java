@@ -0,0 +1,84 @@
+package com.hospital.warehouse.hospital_warehouse.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import com.fasterxml.jackson.annotation.JsonFormat;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Kế hoạch lấy hàng của một phiếu xuất chưa duyệt (xem trước, không thay đổi tồn kho)
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class KeHoachXuatDTO {
+
+    private Long phieuXuatId;
+
+    private String maPhieuXuat;
+
+    private Long khoId;
+
+    private String tenKho;
+
+    /**
+     * DAT_TRU: theo phần đã giữ hàng lúc lập phiếu; FEFO: phân bổ theo tồn kho hiện tại
+     */
+    private String nguon;
+
+    private Boolean duHang;
+
+    private String phienBanTonKho;
+
+    private BigDecimal tongGiaVon;
+
+    @JsonFormat(pattern = "yyyy-MM-dd HH:mm:ss")
+    private LocalDateTime thoiGianLap;
+
+    private List<DongKeHoach> dongKeHoach;
+
+    private List<ThieuHang> thieuHang;
+
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class DongKeHoach {
+        private Long chiTietPhieuXuatId;
+        private Long hangHoaId;
+        private String maHangHoa;
+        private String tenHangHoa;
+        private Long loHangId;
+        private String soLo;
+
+        @JsonFormat(pattern = "yyyy-MM-dd")
+        private LocalDate hanSuDung;
+
+        private Long viTriKhoId;
+        private String maViTri;
+        private String tenViTri;
+        private Integer soLuong;
+        private BigDecimal donGia;
+        private BigDecimal thanhTien;
+    }
+
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class ThieuHang {
+        private Long chiTietPhieuXuatId;
+        private Long hangHoaId;
+        private String tenHangHoa;
+        private Integer soLuongYeuCau;
+        private Integer soLuongThieu;
+        private String lyDo;
+    }
+}
@@ -0,0 +1,22 @@
+package com.hospital.warehouse.hospital_warehouse.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Kết quả duyệt của từng phiếu trong một lượt duyệt hàng loạt
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class KetQuaDuyetHangLoatDTO {
+    private Long id;
+    private String maPhieu;
+    private Long khoId;
+    private String tenKho;
+    private Boolean thanhCong;
+    private String lyDo;
+}
@@ -46,6 +46,11 @@ public class KhoDTO {
 
     private Kho.TrangThaiKho trangThai;
 
+    /**
+     * Duyệt phiếu bất đồng bộ qua hàng đợi của kho
+     */
+    private Boolean duyetBatDongBo;
+
     private LocalDateTime createdAt;
     private LocalDateTime updatedAt;
 }
\ No newline at end of file
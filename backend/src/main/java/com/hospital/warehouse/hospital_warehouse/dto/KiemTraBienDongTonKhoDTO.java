@@ -0,0 +1,78 @@
+package com.hospital.warehouse.hospital_warehouse.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Kết quả đối chiếu bảng tổng hợp biến động tồn kho với lịch sử gốc trong một khoảng ngày
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class KiemTraBienDongTonKhoDTO {
+
+    private LocalDate tuNgay;
+
+    private LocalDate denNgay;
+
+    /**
+     * Số ô (hàng hóa, kho, loại biến động, ngày) tính từ lịch sử
+     */
+    private Integer soOLichSu;
+
+    private Integer soOTongHop;
+
+    private Integer soOLech;
+
+    /**
+     * Dòng lịch sử không xác định được kho - không được tổng hợp
+     */
+    private Long soDongKhongXacDinhKho;
+
+    /**
+     * Các ô lệch (tối đa một số dòng đầu)
+     */
+    private List<OLech> danhSachLech;
+
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class OLech {
+
+        private Long hangHoaId;
+
+        private Long khoId;
+
+        private String loaiBienDong;
+
+        private LocalDate ngay;
+
+        private Long soLuongVaoLichSu;
+
+        private Long soLuongVaoTongHop;
+
+        private Long soLuongRaLichSu;
+
+        private Long soLuongRaTongHop;
+
+        private BigDecimal giaTriVaoLichSu;
+
+        private BigDecimal giaTriVaoTongHop;
+
+        private BigDecimal giaTriRaLichSu;
+
+        private BigDecimal giaTriRaTongHop;
+
+        private Long soDongLichSu;
+
+        private Long soDongTongHop;
+    }
+}
@@ -0,0 +1,49 @@
+package com.hospital.warehouse.hospital_warehouse.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import com.fasterxml.jackson.annotation.JsonFormat;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class PhanBoXuatLoDTO {
+
+    private Long id;
+
+    private Long phieuXuatId;
+
+    private String maPhieuXuat;
+
+    @JsonFormat(pattern = "yyyy-MM-dd HH:mm:ss")
+    private LocalDateTime ngayXuat;
+
+    @JsonFormat(pattern = "yyyy-MM-dd HH:mm:ss")
+    private LocalDateTime ngayDuyet;
+
+    private Long khoaPhongYeuCauId;
+
+    private String tenKhoaPhongYeuCau;
+
+    private String nguoiNhan;
+
+    private Long chiTietPhieuXuatId;
+
+    private Long loHangId;
+
+    private Long viTriKhoId;
+
+    private String tenViTri;
+
+    private Integer soLuong;
+
+    private BigDecimal donGia;
+
+    private BigDecimal thanhTien;
+}
@@ -0,0 +1,27 @@
+package com.hospital.warehouse.hospital_warehouse.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Số liệu hàng đợi duyệt của một kho (tính từ lúc node khởi động)
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ThongKeHangDoiDuyetDTO {
+    private Long khoId;
+    private int soPhieuDangCho;
+    private boolean dangXuLy;
+    private long soPhieuThanhCong;
+    private long soPhieuThatBai;
+    /** Số transaction đã chạy (mỗi transaction gộp một hoặc nhiều phiếu) */
+    private long soGiaoDich;
+    private long thoiGianChoTrungBinhMs;
+    private long thoiGianChoToiDaMs;
+    /** Thời gian chờ của phiếu đầu hàng đợi hiện tại */
+    private long phieuChoLauNhatMs;
+}
@@ -0,0 +1,53 @@
+package com.hospital.warehouse.hospital_warehouse.dto;
+
+import com.hospital.warehouse.hospital_warehouse.entity.LoHang;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Thống kê lô hàng theo trạng thái và theo kho - đọc từ bộ đếm thong_ke_lo_hang
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ThongKeLoHangDTO {
+
+    private Long tongSoLo;
+
+    private Long tongSoLuong;
+
+    private List<TheoTrangThai> theoTrangThai;
+
+    private List<TheoKho> theoKho;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class TheoTrangThai {
+
+        private LoHang.TrangThaiLoHang trangThai;
+
+        private Long soLo;
+
+        private Long tongSoLuong;
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class TheoKho {
+
+        private Long khoId;
+
+        private String tenKho;
+
+        private Long soLo;
+
+        private Long tongSoLuong;
+    }
+}
@@ -0,0 +1,73 @@
+package com.hospital.warehouse.hospital_warehouse.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import com.fasterxml.jackson.annotation.JsonFormat;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Tiến trình nhập chi tiết phiếu nhập từ file CSV / XLSX
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class TienTrinhNhapFileDTO {
+
+    private String maTienTrinh;
+
+    private Long phieuNhapId;
+
+    private String maPhieuNhap;
+
+    private String tenFile;
+
+    private TrangThai trangThai;
+
+    /**
+     * true: bỏ qua dòng lỗi, nhập các dòng hợp lệ; false: có dòng lỗi thì không nhập dòng nào
+     */
+    private Boolean boQuaDongLoi;
+
+    private Integer soDongDaDoc;
+
+    private Integer soDongHopLe;
+
+    private Integer soDongDaNhap;
+
+    private Integer soDongLoi;
+
+    private BigDecimal tongTienDaNhap;
+
+    private String thongBao;
+
+    /**
+     * Lỗi theo dòng (giới hạn số lượng - xem soDongLoi cho tổng số)
+     */
+    private List<LoiDong> loi;
+
+    @JsonFormat(pattern = "yyyy-MM-dd HH:mm:ss")
+    private LocalDateTime batDauLuc;
+
+    @JsonFormat(pattern = "yyyy-MM-dd HH:mm:ss")
+    private LocalDateTime ketThucLuc;
+
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class LoiDong {
+        private Integer dong;
+        private String cot;
+        private String thongBao;
+    }
+
+    public enum TrangThai {
+        CHO_XU_LY, DANG_KIEM_TRA, DANG_NHAP, HOAN_THANH, THAT_BAI
+    }
+}
@@ -0,0 +1,42 @@
+package com.hospital.warehouse.hospital_warehouse.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import com.fasterxml.jackson.annotation.JsonFormat;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class TonKhoTheoKhoDTO {
+
+    private Long hangHoaId;
+
+    private Long khoId;
+
+    private String tenKho;
+
+    private Integer tongSoLuong;
+
+    private Integer soLuongCoTheXuat;
+
+    private Integer soLuongDaDat;
+
+    /**
+     * Tổng giá trị tồn (đồng)
+     */
+    private BigDecimal giaTriTon;
+
+    /**
+     * Giá bình quân = giá trị tồn / tổng số lượng (null nếu hết hàng)
+     */
+    private BigDecimal giaBinhQuan;
+
+    @JsonFormat(pattern = "yyyy-MM-dd HH:mm:ss")
+    private LocalDateTime updatedAt;
+}
@@ -54,6 +54,8 @@ public class ViTriKhoDTO {
 
     private Integer soLuongHienTai;
 
+    private Integer soLuongDangChua;
+
     private Integer phanTramSuDung;
 
     private Boolean dangDay;
@@ -0,0 +1,81 @@
+package com.hospital.warehouse.hospital_warehouse.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+/**
+ * Bảng tổng hợp biến động tồn kho theo (hàng hóa, kho, loại biến động, ngày) - suy ra từ lich_su_ton_kho.
+ *
+ * Được cộng dồn trong CÙNG transaction với lúc ghi lịch sử (xem LichSuTonKhoWriter / BienDongTonKhoService),
+ * nên báo cáo nhập / xuất / tiêu hao theo mặt hàng, theo tháng chỉ đọc bảng này thay vì quét toàn bộ lịch sử.
+ * Chiều vào / ra của mỗi dòng lịch sử: xem BienDongTonKhoService#laVao.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@Entity
+@Table(name = "bien_dong_ton_kho_ngay", indexes = {
+        @Index(name = "idx_bien_dong_ton_kho_ngay_kho", columnList = "kho_id, ngay"),
+        @Index(name = "idx_bien_dong_ton_kho_ngay_ngay", columnList = "ngay"),
+        @Index(name = "idx_bien_dong_ton_kho_ngay_hang_hoa", columnList = "hang_hoa_id, kho_id, ngay")
+})
+public class BienDongTonKhoNgay {
+
+    @EmbeddedId
+    private BienDongTonKhoNgayId id;
+
+    @Column(name = "so_luong_vao", nullable = false)
+    @Builder.Default
+    private Long soLuongVao = 0L;
+
+    @Column(name = "so_luong_ra", nullable = false)
+    @Builder.Default
+    private Long soLuongRa = 0L;
+
+    @Column(name = "gia_tri_vao", precision = 18, scale = 2, nullable = false)
+    @Builder.Default
+    private BigDecimal giaTriVao = BigDecimal.ZERO;
+
+    @Column(name = "gia_tri_ra", precision = 18, scale = 2, nullable = false)
+    @Builder.Default
+    private BigDecimal giaTriRa = BigDecimal.ZERO;
+
+    /**
+     * Số dòng lịch sử đã cộng vào ô này
+     */
+    @Column(name = "so_dong", nullable = false)
+    @Builder.Default
+    private Long soDong = 0L;
+
+    @Column(name = "updated_at")
+    private LocalDateTime updatedAt;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @Embeddable
+    public static class BienDongTonKhoNgayId implements Serializable {
+
+        @Column(name = "hang_hoa_id")
+        private Long hangHoaId;
+
+        @Column(name = "kho_id")
+        private Long khoId;
+
+        @Enumerated(EnumType.STRING)
+        @Column(name = "loai_bien_dong", length = 20)
+        private LichSuTonKho.LoaiBienDong loaiBienDong;
+
+        @Column(name = "ngay")
+        private LocalDate ngay;
+    }
+}
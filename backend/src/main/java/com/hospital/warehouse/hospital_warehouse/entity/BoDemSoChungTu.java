@@ -0,0 +1,34 @@
+package com.hospital.warehouse.hospital_warehouse.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Bộ đếm số chứng từ theo tiền tố (VD: "PX-20250115-" → số phiếu xuất đã cấp trong ngày).
+ *
+ * giaTriHienTai là số lớn nhất đã cấp cho các node; mỗi node lấy một khối số
+ * (giaTriHienTai += kích thước khối) rồi cấp dần trong bộ nhớ - xem SoChungTuService.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@Entity
+@Table(name = "bo_dem_so_chung_tu")
+public class BoDemSoChungTu {
+
+    @Id
+    @Column(name = "tien_to", length = 30)
+    private String tienTo;
+
+    @Column(name = "gia_tri_hien_tai", nullable = false)
+    private Long giaTriHienTai;
+
+    @Column(name = "updated_at")
+    private LocalDateTime updatedAt;
+}
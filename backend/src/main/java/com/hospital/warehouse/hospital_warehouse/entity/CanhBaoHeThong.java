@@ -8,7 +8,13 @@ import java.time.LocalDate;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "canh_bao_he_thong")
+@Table(name = "canh_bao_he_thong", uniqueConstraints = {
+        @UniqueConstraint(name = "uk_canh_bao_he_thong_dau_vet", columnNames = {"dau_vet"})
+}, indexes = {
+        @Index(name = "idx_canh_bao_he_thong_xu_ly", columnList = "da_xu_ly, created_at"),
+        @Index(name = "idx_canh_bao_he_thong_doc", columnList = "da_doc, created_at"),
+        @Index(name = "idx_canh_bao_he_thong_doi_tuong", columnList = "doi_tuong_lien_quan_id, loai_doi_tuong")
+})
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
@@ -57,6 +63,13 @@ public class CanhBaoHeThong {
     @Column(name = "ngay_het_hieu_luc")
     private LocalDate ngayHetHieuLuc;
 
+    /**
+     * Dấu vết chống trùng "LOẠI:LOẠI_ĐỐI_TƯỢNG:ID" của cảnh báo do SinhCanhBaoService tạo - mỗi (loại, đối tượng)
+     * chỉ có một cảnh báo. Null với cảnh báo tạo tay, hoặc khi điều kiện đã hết (lần vi phạm sau sẽ cảnh báo mới).
+     */
+    @Column(name = "dau_vet", length = 100)
+    private String dauVet;
+
     @Column(name = "created_at")
     private LocalDateTime createdAt;
 
@@ -94,6 +107,7 @@ public class CanhBaoHeThong {
 
     public enum LoaiDoiTuong {
         HANG_HOA,
+        LO_HANG,
         THIET_BI,
         HOA_DON,
         PHIEU_NHAP,
@@ -14,7 +14,10 @@ import java.time.LocalDateTime;
 @AllArgsConstructor
 @Builder
 @Entity
-@Table(name = "chi_tiet_phieu_xuat")
+@Table(name = "chi_tiet_phieu_xuat", indexes = {
+        // Bao phủ các subquery hoàn / trừ tồn kho theo phiếu (phieu_xuat_id, hang_hoa_id → so_luong_xuat)
+        @Index(name = "idx_chi_tiet_phieu_xuat_phieu_hang", columnList = "phieu_xuat_id, hang_hoa_id, so_luong_xuat")
+})
 public class ChiTietPhieuXuat {
 
     @Id
@@ -53,6 +56,12 @@ public class ChiTietPhieuXuat {
     @Column(name = "thanh_tien", precision = 15, scale = 2, nullable = false)
     private BigDecimal thanhTien;
 
+    /**
+     * Giá trị vốn đã xuất (1/100 đồng) theo giá bình quân tại kho lúc duyệt - hủy duyệt cộng lại đúng giá trị này
+     */
+    @Column(name = "gia_tri_xuat")
+    private Long giaTriXuat;
+
     @Column(name = "ghi_chu", columnDefinition = "TEXT")
     private String ghiChu;
 
@@ -0,0 +1,103 @@
+package com.hospital.warehouse.hospital_warehouse.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import com.fasterxml.jackson.annotation.JsonFormat;
+import java.time.LocalDateTime;
+
+/**
+ * Đặt trước (giữ hàng) cho một dòng phiếu xuất tại một lô cụ thể, tạo lúc lập phiếu theo FEFO.
+ *
+ * - DANG_GIU: số lượng đã chuyển từ "có thể xuất" sang "đã đặt" (lo_hang, ton_kho_theo_kho, hang_hoa)
+ * - DA_XUAT: đã được chuyển thành xuất kho khi duyệt phiếu
+ * - DA_HUY / HET_HAN: đã trả lại số lượng (hủy phiếu / quá thời hạn giữ)
+ *
+ * Hàng không quản lý lô có loHang = null (chỉ giữ ở tồn kho theo kho và hàng hóa).
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@Entity
+@Table(name = "dat_tru_ton_kho", indexes = {
+        @Index(name = "idx_dat_tru_phieu_xuat", columnList = "phieu_xuat_id"),
+        @Index(name = "idx_dat_tru_trang_thai_het_han", columnList = "trang_thai, het_han_luc")
+})
+public class DatTruTonKho {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "phieu_xuat_id", nullable = false)
+    private PhieuXuatKho phieuXuat;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "chi_tiet_phieu_xuat_id", nullable = false)
+    private ChiTietPhieuXuat chiTietPhieuXuat;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "hang_hoa_id", nullable = false)
+    private HangHoa hangHoa;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "kho_id", nullable = false)
+    private Kho kho;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "lo_hang_id")
+    private LoHang loHang;
+
+    @Column(name = "so_luong", nullable = false)
+    private Integer soLuong;
+
+    @JsonFormat(pattern = "yyyy-MM-dd HH:mm:ss")
+    @Column(name = "het_han_luc", nullable = false)
+    private LocalDateTime hetHanLuc;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "trang_thai", nullable = false, length = 20)
+    @Builder.Default
+    private TrangThaiDatTru trangThai = TrangThaiDatTru.DANG_GIU;
+
+    @JsonFormat(pattern = "yyyy-MM-dd HH:mm:ss")
+    @Column(name = "created_at", nullable = false, updatable = false)
+    private LocalDateTime createdAt;
+
+    @JsonFormat(pattern = "yyyy-MM-dd HH:mm:ss")
+    @Column(name = "updated_at")
+    private LocalDateTime updatedAt;
+
+    @PrePersist
+    public void prePersist() {
+        if (this.createdAt == null) this.createdAt = LocalDateTime.now();
+        if (this.updatedAt == null) this.updatedAt = LocalDateTime.now();
+        if (this.trangThai == null) this.trangThai = TrangThaiDatTru.DANG_GIU;
+    }
+
+    @PreUpdate
+    public void preUpdate() {
+        this.updatedAt = LocalDateTime.now();
+    }
+
+    public enum TrangThaiDatTru {
+        DANG_GIU("Đang giữ hàng"),
+        DA_XUAT("Đã xuất"),
+        DA_HUY("Đã hủy"),
+        HET_HAN("Hết hạn giữ hàng");
+
+        private final String displayName;
+
+        TrangThaiDatTru(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+}
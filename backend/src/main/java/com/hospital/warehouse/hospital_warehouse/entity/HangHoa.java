@@ -19,6 +19,8 @@ import java.util.List;
 @Entity
 @Table(name = "hang_hoa", uniqueConstraints = {
         @UniqueConstraint(columnNames = {"ma_hang_hoa"})
+}, indexes = {
+        @Index(name = "idx_hang_hoa_updated_at", columnList = "updated_at")
 })
 public class HangHoa {
 
@@ -111,11 +113,9 @@ public class HangHoa {
     private String mauSac;
 
     // Thay vì các annotation JSON phức tạp:
-    @Lob
     @Column(name = "hinh_anh_url", length = 500, columnDefinition = "VARCHAR(500) DEFAULT NULL")
     private String hinhAnhUrl;
 
-    @Lob
     @Column(name = "tai_lieu_dinh_kem", columnDefinition = "longtext")
     private String taiLieuDinhKem;
 
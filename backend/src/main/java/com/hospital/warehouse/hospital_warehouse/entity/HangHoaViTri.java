@@ -13,7 +13,9 @@ import java.time.LocalDateTime;
 @AllArgsConstructor
 @Builder
 @Entity
-@Table(name = "hang_hoa_vi_tri")
+@Table(name = "hang_hoa_vi_tri", indexes = {
+        @Index(name = "idx_hang_hoa_vi_tri_hang_vi_tri_lo", columnList = "hang_hoa_id, vi_tri_kho_id, lo_hang_id")
+})
 public class HangHoaViTri {
 
     @Id
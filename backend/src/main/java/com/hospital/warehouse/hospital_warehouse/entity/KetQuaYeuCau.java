@@ -0,0 +1,65 @@
+package com.hospital.warehouse.hospital_warehouse.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Kết quả đã trả về cho một yêu cầu có header Idempotency-Key (duyệt / hủy / hủy duyệt phiếu).
+ *
+ * - DANG_XU_LY: yêu cầu đầu tiên đã giữ chỗ khóa và đang chạy; yêu cầu trùng khóa phải chờ
+ * - HOAN_THANH: đã lưu mã HTTP + nội dung phản hồi; yêu cầu trùng khóa nhận lại đúng phản hồi này
+ *
+ * khoa = "{tenDangNhap}:{Idempotency-Key}" - mỗi người dùng có không gian khóa riêng.
+ * Dòng quá hetHanLuc được coi như không tồn tại và được dọn định kỳ - xem IdempotencyService.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@Entity
+@Table(name = "ket_qua_yeu_cau", indexes = {
+        @Index(name = "idx_ket_qua_yeu_cau_het_han", columnList = "het_han_luc")
+})
+public class KetQuaYeuCau {
+
+    @Id
+    @Column(name = "khoa", length = 360)
+    private String khoa;
+
+    /**
+     * SHA-256 của "METHOD URI?query" - cùng khóa nhưng khác yêu cầu thì từ chối
+     */
+    @Column(name = "dau_van_tay", nullable = false, length = 64)
+    private String dauVanTay;
+
+    @Column(name = "duong_dan", nullable = false)
+    private String duongDan;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "trang_thai", nullable = false, length = 20)
+    private TrangThai trangThai;
+
+    @Column(name = "ma_http")
+    private Integer maHttp;
+
+    @Column(name = "kieu_noi_dung", length = 100)
+    private String kieuNoiDung;
+
+    @Column(name = "noi_dung", columnDefinition = "LONGTEXT")
+    private String noiDung;
+
+    @Column(name = "created_at", nullable = false, updatable = false)
+    private LocalDateTime createdAt;
+
+    @Column(name = "het_han_luc", nullable = false)
+    private LocalDateTime hetHanLuc;
+
+    public enum TrangThai {
+        DANG_XU_LY, HOAN_THANH
+    }
+}
@@ -66,6 +66,14 @@ public class Kho {
     @Column(name = "trang_thai", columnDefinition = "ENUM('HOAT_DONG','BAO_TRI','DONG_CUA') DEFAULT 'HOAT_DONG'")
     private TrangThaiKho trangThai = TrangThaiKho.HOAT_DONG;
 
+    /**
+     * true: phiếu của kho được duyệt bất đồng bộ - PATCH /duyet xếp phiếu vào hàng đợi riêng của kho
+     * và trả 202 + mã công việc (xem HangDoiDuyetService)
+     */
+    @Column(name = "duyet_bat_dong_bo", columnDefinition = "BOOLEAN DEFAULT FALSE")
+    @Builder.Default
+    private Boolean duyetBatDongBo = false;
+
     @JsonFormat(pattern = "yyyy-MM-dd HH:mm:ss")
     @Column(name = "created_at", nullable = false, updatable = false)
     private LocalDateTime createdAt;
@@ -85,6 +93,9 @@ public class Kho {
         if (this.trangThai == null) {
             this.trangThai = TrangThaiKho.HOAT_DONG;
         }
+        if (this.duyetBatDongBo == null) {
+            this.duyetBatDongBo = false;
+        }
     }
 
     @PreUpdate
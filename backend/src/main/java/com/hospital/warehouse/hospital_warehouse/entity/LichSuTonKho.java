@@ -6,7 +6,10 @@ import java.math.BigDecimal;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "lich_su_ton_kho")
+@Table(name = "lich_su_ton_kho", indexes = {
+        @Index(name = "idx_lich_su_ton_kho_the_kho", columnList = "hang_hoa_id, created_at, id"),
+        @Index(name = "idx_lich_su_ton_kho_ma_chung_tu", columnList = "ma_chung_tu")
+})
 @Getter
 @Setter
 @NoArgsConstructor
@@ -14,14 +17,34 @@ import java.time.LocalDateTime;
 @Builder
 public class LichSuTonKho {
 
+    public static final int ID_ALLOCATION_SIZE = 50;
+
+    /**
+     * ID cấp theo khối từ bảng id_generator (pooled, 50 ID / lần) thay cho IDENTITY
+     * → Hibernate gom được INSERT theo JDBC batch khi ghi nhiều dòng lịch sử.
+     * Bộ đếm được nâng lên trên MAX(id) hiện có khi khởi động (xem LichSuTonKhoWriter).
+     */
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = "lich_su_ton_kho_id")
+    @TableGenerator(name = "lich_su_ton_kho_id",
+            table = "id_generator",
+            pkColumnName = "ten_bang",
+            valueColumnName = "gia_tri_tiep_theo",
+            pkColumnValue = "lich_su_ton_kho",
+            allocationSize = LichSuTonKho.ID_ALLOCATION_SIZE)
     private Long id;
 
     @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "hang_hoa_id", nullable = false)
     private HangHoa hangHoa;
 
+    /**
+     * Kho phát sinh biến động (dòng ghi trước khi có cột này: suy ra từ vị trí kho / lô - xem BienDongTonKhoService)
+     */
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "kho_id")
+    private Kho kho;
+
     @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "lo_hang_id")
     private LoHang loHang;
@@ -34,6 +57,11 @@ public class LichSuTonKho {
     @Column(name = "loai_bien_dong", nullable = false)
     private LoaiBienDong loaiBienDong;
 
+    /**
+     * Tồn kho trước / sau biến động tính theo số lượng CÓ THỂ XUẤT của hàng hóa (hang_hoa.so_luong_co_the_xuat,
+     * không tính phần đang giữ cho phiếu xuất chưa duyệt) - mọi nơi ghi lịch sử đều dùng cùng cơ sở này.
+     * Giữ hàng lúc lập phiếu không ghi lịch sử; phần đã giữ được ghi khi duyệt phiếu.
+     */
     @Column(name = "so_luong_truoc", nullable = false)
     private Integer soLuongTruoc;
 
@@ -15,7 +15,12 @@ import java.time.LocalDateTime;
 @AllArgsConstructor
 @Builder
 @Entity
-@Table(name = "lo_hang")
+@Table(name = "lo_hang", indexes = {
+        @Index(name = "idx_lo_hang_updated_at", columnList = "updated_at"),
+        // Lô khả dụng để xuất (FEFO): hàng hóa + kho rồi theo HSD, NSX
+        @Index(name = "idx_lo_hang_xuat", columnList = "hang_hoa_id, kho_id, han_su_dung, ngay_san_xuat"),
+        @Index(name = "idx_lo_hang_han_su_dung", columnList = "han_su_dung")
+})
 public class LoHang {
 
     @Id
@@ -47,6 +52,11 @@ public class LoHang {
     @Column(name = "so_luong_hien_tai", nullable = false)
     private Integer soLuongHienTai;
 
+    // Số lượng đang được giữ cho phiếu xuất chưa duyệt (DatTruTonKho) - nằm trong soLuongHienTai
+    @Column(name = "so_luong_da_dat")
+    @Builder.Default
+    private Integer soLuongDaDat = 0;
+
     @Column(name = "gia_nhap", precision = 15, scale = 2, nullable = false)
     private BigDecimal giaNhap;
 
@@ -77,6 +87,7 @@ public class LoHang {
         if (this.createdAt == null) this.createdAt = LocalDateTime.now();
         if (this.updatedAt == null) this.updatedAt = LocalDateTime.now();
         if (this.trangThai == null) this.trangThai = TrangThaiLoHang.MOI;
+        if (this.soLuongDaDat == null) this.soLuongDaDat = 0;
     }
 
     @PreUpdate
@@ -0,0 +1,71 @@
+package com.hospital.warehouse.hospital_warehouse.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import com.fasterxml.jackson.annotation.JsonFormat;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * Phân bổ thực tế của một dòng phiếu xuất: dòng → lô → vị trí → số lượng → giá vốn.
+ * Ghi lúc duyệt phiếu (một dòng có thể lấy từ nhiều lô / nhiều vị trí theo FEFO).
+ *
+ * Dùng để hủy duyệt hoàn nguyên chính xác bằng vài câu lệnh tập hợp
+ * và truy vết lô (lô X đã xuất cho khoa phòng nào) bằng tra cứu theo chỉ mục lo_hang_id.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@Entity
+@Table(name = "phan_bo_xuat_lo", indexes = {
+        @Index(name = "idx_phan_bo_xuat_lo_lo_hang", columnList = "lo_hang_id"),
+        @Index(name = "idx_phan_bo_xuat_lo_phieu_xuat", columnList = "phieu_xuat_id"),
+        @Index(name = "idx_phan_bo_xuat_lo_chi_tiet", columnList = "chi_tiet_phieu_xuat_id")
+})
+public class PhanBoXuatLo {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "phieu_xuat_id", nullable = false)
+    private PhieuXuatKho phieuXuat;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "chi_tiet_phieu_xuat_id", nullable = false)
+    private ChiTietPhieuXuat chiTietPhieuXuat;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "hang_hoa_id", nullable = false)
+    private HangHoa hangHoa;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "lo_hang_id", nullable = false)
+    private LoHang loHang;
+
+    // Null nếu phần xuất không nằm ở vị trí nào (lô chưa được xếp vị trí)
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "vi_tri_kho_id")
+    private ViTriKho viTriKho;
+
+    @Column(name = "so_luong", nullable = false)
+    private Integer soLuong;
+
+    // Giá vốn = giá nhập của lô
+    @Column(name = "don_gia", precision = 15, scale = 2, nullable = false)
+    private BigDecimal donGia;
+
+    @JsonFormat(pattern = "yyyy-MM-dd HH:mm:ss")
+    @Column(name = "created_at", nullable = false, updatable = false)
+    private LocalDateTime createdAt;
+
+    @PrePersist
+    public void prePersist() {
+        if (this.createdAt == null) this.createdAt = LocalDateTime.now();
+    }
+}
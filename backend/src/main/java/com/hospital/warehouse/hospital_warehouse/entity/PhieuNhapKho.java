@@ -15,7 +15,9 @@ import java.time.LocalDateTime;
 @AllArgsConstructor
 @Builder
 @Entity
-@Table(name = "phieu_nhap_kho")
+@Table(name = "phieu_nhap_kho", indexes = {
+        @Index(name = "idx_phieu_nhap_kho_kho_ngay_nhap", columnList = "kho_id, ngay_nhap")
+})
 public class PhieuNhapKho {
 
     @Id
@@ -15,7 +15,9 @@ import java.time.LocalDateTime;
 @AllArgsConstructor
 @Builder
 @Entity
-@Table(name = "phieu_xuat_kho")
+@Table(name = "phieu_xuat_kho", indexes = {
+        @Index(name = "idx_phieu_xuat_kho_kho_ngay_xuat", columnList = "kho_id, ngay_xuat")
+})
 public class PhieuXuatKho {
 
     @Id
@@ -0,0 +1,43 @@
+package com.hospital.warehouse.hospital_warehouse.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Tín hiệu "lô đã thay đổi" dùng chung giữa các node: ghi trong cùng transaction với thay đổi lô,
+ * thoiGian lấy theo đồng hồ DB. Mỗi node đọc các dòng mới của node khác theo chu kỳ để cập nhật
+ * chỉ mục hạn sử dụng trong bộ nhớ - xem ChiMucHanSuDungService.
+ *
+ * Không có khóa ngoại tới lo_hang: lô đã xóa vẫn cần được báo để bỏ khỏi chỉ mục.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@Entity
+@Table(name = "thay_doi_lo_hang", indexes = {
+        @Index(name = "idx_thay_doi_lo_hang_thoi_gian", columnList = "thoi_gian")
+})
+public class ThayDoiLoHang {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "lo_hang_id", nullable = false)
+    private Long loHangId;
+
+    /**
+     * Node đã ghi - node đó đã tự cập nhật chỉ mục sau commit, không đọc lại
+     */
+    @Column(name = "ma_node", nullable = false, length = 36)
+    private String maNode;
+
+    @Column(name = "thoi_gian", nullable = false)
+    private LocalDateTime thoiGian;
+}
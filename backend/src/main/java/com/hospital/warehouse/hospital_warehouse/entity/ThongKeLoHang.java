@@ -0,0 +1,53 @@
+package com.hospital.warehouse.hospital_warehouse.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+/**
+ * Bộ đếm lô hàng theo (kho, trạng thái): số lô và tổng số lượng hiện tại.
+ *
+ * Được cộng / trừ trong cùng transaction với mỗi lần ghi lô (ThongKeLoHangService), nên màn hình thống kê lô
+ * chỉ đọc vài dòng của bảng này thay vì GROUP BY toàn bộ lo_hang.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@Entity
+@Table(name = "thong_ke_lo_hang")
+public class ThongKeLoHang {
+
+    @EmbeddedId
+    private ThongKeLoHangId id;
+
+    @Column(name = "so_lo", nullable = false)
+    @Builder.Default
+    private Long soLo = 0L;
+
+    @Column(name = "tong_so_luong", nullable = false)
+    @Builder.Default
+    private Long tongSoLuong = 0L;
+
+    @Column(name = "updated_at")
+    private LocalDateTime updatedAt;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @Embeddable
+    public static class ThongKeLoHangId implements Serializable {
+
+        @Column(name = "kho_id")
+        private Long khoId;
+
+        @Enumerated(EnumType.STRING)
+        @Column(name = "trang_thai", length = 20)
+        private LoHang.TrangThaiLoHang trangThai;
+    }
+}
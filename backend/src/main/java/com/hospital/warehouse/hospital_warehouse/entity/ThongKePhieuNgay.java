@@ -0,0 +1,68 @@
+package com.hospital.warehouse.hospital_warehouse.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+/**
+ * Bảng tổng hợp số phiếu nhập / xuất theo (loại phiếu, ngày chứng từ, kho, trạng thái).
+ *
+ * Được cộng / trừ trong CÙNG transaction với tạo / duyệt / hủy / hủy duyệt / xóa phiếu (xem ThongKePhieuService),
+ * nên thống kê khoảng dài chỉ đọc vài trăm dòng thay vì quét bảng phiếu.
+ * tong_gia_tri chỉ cộng cho phiếu đã duyệt / đã giao (giá trị chốt lúc duyệt) - các trạng thái khác luôn 0.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@Entity
+@Table(name = "thong_ke_phieu_ngay", indexes = {
+        @Index(name = "idx_thong_ke_phieu_ngay_kho", columnList = "loai_phieu, kho_id, ngay")
+})
+public class ThongKePhieuNgay {
+
+    @EmbeddedId
+    private ThongKePhieuNgayId id;
+
+    @Column(name = "so_phieu", nullable = false)
+    @Builder.Default
+    private Long soPhieu = 0L;
+
+    @Column(name = "tong_gia_tri", precision = 18, scale = 2, nullable = false)
+    @Builder.Default
+    private BigDecimal tongGiaTri = BigDecimal.ZERO;
+
+    @Column(name = "updated_at")
+    private LocalDateTime updatedAt;
+
+    public enum LoaiPhieu {
+        NHAP, XUAT
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @Embeddable
+    public static class ThongKePhieuNgayId implements Serializable {
+
+        @Enumerated(EnumType.STRING)
+        @Column(name = "loai_phieu", length = 10)
+        private LoaiPhieu loaiPhieu;
+
+        @Column(name = "ngay")
+        private LocalDate ngay;
+
+        @Column(name = "kho_id")
+        private Long khoId;
+
+        @Column(name = "trang_thai", length = 20)
+        private String trangThai;
+    }
+}
@@ -0,0 +1,57 @@
+package com.hospital.warehouse.hospital_warehouse.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+/**
+ * Mốc tồn đầu tháng theo (hàng hóa, kho) - tồn tại thời điểm 00:00 ngày đầu tháng.
+ *
+ * Tạo dần khi lập thẻ kho (xem TheKhoService): mốc mới = mốc gần nhất trước đó + biến động các ngày ở giữa
+ * (bien_dong_ton_kho_ngay), nên tồn đầu kỳ không phải cộng từ đầu. Các ngày trước mốc đã qua nên mốc không đổi;
+ * đồng bộ lại bảng biến động theo ngày thì xóa hết mốc.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@Entity
+@Table(name = "ton_dau_ky", indexes = {
+        @Index(name = "idx_ton_dau_ky_hang_hoa_kho", columnList = "hang_hoa_id, kho_id, ngay")
+})
+public class TonDauKy {
+
+    @EmbeddedId
+    private TonDauKyId id;
+
+    @Column(name = "so_luong", nullable = false)
+    private Long soLuong;
+
+    @Column(name = "updated_at")
+    private LocalDateTime updatedAt;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @Embeddable
+    public static class TonDauKyId implements Serializable {
+
+        @Column(name = "hang_hoa_id")
+        private Long hangHoaId;
+
+        @Column(name = "kho_id")
+        private Long khoId;
+
+        /**
+         * Ngày đầu tháng
+         */
+        @Column(name = "ngay")
+        private LocalDate ngay;
+    }
+}
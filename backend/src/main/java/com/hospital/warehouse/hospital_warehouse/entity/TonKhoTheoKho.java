@@ -0,0 +1,87 @@
+package com.hospital.warehouse.hospital_warehouse.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import com.fasterxml.jackson.annotation.JsonFormat;
+
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+/**
+ * Tồn kho của một hàng hóa tại một kho (bảng tổng hợp, cập nhật cùng transaction với mọi nhập/xuất/hủy duyệt).
+ *
+ * Khóa chính (hang_hoa_id, kho_id) → trả lời "kho X còn xuất được bao nhiêu hàng Y" bằng 1 lần tra PK,
+ * không cần SUM trên lo_hang. Các cột số lượng chỉ được sửa bằng UPDATE nguyên tử trong repository.
+ *
+ * gia_tri_ton: tổng giá trị tồn (1/100 đồng, xem DinhGiaTon) đi cùng tong_so_luong - giá bình quân tính lúc đọc.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@Entity
+@Table(name = "ton_kho_theo_kho")
+public class TonKhoTheoKho {
+
+    @EmbeddedId
+    private TonKhoTheoKhoId id;
+
+    @MapsId("hangHoaId")
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "hang_hoa_id", nullable = false)
+    private HangHoa hangHoa;
+
+    @MapsId("khoId")
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "kho_id", nullable = false)
+    private Kho kho;
+
+    @Column(name = "tong_so_luong", nullable = false)
+    @Builder.Default
+    private Integer tongSoLuong = 0;
+
+    @Column(name = "so_luong_co_the_xuat", nullable = false)
+    @Builder.Default
+    private Integer soLuongCoTheXuat = 0;
+
+    @Column(name = "so_luong_da_dat", nullable = false)
+    @Builder.Default
+    private Integer soLuongDaDat = 0;
+
+    /**
+     * Tổng giá trị tồn theo đơn vị 1/100 đồng (null: dòng có trước khi định giá, được khởi tạo lúc khởi động)
+     */
+    @Column(name = "gia_tri_ton", columnDefinition = "BIGINT")
+    @Builder.Default
+    private Long giaTriTon = 0L;
+
+    @JsonFormat(pattern = "yyyy-MM-dd HH:mm:ss")
+    @Column(name = "updated_at")
+    private LocalDateTime updatedAt;
+
+    @PrePersist
+    @PreUpdate
+    public void preUpdate() {
+        this.updatedAt = LocalDateTime.now();
+        if (this.tongSoLuong == null) this.tongSoLuong = 0;
+        if (this.soLuongCoTheXuat == null) this.soLuongCoTheXuat = 0;
+        if (this.soLuongDaDat == null) this.soLuongDaDat = 0;
+        if (this.giaTriTon == null) this.giaTriTon = 0L;
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @Embeddable
+    public static class TonKhoTheoKhoId implements Serializable {
+
+        @Column(name = "hang_hoa_id")
+        private Long hangHoaId;
+
+        @Column(name = "kho_id")
+        private Long khoId;
+    }
+}
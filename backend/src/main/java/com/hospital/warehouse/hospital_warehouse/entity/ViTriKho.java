@@ -49,6 +49,16 @@ public class ViTriKho {
     @Column(name = "suc_chua_toi_da", columnDefinition = "INT DEFAULT 0")
     private Integer sucChuaToiDa = 0;
 
+    // Bộ đếm mức chứa - cập nhật theo từng lần nhập / xuất / hủy duyệt (ViTriKhoService.apDungBienDong),
+    // sửa lệch định kỳ từ hang_hoa_vi_tri (ViTriKhoService.dongBoSucChua)
+    @Column(name = "so_luong_dang_chua", columnDefinition = "INT DEFAULT 0")
+    @Builder.Default
+    private Integer soLuongDangChua = 0;  // Tổng số lượng hàng đang nằm tại vị trí
+
+    @Column(name = "so_dong_hang_hoa", columnDefinition = "INT DEFAULT 0")
+    @Builder.Default
+    private Integer soDongHangHoa = 0;  // Số dòng hang_hoa_vi_tri (hàng hóa + lô) tại vị trí
+
     @Column(name = "trong_luong_toi_da", precision = 10, scale = 2)
     private BigDecimal trongLuongToiDa;
 
@@ -73,6 +83,8 @@ public class ViTriKho {
         if (this.updatedAt == null) this.updatedAt = LocalDateTime.now();
         if (this.trangThai == null) this.trangThai = TrangThaiViTri.TRONG;
         if (this.sucChuaToiDa == null) this.sucChuaToiDa = 0;
+        if (this.soLuongDangChua == null) this.soLuongDangChua = 0;
+        if (this.soDongHangHoa == null) this.soDongHangHoa = 0;
     }
 
     @PreUpdate
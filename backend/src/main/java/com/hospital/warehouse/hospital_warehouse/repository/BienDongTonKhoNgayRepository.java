@@ -0,0 +1,175 @@
+package com.hospital.warehouse.hospital_warehouse.repository;
+
+import com.hospital.warehouse.hospital_warehouse.entity.BienDongTonKhoNgay;
+import com.hospital.warehouse.hospital_warehouse.entity.LichSuTonKho;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Repository bảng tổng hợp biến động tồn kho theo ngày - ghi bằng câu lệnh cộng dồn nguyên tử
+ */
+@Repository
+public interface BienDongTonKhoNgayRepository
+        extends JpaRepository<BienDongTonKhoNgay, BienDongTonKhoNgay.BienDongTonKhoNgayId> {
+
+    /**
+     * Lịch sử tồn kho đã quy về khóa tổng hợp. Kho: cột kho_id, dòng cũ suy ra từ vị trí kho / lô.
+     * Chiều vào / ra phải khớp BienDongTonKhoService#laVao.
+     */
+    String NGUON_LICH_SU = """
+        (SELECT ls.hang_hoa_id,
+                COALESCE(ls.kho_id, vt.kho_id, lh.kho_id) AS kho_id,
+                ls.loai_bien_dong,
+                DATE(ls.created_at) AS ngay,
+                CASE
+                    WHEN ls.loai_bien_dong IN ('NHAP_KHO', 'HUY_DUYET_XUAT') THEN 1
+                    WHEN ls.loai_bien_dong IN ('XUAT_KHO', 'HUY_DUYET_NHAP', 'HUY_HANG') THEN 0
+                    WHEN ls.so_luong_sau >= ls.so_luong_truoc THEN 1
+                    ELSE 0
+                END AS vao,
+                ABS(ls.so_luong_bien_dong) AS so_luong,
+                ABS(COALESCE(ls.gia_tri_bien_dong, 0)) AS gia_tri
+         FROM lich_su_ton_kho ls
+         LEFT JOIN vi_tri_kho vt ON vt.id = ls.vi_tri_kho_id
+         LEFT JOIN lo_hang lh ON lh.id = ls.lo_hang_id
+         WHERE ls.created_at >= :tu AND ls.created_at < :den) x
+    """;
+
+    String COT_TONG_HOP = """
+        SELECT x.hang_hoa_id, x.kho_id, x.loai_bien_dong, x.ngay,
+               SUM(CASE WHEN x.vao = 1 THEN x.so_luong ELSE 0 END),
+               SUM(CASE WHEN x.vao = 0 THEN x.so_luong ELSE 0 END),
+               SUM(CASE WHEN x.vao = 1 THEN x.gia_tri ELSE 0 END),
+               SUM(CASE WHEN x.vao = 0 THEN x.gia_tri ELSE 0 END),
+               COUNT(*)
+    """;
+
+    String NHOM_TONG_HOP = """
+        WHERE x.kho_id IS NOT NULL
+        GROUP BY x.hang_hoa_id, x.kho_id, x.loai_bien_dong, x.ngay
+    """;
+
+    /**
+     * Cộng dồn vào một ô - tạo dòng nếu chưa có
+     */
+    @Modifying(flushAutomatically = true)
+    @Query(value = """
+        INSERT INTO bien_dong_ton_kho_ngay (hang_hoa_id, kho_id, loai_bien_dong, ngay,
+                                            so_luong_vao, so_luong_ra, gia_tri_vao, gia_tri_ra, so_dong, updated_at)
+        VALUES (:hangHoaId, :khoId, :loaiBienDong, :ngay, :soLuongVao, :soLuongRa, :giaTriVao, :giaTriRa, :soDong, NOW())
+        ON DUPLICATE KEY UPDATE
+            so_luong_vao = so_luong_vao + :soLuongVao,
+            so_luong_ra = so_luong_ra + :soLuongRa,
+            gia_tri_vao = gia_tri_vao + :giaTriVao,
+            gia_tri_ra = gia_tri_ra + :giaTriRa,
+            so_dong = so_dong + :soDong,
+            updated_at = NOW()
+    """, nativeQuery = true)
+    int congDon(@Param("hangHoaId") Long hangHoaId,
+                @Param("khoId") Long khoId,
+                @Param("loaiBienDong") String loaiBienDong,
+                @Param("ngay") LocalDate ngay,
+                @Param("soLuongVao") long soLuongVao,
+                @Param("soLuongRa") long soLuongRa,
+                @Param("giaTriVao") BigDecimal giaTriVao,
+                @Param("giaTriRa") BigDecimal giaTriRa,
+                @Param("soDong") long soDong);
+
+    // ==================== BÁO CÁO ====================
+
+    /**
+     * Tổng theo mặt hàng × kho:
+     * [hangHoaId, maHangHoa, tenHangHoa, khoId, tenKho, soLuongVao, soLuongRa, giaTriVao, giaTriRa]
+     */
+    @Query("""
+        SELECT b.id.hangHoaId, h.maHangHoa, h.tenHangHoa, b.id.khoId, k.tenKho,
+               SUM(b.soLuongVao), SUM(b.soLuongRa), SUM(b.giaTriVao), SUM(b.giaTriRa)
+        FROM BienDongTonKhoNgay b
+        JOIN HangHoa h ON h.id = b.id.hangHoaId
+        JOIN Kho k ON k.id = b.id.khoId
+        WHERE b.id.ngay >= :tuNgay AND b.id.ngay <= :denNgay
+          AND (:khoId IS NULL OR b.id.khoId = :khoId)
+          AND (:hangHoaId IS NULL OR b.id.hangHoaId = :hangHoaId)
+          AND (:loaiBienDong IS NULL OR b.id.loaiBienDong = :loaiBienDong)
+        GROUP BY b.id.hangHoaId, h.maHangHoa, h.tenHangHoa, b.id.khoId, k.tenKho
+        ORDER BY h.tenHangHoa, k.tenKho
+    """)
+    List<Object[]> tongHopTheoHangHoa(@Param("khoId") Long khoId,
+                                      @Param("hangHoaId") Long hangHoaId,
+                                      @Param("loaiBienDong") LichSuTonKho.LoaiBienDong loaiBienDong,
+                                      @Param("tuNgay") LocalDate tuNgay,
+                                      @Param("denNgay") LocalDate denNgay);
+
+    /**
+     * Tổng theo tháng: [nam, thang, soLuongVao, soLuongRa, giaTriVao, giaTriRa]
+     */
+    @Query("""
+        SELECT year(b.id.ngay), month(b.id.ngay),
+               SUM(b.soLuongVao), SUM(b.soLuongRa), SUM(b.giaTriVao), SUM(b.giaTriRa)
+        FROM BienDongTonKhoNgay b
+        WHERE b.id.ngay >= :tuNgay AND b.id.ngay <= :denNgay
+          AND (:khoId IS NULL OR b.id.khoId = :khoId)
+          AND (:hangHoaId IS NULL OR b.id.hangHoaId = :hangHoaId)
+          AND (:loaiBienDong IS NULL OR b.id.loaiBienDong = :loaiBienDong)
+        GROUP BY year(b.id.ngay), month(b.id.ngay)
+        ORDER BY year(b.id.ngay), month(b.id.ngay)
+    """)
+    List<Object[]> tongHopTheoThang(@Param("khoId") Long khoId,
+                                    @Param("hangHoaId") Long hangHoaId,
+                                    @Param("loaiBienDong") LichSuTonKho.LoaiBienDong loaiBienDong,
+                                    @Param("tuNgay") LocalDate tuNgay,
+                                    @Param("denNgay") LocalDate denNgay);
+
+    /**
+     * Biến động thuần (vào - ra) của một mặt hàng trong một kho, các ngày trong [tuNgay, denNgay)
+     */
+    @Query("""
+        SELECT COALESCE(SUM(b.soLuongVao - b.soLuongRa), 0)
+        FROM BienDongTonKhoNgay b
+        WHERE b.id.hangHoaId = :hangHoaId AND b.id.khoId = :khoId
+          AND b.id.ngay >= :tuNgay AND b.id.ngay < :denNgay
+    """)
+    long tongThuan(@Param("hangHoaId") Long hangHoaId,
+                   @Param("khoId") Long khoId,
+                   @Param("tuNgay") LocalDate tuNgay,
+                   @Param("denNgay") LocalDate denNgay);
+
+    // ==================== ĐỒNG BỘ LẠI / KIỂM TRA ====================
+
+    @Modifying
+    @Query("DELETE FROM BienDongTonKhoNgay b")
+    int xoaTatCa();
+
+    /**
+     * Tính lại bảng tổng hợp từ lịch sử trong [tu, den) - 1 câu INSERT ... SELECT ... GROUP BY
+     */
+    @Modifying
+    @Query(value = """
+        INSERT INTO bien_dong_ton_kho_ngay (hang_hoa_id, kho_id, loai_bien_dong, ngay,
+                                            so_luong_vao, so_luong_ra, gia_tri_vao, gia_tri_ra, so_dong, updated_at)
+        """ + COT_TONG_HOP + ", NOW() FROM " + NGUON_LICH_SU + NHOM_TONG_HOP, nativeQuery = true)
+    int dongBoTuLichSu(@Param("tu") LocalDateTime tu, @Param("den") LocalDateTime den);
+
+    /**
+     * Tổng hợp tính thẳng từ lịch sử trong [tu, den):
+     * [hangHoaId, khoId, loaiBienDong, ngay, soLuongVao, soLuongRa, giaTriVao, giaTriRa, soDong]
+     */
+    @Query(value = COT_TONG_HOP + " FROM " + NGUON_LICH_SU + NHOM_TONG_HOP, nativeQuery = true)
+    List<Object[]> tinhTuLichSu(@Param("tu") LocalDateTime tu, @Param("den") LocalDateTime den);
+
+    /**
+     * Số dòng lịch sử trong [tu, den) không xác định được kho (không được tổng hợp)
+     */
+    @Query(value = "SELECT COUNT(*) FROM " + NGUON_LICH_SU + " WHERE x.kho_id IS NULL", nativeQuery = true)
+    long demKhongXacDinhKho(@Param("tu") LocalDateTime tu, @Param("den") LocalDateTime den);
+
+    List<BienDongTonKhoNgay> findByIdNgayBetween(LocalDate tuNgay, LocalDate denNgay);
+}
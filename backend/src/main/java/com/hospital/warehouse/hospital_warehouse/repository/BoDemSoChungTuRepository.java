@@ -0,0 +1,41 @@
+package com.hospital.warehouse.hospital_warehouse.repository;
+
+import com.hospital.warehouse.hospital_warehouse.entity.BoDemSoChungTu;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+
+@Repository
+public interface BoDemSoChungTuRepository extends JpaRepository<BoDemSoChungTu, String> {
+
+    /**
+     * Lấy một khối số: khóa dòng bộ đếm tới hết transaction
+     * @return 0 nếu tiền tố chưa có bộ đếm
+     */
+    @Modifying
+    @Query("UPDATE BoDemSoChungTu b SET b.giaTriHienTai = b.giaTriHienTai + :kichThuocKhoi, b.updatedAt = :now " +
+            "WHERE b.tienTo = :tienTo")
+    int tangGiaTri(@Param("tienTo") String tienTo,
+                   @Param("kichThuocKhoi") long kichThuocKhoi,
+                   @Param("now") LocalDateTime now);
+
+    @Query("SELECT b.giaTriHienTai FROM BoDemSoChungTu b WHERE b.tienTo = :tienTo")
+    Long findGiaTriHienTai(@Param("tienTo") String tienTo);
+
+    /**
+     * Tạo bộ đếm cho tiền tố mới (bỏ qua nếu node khác đã tạo)
+     */
+    @Modifying
+    @Query(value = """
+        INSERT INTO bo_dem_so_chung_tu (tien_to, gia_tri_hien_tai, updated_at)
+        SELECT :tienTo, :giaTri, :now FROM DUAL
+        WHERE NOT EXISTS (SELECT 1 FROM bo_dem_so_chung_tu WHERE tien_to = :tienTo)
+    """, nativeQuery = true)
+    int khoiTao(@Param("tienTo") String tienTo,
+                @Param("giaTri") long giaTri,
+                @Param("now") LocalDateTime now);
+}
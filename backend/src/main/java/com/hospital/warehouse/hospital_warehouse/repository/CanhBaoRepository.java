@@ -6,11 +6,13 @@ import com.hospital.warehouse.hospital_warehouse.entity.CanhBaoHeThong.MucDo;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 
 @Repository
@@ -57,6 +59,15 @@ public interface CanhBaoRepository extends JpaRepository<CanhBaoHeThong, Long> {
             Pageable pageable
     );
 
+    // Dấu vết chống trùng đã có (SinhCanhBaoService)
+    @Query("SELECT c.dauVet FROM CanhBaoHeThong c WHERE c.dauVet IN :dauVet")
+    List<String> findDauVetDaCo(@Param("dauVet") Collection<String> dauVet);
+
+    // Điều kiện cảnh báo đã hết → bỏ dấu vết để lần vi phạm sau sinh cảnh báo mới
+    @Modifying
+    @Query("UPDATE CanhBaoHeThong c SET c.dauVet = NULL, c.updatedAt = CURRENT_TIMESTAMP WHERE c.dauVet IN :dauVet")
+    int giaiPhongDauVet(@Param("dauVet") Collection<String> dauVet);
+
     // Thống kê theo loại
     @Query("SELECT c.loaiCanhBao, COUNT(c) FROM CanhBaoHeThong c WHERE c.daXuLy = false GROUP BY c.loaiCanhBao")
     List<Object[]> thongKeTheoLoai();
@@ -1,6 +1,7 @@
 package com.hospital.warehouse.hospital_warehouse.repository;
 
 import com.hospital.warehouse.hospital_warehouse.entity.ChiTietPhieuXuat;
+import com.hospital.warehouse.hospital_warehouse.entity.HangHoa;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
@@ -8,12 +9,19 @@ import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
 import java.util.List;
 
 @Repository
 public interface ChiTietPhieuXuatRepository extends JpaRepository<ChiTietPhieuXuat, Long> {
 
-    List<ChiTietPhieuXuat> findByPhieuXuatId(Long phieuXuatId);
+    // Lọc thẳng trên phieu_xuat_id (idx_chi_tiet_phieu_xuat_phieu_hang), không JOIN phieu_xuat_kho
+    @Query("SELECT c FROM ChiTietPhieuXuat c WHERE c.phieuXuat.id = :phieuXuatId")
+    List<ChiTietPhieuXuat> findByPhieuXuatId(@Param("phieuXuatId") Long phieuXuatId);
+
+    // Hàng hóa của nhiều phiếu trong 1 câu (duyệt hàng loạt nạp trước theo kho)
+    @Query("SELECT DISTINCT c.hangHoa FROM ChiTietPhieuXuat c WHERE c.phieuXuat.id IN :phieuXuatIds")
+    List<HangHoa> findHangHoaByPhieuXuatIdIn(@Param("phieuXuatIds") Collection<Long> phieuXuatIds);
 
     @Modifying
     @Transactional
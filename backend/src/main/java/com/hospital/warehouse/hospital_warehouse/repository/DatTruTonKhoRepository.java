@@ -0,0 +1,92 @@
+package com.hospital.warehouse.hospital_warehouse.repository;
+
+import com.hospital.warehouse.hospital_warehouse.entity.DatTruTonKho;
+import jakarta.persistence.LockModeType;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface DatTruTonKhoRepository extends JpaRepository<DatTruTonKho, Long> {
+
+    /**
+     * Đặt trước đang giữ của một phiếu - KHÓA dòng để duyệt / hủy / quét hết hạn không xử lý trùng
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("""
+        SELECT d FROM DatTruTonKho d
+        WHERE d.phieuXuat.id = :phieuXuatId
+          AND d.trangThai = com.hospital.warehouse.hospital_warehouse.entity.DatTruTonKho.TrangThaiDatTru.DANG_GIU
+        ORDER BY d.id
+    """)
+    List<DatTruTonKho> findDangGiuByPhieuXuatIdForUpdate(@Param("phieuXuatId") Long phieuXuatId);
+
+    /**
+     * Đặt trước đang giữ của một phiếu - chỉ đọc, không khóa (xem trước kế hoạch xuất)
+     */
+    @Query("""
+        SELECT d FROM DatTruTonKho d
+        WHERE d.phieuXuat.id = :phieuXuatId
+          AND d.trangThai = com.hospital.warehouse.hospital_warehouse.entity.DatTruTonKho.TrangThaiDatTru.DANG_GIU
+        ORDER BY d.id
+    """)
+    List<DatTruTonKho> findDangGiuByPhieuXuatId(@Param("phieuXuatId") Long phieuXuatId);
+
+    /**
+     * Một lô đặt trước đã quá hạn giữ (khóa dòng, theo thứ tự ID)
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("""
+        SELECT d FROM DatTruTonKho d
+        WHERE d.trangThai = com.hospital.warehouse.hospital_warehouse.entity.DatTruTonKho.TrangThaiDatTru.DANG_GIU
+          AND d.hetHanLuc < :now
+        ORDER BY d.id
+    """)
+    List<DatTruTonKho> findHetHanForUpdate(@Param("now") LocalDateTime now, Pageable pageable);
+
+    /**
+     * Phiếu có phần giữ hàng đã quá hạn (không khóa) - dùng khi phải trả lại từng phiếu
+     */
+    @Query("""
+        SELECT DISTINCT d.phieuXuat.id FROM DatTruTonKho d
+        WHERE d.trangThai = com.hospital.warehouse.hospital_warehouse.entity.DatTruTonKho.TrangThaiDatTru.DANG_GIU
+          AND d.hetHanLuc < :now
+        ORDER BY d.phieuXuat.id
+    """)
+    List<Long> findPhieuXuatIdHetHan(@Param("now") LocalDateTime now, Pageable pageable);
+
+    @Modifying(flushAutomatically = true)
+    @Query("""
+        UPDATE DatTruTonKho d
+        SET d.trangThai = :trangThai,
+            d.updatedAt = CURRENT_TIMESTAMP
+        WHERE d.id IN :ids
+    """)
+    int capNhatTrangThai(@Param("ids") Collection<Long> ids,
+                         @Param("trangThai") DatTruTonKho.TrangThaiDatTru trangThai);
+
+    @Modifying
+    @Query("DELETE FROM DatTruTonKho d WHERE d.phieuXuat.id = :phieuXuatId")
+    int deleteByPhieuXuatId(@Param("phieuXuatId") Long phieuXuatId);
+
+    /**
+     * Xóa các dòng đã trả lại (DA_HUY / HET_HAN) của một lô - chạy trước khi xóa lô.
+     * Số lượng của các dòng này đã hoàn về lô, dòng chỉ còn là dấu vết nên không giữ lại tham chiếu tới lô đã xóa.
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("""
+        DELETE FROM DatTruTonKho d
+        WHERE d.loHang.id = :loHangId
+          AND d.trangThai IN (com.hospital.warehouse.hospital_warehouse.entity.DatTruTonKho.TrangThaiDatTru.DA_HUY,
+                              com.hospital.warehouse.hospital_warehouse.entity.DatTruTonKho.TrangThaiDatTru.HET_HAN)
+    """)
+    int deleteDaTraLaiByLoHangId(@Param("loHangId") Long loHangId);
+}
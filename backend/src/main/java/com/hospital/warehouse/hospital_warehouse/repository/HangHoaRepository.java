@@ -5,10 +5,13 @@ import com.hospital.warehouse.hospital_warehouse.entity.DanhMuc;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -35,6 +38,18 @@ public interface HangHoaRepository extends JpaRepository<HangHoa, Long> {
     @Query("SELECT hh FROM HangHoa hh WHERE hh.soLuongCoTheXuat <= 0")
     List<HangHoa> findHangHoaHetHang();
 
+    /**
+     * Hàng hóa thay đổi từ thời điểm tu (sinh cảnh báo tồn kho thấp):
+     * [id, maHangHoa, tenHangHoa, soLuongCoTheXuat, soLuongToiThieu]
+     */
+    @Query("""
+        SELECT hh.id, hh.maHangHoa, hh.tenHangHoa,
+               COALESCE(hh.soLuongCoTheXuat, 0), COALESCE(hh.soLuongToiThieu, 0)
+        FROM HangHoa hh
+        WHERE hh.updatedAt >= :tu
+    """)
+    List<Object[]> findTonKhoThayDoiTu(@Param("tu") LocalDateTime tu);
+
     @Query("SELECT hh FROM HangHoa hh WHERE " +
             "hh.trangThai = :trangThai AND " +
             "(:danhMucId IS NULL OR hh.danhMuc.id = :danhMucId) AND " +
@@ -53,4 +68,116 @@ public interface HangHoaRepository extends JpaRepository<HangHoa, Long> {
 
     @Query("SELECT COUNT(hh) FROM HangHoa hh WHERE hh.danhMuc.id = :danhMucId")
     long countByDanhMucId(@Param("danhMucId") Long danhMucId);
-}
\ No newline at end of file
+
+    /**
+     * Trừ tồn kho nguyên tử: chỉ trừ khi soLuongCoTheXuat còn đủ.
+     * Trả về 0 nếu không đủ hàng (không khóa/đọc trước).
+     */
+    @Modifying(flushAutomatically = true)
+    // CAST tường minh: nếu không Hibernate suy kiểu tham số từ columnDefinition "INT DEFAULT 0"
+    // và sinh ra cast(? as INT DEFAULT 0) - sai cú pháp
+    @Query("UPDATE HangHoa hh SET " +
+            "hh.soLuongCoTheXuat = hh.soLuongCoTheXuat - CAST(:soLuong AS Integer), " +
+            "hh.tongSoLuong = hh.tongSoLuong - CAST(:soLuong AS Integer), " +
+            "hh.ngayXuatGanNhat = CURRENT_TIMESTAMP, " +
+            "hh.updatedAt = CURRENT_TIMESTAMP " +
+            "WHERE hh.id = :id AND hh.soLuongCoTheXuat >= :soLuong")
+    int truTonKhoCoDieuKien(@Param("id") Long id, @Param("soLuong") int soLuong);
+
+    /**
+     * Giữ hàng cho phiếu xuất chưa duyệt: chuyển từ "có thể xuất" sang "đã đặt"
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("UPDATE HangHoa hh SET " +
+            "hh.soLuongCoTheXuat = hh.soLuongCoTheXuat - CAST(:soLuong AS Integer), " +
+            "hh.soLuongDaDat = COALESCE(hh.soLuongDaDat, 0) + CAST(:soLuong AS Integer), " +
+            "hh.updatedAt = CURRENT_TIMESTAMP " +
+            "WHERE hh.id = :id AND hh.soLuongCoTheXuat >= :soLuong")
+    int datTruCoDieuKien(@Param("id") Long id, @Param("soLuong") int soLuong);
+
+    /**
+     * Trả lại phần đã giữ về "có thể xuất"
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("UPDATE HangHoa hh SET " +
+            "hh.soLuongCoTheXuat = hh.soLuongCoTheXuat + CAST(:soLuong AS Integer), " +
+            "hh.soLuongDaDat = hh.soLuongDaDat - CAST(:soLuong AS Integer), " +
+            "hh.updatedAt = CURRENT_TIMESTAMP " +
+            "WHERE hh.id = :id AND hh.soLuongDaDat >= :soLuong")
+    int giaiPhongDatTru(@Param("id") Long id, @Param("soLuong") int soLuong);
+
+    /**
+     * Duyệt phiếu: phần đã giữ rời kho (trừ tổng và đã đặt, "có thể xuất" không đổi)
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("UPDATE HangHoa hh SET " +
+            "hh.tongSoLuong = hh.tongSoLuong - CAST(:soLuong AS Integer), " +
+            "hh.soLuongDaDat = hh.soLuongDaDat - CAST(:soLuong AS Integer), " +
+            "hh.ngayXuatGanNhat = CURRENT_TIMESTAMP, " +
+            "hh.updatedAt = CURRENT_TIMESTAMP " +
+            "WHERE hh.id = :id AND hh.soLuongDaDat >= :soLuong")
+    int xuatTuDatTru(@Param("id") Long id, @Param("soLuong") int soLuong);
+
+    /**
+     * Duyệt phiếu nhập: cộng tồn kho cho một hàng hóa - 1 câu lệnh cho cả phiếu
+     * (giá nhập trung bình được tính lại riêng từ giá trị tồn - capNhatGiaBinhQuan)
+     *
+     * @param soLuong Tổng số lượng nhập của hàng hóa trong phiếu
+     */
+    @Modifying(flushAutomatically = true)
+    @Query(value = """
+        UPDATE hang_hoa h
+        SET h.tong_so_luong = COALESCE(h.tong_so_luong, 0) + :soLuong,
+            h.so_luong_co_the_xuat = COALESCE(h.so_luong_co_the_xuat, 0) + :soLuong,
+            h.ngay_nhap_gan_nhat = NOW(),
+            h.updated_at = NOW()
+        WHERE h.id = :id
+    """, nativeQuery = true)
+    int congTonKhoSauNhap(@Param("id") Long id, @Param("soLuong") int soLuong);
+
+    /**
+     * Giá nhập trung bình = Σ giá trị tồn / Σ số lượng trên ton_kho_theo_kho (giá trị lưu theo 1/100 đồng).
+     * Tính lại từ giá trị chính xác nên không trôi qua nhiều lần nhập / xuất / hủy duyệt.
+     * Hết hàng ở mọi kho → giữ giá cũ.
+     */
+    @Modifying(flushAutomatically = true)
+    @Query(value = """
+        UPDATE hang_hoa h
+        SET h.gia_nhap_trung_binh = COALESCE((
+                SELECT ROUND(SUM(t.gia_tri_ton) / (SUM(t.tong_so_luong) * 100), 2)
+                FROM ton_kho_theo_kho t
+                WHERE t.hang_hoa_id = h.id AND t.tong_so_luong > 0), h.gia_nhap_trung_binh)
+        WHERE h.id IN (:ids)
+    """, nativeQuery = true)
+    int capNhatGiaBinhQuan(@Param("ids") Collection<Long> ids);
+
+    /**
+     * Hủy duyệt phiếu xuất: cộng lại tồn kho cho mọi hàng hóa của phiếu - 1 câu lệnh cho cả phiếu
+     */
+    @Modifying(flushAutomatically = true)
+    @Query(value = """
+        UPDATE hang_hoa h
+        SET h.tong_so_luong = COALESCE(h.tong_so_luong, 0) + (
+                SELECT SUM(ct.so_luong_xuat) FROM chi_tiet_phieu_xuat ct
+                WHERE ct.phieu_xuat_id = :phieuXuatId AND ct.hang_hoa_id = h.id),
+            h.so_luong_co_the_xuat = COALESCE(h.so_luong_co_the_xuat, 0) + (
+                SELECT SUM(ct.so_luong_xuat) FROM chi_tiet_phieu_xuat ct
+                WHERE ct.phieu_xuat_id = :phieuXuatId AND ct.hang_hoa_id = h.id),
+            h.updated_at = NOW()
+        WHERE h.id IN (SELECT ct.hang_hoa_id FROM chi_tiet_phieu_xuat ct WHERE ct.phieu_xuat_id = :phieuXuatId)
+    """, nativeQuery = true)
+    int hoanLaiTheoPhieuXuat(@Param("phieuXuatId") Long phieuXuatId);
+
+    /**
+     * Đọc số lượng có thể xuất mới nhất của nhiều hàng hóa: [id, soLuongCoTheXuat]
+     * (đọc thẳng DB, không qua entity trong persistence context)
+     */
+    @Query("SELECT hh.id, hh.soLuongCoTheXuat FROM HangHoa hh WHERE hh.id IN :ids")
+    List<Object[]> findSoLuongCoTheXuatByIdIn(@Param("ids") Collection<Long> ids);
+
+    /**
+     * Bảng tra mã hàng hóa (nhập file): [maHangHoa, id, coQuanLyLo, tenHangHoa]
+     */
+    @Query("SELECT hh.maHangHoa, hh.id, hh.coQuanLyLo, hh.tenHangHoa FROM HangHoa hh")
+    List<Object[]> findMaHangHoaTatCa();
+}
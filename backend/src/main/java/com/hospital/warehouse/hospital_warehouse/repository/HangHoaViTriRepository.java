@@ -6,14 +6,23 @@ import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
 @Repository
 public interface HangHoaViTriRepository extends JpaRepository<HangHoaViTri, Long> {
 
+    /**
+     * Lọc thẳng trên cột khóa ngoại (idx_hang_hoa_vi_tri_hang_vi_tri_lo) - bản suy ra từ tên phương thức
+     * LEFT JOIN hang_hoa / vi_tri_kho / lo_hang chỉ để so id. loHangId null: dòng không theo lô.
+     */
+    @Query("SELECT h FROM HangHoaViTri h WHERE h.hangHoa.id = :hangHoaId AND h.viTriKho.id = :viTriKhoId " +
+            "AND (h.loHang.id = :loHangId OR (:loHangId IS NULL AND h.loHang IS NULL))")
     Optional<HangHoaViTri> findByHangHoaIdAndViTriKhoIdAndLoHangId(
-            Long hangHoaId, Long viTriKhoId, Long loHangId);
+            @Param("hangHoaId") Long hangHoaId,
+            @Param("viTriKhoId") Long viTriKhoId,
+            @Param("loHangId") Long loHangId);
 
     List<HangHoaViTri> findByHangHoaId(Long hangHoaId);
 
@@ -38,4 +47,16 @@ public interface HangHoaViTriRepository extends JpaRepository<HangHoaViTri, Long
 
     List<HangHoaViTri> findByHangHoaIdAndLoHangId(Long hangHoaId, Long loHangId);
 
+    /**
+     * Lấy vị trí của nhiều lô trong 1 câu truy vấn (kèm ViTriKho) - dùng khi duyệt xuất hàng loạt
+     */
+    @Query("SELECT h FROM HangHoaViTri h JOIN FETCH h.viTriKho " +
+            "WHERE h.loHang.id IN :loHangIds ORDER BY h.id ASC")
+    List<HangHoaViTri> findByLoHangIdInWithViTriKho(@Param("loHangIds") Collection<Long> loHangIds);
+
+    /**
+     * Các dòng hàng - vị trí có thể trùng với dòng phiếu nhập (so khớp lô trong bộ nhớ)
+     */
+    List<HangHoaViTri> findByViTriKhoIdInAndHangHoaIdIn(Collection<Long> viTriKhoIds, Collection<Long> hangHoaIds);
+
 }
\ No newline at end of file
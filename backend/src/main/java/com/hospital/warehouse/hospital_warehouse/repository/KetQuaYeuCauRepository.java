@@ -0,0 +1,64 @@
+package com.hospital.warehouse.hospital_warehouse.repository;
+
+import com.hospital.warehouse.hospital_warehouse.entity.KetQuaYeuCau;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+
+@Repository
+public interface KetQuaYeuCauRepository extends JpaRepository<KetQuaYeuCau, String> {
+
+    /**
+     * Giữ chỗ khóa cho yêu cầu đầu tiên
+     * @return 0 nếu khóa đã có (yêu cầu trùng)
+     */
+    @Modifying
+    @Query(value = """
+        INSERT INTO ket_qua_yeu_cau (khoa, dau_van_tay, duong_dan, trang_thai, created_at, het_han_luc)
+        SELECT :khoa, :dauVanTay, :duongDan, 'DANG_XU_LY', :now, :hetHanLuc FROM DUAL
+        WHERE NOT EXISTS (SELECT 1 FROM ket_qua_yeu_cau WHERE khoa = :khoa)
+    """, nativeQuery = true)
+    int giuCho(@Param("khoa") String khoa,
+               @Param("dauVanTay") String dauVanTay,
+               @Param("duongDan") String duongDan,
+               @Param("now") LocalDateTime now,
+               @Param("hetHanLuc") LocalDateTime hetHanLuc);
+
+    /**
+     * Lưu phản hồi của yêu cầu đã giữ chỗ
+     */
+    @Modifying
+    @Query("UPDATE KetQuaYeuCau k SET " +
+            "k.trangThai = com.hospital.warehouse.hospital_warehouse.entity.KetQuaYeuCau.TrangThai.HOAN_THANH, " +
+            "k.maHttp = :maHttp, k.kieuNoiDung = :kieuNoiDung, k.noiDung = :noiDung, k.hetHanLuc = :hetHanLuc " +
+            "WHERE k.khoa = :khoa " +
+            "AND k.trangThai = com.hospital.warehouse.hospital_warehouse.entity.KetQuaYeuCau.TrangThai.DANG_XU_LY")
+    int hoanThanh(@Param("khoa") String khoa,
+                  @Param("maHttp") int maHttp,
+                  @Param("kieuNoiDung") String kieuNoiDung,
+                  @Param("noiDung") String noiDung,
+                  @Param("hetHanLuc") LocalDateTime hetHanLuc);
+
+    /**
+     * Bỏ giữ chỗ (yêu cầu lỗi hệ thống) để lần thử lại được chạy lại từ đầu
+     */
+    @Modifying
+    @Query("DELETE FROM KetQuaYeuCau k WHERE k.khoa = :khoa " +
+            "AND k.trangThai = com.hospital.warehouse.hospital_warehouse.entity.KetQuaYeuCau.TrangThai.DANG_XU_LY")
+    int boGiuCho(@Param("khoa") String khoa);
+
+    /**
+     * Xóa một khóa đã hết hạn (chỉ khi vẫn còn hết hạn - node khác có thể vừa giữ chỗ lại)
+     */
+    @Modifying
+    @Query("DELETE FROM KetQuaYeuCau k WHERE k.khoa = :khoa AND k.hetHanLuc < :now")
+    int xoaNeuHetHan(@Param("khoa") String khoa, @Param("now") LocalDateTime now);
+
+    @Modifying
+    @Query("DELETE FROM KetQuaYeuCau k WHERE k.hetHanLuc < :now")
+    int xoaHetHan(@Param("now") LocalDateTime now);
+}
@@ -1,7 +1,10 @@
 package com.hospital.warehouse.hospital_warehouse.repository;
 
 import com.hospital.warehouse.hospital_warehouse.entity.LichSuTonKho;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
@@ -12,7 +15,7 @@ import java.util.List;
 @Repository
 public interface LichSuTonKhoRepository extends JpaRepository<LichSuTonKho, Long> {
 
-    List<LichSuTonKho> findByHangHoaIdOrderByCreatedAtDesc(Long hangHoaId);
+    Slice<LichSuTonKho> findByHangHoaIdOrderByCreatedAtDesc(Long hangHoaId, Pageable pageable);
 
     @Query("SELECT ls FROM LichSuTonKho ls WHERE ls.hangHoa.id = :hangHoaId " +
             "AND ls.createdAt BETWEEN :tuNgay AND :denNgay " +
@@ -25,4 +28,54 @@ public interface LichSuTonKhoRepository extends JpaRepository<LichSuTonKho, Long
 
     @Query("SELECT ls FROM LichSuTonKho ls WHERE ls.maChungTu = :maChungTu")
     List<LichSuTonKho> findByMaChungTu(@Param("maChungTu") String maChungTu);
-}
\ No newline at end of file
+
+    // ==================== THẺ KHO ====================
+
+    /**
+     * Trang tiếp theo của thẻ kho (keyset theo created_at, id - tăng dần), kho suy ra như BienDongTonKhoNgayRepository:
+     * [id, createdAt, loaiBienDong, soLuongTruoc, soLuongBienDong, soLuongSau, donGia, giaTriBienDong, maChungTu, lyDo, soLo]
+     */
+    @Query(value = """
+        SELECT ls.id, ls.created_at, ls.loai_bien_dong, ls.so_luong_truoc, ls.so_luong_bien_dong, ls.so_luong_sau,
+               ls.don_gia, ls.gia_tri_bien_dong, ls.ma_chung_tu, ls.ly_do, lh.so_lo
+        FROM lich_su_ton_kho ls
+        LEFT JOIN vi_tri_kho vt ON vt.id = ls.vi_tri_kho_id
+        LEFT JOIN lo_hang lh ON lh.id = ls.lo_hang_id
+        WHERE ls.hang_hoa_id = :hangHoaId
+          AND COALESCE(ls.kho_id, vt.kho_id, lh.kho_id) = :khoId
+          AND ls.created_at < :den
+          AND (ls.created_at > :sauThoiDiem OR (ls.created_at = :sauThoiDiem AND ls.id > :sauId))
+        ORDER BY ls.created_at, ls.id
+        LIMIT :gioiHan
+    """, nativeQuery = true)
+    List<Object[]> theKhoTiepTheo(@Param("hangHoaId") Long hangHoaId,
+                                  @Param("khoId") Long khoId,
+                                  @Param("sauThoiDiem") LocalDateTime sauThoiDiem,
+                                  @Param("sauId") long sauId,
+                                  @Param("den") LocalDateTime den,
+                                  @Param("gioiHan") int gioiHan);
+
+    // ==================== BỘ ĐẾM ID (id_generator) ====================
+
+    @Query(value = "SELECT COALESCE(MAX(id), 0) FROM lich_su_ton_kho", nativeQuery = true)
+    long findMaxId();
+
+    /**
+     * Nâng bộ đếm ID lên tối thiểu :giaTri (không bao giờ hạ xuống)
+     */
+    @Modifying
+    @Query(value = """
+        UPDATE id_generator
+        SET gia_tri_tiep_theo = :giaTri
+        WHERE ten_bang = 'lich_su_ton_kho' AND gia_tri_tiep_theo < :giaTri
+    """, nativeQuery = true)
+    int nangBoDemId(@Param("giaTri") long giaTri);
+
+    @Modifying
+    @Query(value = """
+        INSERT INTO id_generator (ten_bang, gia_tri_tiep_theo)
+        SELECT 'lich_su_ton_kho', :giaTri FROM DUAL
+        WHERE NOT EXISTS (SELECT 1 FROM id_generator WHERE ten_bang = 'lich_su_ton_kho')
+    """, nativeQuery = true)
+    int khoiTaoBoDemId(@Param("giaTri") long giaTri);
+}
@@ -1,13 +1,22 @@
 package com.hospital.warehouse.hospital_warehouse.repository;
 
 import com.hospital.warehouse.hospital_warehouse.entity.LoHang;
+import jakarta.persistence.LockModeType;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -56,6 +65,22 @@ public interface LoHangRepository extends JpaRepository<LoHang, Long>,
      */
     List<LoHang> findByHangHoaIdAndKhoId(Long hangHoaId, Long khoId);
 
+    /**
+     * Nhập kho theo phiếu: lấy mọi lô có thể trùng (hàng hóa, số lô) tại kho bằng 1 câu truy vấn,
+     * khóa dòng theo ID tăng dần; HSD được so khớp trong bộ nhớ
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("""
+        SELECT l FROM LoHang l
+        WHERE l.kho.id = :khoId
+          AND l.hangHoa.id IN :hangHoaIds
+          AND l.soLo IN :soLos
+        ORDER BY l.id ASC
+    """)
+    List<LoHang> findForUpdateByKhoIdAndHangHoaIdInAndSoLoIn(@Param("khoId") Long khoId,
+                                                             @Param("hangHoaIds") Collection<Long> hangHoaIds,
+                                                             @Param("soLos") Collection<String> soLos);
+
     /**
      * Lấy tất cả lô hàng của một hàng hóa
      */
@@ -109,6 +134,45 @@ public interface LoHangRepository extends JpaRepository<LoHang, Long>,
             @Param("minSoLuong") Integer minSoLuong
     );
 
+    /**
+     * ✅ BỔ SUNG: Lấy lô khả dụng của NHIỀU hàng hóa trong một kho bằng 1 câu truy vấn
+     * Dùng khi duyệt phiếu xuất: phân bổ FEFO trong bộ nhớ cho toàn bộ phiếu.
+     * Thứ tự trong mỗi hàng hóa giống hệt findAvailableLoHangForXuat.
+     * Chỉ lấy lô còn hàng CHƯA bị phiếu khác đặt trước (soLuongHienTai - soLuongDaDat > 0)
+     * và chưa quá hạn sử dụng (kể cả khi trạng thái chưa được làm mới).
+     */
+    @Query("""
+    SELECT l FROM LoHang l 
+    WHERE l.hangHoa.id IN :hangHoaIds 
+      AND l.kho.id = :khoId
+      AND l.soLuongHienTai - COALESCE(l.soLuongDaDat, 0) > 0
+      AND l.trangThai IN ('MOI', 'DANG_SU_DUNG', 'GAN_HET_HAN')
+      AND (l.hanSuDung IS NULL OR l.hanSuDung >= CURRENT_DATE)
+    ORDER BY 
+      l.hangHoa.id ASC,
+      CASE WHEN l.hanSuDung IS NULL THEN 1 ELSE 0 END,
+      l.hanSuDung ASC,
+      l.ngaySanXuat ASC,
+      l.id ASC
+""")
+    List<LoHang> findAvailableLoHangForXuatByHangHoaIds(
+            @Param("hangHoaIds") Collection<Long> hangHoaIds,
+            @Param("khoId") Long khoId
+    );
+
+    /**
+     * "Phiên bản" tồn kho lô của các hàng hóa tại một kho: [số lô, tổng hiện tại, tổng đã đặt, lần sửa cuối]
+     * Mọi thay đổi lô (entity hoặc UPDATE hàng loạt) đều cập nhật updatedAt → 1 câu tổng hợp đủ để
+     * biết kết quả findAvailableLoHangForXuatByHangHoaIds có thể đã khác hay chưa.
+     */
+    @Query("""
+        SELECT COUNT(l), COALESCE(SUM(l.soLuongHienTai), 0), COALESCE(SUM(l.soLuongDaDat), 0), MAX(l.updatedAt)
+        FROM LoHang l
+        WHERE l.hangHoa.id IN :hangHoaIds AND l.kho.id = :khoId
+    """)
+    List<Object[]> findPhienBanTonKhoLo(@Param("hangHoaIds") Collection<Long> hangHoaIds,
+                                        @Param("khoId") Long khoId);
+
     /**
      * ✅ VARIANT: Tìm lô khả dụng KHÔNG phân biệt kho
      * Dùng khi cần xem tổng quan tất cả các kho
@@ -126,6 +190,118 @@ public interface LoHangRepository extends JpaRepository<LoHang, Long>,
 """)
     List<LoHang> findAvailableLoHangForXuatAllKho(@Param("hangHoaId") Long hangHoaId);
 
+    /**
+     * ✅ TRỪ SỐ LƯỢNG NGUYÊN TỬ (guarded decrement)
+     * Chỉ trừ khi lô còn đủ hàng (không tính phần đã giữ cho phiếu khác) - kiểm tra và trừ nằm trong CÙNG 1 câu UPDATE,
+     * không cần đọc trước / khóa trước. Trả về số dòng bị ảnh hưởng:
+     * - 1: trừ thành công
+     * - 0: lô không đủ hàng (hoặc không tồn tại) → caller phải báo lỗi
+     *
+     * Trạng thái được gán TRƯỚC số lượng để mọi DB (kể cả MySQL - gán tuần tự trái→phải)
+     * đều đọc số lượng cũ trong biểu thức CASE.
+     * Lưu ý: UPDATE bulk không cập nhật entity đang nằm trong persistence context.
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("""
+        UPDATE LoHang l
+        SET l.trangThai = CASE
+                WHEN l.soLuongHienTai - :soLuong <= 0
+                    THEN com.hospital.warehouse.hospital_warehouse.entity.LoHang.TrangThaiLoHang.HET_HANG
+                WHEN l.trangThai = com.hospital.warehouse.hospital_warehouse.entity.LoHang.TrangThaiLoHang.MOI
+                    THEN com.hospital.warehouse.hospital_warehouse.entity.LoHang.TrangThaiLoHang.DANG_SU_DUNG
+                ELSE l.trangThai
+            END,
+            l.soLuongHienTai = l.soLuongHienTai - :soLuong,
+            l.updatedAt = CURRENT_TIMESTAMP
+        WHERE l.id = :id
+          AND l.soLuongHienTai - COALESCE(l.soLuongDaDat, 0) >= :soLuong
+    """)
+    int truSoLuongCoDieuKien(@Param("id") Long id, @Param("soLuong") int soLuong);
+
+    /**
+     * Rút lại số lượng đã nhập vào lô (hủy duyệt phiếu nhập): trừ cả số lượng nhập và số lượng hiện tại,
+     * chỉ khi phần chưa xuất và chưa bị giữ cho phiếu xuất còn đủ. Trả về 0 nếu lô đã xuất / đang được giữ.
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("""
+        UPDATE LoHang l
+        SET l.trangThai = CASE
+                WHEN l.soLuongHienTai - :soLuong <= 0
+                    THEN com.hospital.warehouse.hospital_warehouse.entity.LoHang.TrangThaiLoHang.HET_HANG
+                ELSE l.trangThai
+            END,
+            l.soLuongNhap = l.soLuongNhap - :soLuong,
+            l.soLuongHienTai = l.soLuongHienTai - :soLuong,
+            l.updatedAt = CURRENT_TIMESTAMP
+        WHERE l.id = :id
+          AND l.soLuongHienTai - COALESCE(l.soLuongDaDat, 0) >= :soLuong
+    """)
+    int rutSoLuongNhapCoDieuKien(@Param("id") Long id, @Param("soLuong") int soLuong);
+
+    // ==================== ĐẶT TRƯỚC (GIỮ HÀNG) ====================
+
+    /**
+     * Giữ hàng trên lô cho phiếu xuất chưa duyệt - chỉ khi phần chưa bị giữ còn đủ
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("""
+        UPDATE LoHang l
+        SET l.soLuongDaDat = COALESCE(l.soLuongDaDat, 0) + :soLuong,
+            l.updatedAt = CURRENT_TIMESTAMP
+        WHERE l.id = :id
+          AND l.soLuongHienTai - COALESCE(l.soLuongDaDat, 0) >= :soLuong
+    """)
+    int datTruCoDieuKien(@Param("id") Long id, @Param("soLuong") int soLuong);
+
+    /**
+     * Trả lại số lượng đã giữ (hủy / xóa phiếu, hết hạn giữ)
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("""
+        UPDATE LoHang l
+        SET l.soLuongDaDat = l.soLuongDaDat - :soLuong,
+            l.updatedAt = CURRENT_TIMESTAMP
+        WHERE l.id = :id
+          AND l.soLuongDaDat >= :soLuong
+    """)
+    int giaiPhongDatTru(@Param("id") Long id, @Param("soLuong") int soLuong);
+
+    /**
+     * Chuyển phần đã giữ thành xuất kho khi duyệt phiếu: trừ cả số lượng hiện tại và số lượng đã đặt.
+     * Lô đã hết hạn (trạng thái HET_HAN hoặc quá hạn sử dụng nhưng chưa làm mới trạng thái) không được xuất → 0 dòng.
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("""
+        UPDATE LoHang l
+        SET l.trangThai = CASE
+                WHEN l.soLuongHienTai - :soLuong <= 0
+                    THEN com.hospital.warehouse.hospital_warehouse.entity.LoHang.TrangThaiLoHang.HET_HANG
+                WHEN l.trangThai = com.hospital.warehouse.hospital_warehouse.entity.LoHang.TrangThaiLoHang.MOI
+                    THEN com.hospital.warehouse.hospital_warehouse.entity.LoHang.TrangThaiLoHang.DANG_SU_DUNG
+                ELSE l.trangThai
+            END,
+            l.soLuongHienTai = l.soLuongHienTai - :soLuong,
+            l.soLuongDaDat = l.soLuongDaDat - :soLuong,
+            l.updatedAt = CURRENT_TIMESTAMP
+        WHERE l.id = :id
+          AND l.soLuongDaDat >= :soLuong
+          AND l.soLuongHienTai >= :soLuong
+          AND l.trangThai <> com.hospital.warehouse.hospital_warehouse.entity.LoHang.TrangThaiLoHang.HET_HAN
+          AND (l.hanSuDung IS NULL OR l.hanSuDung >= CURRENT_DATE)
+    """)
+    int xuatTuDatTru(@Param("id") Long id, @Param("soLuong") int soLuong);
+
+    /**
+     * Số lô (trong các ID cho trước) đã hết hạn: trạng thái HET_HAN hoặc quá hạn sử dụng
+     */
+    @Query("""
+        SELECT COUNT(l) FROM LoHang l
+        WHERE l.id IN :ids
+          AND (l.trangThai = com.hospital.warehouse.hospital_warehouse.entity.LoHang.TrangThaiLoHang.HET_HAN
+               OR l.hanSuDung < CURRENT_DATE)
+    """)
+    long countHetHanByIdIn(@Param("ids") Collection<Long> ids);
+
     // ==================== CẢNH BÁO & BÁO CÁO ====================
 
     /**
@@ -326,4 +502,153 @@ public interface LoHangRepository extends JpaRepository<LoHang, Long>,
             String soLo,
             LocalDate hanSuDung
     );
-}
\ No newline at end of file
+
+    /**
+     * Lô còn hàng đang gần hết hạn / hết hạn, thay đổi từ thời điểm tu (sinh cảnh báo):
+     * [id, trangThai, soLo, hanSuDung, soLuongHienTai, tenHangHoa, tenKho]
+     */
+    @Query("""
+        SELECT l.id, l.trangThai, l.soLo, l.hanSuDung, l.soLuongHienTai, h.tenHangHoa, k.tenKho
+        FROM LoHang l
+        JOIN l.hangHoa h
+        JOIN l.kho k
+        WHERE l.updatedAt >= :tu
+          AND l.soLuongHienTai > 0
+          AND l.trangThai IN (com.hospital.warehouse.hospital_warehouse.entity.LoHang.TrangThaiLoHang.GAN_HET_HAN,
+                              com.hospital.warehouse.hospital_warehouse.entity.LoHang.TrangThaiLoHang.HET_HAN)
+    """)
+    List<Object[]> findSapHetHanThayDoiTu(@Param("tu") LocalDateTime tu);
+
+    // ==================== CHỈ MỤC HẠN SỬ DỤNG ====================
+
+    /**
+     * Lô còn hàng có hạn sử dụng, theo trang id tăng dần: [id, khoId, hangHoaId, hanSuDung, soLuongHienTai]
+     */
+    @Query("""
+        SELECT l.id, l.kho.id, l.hangHoa.id, l.hanSuDung, l.soLuongHienTai
+        FROM LoHang l
+        WHERE l.id > :sauId AND l.soLuongHienTai > 0 AND l.hanSuDung IS NOT NULL
+        ORDER BY l.id
+    """)
+    List<Object[]> findChiMucHanSuDung(@Param("sauId") long sauId, Pageable pageable);
+
+    /**
+     * Dòng chỉ mục của các lô theo id (kể cả lô đã hết hàng): [id, khoId, hangHoaId, hanSuDung, soLuongHienTai]
+     */
+    @Query("""
+        SELECT l.id, l.kho.id, l.hangHoa.id, l.hanSuDung, l.soLuongHienTai
+        FROM LoHang l
+        WHERE l.id IN :ids
+    """)
+    List<Object[]> findChiMucHanSuDungByIdIn(@Param("ids") Collection<Long> ids);
+
+    /**
+     * Lô theo id kèm hàng hóa / đơn vị tính / nhà cung cấp (dựng DTO không phát sinh thêm câu lệnh)
+     */
+    @Query("""
+        SELECT l FROM LoHang l
+        JOIN FETCH l.hangHoa h
+        LEFT JOIN FETCH h.donViTinh
+        LEFT JOIN FETCH l.nhaCungCap
+        WHERE l.id IN :ids
+    """)
+    List<LoHang> findByIdInFetchHangHoa(@Param("ids") Collection<Long> ids);
+
+    // ==================== CẬP NHẬT TRẠNG THÁI HÀNG LOẠT ====================
+
+    @Query("SELECT COALESCE(MAX(l.id), 0) FROM LoHang l")
+    long findMaxId();
+
+    /**
+     * Trạng thái đúng của các lô trong khoảng id [tuId, denId): [id, trạng thái hiện tại, trạng thái đúng].
+     * Cửa sổ gần hết hạn lấy theo hàng hóa (HangHoa.canhBaoHetHan, mặc định 30 ngày) - phải khớp
+     * LoHangService#determineLoHangStatus. Đọc không khóa, không khóa hang_hoa khi cập nhật sau đó.
+     */
+    @Query("""
+        SELECT l.id, l.trangThai,
+               CASE
+                   WHEN l.soLuongHienTai <= 0
+                       THEN com.hospital.warehouse.hospital_warehouse.entity.LoHang.TrangThaiLoHang.HET_HANG
+                   WHEN l.hanSuDung < :homNay
+                       THEN com.hospital.warehouse.hospital_warehouse.entity.LoHang.TrangThaiLoHang.HET_HAN
+                   WHEN (l.hanSuDung - :homNay) by day < COALESCE(h.canhBaoHetHan, 30)
+                       THEN com.hospital.warehouse.hospital_warehouse.entity.LoHang.TrangThaiLoHang.GAN_HET_HAN
+                   WHEN l.soLuongHienTai < l.soLuongNhap
+                       THEN com.hospital.warehouse.hospital_warehouse.entity.LoHang.TrangThaiLoHang.DANG_SU_DUNG
+                   ELSE com.hospital.warehouse.hospital_warehouse.entity.LoHang.TrangThaiLoHang.MOI
+               END
+        FROM LoHang l
+        LEFT JOIN l.hangHoa h
+        WHERE l.id >= :tuId AND l.id < :denId
+    """)
+    List<Object[]> tinhTrangThaiTheoKhoangId(@Param("tuId") long tuId,
+                                              @Param("denId") long denId,
+                                              @Param("homNay") LocalDate homNay);
+
+    /**
+     * Gán trạng thái mới cho các lô - chỉ khi số lượng / hạn sử dụng hiện tại vẫn dẫn tới trạng thái đó
+     * (lô có thể vừa được nhập / xuất giữa lúc tính và lúc cập nhật). Trả về số lô đã đổi.
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("""
+        UPDATE LoHang l
+        SET l.trangThai = :trangThai,
+            l.updatedAt = CURRENT_TIMESTAMP
+        WHERE l.id IN :ids
+          AND (l.trangThai IS NULL OR l.trangThai <> :trangThai)
+          AND (
+                (:trangThai = com.hospital.warehouse.hospital_warehouse.entity.LoHang.TrangThaiLoHang.HET_HANG
+                    AND l.soLuongHienTai <= 0)
+             OR (:trangThai = com.hospital.warehouse.hospital_warehouse.entity.LoHang.TrangThaiLoHang.HET_HAN
+                    AND l.soLuongHienTai > 0 AND l.hanSuDung < :homNay)
+             OR (:trangThai = com.hospital.warehouse.hospital_warehouse.entity.LoHang.TrangThaiLoHang.GAN_HET_HAN
+                    AND l.soLuongHienTai > 0 AND l.hanSuDung >= :homNay)
+             OR (:trangThai = com.hospital.warehouse.hospital_warehouse.entity.LoHang.TrangThaiLoHang.DANG_SU_DUNG
+                    AND l.soLuongHienTai > 0 AND l.soLuongHienTai < l.soLuongNhap
+                    AND (l.hanSuDung IS NULL OR l.hanSuDung >= :homNay))
+             OR (:trangThai = com.hospital.warehouse.hospital_warehouse.entity.LoHang.TrangThaiLoHang.MOI
+                    AND l.soLuongHienTai > 0 AND l.soLuongHienTai >= l.soLuongNhap
+                    AND (l.hanSuDung IS NULL OR l.hanSuDung >= :homNay))
+          )
+    """)
+    int capNhatTrangThai(@Param("ids") Collection<Long> ids,
+                         @Param("trangThai") LoHang.TrangThaiLoHang trangThai,
+                         @Param("homNay") LocalDate homNay);
+
+    // ==================== THỐNG KÊ LÔ HÀNG (BỘ ĐẾM) ====================
+
+    /**
+     * Giá trị các lô đang tính trong bộ đếm, khóa dòng theo ID tăng dần: [id, khoId, trangThai, soLuongHienTai].
+     * Không flush trước khi đọc - trả về giá trị trong DB, chưa gồm thay đổi entity đang chờ.
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FLUSH_MODE, value = "COMMIT"))
+    @Query("""
+        SELECT l.id, l.kho.id, l.trangThai, l.soLuongHienTai
+        FROM LoHang l
+        WHERE l.id IN :ids
+        ORDER BY l.id ASC
+    """)
+    List<Object[]> findThongKeForUpdateByIdIn(@Param("ids") Collection<Long> ids);
+
+    /**
+     * Cùng cột với findThongKeForUpdateByIdIn, đọc sau khi ghi
+     */
+    @Query("""
+        SELECT l.id, l.kho.id, l.trangThai, l.soLuongHienTai
+        FROM LoHang l
+        WHERE l.id IN :ids
+    """)
+    List<Object[]> findThongKeByIdIn(@Param("ids") Collection<Long> ids);
+
+    /**
+     * Giá trị đúng của bộ đếm: [khoId, trangThai, soLo, tongSoLuong]
+     */
+    @Query("""
+        SELECT l.kho.id, l.trangThai, COUNT(l), COALESCE(SUM(l.soLuongHienTai), 0)
+        FROM LoHang l
+        WHERE l.trangThai IS NOT NULL
+        GROUP BY l.kho.id, l.trangThai
+    """)
+    List<Object[]> tinhThongKeTheoKhoVaTrangThai();
+}
@@ -0,0 +1,91 @@
+package com.hospital.warehouse.hospital_warehouse.repository;
+
+import com.hospital.warehouse.hospital_warehouse.entity.PhanBoXuatLo;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface PhanBoXuatLoRepository extends JpaRepository<PhanBoXuatLo, Long> {
+
+    // ==================== TRUY VẾT ====================
+
+    List<PhanBoXuatLo> findByPhieuXuatId(Long phieuXuatId);
+
+    boolean existsByPhieuXuatId(Long phieuXuatId);
+
+    /**
+     * Lô đã được xuất cho những phiếu / khoa phòng nào (tra theo chỉ mục lo_hang_id)
+     */
+    @Query("""
+        SELECT p FROM PhanBoXuatLo p
+        JOIN FETCH p.phieuXuat px
+        LEFT JOIN FETCH px.khoaPhongYeuCau
+        LEFT JOIN FETCH p.viTriKho
+        WHERE p.loHang.id = :loHangId
+        ORDER BY p.id DESC
+    """)
+    List<PhanBoXuatLo> findByLoHangIdForTruyVet(@Param("loHangId") Long loHangId);
+
+    // ==================== HỦY DUYỆT (HOÀN NGUYÊN THEO TẬP HỢP) ====================
+
+    /**
+     * Cộng lại số lượng cho mọi lô mà phiếu đã xuất - 1 câu lệnh cho cả phiếu
+     */
+    @Modifying(flushAutomatically = true)
+    @Query(value = """
+        UPDATE lo_hang l
+        SET l.trang_thai = CASE WHEN l.trang_thai = 'HET_HANG' THEN 'DANG_SU_DUNG' ELSE l.trang_thai END,
+            l.so_luong_hien_tai = l.so_luong_hien_tai + (
+                SELECT SUM(p.so_luong) FROM phan_bo_xuat_lo p
+                WHERE p.phieu_xuat_id = :phieuXuatId AND p.lo_hang_id = l.id),
+            l.updated_at = NOW()
+        WHERE l.id IN (SELECT p.lo_hang_id FROM phan_bo_xuat_lo p WHERE p.phieu_xuat_id = :phieuXuatId)
+    """, nativeQuery = true)
+    int hoanLaiLoHang(@Param("phieuXuatId") Long phieuXuatId);
+
+    /**
+     * Cộng lại vào các dòng hang_hoa_vi_tri còn tồn tại (cùng lô, cùng vị trí)
+     */
+    @Modifying(flushAutomatically = true)
+    @Query(value = """
+        UPDATE hang_hoa_vi_tri v
+        SET v.so_luong = v.so_luong + (
+                SELECT SUM(p.so_luong) FROM phan_bo_xuat_lo p
+                WHERE p.phieu_xuat_id = :phieuXuatId
+                  AND p.lo_hang_id = v.lo_hang_id
+                  AND p.vi_tri_kho_id = v.vi_tri_kho_id),
+            v.updated_at = NOW()
+        WHERE EXISTS (
+                SELECT 1 FROM phan_bo_xuat_lo p
+                WHERE p.phieu_xuat_id = :phieuXuatId
+                  AND p.lo_hang_id = v.lo_hang_id
+                  AND p.vi_tri_kho_id = v.vi_tri_kho_id)
+    """, nativeQuery = true)
+    int hoanLaiViTriConDong(@Param("phieuXuatId") Long phieuXuatId);
+
+    /**
+     * Tạo lại các dòng hang_hoa_vi_tri đã bị xóa khi xuất hết (chạy SAU hoanLaiViTriConDong)
+     */
+    @Modifying(flushAutomatically = true)
+    @Query(value = """
+        INSERT INTO hang_hoa_vi_tri (hang_hoa_id, vi_tri_kho_id, lo_hang_id, so_luong, created_at, updated_at)
+        SELECT p.hang_hoa_id, p.vi_tri_kho_id, p.lo_hang_id, SUM(p.so_luong), NOW(), NOW()
+        FROM phan_bo_xuat_lo p
+        WHERE p.phieu_xuat_id = :phieuXuatId
+          AND p.vi_tri_kho_id IS NOT NULL
+          AND NOT EXISTS (
+                SELECT 1 FROM hang_hoa_vi_tri v
+                WHERE v.lo_hang_id = p.lo_hang_id AND v.vi_tri_kho_id = p.vi_tri_kho_id)
+        GROUP BY p.hang_hoa_id, p.vi_tri_kho_id, p.lo_hang_id
+    """, nativeQuery = true)
+    int taoLaiViTriDaXoa(@Param("phieuXuatId") Long phieuXuatId);
+
+    @Modifying
+    @Query("DELETE FROM PhanBoXuatLo p WHERE p.phieuXuat.id = :phieuXuatId")
+    int deleteByPhieuXuatId(@Param("phieuXuatId") Long phieuXuatId);
+}
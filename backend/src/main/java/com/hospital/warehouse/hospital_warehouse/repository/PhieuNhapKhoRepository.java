@@ -3,11 +3,14 @@ package com.hospital.warehouse.hospital_warehouse.repository;
 import com.hospital.warehouse.hospital_warehouse.entity.PhieuNhapKho;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.math.BigDecimal;
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -29,8 +32,54 @@ public interface PhieuNhapKhoRepository extends JpaRepository<PhieuNhapKho, Long
             Long khoId, LocalDateTime start, LocalDateTime end);
 
 
-    @Query("SELECT COALESCE(MAX(CAST(SUBSTRING(p.maPhieuNhap, :prefixLength + 1, 4) AS long)), 0) " +
+    /**
+     * Số lớn nhất đã dùng trong ngày - chỉ dùng khi khởi tạo bộ đếm số chứng từ cho tiền tố
+     */
+    @Query("SELECT COALESCE(MAX(CAST(SUBSTRING(p.maPhieuNhap, :prefixLength + 1) AS long)), 0) " +
             "FROM PhieuNhapKho p WHERE p.maPhieuNhap LIKE :prefix")
     Long findMaxNumberByPrefix(@Param("prefix") String prefix,
                                @Param("prefixLength") int prefixLength);
-}
\ No newline at end of file
+
+    /**
+     * Thông tin tối thiểu để gom phiếu theo kho khi duyệt hàng loạt / xếp hàng đợi duyệt (1 câu lệnh cho cả danh sách)
+     * @return List<Object[]> với format: [id, maPhieuNhap, khoId, tenKho, duyetBatDongBo]
+     */
+    @Query("SELECT p.id, p.maPhieuNhap, k.id, k.tenKho, k.duyetBatDongBo FROM PhieuNhapKho p JOIN p.kho k WHERE p.id IN :ids")
+    List<Object[]> findThongTinDuyetByIdIn(@Param("ids") Collection<Long> ids);
+
+    /**
+     * Cộng tổng tiền của một lô dòng nhập từ file vào phiếu - chỉ khi phiếu chưa duyệt / hủy (0 dòng → đã duyệt / hủy).
+     * Đồng thời khóa dòng phiếu trong transaction ghi lô dòng đó
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("""
+        UPDATE PhieuNhapKho p
+        SET p.tongTienTruocThue = COALESCE(p.tongTienTruocThue, 0) + :tienTruocThue,
+            p.tienThue = COALESCE(p.tienThue, 0) + :tienThue,
+            p.tongTienSauThue = COALESCE(p.tongTienSauThue, 0) + :tienTruocThue + :tienThue,
+            p.tongThanhToan = COALESCE(p.tongThanhToan, 0) + :tienTruocThue + :tienThue,
+            p.updatedAt = CURRENT_TIMESTAMP
+        WHERE p.id = :id
+          AND p.trangThai IN (com.hospital.warehouse.hospital_warehouse.entity.PhieuNhapKho.TrangThaiPhieuNhap.NHAP,
+                              com.hospital.warehouse.hospital_warehouse.entity.PhieuNhapKho.TrangThaiPhieuNhap.CHO_DUYET)
+    """)
+    int congTongTienChuaDuyet(@Param("id") Long id,
+                              @Param("tienTruocThue") BigDecimal tienTruocThue,
+                              @Param("tienThue") BigDecimal tienThue);
+
+    /**
+     * Thống kê theo trạng thái trong khoảng [tu, den) - 1 câu GROUP BY, không nạp entity:
+     * [trangThai, soPhieu, tongGiaTri]
+     */
+    @Query("""
+        SELECT p.trangThai, COUNT(p), COALESCE(SUM(p.tongThanhToan), 0)
+        FROM PhieuNhapKho p
+        WHERE (:khoId IS NULL OR p.kho.id = :khoId)
+          AND p.ngayNhap >= :tu
+          AND p.ngayNhap < :den
+        GROUP BY p.trangThai
+    """)
+    List<Object[]> thongKeTheoTrangThai(@Param("khoId") Long khoId,
+                                        @Param("tu") LocalDateTime tu,
+                                        @Param("den") LocalDateTime den);
+}
@@ -3,9 +3,12 @@ package com.hospital.warehouse.hospital_warehouse.repository;
 import com.hospital.warehouse.hospital_warehouse.entity.PhieuXuatKho;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -21,10 +24,41 @@ public interface PhieuXuatKhoRepository extends JpaRepository<PhieuXuatKho, Long
 
     long countByMaPhieuXuatStartingWith(String prefix);
 
+    /**
+     * Số lớn nhất đã dùng trong ngày - chỉ dùng khi khởi tạo bộ đếm số chứng từ cho tiền tố
+     */
+    @Query("SELECT COALESCE(MAX(CAST(SUBSTRING(p.maPhieuXuat, :prefixLength + 1) AS long)), 0) " +
+            "FROM PhieuXuatKho p WHERE p.maPhieuXuat LIKE :prefix")
+    Long findMaxNumberByPrefix(@Param("prefix") String prefix,
+                               @Param("prefixLength") int prefixLength);
+
     List<PhieuXuatKho> findByKhoId(Long khoId);
 
     List<PhieuXuatKho> findByKhoIdAndNgayXuatBetween(
             Long khoId, LocalDateTime start, LocalDateTime end);
 
     List<PhieuXuatKho> findByKhoaPhongYeuCauId(Long khoaPhongId);
-}
\ No newline at end of file
+
+    /**
+     * Thông tin tối thiểu để gom phiếu theo kho khi duyệt hàng loạt / xếp hàng đợi duyệt (1 câu lệnh cho cả danh sách)
+     * @return List<Object[]> với format: [id, maPhieuXuat, khoId, tenKho, duyetBatDongBo]
+     */
+    @Query("SELECT p.id, p.maPhieuXuat, k.id, k.tenKho, k.duyetBatDongBo FROM PhieuXuatKho p JOIN p.kho k WHERE p.id IN :ids")
+    List<Object[]> findThongTinDuyetByIdIn(@Param("ids") Collection<Long> ids);
+
+    /**
+     * Thống kê theo trạng thái trong khoảng [tu, den) - 1 câu GROUP BY, không nạp entity:
+     * [trangThai, soPhieu, tongGiaTri]
+     */
+    @Query("""
+        SELECT p.trangThai, COUNT(p), COALESCE(SUM(p.tongGiaTri), 0)
+        FROM PhieuXuatKho p
+        WHERE (:khoId IS NULL OR p.kho.id = :khoId)
+          AND p.ngayXuat >= :tu
+          AND p.ngayXuat < :den
+        GROUP BY p.trangThai
+    """)
+    List<Object[]> thongKeTheoTrangThai(@Param("khoId") Long khoId,
+                                        @Param("tu") LocalDateTime tu,
+                                        @Param("den") LocalDateTime den);
+}
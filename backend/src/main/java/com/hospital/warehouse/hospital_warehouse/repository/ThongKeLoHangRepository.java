@@ -0,0 +1,59 @@
+package com.hospital.warehouse.hospital_warehouse.repository;
+
+import com.hospital.warehouse.hospital_warehouse.entity.ThongKeLoHang;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+/**
+ * Repository bộ đếm lô hàng theo (kho, trạng thái) - ghi bằng câu lệnh cộng dồn nguyên tử
+ */
+@Repository
+public interface ThongKeLoHangRepository extends JpaRepository<ThongKeLoHang, ThongKeLoHang.ThongKeLoHangId> {
+
+    /**
+     * Cộng (hoặc trừ khi âm) vào một ô - tạo dòng nếu chưa có
+     */
+    @Modifying(flushAutomatically = true)
+    @Query(value = """
+        INSERT INTO thong_ke_lo_hang (kho_id, trang_thai, so_lo, tong_so_luong, updated_at)
+        VALUES (:khoId, :trangThai, :soLo, :soLuong, NOW())
+        ON DUPLICATE KEY UPDATE
+            so_lo = so_lo + :soLo,
+            tong_so_luong = tong_so_luong + :soLuong,
+            updated_at = NOW()
+    """, nativeQuery = true)
+    int congDon(@Param("khoId") Long khoId,
+                @Param("trangThai") String trangThai,
+                @Param("soLo") long soLo,
+                @Param("soLuong") long soLuong);
+
+    /**
+     * Theo trạng thái: [trangThai, soLo, tongSoLuong]
+     */
+    @Query("""
+        SELECT t.id.trangThai, SUM(t.soLo), SUM(t.tongSoLuong)
+        FROM ThongKeLoHang t
+        GROUP BY t.id.trangThai
+        HAVING SUM(t.soLo) > 0
+        ORDER BY t.id.trangThai
+    """)
+    List<Object[]> theoTrangThai();
+
+    /**
+     * Theo kho: [khoId, tenKho, soLo, tongSoLuong]
+     */
+    @Query("""
+        SELECT t.id.khoId, k.tenKho, SUM(t.soLo), SUM(t.tongSoLuong)
+        FROM ThongKeLoHang t
+        JOIN Kho k ON k.id = t.id.khoId
+        GROUP BY t.id.khoId, k.tenKho
+        HAVING SUM(t.soLo) > 0
+        ORDER BY k.tenKho
+    """)
+    List<Object[]> theoKho();
+}
@@ -0,0 +1,90 @@
+package com.hospital.warehouse.hospital_warehouse.repository;
+
+import com.hospital.warehouse.hospital_warehouse.entity.ThongKePhieuNgay;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Repository bảng tổng hợp phiếu theo ngày - mọi thay đổi là câu lệnh cộng dồn nguyên tử
+ */
+@Repository
+public interface ThongKePhieuNgayRepository
+        extends JpaRepository<ThongKePhieuNgay, ThongKePhieuNgay.ThongKePhieuNgayId> {
+
+    /**
+     * Cộng dồn (soPhieu, giaTri) vào một ô - tạo dòng nếu chưa có. Giá trị âm để trừ.
+     */
+    @Modifying(flushAutomatically = true)
+    @Query(value = """
+        INSERT INTO thong_ke_phieu_ngay (loai_phieu, ngay, kho_id, trang_thai, so_phieu, tong_gia_tri, updated_at)
+        VALUES (:loaiPhieu, :ngay, :khoId, :trangThai, :soPhieu, :giaTri, NOW())
+        ON DUPLICATE KEY UPDATE
+            so_phieu = so_phieu + :soPhieu,
+            tong_gia_tri = tong_gia_tri + :giaTri,
+            updated_at = NOW()
+    """, nativeQuery = true)
+    int congDon(@Param("loaiPhieu") String loaiPhieu,
+                @Param("ngay") LocalDate ngay,
+                @Param("khoId") Long khoId,
+                @Param("trangThai") String trangThai,
+                @Param("soPhieu") long soPhieu,
+                @Param("giaTri") BigDecimal giaTri);
+
+    /**
+     * Tổng theo trạng thái trong khoảng ngày: [trangThai, soPhieu, tongGiaTri]
+     */
+    @Query("""
+        SELECT t.id.trangThai, SUM(t.soPhieu), SUM(t.tongGiaTri)
+        FROM ThongKePhieuNgay t
+        WHERE t.id.loaiPhieu = :loaiPhieu
+          AND (:khoId IS NULL OR t.id.khoId = :khoId)
+          AND t.id.ngay >= :tuNgay
+          AND t.id.ngay <= :denNgay
+        GROUP BY t.id.trangThai
+    """)
+    List<Object[]> tongHopTheoTrangThai(@Param("loaiPhieu") ThongKePhieuNgay.LoaiPhieu loaiPhieu,
+                                        @Param("khoId") Long khoId,
+                                        @Param("tuNgay") LocalDate tuNgay,
+                                        @Param("denNgay") LocalDate denNgay);
+
+    // ==================== ĐỒNG BỘ LẠI ====================
+
+    @Modifying
+    @Query("DELETE FROM ThongKePhieuNgay t WHERE t.id.loaiPhieu = :loaiPhieu")
+    int xoaTheoLoai(@Param("loaiPhieu") ThongKePhieuNgay.LoaiPhieu loaiPhieu);
+
+    /**
+     * Tính lại phần phiếu xuất từ bảng phiếu - 1 câu INSERT ... SELECT ... GROUP BY
+     */
+    @Modifying
+    @Query(value = """
+        INSERT INTO thong_ke_phieu_ngay (loai_phieu, ngay, kho_id, trang_thai, so_phieu, tong_gia_tri, updated_at)
+        SELECT 'XUAT', DATE(p.ngay_xuat), p.kho_id, p.trang_thai, COUNT(*),
+               SUM(CASE WHEN p.trang_thai IN ('DA_DUYET', 'DA_GIAO') THEN COALESCE(p.tong_gia_tri, 0) ELSE 0 END),
+               NOW()
+        FROM phieu_xuat_kho p
+        GROUP BY DATE(p.ngay_xuat), p.kho_id, p.trang_thai
+    """, nativeQuery = true)
+    int dongBoPhieuXuat();
+
+    /**
+     * Tính lại phần phiếu nhập từ bảng phiếu - 1 câu INSERT ... SELECT ... GROUP BY
+     */
+    @Modifying
+    @Query(value = """
+        INSERT INTO thong_ke_phieu_ngay (loai_phieu, ngay, kho_id, trang_thai, so_phieu, tong_gia_tri, updated_at)
+        SELECT 'NHAP', DATE(p.ngay_nhap), p.kho_id, p.trang_thai, COUNT(*),
+               SUM(CASE WHEN p.trang_thai = 'DA_DUYET' THEN COALESCE(p.tong_thanh_toan, 0) ELSE 0 END),
+               NOW()
+        FROM phieu_nhap_kho p
+        GROUP BY DATE(p.ngay_nhap), p.kho_id, p.trang_thai
+    """, nativeQuery = true)
+    int dongBoPhieuNhap();
+}
@@ -0,0 +1,39 @@
+package com.hospital.warehouse.hospital_warehouse.repository;
+
+import com.hospital.warehouse.hospital_warehouse.entity.TonDauKy;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDate;
+import java.util.Optional;
+
+@Repository
+public interface TonDauKyRepository extends JpaRepository<TonDauKy, TonDauKy.TonDauKyId> {
+
+    /**
+     * Mốc gần nhất không sau :ngay
+     */
+    Optional<TonDauKy> findFirstByIdHangHoaIdAndIdKhoIdAndIdNgayLessThanEqualOrderByIdNgayDesc(
+            Long hangHoaId, Long khoId, LocalDate ngay);
+
+    /**
+     * Lưu mốc (2 lần lập thẻ kho song song tính ra cùng giá trị → ghi đè an toàn)
+     */
+    @Modifying
+    @Query(value = """
+        INSERT INTO ton_dau_ky (hang_hoa_id, kho_id, ngay, so_luong, updated_at)
+        VALUES (:hangHoaId, :khoId, :ngay, :soLuong, NOW())
+        ON DUPLICATE KEY UPDATE so_luong = :soLuong, updated_at = NOW()
+    """, nativeQuery = true)
+    int luu(@Param("hangHoaId") Long hangHoaId,
+            @Param("khoId") Long khoId,
+            @Param("ngay") LocalDate ngay,
+            @Param("soLuong") long soLuong);
+
+    @Modifying
+    @Query("DELETE FROM TonDauKy t")
+    int xoaTatCa();
+}
@@ -0,0 +1,275 @@
+package com.hospital.warehouse.hospital_warehouse.repository;
+
+import com.hospital.warehouse.hospital_warehouse.entity.TonKhoTheoKho;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Repository tồn kho theo (hàng hóa, kho)
+ * Mọi thay đổi số lượng đều là câu lệnh nguyên tử, không đọc - sửa - ghi.
+ */
+@Repository
+public interface TonKhoTheoKhoRepository extends JpaRepository<TonKhoTheoKho, TonKhoTheoKho.TonKhoTheoKhoId> {
+
+    // ==================== TRA CỨU ====================
+
+    List<TonKhoTheoKho> findByIdHangHoaId(Long hangHoaId);
+
+    /**
+     * Tồn kho của nhiều hàng hóa trong 1 kho - 1 câu truy vấn theo PK
+     */
+    List<TonKhoTheoKho> findByIdKhoIdAndIdHangHoaIdIn(Long khoId, Collection<Long> hangHoaIds);
+
+    @Query("""
+        SELECT t FROM TonKhoTheoKho t
+        JOIN FETCH t.kho
+        WHERE t.id.hangHoaId = :hangHoaId
+        ORDER BY t.kho.tenKho
+    """)
+    List<TonKhoTheoKho> findByHangHoaIdWithKho(@Param("hangHoaId") Long hangHoaId);
+
+    // ==================== CẬP NHẬT NGUYÊN TỬ ====================
+
+    /**
+     * Khóa dòng tồn kho và đọc [tong_so_luong, so_luong_co_the_xuat, so_luong_da_dat, gia_tri_ton]
+     * để tính giá trị xuất theo giá bình quân (đọc thẳng DB, không qua entity)
+     */
+    @Query(value = """
+        SELECT tong_so_luong, so_luong_co_the_xuat, so_luong_da_dat, COALESCE(gia_tri_ton, 0)
+        FROM ton_kho_theo_kho
+        WHERE hang_hoa_id = :hangHoaId AND kho_id = :khoId
+        FOR UPDATE
+    """, nativeQuery = true)
+    List<Object[]> khoaVaDoc(@Param("hangHoaId") Long hangHoaId, @Param("khoId") Long khoId);
+
+    /**
+     * Cộng tồn kho + giá trị (nhập / hủy duyệt xuất) - tạo dòng nếu chưa có
+     *
+     * @param giaTri Giá trị cộng thêm (1/100 đồng)
+     */
+    @Modifying(flushAutomatically = true)
+    @Query(value = """
+        INSERT INTO ton_kho_theo_kho
+            (hang_hoa_id, kho_id, tong_so_luong, so_luong_co_the_xuat, so_luong_da_dat, gia_tri_ton, updated_at)
+        VALUES (:hangHoaId, :khoId, :soLuong, :soLuong, 0, :giaTri, NOW())
+        ON DUPLICATE KEY UPDATE
+            tong_so_luong = tong_so_luong + :soLuong,
+            so_luong_co_the_xuat = so_luong_co_the_xuat + :soLuong,
+            gia_tri_ton = COALESCE(gia_tri_ton, 0) + :giaTri,
+            updated_at = NOW()
+    """, nativeQuery = true)
+    int congTon(@Param("hangHoaId") Long hangHoaId,
+                @Param("khoId") Long khoId,
+                @Param("soLuong") int soLuong,
+                @Param("giaTri") long giaTri);
+
+    /**
+     * Trừ tồn kho + giá trị (xuất / hủy duyệt nhập) - chỉ trừ khi còn đủ, trả về 0 nếu không đủ.
+     * Hết hàng thì giá trị về 0; giá trị không bao giờ âm.
+     * gia_tri_ton được gán TRƯỚC tong_so_luong: MySQL tính SET từ trái sang phải.
+     *
+     * @param giaTri Giá trị lấy ra (1/100 đồng)
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("""
+        UPDATE TonKhoTheoKho t
+        SET t.giaTriTon = CASE
+                WHEN t.tongSoLuong = :soLuong OR COALESCE(t.giaTriTon, 0) < :giaTri THEN 0
+                ELSE COALESCE(t.giaTriTon, 0) - :giaTri END,
+            t.tongSoLuong = t.tongSoLuong - :soLuong,
+            t.soLuongCoTheXuat = t.soLuongCoTheXuat - :soLuong,
+            t.updatedAt = CURRENT_TIMESTAMP
+        WHERE t.id.hangHoaId = :hangHoaId
+          AND t.id.khoId = :khoId
+          AND t.soLuongCoTheXuat >= :soLuong
+    """)
+    int truTonCoDieuKien(@Param("hangHoaId") Long hangHoaId,
+                         @Param("khoId") Long khoId,
+                         @Param("soLuong") int soLuong,
+                         @Param("giaTri") long giaTri);
+
+    /**
+     * Hủy duyệt phiếu xuất: cộng lại tồn kho và đúng giá trị đã xuất tại kho xuất cho mọi hàng hóa của phiếu - 1 câu lệnh
+     * (dòng duyệt trước khi có định giá: ROUND(thanh_tien * 100) - cùng cách tính với DinhGiaTon.tuThanhTien)
+     */
+    @Modifying(flushAutomatically = true)
+    @Query(value = """
+        UPDATE ton_kho_theo_kho t
+        SET t.gia_tri_ton = COALESCE(t.gia_tri_ton, 0) + (
+                SELECT SUM(COALESCE(ct.gia_tri_xuat, ROUND(ct.thanh_tien * 100))) FROM chi_tiet_phieu_xuat ct
+                WHERE ct.phieu_xuat_id = :phieuXuatId AND ct.hang_hoa_id = t.hang_hoa_id),
+            t.tong_so_luong = t.tong_so_luong + (
+                SELECT SUM(ct.so_luong_xuat) FROM chi_tiet_phieu_xuat ct
+                WHERE ct.phieu_xuat_id = :phieuXuatId AND ct.hang_hoa_id = t.hang_hoa_id),
+            t.so_luong_co_the_xuat = t.so_luong_co_the_xuat + (
+                SELECT SUM(ct.so_luong_xuat) FROM chi_tiet_phieu_xuat ct
+                WHERE ct.phieu_xuat_id = :phieuXuatId AND ct.hang_hoa_id = t.hang_hoa_id),
+            t.updated_at = NOW()
+        WHERE t.kho_id = :khoId
+          AND t.hang_hoa_id IN (SELECT ct.hang_hoa_id FROM chi_tiet_phieu_xuat ct WHERE ct.phieu_xuat_id = :phieuXuatId)
+    """, nativeQuery = true)
+    int hoanLaiTheoPhieuXuat(@Param("phieuXuatId") Long phieuXuatId, @Param("khoId") Long khoId);
+
+    // ==================== ĐẶT TRƯỚC (GIỮ HÀNG) ====================
+
+    /**
+     * Giữ hàng: chuyển từ "có thể xuất" sang "đã đặt" - chỉ khi còn đủ
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("""
+        UPDATE TonKhoTheoKho t
+        SET t.soLuongCoTheXuat = t.soLuongCoTheXuat - :soLuong,
+            t.soLuongDaDat = t.soLuongDaDat + :soLuong,
+            t.updatedAt = CURRENT_TIMESTAMP
+        WHERE t.id.hangHoaId = :hangHoaId
+          AND t.id.khoId = :khoId
+          AND t.soLuongCoTheXuat >= :soLuong
+    """)
+    int datTruCoDieuKien(@Param("hangHoaId") Long hangHoaId,
+                         @Param("khoId") Long khoId,
+                         @Param("soLuong") int soLuong);
+
+    /**
+     * Trả lại phần đã giữ về "có thể xuất"
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("""
+        UPDATE TonKhoTheoKho t
+        SET t.soLuongCoTheXuat = t.soLuongCoTheXuat + :soLuong,
+            t.soLuongDaDat = t.soLuongDaDat - :soLuong,
+            t.updatedAt = CURRENT_TIMESTAMP
+        WHERE t.id.hangHoaId = :hangHoaId
+          AND t.id.khoId = :khoId
+          AND t.soLuongDaDat >= :soLuong
+    """)
+    int giaiPhongDatTru(@Param("hangHoaId") Long hangHoaId,
+                        @Param("khoId") Long khoId,
+                        @Param("soLuong") int soLuong);
+
+    /**
+     * Duyệt phiếu: phần đã giữ rời kho (trừ tổng, đã đặt và giá trị; "có thể xuất" không đổi)
+     *
+     * @param giaTri Giá trị lấy ra (1/100 đồng)
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("""
+        UPDATE TonKhoTheoKho t
+        SET t.giaTriTon = CASE
+                WHEN t.tongSoLuong = :soLuong OR COALESCE(t.giaTriTon, 0) < :giaTri THEN 0
+                ELSE COALESCE(t.giaTriTon, 0) - :giaTri END,
+            t.tongSoLuong = t.tongSoLuong - :soLuong,
+            t.soLuongDaDat = t.soLuongDaDat - :soLuong,
+            t.updatedAt = CURRENT_TIMESTAMP
+        WHERE t.id.hangHoaId = :hangHoaId
+          AND t.id.khoId = :khoId
+          AND t.soLuongDaDat >= :soLuong
+    """)
+    int xuatTuDatTru(@Param("hangHoaId") Long hangHoaId,
+                     @Param("khoId") Long khoId,
+                     @Param("soLuong") int soLuong,
+                     @Param("giaTri") long giaTri);
+
+    // ==================== GIÁ TRỊ TỒN ====================
+
+    /**
+     * Giá trị tồn theo kho - cộng trên bảng tổng hợp, không quét lô:
+     * [khoId, tenKho, soMatHang, tongSoLuong, giaTriTon]
+     */
+    @Query("""
+        SELECT t.id.khoId, k.tenKho, COUNT(t), SUM(t.tongSoLuong), SUM(COALESCE(t.giaTriTon, 0))
+        FROM TonKhoTheoKho t
+        JOIN t.kho k
+        WHERE t.tongSoLuong > 0
+        GROUP BY t.id.khoId, k.tenKho
+        ORDER BY k.tenKho
+    """)
+    List<Object[]> tongHopGiaTriTheoKho();
+
+    /**
+     * Dòng có trước khi định giá (gia_tri_ton NULL): khởi tạo theo giá nhập trung bình hiện có của hàng hóa
+     */
+    @Modifying
+    @Query(value = """
+        UPDATE ton_kho_theo_kho t
+        SET t.gia_tri_ton = t.tong_so_luong * (
+                SELECT ROUND(COALESCE(h.gia_nhap_trung_binh, 0) * 100) FROM hang_hoa h WHERE h.id = t.hang_hoa_id)
+        WHERE t.gia_tri_ton IS NULL
+    """, nativeQuery = true)
+    int khoiTaoGiaTriCu();
+
+    // ==================== ĐỒNG BỘ LẠI ====================
+
+    @Modifying
+    @Query(value = "DELETE FROM ton_kho_theo_kho", nativeQuery = true)
+    int xoaTatCa();
+
+    /**
+     * Bước 1 - (hàng hóa, kho) có lô: tồn = Σ số lượng hiện tại của các lô, giá trị = Σ giá nhập lô × số lượng còn.
+     * Lô là nguồn đúng nhất (đã gồm điều chỉnh / tồn đầu nhập thẳng vào lô, không có chứng từ).
+     */
+    @Modifying
+    @Query(value = """
+        INSERT INTO ton_kho_theo_kho
+            (hang_hoa_id, kho_id, tong_so_luong, so_luong_co_the_xuat, so_luong_da_dat, gia_tri_ton, updated_at)
+        SELECT l.hang_hoa_id, l.kho_id, SUM(l.so_luong_hien_tai), SUM(l.so_luong_hien_tai), 0,
+               SUM(ROUND(l.gia_nhap * 100) * l.so_luong_hien_tai), NOW()
+        FROM lo_hang l
+        GROUP BY l.hang_hoa_id, l.kho_id
+    """, nativeQuery = true)
+    int dongBoTuLoHang();
+
+    /**
+     * Bước 2 - (hàng hóa, kho) KHÔNG có lô nào (hàng không quản lý lô, dữ liệu cũ): tính từ chứng từ đã duyệt,
+     * tồn = Σ nhập (phiếu nhập DA_DUYET) - Σ xuất (phiếu xuất DA_DUYET / DA_GIAO), giá trị tính tương tự
+     * (nhập theo đơn giá, xuất theo giá trị đã ghi lúc duyệt hoặc thành tiền nếu duyệt trước khi có định giá -
+     * cùng quy tắc với DinhGiaTon).
+     */
+    @Modifying
+    @Query(value = """
+        INSERT INTO ton_kho_theo_kho
+            (hang_hoa_id, kho_id, tong_so_luong, so_luong_co_the_xuat, so_luong_da_dat, gia_tri_ton, updated_at)
+        SELECT x.hang_hoa_id, x.kho_id, SUM(x.so_luong), SUM(x.so_luong), 0,
+               CASE WHEN SUM(x.so_luong) > 0 THEN GREATEST(SUM(x.gia_tri), 0) ELSE 0 END, NOW()
+        FROM (
+            SELECT ct.hang_hoa_id, p.kho_id, ct.so_luong AS so_luong,
+                   ROUND(ct.don_gia * 100) * ct.so_luong AS gia_tri
+            FROM chi_tiet_phieu_nhap ct
+            JOIN phieu_nhap_kho p ON p.id = ct.phieu_nhap_id
+            WHERE p.trang_thai = 'DA_DUYET'
+            UNION ALL
+            SELECT ct.hang_hoa_id, p.kho_id, -ct.so_luong_xuat AS so_luong,
+                   -COALESCE(ct.gia_tri_xuat, ROUND(ct.thanh_tien * 100)) AS gia_tri
+            FROM chi_tiet_phieu_xuat ct
+            JOIN phieu_xuat_kho p ON p.id = ct.phieu_xuat_id
+            WHERE p.trang_thai IN ('DA_DUYET', 'DA_GIAO')
+        ) x
+        WHERE NOT EXISTS (SELECT 1 FROM lo_hang l WHERE l.hang_hoa_id = x.hang_hoa_id AND l.kho_id = x.kho_id)
+        GROUP BY x.hang_hoa_id, x.kho_id
+    """, nativeQuery = true)
+    int dongBoTuChungTu();
+
+    /**
+     * Bước 3 - giữ lại phần đang được phiếu chờ duyệt đặt trước (dat_tru_ton_kho DANG_GIU):
+     * chuyển từ "có thể xuất" sang "đã đặt"
+     */
+    @Modifying
+    @Query(value = """
+        UPDATE ton_kho_theo_kho t
+        SET t.so_luong_da_dat = (
+                SELECT COALESCE(SUM(d.so_luong), 0) FROM dat_tru_ton_kho d
+                WHERE d.hang_hoa_id = t.hang_hoa_id AND d.kho_id = t.kho_id AND d.trang_thai = 'DANG_GIU'),
+            t.so_luong_co_the_xuat = GREATEST(t.tong_so_luong - (
+                SELECT COALESCE(SUM(d.so_luong), 0) FROM dat_tru_ton_kho d
+                WHERE d.hang_hoa_id = t.hang_hoa_id AND d.kho_id = t.kho_id AND d.trang_thai = 'DANG_GIU'), 0)
+        WHERE EXISTS (
+            SELECT 1 FROM dat_tru_ton_kho d
+            WHERE d.hang_hoa_id = t.hang_hoa_id AND d.kho_id = t.kho_id AND d.trang_thai = 'DANG_GIU')
+    """, nativeQuery = true)
+    int apDungDatTruDangGiu();
+}
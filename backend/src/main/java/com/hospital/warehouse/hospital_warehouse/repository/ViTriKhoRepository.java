@@ -3,10 +3,12 @@ package com.hospital.warehouse.hospital_warehouse.repository;
 import com.hospital.warehouse.hospital_warehouse.entity.ViTriKho;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -36,5 +38,105 @@ public interface ViTriKhoRepository extends JpaRepository<ViTriKho, Long>,
             Long khoId,
             List<ViTriKho.TrangThaiViTri> trangThaiList
     );
-}
 
+    /**
+     * Bảng tra mã vị trí của kho (nhập file): [maViTri, id]
+     */
+    @Query("SELECT v.maViTri, v.id FROM ViTriKho v WHERE v.kho.id = :khoId")
+    List<Object[]> findMaViTriByKhoId(@Param("khoId") Long khoId);
+
+    // ==================== BỘ ĐẾM SỨC CHỨA ====================
+
+    /**
+     * Ghi nhận biến động hàng tại vị trí: cộng dồn số lượng / số dòng và tính lại trạng thái theo số dòng mới
+     * (trạng thái gán TRƯỚC bộ đếm - MySQL tính SET từ trái sang phải).
+     * Nhập thêm (soLuong > 0) vào vị trí có giới hạn mà vượt sức chứa → không cập nhật, trả về 0
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("""
+        UPDATE ViTriKho v
+        SET v.trangThai = CASE
+                WHEN COALESCE(v.soDongHangHoa, 0) + :soDong <= 0
+                    THEN com.hospital.warehouse.hospital_warehouse.entity.ViTriKho.TrangThaiViTri.TRONG
+                WHEN COALESCE(v.sucChuaToiDa, 0) > 0
+                        AND COALESCE(v.soDongHangHoa, 0) + :soDong >= v.sucChuaToiDa * 0.9
+                    THEN com.hospital.warehouse.hospital_warehouse.entity.ViTriKho.TrangThaiViTri.DAY
+                ELSE com.hospital.warehouse.hospital_warehouse.entity.ViTriKho.TrangThaiViTri.CO_HANG
+            END,
+            v.soLuongDangChua = COALESCE(v.soLuongDangChua, 0) + :soLuong,
+            v.soDongHangHoa = COALESCE(v.soDongHangHoa, 0) + :soDong,
+            v.updatedAt = CURRENT_TIMESTAMP
+        WHERE v.id = :id
+          AND (:soLuong <= 0
+               OR COALESCE(v.sucChuaToiDa, 0) <= 0
+               OR COALESCE(v.soLuongDangChua, 0) + :soLuong <= v.sucChuaToiDa)
+    """)
+    int apDungBienDong(@Param("id") Long id, @Param("soLuong") int soLuong, @Param("soDong") int soDong);
+
+    /**
+     * Sức chứa hiện tại của vị trí (đọc thẳng từ DB, không qua entity đã nạp): [tenViTri, sucChuaToiDa, soLuongDangChua]
+     */
+    @Query("SELECT v.tenViTri, COALESCE(v.sucChuaToiDa, 0), COALESCE(v.soLuongDangChua, 0) " +
+            "FROM ViTriKho v WHERE v.id = :id")
+    List<Object[]> findSucChuaById(@Param("id") Long id);
+
+    /**
+     * Tính lại bộ đếm từ hang_hoa_vi_tri cho các vị trí bị lệch
+     */
+    @Modifying(flushAutomatically = true)
+    @Query(value = """
+        UPDATE vi_tri_kho v
+        SET v.so_luong_dang_chua = (SELECT COALESCE(SUM(h.so_luong), 0) FROM hang_hoa_vi_tri h WHERE h.vi_tri_kho_id = v.id),
+            v.so_dong_hang_hoa = (SELECT COUNT(*) FROM hang_hoa_vi_tri h WHERE h.vi_tri_kho_id = v.id)
+        WHERE COALESCE(v.so_luong_dang_chua, -1)
+                  <> (SELECT COALESCE(SUM(h.so_luong), 0) FROM hang_hoa_vi_tri h WHERE h.vi_tri_kho_id = v.id)
+           OR COALESCE(v.so_dong_hang_hoa, -1)
+                  <> (SELECT COUNT(*) FROM hang_hoa_vi_tri h WHERE h.vi_tri_kho_id = v.id)
+    """, nativeQuery = true)
+    int dongBoBoDem();
+
+    /**
+     * Tính lại bộ đếm và trạng thái của các vị trí từ hang_hoa_vi_tri (sau thao tác không tính được biến động)
+     */
+    @Modifying(flushAutomatically = true)
+    @Query(value = """
+        UPDATE vi_tri_kho v
+        SET v.trang_thai = CASE
+                WHEN (SELECT COUNT(*) FROM hang_hoa_vi_tri h WHERE h.vi_tri_kho_id = v.id) = 0 THEN 'TRONG'
+                WHEN COALESCE(v.suc_chua_toi_da, 0) > 0
+                        AND (SELECT COUNT(*) FROM hang_hoa_vi_tri h WHERE h.vi_tri_kho_id = v.id) >= v.suc_chua_toi_da * 0.9
+                    THEN 'DAY'
+                ELSE 'CO_HANG'
+            END,
+            v.so_luong_dang_chua = (SELECT COALESCE(SUM(h.so_luong), 0) FROM hang_hoa_vi_tri h WHERE h.vi_tri_kho_id = v.id),
+            v.so_dong_hang_hoa = (SELECT COUNT(*) FROM hang_hoa_vi_tri h WHERE h.vi_tri_kho_id = v.id),
+            v.updated_at = NOW()
+        WHERE v.id IN (:ids)
+    """, nativeQuery = true)
+    int dongBoBoDemTheoId(@Param("ids") Collection<Long> ids);
+
+    /**
+     * Trạng thái theo bộ đếm số dòng, chỉ ghi vị trí bị lệch (giữ nguyên vị trí đang BAO_TRI)
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("""
+        UPDATE ViTriKho v
+        SET v.trangThai = CASE
+                WHEN COALESCE(v.soDongHangHoa, 0) <= 0
+                    THEN com.hospital.warehouse.hospital_warehouse.entity.ViTriKho.TrangThaiViTri.TRONG
+                WHEN COALESCE(v.sucChuaToiDa, 0) > 0 AND v.soDongHangHoa >= v.sucChuaToiDa * 0.9
+                    THEN com.hospital.warehouse.hospital_warehouse.entity.ViTriKho.TrangThaiViTri.DAY
+                ELSE com.hospital.warehouse.hospital_warehouse.entity.ViTriKho.TrangThaiViTri.CO_HANG
+            END,
+            v.updatedAt = CURRENT_TIMESTAMP
+        WHERE v.trangThai <> com.hospital.warehouse.hospital_warehouse.entity.ViTriKho.TrangThaiViTri.BAO_TRI
+          AND v.trangThai <> CASE
+                WHEN COALESCE(v.soDongHangHoa, 0) <= 0
+                    THEN com.hospital.warehouse.hospital_warehouse.entity.ViTriKho.TrangThaiViTri.TRONG
+                WHEN COALESCE(v.sucChuaToiDa, 0) > 0 AND v.soDongHangHoa >= v.sucChuaToiDa * 0.9
+                    THEN com.hospital.warehouse.hospital_warehouse.entity.ViTriKho.TrangThaiViTri.DAY
+                ELSE com.hospital.warehouse.hospital_warehouse.entity.ViTriKho.TrangThaiViTri.CO_HANG
+            END
+    """)
+    int dongBoTrangThai();
+}
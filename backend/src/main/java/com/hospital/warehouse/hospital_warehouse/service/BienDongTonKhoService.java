@@ -0,0 +1,338 @@
+package com.hospital.warehouse.hospital_warehouse.service;
+
+import com.hospital.warehouse.hospital_warehouse.dto.BienDongTonKhoDTO;
+import com.hospital.warehouse.hospital_warehouse.dto.KiemTraBienDongTonKhoDTO;
+import com.hospital.warehouse.hospital_warehouse.entity.BienDongTonKhoNgay;
+import com.hospital.warehouse.hospital_warehouse.entity.LichSuTonKho;
+import com.hospital.warehouse.hospital_warehouse.repository.BienDongTonKhoNgayRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.LichSuTonKhoRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.TonDauKyRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Tổng hợp biến động tồn kho theo (hàng hóa, kho, loại biến động, ngày) từ lich_su_ton_kho
+ *
+ * - Ghi: LichSuTonKhoWriter gọi congDon ngay sau khi persist các dòng lịch sử, trong CÙNG transaction
+ *   → tổng hợp và lịch sử luôn cùng commit / rollback. Không dùng job đuổi theo ID lớn nhất đã xử lý:
+ *   ID lịch sử cấp theo khối (pooled) nên các transaction song song không commit theo thứ tự ID.
+ * - Đọc: báo cáo theo mặt hàng / theo tháng chỉ đọc bảng tổng hợp
+ * - Đồng bộ lại toàn bộ (lần đầu chạy, hoặc khi kiểm tra thấy lệch) và đối chiếu với lịch sử theo khoảng ngày
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class BienDongTonKhoService {
+
+    private static final LocalDateTime THOI_DIEM_NHO_NHAT = LocalDateTime.of(1900, 1, 1, 0, 0);
+    private static final LocalDateTime THOI_DIEM_LON_NHAT = LocalDateTime.of(9999, 12, 31, 0, 0);
+
+    /** Khoảng mặc định khi kiểm tra không truyền ngày */
+    private static final int SO_NGAY_KIEM_TRA_MAC_DINH = 30;
+
+    /** Số ô lệch tối đa trả về */
+    private static final int SO_O_LECH_TOI_DA = 100;
+
+    private final BienDongTonKhoNgayRepository bienDongTonKhoNgayRepository;
+    private final LichSuTonKhoRepository lichSuTonKhoRepository;
+    private final TonDauKyRepository tonDauKyRepository;
+
+    /**
+     * Khóa một ô tổng hợp - sắp xếp theo hàng hóa trước để thứ tự khóa giống các bảng tồn kho
+     */
+    private record Khoa(Long hangHoaId, Long khoId, LichSuTonKho.LoaiBienDong loaiBienDong, LocalDate ngay)
+            implements Comparable<Khoa> {
+
+        private static final Comparator<Khoa> THU_TU = Comparator.comparing(Khoa::hangHoaId)
+                .thenComparing(Khoa::khoId)
+                .thenComparing(Khoa::loaiBienDong)
+                .thenComparing(Khoa::ngay);
+
+        @Override
+        public int compareTo(Khoa khac) {
+            return THU_TU.compare(this, khac);
+        }
+    }
+
+    private static final class CongDon {
+        private long soLuongVao;
+        private long soLuongRa;
+        private BigDecimal giaTriVao = BigDecimal.ZERO;
+        private BigDecimal giaTriRa = BigDecimal.ZERO;
+        private long soDong;
+
+        private CongDon() {
+        }
+
+        private CongDon(long soLuongVao, long soLuongRa, BigDecimal giaTriVao, BigDecimal giaTriRa, long soDong) {
+            this.soLuongVao = soLuongVao;
+            this.soLuongRa = soLuongRa;
+            this.giaTriVao = giaTriVao;
+            this.giaTriRa = giaTriRa;
+            this.soDong = soDong;
+        }
+
+        private boolean khop(CongDon khac) {
+            return soLuongVao == khac.soLuongVao && soLuongRa == khac.soLuongRa && soDong == khac.soDong
+                    && giaTriVao.compareTo(khac.giaTriVao) == 0 && giaTriRa.compareTo(khac.giaTriRa) == 0;
+        }
+    }
+
+    // ==================== GHI NHẬN ====================
+
+    /**
+     * Cộng các dòng lịch sử vừa persist vào bảng tổng hợp: mỗi ô 1 câu upsert, theo thứ tự khóa cố định
+     */
+    @Transactional
+    public void congDon(Collection<LichSuTonKho> lichSuList) {
+        Map<Khoa, CongDon> theoO = new TreeMap<>();
+        for (LichSuTonKho lichSu : lichSuList) {
+            Long khoId = khoId(lichSu);
+            if (khoId == null) {
+                continue;
+            }
+            LocalDate ngay = lichSu.getCreatedAt() != null ? lichSu.getCreatedAt().toLocalDate() : LocalDate.now();
+            CongDon o = theoO.computeIfAbsent(
+                    new Khoa(lichSu.getHangHoa().getId(), khoId, lichSu.getLoaiBienDong(), ngay), k -> new CongDon());
+
+            int soLuong = Math.abs(lichSu.getSoLuongBienDong());
+            BigDecimal giaTri = lichSu.getGiaTriBienDong() != null ? lichSu.getGiaTriBienDong().abs() : BigDecimal.ZERO;
+            if (laVao(lichSu)) {
+                o.soLuongVao += soLuong;
+                o.giaTriVao = o.giaTriVao.add(giaTri);
+            } else {
+                o.soLuongRa += soLuong;
+                o.giaTriRa = o.giaTriRa.add(giaTri);
+            }
+            o.soDong++;
+        }
+
+        theoO.forEach((khoa, o) -> bienDongTonKhoNgayRepository.congDon(
+                khoa.hangHoaId(), khoa.khoId(), khoa.loaiBienDong().name(), khoa.ngay(),
+                o.soLuongVao, o.soLuongRa, o.giaTriVao, o.giaTriRa, o.soDong));
+    }
+
+    /**
+     * Chiều của một dòng lịch sử (phải khớp CASE trong BienDongTonKhoNgayRepository#NGUON_LICH_SU):
+     * nhập / hủy duyệt xuất là vào; xuất / hủy duyệt nhập / hủy hàng là ra; điều chỉnh, kiểm kê, chuyển kho theo dấu tồn
+     */
+    static boolean laVao(LichSuTonKho lichSu) {
+        return laVao(lichSu.getLoaiBienDong(), lichSu.getSoLuongTruoc(), lichSu.getSoLuongSau());
+    }
+
+    static boolean laVao(LichSuTonKho.LoaiBienDong loaiBienDong, int soLuongTruoc, int soLuongSau) {
+        return switch (loaiBienDong) {
+            case NHAP_KHO, HUY_DUYET_XUAT -> true;
+            case XUAT_KHO, HUY_DUYET_NHAP, HUY_HANG -> false;
+            default -> soLuongSau >= soLuongTruoc;
+        };
+    }
+
+    // ==================== BÁO CÁO ====================
+
+    /**
+     * Tổng vào / ra theo mặt hàng × kho trong khoảng ngày
+     */
+    @Transactional(readOnly = true)
+    public List<BienDongTonKhoDTO> tongHopTheoHangHoa(Long khoId, Long hangHoaId,
+                                                      LichSuTonKho.LoaiBienDong loaiBienDong,
+                                                      LocalDate tuNgay, LocalDate denNgay) {
+        List<Object[]> rows = bienDongTonKhoNgayRepository.tongHopTheoHangHoa(khoId, hangHoaId, loaiBienDong,
+                tuNgay != null ? tuNgay : THOI_DIEM_NHO_NHAT.toLocalDate(),
+                denNgay != null ? denNgay : THOI_DIEM_LON_NHAT.toLocalDate());
+
+        List<BienDongTonKhoDTO> ketQua = new ArrayList<>(rows.size());
+        for (Object[] row : rows) {
+            ketQua.add(BienDongTonKhoDTO.builder()
+                    .hangHoaId((Long) row[0])
+                    .maHangHoa((String) row[1])
+                    .tenHangHoa((String) row[2])
+                    .khoId((Long) row[3])
+                    .tenKho((String) row[4])
+                    .soLuongVao(soLong(row[5]))
+                    .soLuongRa(soLong(row[6]))
+                    .giaTriVao(soTien(row[7]))
+                    .giaTriRa(soTien(row[8]))
+                    .build());
+        }
+        return ketQua;
+    }
+
+    /**
+     * Tổng vào / ra theo tháng trong khoảng ngày
+     */
+    @Transactional(readOnly = true)
+    public List<BienDongTonKhoDTO> tongHopTheoThang(Long khoId, Long hangHoaId,
+                                                    LichSuTonKho.LoaiBienDong loaiBienDong,
+                                                    LocalDate tuNgay, LocalDate denNgay) {
+        List<Object[]> rows = bienDongTonKhoNgayRepository.tongHopTheoThang(khoId, hangHoaId, loaiBienDong,
+                tuNgay != null ? tuNgay : THOI_DIEM_NHO_NHAT.toLocalDate(),
+                denNgay != null ? denNgay : THOI_DIEM_LON_NHAT.toLocalDate());
+
+        List<BienDongTonKhoDTO> ketQua = new ArrayList<>(rows.size());
+        for (Object[] row : rows) {
+            ketQua.add(BienDongTonKhoDTO.builder()
+                    .khoId(khoId)
+                    .hangHoaId(hangHoaId)
+                    .nam(((Number) row[0]).intValue())
+                    .thang(((Number) row[1]).intValue())
+                    .soLuongVao(soLong(row[2]))
+                    .soLuongRa(soLong(row[3]))
+                    .giaTriVao(soTien(row[4]))
+                    .giaTriRa(soTien(row[5]))
+                    .build());
+        }
+        return ketQua;
+    }
+
+    // ==================== ĐỒNG BỘ / KIỂM TRA ====================
+
+    /**
+     * Tính lại toàn bộ bảng tổng hợp từ lịch sử (1 transaction: DELETE + INSERT ... SELECT).
+     * Các mốc tồn đầu tháng (tính từ bảng này) bị xóa để thẻ kho tính lại.
+     *
+     * @return Số ô tổng hợp sau khi đồng bộ
+     */
+    @Transactional
+    public int dongBoLai() {
+        bienDongTonKhoNgayRepository.xoaTatCa();
+        tonDauKyRepository.xoaTatCa();
+        int soDong = bienDongTonKhoNgayRepository.dongBoTuLichSu(THOI_DIEM_NHO_NHAT, THOI_DIEM_LON_NHAT);
+        log.info("✅ Rebuilt bien_dong_ton_kho_ngay: {} rows", soDong);
+        return soDong;
+    }
+
+    /**
+     * Đối chiếu bảng tổng hợp với lịch sử gốc trong [tuNgay, denNgay]
+     * (2 lần đọc trong cùng transaction chỉ đọc → cùng một snapshot)
+     */
+    @Transactional(readOnly = true)
+    public KiemTraBienDongTonKhoDTO kiemTra(LocalDate tuNgay, LocalDate denNgay) {
+        LocalDate den = denNgay != null ? denNgay : LocalDate.now();
+        LocalDate tu = tuNgay != null ? tuNgay : den.minusDays(SO_NGAY_KIEM_TRA_MAC_DINH);
+        if (tu.isAfter(den)) {
+            throw new IllegalArgumentException("Từ ngày phải trước hoặc bằng đến ngày");
+        }
+        LocalDateTime tuThoiDiem = tu.atStartOfDay();
+        LocalDateTime denThoiDiem = den.plusDays(1).atStartOfDay();
+
+        Map<Khoa, CongDon> lichSu = new HashMap<>();
+        for (Object[] row : bienDongTonKhoNgayRepository.tinhTuLichSu(tuThoiDiem, denThoiDiem)) {
+            Khoa khoa = new Khoa(((Number) row[0]).longValue(), ((Number) row[1]).longValue(),
+                    LichSuTonKho.LoaiBienDong.valueOf((String) row[2]), ngay(row[3]));
+            lichSu.put(khoa, new CongDon(soLong(row[4]), soLong(row[5]), soTien(row[6]), soTien(row[7]), soLong(row[8])));
+        }
+
+        Map<Khoa, CongDon> tongHop = new HashMap<>();
+        for (BienDongTonKhoNgay o : bienDongTonKhoNgayRepository.findByIdNgayBetween(tu, den)) {
+            BienDongTonKhoNgay.BienDongTonKhoNgayId id = o.getId();
+            tongHop.put(new Khoa(id.getHangHoaId(), id.getKhoId(), id.getLoaiBienDong(), id.getNgay()),
+                    new CongDon(o.getSoLuongVao(), o.getSoLuongRa(), o.getGiaTriVao(), o.getGiaTriRa(), o.getSoDong()));
+        }
+
+        Set<Khoa> tatCa = new TreeSet<>(lichSu.keySet());
+        tatCa.addAll(tongHop.keySet());
+
+        int soOLech = 0;
+        List<KiemTraBienDongTonKhoDTO.OLech> danhSachLech = new ArrayList<>();
+        for (Khoa khoa : tatCa) {
+            CongDon a = lichSu.getOrDefault(khoa, new CongDon());
+            CongDon b = tongHop.getOrDefault(khoa, new CongDon());
+            if (a.khop(b)) {
+                continue;
+            }
+            soOLech++;
+            if (danhSachLech.size() < SO_O_LECH_TOI_DA) {
+                danhSachLech.add(KiemTraBienDongTonKhoDTO.OLech.builder()
+                        .hangHoaId(khoa.hangHoaId())
+                        .khoId(khoa.khoId())
+                        .loaiBienDong(khoa.loaiBienDong().name())
+                        .ngay(khoa.ngay())
+                        .soLuongVaoLichSu(a.soLuongVao).soLuongVaoTongHop(b.soLuongVao)
+                        .soLuongRaLichSu(a.soLuongRa).soLuongRaTongHop(b.soLuongRa)
+                        .giaTriVaoLichSu(a.giaTriVao).giaTriVaoTongHop(b.giaTriVao)
+                        .giaTriRaLichSu(a.giaTriRa).giaTriRaTongHop(b.giaTriRa)
+                        .soDongLichSu(a.soDong).soDongTongHop(b.soDong)
+                        .build());
+            }
+        }
+
+        long khongXacDinhKho = bienDongTonKhoNgayRepository.demKhongXacDinhKho(tuThoiDiem, denThoiDiem);
+        if (soOLech > 0) {
+            log.warn("⚠️ Bảng tổng hợp biến động tồn kho lệch {} ô so với lịch sử ({} → {})", soOLech, tu, den);
+        }
+
+        return KiemTraBienDongTonKhoDTO.builder()
+                .tuNgay(tu)
+                .denNgay(den)
+                .soOLichSu(lichSu.size())
+                .soOTongHop(tongHop.size())
+                .soOLech(soOLech)
+                .soDongKhongXacDinhKho(khongXacDinhKho)
+                .danhSachLech(danhSachLech)
+                .build();
+    }
+
+    /**
+     * Lần đầu chạy (bảng còn trống) → khởi tạo từ lịch sử hiện có
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Transactional
+    public void khoiTaoNeuTrong() {
+        if (bienDongTonKhoNgayRepository.count() == 0 && lichSuTonKhoRepository.count() > 0) {
+            log.info("Khởi tạo bảng tổng hợp biến động tồn kho từ lịch sử hiện có...");
+            dongBoLai();
+        }
+    }
+
+    // ==================== HELPER ====================
+
+    /**
+     * Kho của dòng lịch sử; dòng ghi trước khi có cột kho_id: suy ra từ vị trí kho / lô
+     */
+    private static Long khoId(LichSuTonKho lichSu) {
+        if (lichSu.getKho() != null) {
+            return lichSu.getKho().getId();
+        }
+        if (lichSu.getViTriKho() != null) {
+            return lichSu.getViTriKho().getKho().getId();
+        }
+        if (lichSu.getLoHang() != null) {
+            return lichSu.getLoHang().getKho().getId();
+        }
+        return null;
+    }
+
+    private static long soLong(Object giaTri) {
+        return giaTri != null ? ((Number) giaTri).longValue() : 0L;
+    }
+
+    private static BigDecimal soTien(Object giaTri) {
+        if (giaTri == null) {
+            return BigDecimal.ZERO;
+        }
+        return giaTri instanceof BigDecimal bd ? bd : new BigDecimal(giaTri.toString());
+    }
+
+    private static LocalDate ngay(Object giaTri) {
+        return giaTri instanceof Date d ? d.toLocalDate() : (LocalDate) giaTri;
+    }
+}
@@ -10,9 +10,11 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.sql.Statement;
 import java.time.LocalDateTime;
 import java.util.HashMap;
 import java.util.List;
@@ -29,6 +31,11 @@ public class CanhBaoService {
     @Autowired
     private UserRepository userRepository;
 
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private static final int KICH_THUOC_BATCH = 500;
+
     /**
      * Lấy tất cả cảnh báo có phân trang
      */
@@ -198,6 +205,45 @@ public class CanhBaoService {
         return saved;
     }
 
+    /**
+     * Tạo nhiều cảnh báo trong một JDBC batch (dùng cho SinhCanhBaoService).
+     * INSERT IGNORE: cảnh báo trùng dấu vết với dòng đã có (do chạy song song) được bỏ qua.
+     *
+     * @return Số cảnh báo đã tạo
+     */
+    @Transactional
+    public int taoCanhBaoHangLoat(List<CanhBaoHeThong> canhBaoList) {
+        if (canhBaoList.isEmpty()) {
+            return 0;
+        }
+
+        int[][] ketQua = jdbcTemplate.batchUpdate("""
+                INSERT IGNORE INTO canh_bao_he_thong (loai_canh_bao, muc_do, tieu_de, noi_dung,
+                        doi_tuong_lien_quan_id, loai_doi_tuong, da_doc, da_xu_ly, ngay_het_hieu_luc, dau_vet,
+                        created_at, updated_at)
+                VALUES (?, ?, ?, ?, ?, ?, FALSE, FALSE, ?, ?, NOW(), NOW())
+                """, canhBaoList, KICH_THUOC_BATCH, (ps, canhBao) -> {
+            ps.setString(1, canhBao.getLoaiCanhBao().name());
+            ps.setString(2, canhBao.getMucDo().name());
+            ps.setString(3, canhBao.getTieuDe());
+            ps.setString(4, canhBao.getNoiDung());
+            ps.setObject(5, canhBao.getDoiTuongLienQuanId());
+            ps.setString(6, canhBao.getLoaiDoiTuong() != null ? canhBao.getLoaiDoiTuong().name() : null);
+            ps.setObject(7, canhBao.getNgayHetHieuLuc());
+            ps.setString(8, canhBao.getDauVet());
+        });
+
+        // Driver gộp batch thành 1 câu nhiều dòng có thể không trả số dòng từng phần tử (SUCCESS_NO_INFO)
+        int soDong = 0;
+        for (int[] lo : ketQua) {
+            for (int n : lo) {
+                soDong += n == Statement.SUCCESS_NO_INFO ? 1 : n;
+            }
+        }
+        log.info("🚨 Đã tạo {} cảnh báo tự động", soDong);
+        return soDong;
+    }
+
     /**
      * Convert Entity to DTO
      */
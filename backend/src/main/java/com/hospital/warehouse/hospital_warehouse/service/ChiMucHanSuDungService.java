@@ -0,0 +1,378 @@
+package com.hospital.warehouse.hospital_warehouse.service;
+
+import com.hospital.warehouse.hospital_warehouse.repository.LoHangRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import javax.sql.DataSource;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Chỉ mục hạn sử dụng của các lô còn hàng, nằm trong bộ nhớ: kho → ngày hết hạn → các lô (kèm hàng hóa, số lượng).
+ *
+ * "Lô hết hạn trong N ngày tại kho K (của hàng hóa H)" được trả lời bằng một lần duyệt các nhóm ngày trong khoảng,
+ * không truy vấn DB. Chỉ mục được dựng lại khi khởi động và hằng đêm; giữa hai lần dựng, mọi thay đổi lô
+ * (nhập / xuất / hủy duyệt qua LichSuTonKhoWriter, thêm / sửa / xóa lô) phát sự kiện ThayDoi và các lô liên quan
+ * được đọc lại sau khi transaction commit.
+ *
+ * Mỗi node giữ chỉ mục riêng. Sự kiện ThayDoi còn được ghi vào thay_doi_lo_hang trong cùng transaction;
+ * các node khác đọc bảng này theo chu kỳ (lùi mốc đọc một khoảng độ trễ để không sót transaction commit muộn)
+ * nên thay đổi trên node khác được thấy sau vài giây, không phải đợi lần dựng lại.
+ * Bộ nhớ ~110 byte / lô + ~100 byte / (kho, ngày) → 200 nghìn lô ≈ 22-25 MB (xem baoCaoBoNho).
+ */
+@Slf4j
+@Service
+public class ChiMucHanSuDungService {
+
+    private static final int KICH_THUOC_TRANG = 5000;
+    private static final int SO_ID_MOI_CAU = 1000;
+    private static final int GIU_THAY_DOI_NGAY = 1;
+
+    private static final String GHI_THAY_DOI =
+            "INSERT INTO thay_doi_lo_hang (lo_hang_id, ma_node, thoi_gian) VALUES (?, ?, CURRENT_TIMESTAMP)";
+
+    // Ước tính kích thước đối tượng (JVM 64-bit, compressed oops)
+    private static final long BYTE_MOI_LO = 48 + 56 + 6;       // DongLo + HashMap node/khóa Long + phần tử ArrayList
+    private static final long BYTE_MOI_NHOM_NGAY = 40 + 16 + 24 + 24; // TreeMap.Entry + Integer + ArrayList + mảng
+    private static final long BYTE_MOI_KHO = 48 + 48;           // HashMap node/khóa Long + TreeMap
+
+    private final LoHangRepository loHangRepository;
+    private final JdbcTemplate jdbcTemplate;
+
+    @Value("${kho.lo-hang.do-tre-dong-bo-chi-muc-giay:60}")
+    private long doTreGiay;
+
+    /** Mã của node này trong thay_doi_lo_hang */
+    private final String maNode = UUID.randomUUID().toString();
+
+    private final ReentrantReadWriteLock khoa = new ReentrantReadWriteLock();
+
+    /** khoId → (ngày hết hạn dạng epoch day → các lô) */
+    private Map<Long, TreeMap<Integer, List<DongLo>>> theoKho = new HashMap<>();
+
+    private Map<Long, DongLo> theoLo = new HashMap<>();
+
+    /** Lô thay đổi trong lúc đang dựng lại - đọc lại sau khi thay chỉ mục mới (null: không dựng lại) */
+    private Set<Long> thayDoiKhiDungLai;
+
+    /** Đọc thay_doi_lo_hang từ mốc này (giờ DB; null: chưa dựng chỉ mục) */
+    private Timestamp mocDongBo;
+
+    /** Dòng thay_doi_lo_hang đã áp dụng (id → thời gian) - khoảng độ trễ được đọc lại nhiều lần */
+    private final Map<Long, Timestamp> thayDoiDaDoc = new LinkedHashMap<>();
+
+    public ChiMucHanSuDungService(LoHangRepository loHangRepository, DataSource dataSource) {
+        this.loHangRepository = loHangRepository;
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    /**
+     * Sự kiện: số lượng / hạn sử dụng của các lô có thể đã thay đổi
+     */
+    public record ThayDoi(Collection<Long> loHangIds) {
+    }
+
+    public record TongHop(int soLo, long soLuong) {
+    }
+
+    public record BoNho(int soLo, int soKho, int soNhomNgay, long uocTinhByte, long byteMoiLo) {
+    }
+
+    private record DongLo(long loHangId, long khoId, long hangHoaId, int ngay, int soLuong) {
+    }
+
+    // ==================== TRUY VẤN ====================
+
+    /**
+     * Id các lô còn hàng có hạn sử dụng trong [tuNgay, denNgay], sắp theo hạn sử dụng tăng dần
+     *
+     * @param khoId     null: mọi kho
+     * @param hangHoaId null: mọi hàng hóa
+     */
+    public List<Long> timLo(Long khoId, Long hangHoaId, LocalDate tuNgay, LocalDate denNgay) {
+        List<DongLo> ketQua = new ArrayList<>();
+        khoa.readLock().lock();
+        try {
+            for (NavigableMap<Integer, List<DongLo>> theoNgay : cacKho(khoId)) {
+                for (List<DongLo> nhom : khoang(theoNgay, tuNgay, denNgay).values()) {
+                    for (DongLo dong : nhom) {
+                        if (hangHoaId == null || dong.hangHoaId() == hangHoaId) {
+                            ketQua.add(dong);
+                        }
+                    }
+                }
+            }
+        } finally {
+            khoa.readLock().unlock();
+        }
+
+        if (khoId == null) {
+            ketQua.sort(Comparator.comparingInt(DongLo::ngay).thenComparingLong(DongLo::loHangId));
+        }
+        return ketQua.stream().map(DongLo::loHangId).toList();
+    }
+
+    /**
+     * Số lô và tổng số lượng còn lại có hạn sử dụng trong [tuNgay, denNgay]
+     */
+    public TongHop tongHop(Long khoId, Long hangHoaId, LocalDate tuNgay, LocalDate denNgay) {
+        int soLo = 0;
+        long soLuong = 0;
+        khoa.readLock().lock();
+        try {
+            for (NavigableMap<Integer, List<DongLo>> theoNgay : cacKho(khoId)) {
+                for (List<DongLo> nhom : khoang(theoNgay, tuNgay, denNgay).values()) {
+                    for (DongLo dong : nhom) {
+                        if (hangHoaId == null || dong.hangHoaId() == hangHoaId) {
+                            soLo++;
+                            soLuong += dong.soLuong();
+                        }
+                    }
+                }
+            }
+        } finally {
+            khoa.readLock().unlock();
+        }
+        return new TongHop(soLo, soLuong);
+    }
+
+    /**
+     * Kích thước chỉ mục và bộ nhớ ước tính
+     */
+    public BoNho baoCaoBoNho() {
+        khoa.readLock().lock();
+        try {
+            int soNhomNgay = theoKho.values().stream().mapToInt(Map::size).sum();
+            long uocTinh = theoLo.size() * BYTE_MOI_LO + soNhomNgay * BYTE_MOI_NHOM_NGAY
+                    + theoKho.size() * BYTE_MOI_KHO;
+            return new BoNho(theoLo.size(), theoKho.size(), soNhomNgay, uocTinh, BYTE_MOI_LO);
+        } finally {
+            khoa.readLock().unlock();
+        }
+    }
+
+    // ==================== CẬP NHẬT ====================
+
+    /**
+     * Dựng lại toàn bộ chỉ mục từ lo_hang (khi khởi động và hằng đêm) - đọc theo trang, không khóa chỉ mục khi đọc
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(cron = "${kho.lo-hang.cron-dung-lai-chi-muc:0 20 0 * * *}")
+    public synchronized void dungLai() {
+        long batDau = System.currentTimeMillis();
+        // Thay đổi từ node khác commit sau mốc này được đồng bộ sau khi dựng xong (đọc trùng không sao)
+        Timestamp gioDb = gioDb();
+        mocDongBo = new Timestamp(gioDb.getTime() - doTreGiay * 1000);
+        thayDoiDaDoc.clear();
+        jdbcTemplate.update("DELETE FROM thay_doi_lo_hang WHERE thoi_gian < ?",
+                new Timestamp(gioDb.getTime() - GIU_THAY_DOI_NGAY * 86_400_000L));
+
+        khoa.writeLock().lock();
+        try {
+            thayDoiKhiDungLai = new HashSet<>();
+        } finally {
+            khoa.writeLock().unlock();
+        }
+
+        Map<Long, TreeMap<Integer, List<DongLo>>> moiTheoKho = new HashMap<>();
+        Map<Long, DongLo> moiTheoLo = new HashMap<>();
+        Set<Long> canDocLai;
+        try {
+            long sauId = 0;
+            List<Object[]> trang;
+            do {
+                trang = loHangRepository.findChiMucHanSuDung(sauId, PageRequest.of(0, KICH_THUOC_TRANG));
+                for (Object[] row : trang) {
+                    DongLo dong = tuDong(row);
+                    them(moiTheoKho, dong);
+                    moiTheoLo.put(dong.loHangId(), dong);
+                    sauId = dong.loHangId();
+                }
+            } while (trang.size() == KICH_THUOC_TRANG);
+        } finally {
+            khoa.writeLock().lock();
+            try {
+                canDocLai = thayDoiKhiDungLai;
+                thayDoiKhiDungLai = null;
+            } finally {
+                khoa.writeLock().unlock();
+            }
+        }
+
+        khoa.writeLock().lock();
+        try {
+            theoKho = moiTheoKho;
+            theoLo = moiTheoLo;
+        } finally {
+            khoa.writeLock().unlock();
+        }
+
+        // Lô thay đổi trong lúc đọc có thể đã được đọc bản cũ
+        if (!canDocLai.isEmpty()) {
+            capNhat(canDocLai);
+        }
+        log.info("✅ Dựng chỉ mục hạn sử dụng: {} ({} ms)", baoCaoBoNho(), System.currentTimeMillis() - batDau);
+    }
+
+    /**
+     * Đọc lại các lô đã thay đổi sau khi transaction commit (ngoài transaction: ngay lập tức)
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void khiThayDoi(ThayDoi thayDoi) {
+        if (!thayDoi.loHangIds().isEmpty()) {
+            capNhat(new HashSet<>(thayDoi.loHangIds()));
+        }
+    }
+
+    /**
+     * Báo cho các node khác: ghi các lô đã thay đổi vào thay_doi_lo_hang trước khi commit (rollback → không ghi)
+     */
+    @TransactionalEventListener(phase = TransactionPhase.BEFORE_COMMIT, fallbackExecution = true)
+    public void ghiThayDoi(ThayDoi thayDoi) {
+        List<Long> ids = new ArrayList<>(new HashSet<>(thayDoi.loHangIds()));
+        if (!ids.isEmpty()) {
+            jdbcTemplate.batchUpdate(GHI_THAY_DOI, ids, SO_ID_MOI_CAU, (ps, id) -> {
+                ps.setLong(1, id);
+                ps.setString(2, maNode);
+            });
+        }
+    }
+
+    /**
+     * Áp dụng thay đổi lô của các node khác từ thay_doi_lo_hang
+     */
+    @Scheduled(fixedDelayString = "${kho.lo-hang.chu-ky-dong-bo-chi-muc-ms:5000}",
+            initialDelayString = "${kho.lo-hang.chu-ky-dong-bo-chi-muc-ms:5000}")
+    public synchronized void dongBo() {
+        if (mocDongBo == null) {
+            return;
+        }
+        Set<Long> loHangIds = new HashSet<>();
+        Timestamp moiNhat = mocDongBo;
+        for (Object[] row : jdbcTemplate.query(
+                "SELECT id, lo_hang_id, thoi_gian FROM thay_doi_lo_hang WHERE thoi_gian >= ? AND ma_node <> ?",
+                (rs, i) -> new Object[]{rs.getLong(1), rs.getLong(2), rs.getTimestamp(3)},
+                mocDongBo, maNode)) {
+            Timestamp thoiGian = (Timestamp) row[2];
+            if (thayDoiDaDoc.putIfAbsent((Long) row[0], thoiGian) == null) {
+                loHangIds.add((Long) row[1]);
+            }
+            if (thoiGian.after(moiNhat)) {
+                moiNhat = thoiGian;
+            }
+        }
+        if (!loHangIds.isEmpty()) {
+            capNhat(loHangIds);
+        }
+
+        // Chỉ đọc lại khoảng độ trễ trước dòng mới nhất đã thấy
+        Timestamp mocMoi = new Timestamp(moiNhat.getTime() - doTreGiay * 1000);
+        if (mocMoi.after(mocDongBo)) {
+            mocDongBo = mocMoi;
+            thayDoiDaDoc.values().removeIf(thoiGian -> thoiGian.before(mocMoi));
+        }
+    }
+
+    private void capNhat(Collection<Long> loHangIds) {
+        List<Long> ids = new ArrayList<>(loHangIds);
+        Map<Long, DongLo> moi = new HashMap<>();
+        for (int i = 0; i < ids.size(); i += SO_ID_MOI_CAU) {
+            for (Object[] row : loHangRepository.findChiMucHanSuDungByIdIn(
+                    ids.subList(i, Math.min(i + SO_ID_MOI_CAU, ids.size())))) {
+                if (row[3] != null && ((Number) row[4]).intValue() > 0) {
+                    DongLo dong = tuDong(row);
+                    moi.put(dong.loHangId(), dong);
+                }
+            }
+        }
+
+        khoa.writeLock().lock();
+        try {
+            for (Long id : ids) {
+                DongLo cu = theoLo.remove(id);
+                if (cu != null) {
+                    xoa(theoKho, cu);
+                }
+                DongLo dong = moi.get(id);
+                if (dong != null) {
+                    them(theoKho, dong);
+                    theoLo.put(id, dong);
+                }
+            }
+            if (thayDoiKhiDungLai != null) {
+                thayDoiKhiDungLai.addAll(ids);
+            }
+        } finally {
+            khoa.writeLock().unlock();
+        }
+    }
+
+    // ==================== HELPER ====================
+
+    private Timestamp gioDb() {
+        return jdbcTemplate.queryForObject("SELECT CURRENT_TIMESTAMP", Timestamp.class);
+    }
+
+    private Collection<TreeMap<Integer, List<DongLo>>> cacKho(Long khoId) {
+        if (khoId == null) {
+            return theoKho.values();
+        }
+        TreeMap<Integer, List<DongLo>> theoNgay = theoKho.get(khoId);
+        return theoNgay != null ? List.of(theoNgay) : List.of();
+    }
+
+    private static NavigableMap<Integer, List<DongLo>> khoang(NavigableMap<Integer, List<DongLo>> theoNgay,
+                                                             LocalDate tuNgay, LocalDate denNgay) {
+        return theoNgay.subMap((int) tuNgay.toEpochDay(), true, (int) denNgay.toEpochDay(), true);
+    }
+
+    private static void them(Map<Long, TreeMap<Integer, List<DongLo>>> theoKho, DongLo dong) {
+        theoKho.computeIfAbsent(dong.khoId(), k -> new TreeMap<>())
+                .computeIfAbsent(dong.ngay(), k -> new ArrayList<>(2))
+                .add(dong);
+    }
+
+    private static void xoa(Map<Long, TreeMap<Integer, List<DongLo>>> theoKho, DongLo dong) {
+        TreeMap<Integer, List<DongLo>> theoNgay = theoKho.get(dong.khoId());
+        if (theoNgay == null) {
+            return;
+        }
+        List<DongLo> nhom = theoNgay.get(dong.ngay());
+        if (nhom != null && nhom.remove(dong) && nhom.isEmpty()) {
+            theoNgay.remove(dong.ngay());
+            if (theoNgay.isEmpty()) {
+                theoKho.remove(dong.khoId());
+            }
+        }
+    }
+
+    /**
+     * [id, khoId, hangHoaId, hanSuDung, soLuongHienTai] → dòng chỉ mục
+     */
+    private static DongLo tuDong(Object[] row) {
+        return new DongLo((Long) row[0], (Long) row[1], row[2] != null ? (Long) row[2] : 0L,
+                (int) ((LocalDate) row[3]).toEpochDay(), ((Number) row[4]).intValue());
+    }
+}
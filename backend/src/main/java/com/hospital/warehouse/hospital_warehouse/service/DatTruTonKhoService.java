@@ -0,0 +1,357 @@
+package com.hospital.warehouse.hospital_warehouse.service;
+
+import com.hospital.warehouse.hospital_warehouse.entity.*;
+import com.hospital.warehouse.hospital_warehouse.repository.DatTruTonKhoRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.HangHoaRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.LoHangRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.TonKhoTheoKhoRepository;
+import com.hospital.warehouse.hospital_warehouse.util.FefoAllocator;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Đặt trước (giữ hàng) cho phiếu xuất
+ *
+ * - Lập phiếu: giữ hàng theo kế hoạch FEFO → số lượng chuyển từ "có thể xuất" sang "đã đặt"
+ * - Duyệt phiếu: phần đã giữ được chuyển thẳng thành xuất kho, không cần tìm lô lại
+ * - Hủy / xóa phiếu, quá thời hạn giữ: trả lại số lượng (lệch số liệu → IllegalStateException, không bỏ qua)
+ *
+ * Mọi thay đổi số lượng là UPDATE có điều kiện, thực hiện theo thứ tự: tồn kho theo kho → lô → hàng hóa,
+ * trong mỗi bảng theo ID tăng dần (cùng thứ tự với luồng duyệt phiếu) để tránh deadlock.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class DatTruTonKhoService {
+
+    private final DatTruTonKhoRepository datTruTonKhoRepository;
+    private final TonKhoTheoKhoRepository tonKhoTheoKhoRepository;
+    private final TonKhoTheoKhoService tonKhoTheoKhoService;
+    private final LoHangRepository loHangRepository;
+    private final ThongKeLoHangService thongKeLoHangService;
+    private final HangHoaRepository hangHoaRepository;
+    private final PlatformTransactionManager transactionManager;
+
+    // Thời gian giữ hàng của phiếu chưa duyệt (phút)
+    @Value("${kho.dat-tru.thoi-han-phut:1440}")
+    private long thoiHanPhut;
+
+    // Số dòng đặt trước hết hạn xử lý trong một lần quét
+    @Value("${kho.dat-tru.so-dong-moi-lan-quet:500}")
+    private int soDongMoiLanQuet;
+
+    // ==================== GIỮ HÀNG ====================
+
+    /**
+     * Giữ hàng cho phiếu xuất vừa lập
+     *
+     * @param tongTheoHangHoa hangHoaId → tổng số lượng cần xuất của cả phiếu
+     * @param phanBoLo        Kế hoạch FEFO cho các dòng hàng có quản lý lô
+     * @param chiTietKhongLo  Các dòng hàng không quản lý lô
+     * @throws IllegalStateException Nếu tồn kho vừa bị phiếu khác giữ / xuất
+     */
+    @Transactional
+    public List<DatTruTonKho> giuHang(PhieuXuatKho phieuXuat,
+                                      Map<Long, Integer> tongTheoHangHoa,
+                                      List<FefoAllocator.PhanBo> phanBoLo,
+                                      List<ChiTietPhieuXuat> chiTietKhongLo) {
+        Kho kho = phieuXuat.getKho();
+
+        // 1. Tồn kho theo kho
+        new TreeMap<>(tongTheoHangHoa).forEach((hangHoaId, soLuong) -> {
+            if (tonKhoTheoKhoRepository.datTruCoDieuKien(hangHoaId, kho.getId(), soLuong) == 0) {
+                throw khongDuHang(String.format(
+                        "Kho '%s' không còn đủ hàng hóa ID %d để giữ %d (vừa bị phiếu khác giữ hoặc xuất)",
+                        kho.getTenKho(), hangHoaId, soLuong));
+            }
+        });
+
+        // 2. Lô hàng (gộp theo lô, 2 dòng cùng hàng có thể lấy chung 1 lô)
+        Map<Long, Integer> giuTheoLo = new TreeMap<>();
+        for (FefoAllocator.PhanBo phanBo : phanBoLo) {
+            giuTheoLo.merge(phanBo.loHang().getId(), phanBo.soLuong(), Integer::sum);
+        }
+        giuTheoLo.forEach((loHangId, soLuong) -> {
+            if (loHangRepository.datTruCoDieuKien(loHangId, soLuong) == 0) {
+                throw khongDuHang(String.format(
+                        "Lô hàng ID %d không còn đủ %d để giữ (vừa bị phiếu khác giữ hoặc xuất), vui lòng thử lại",
+                        loHangId, soLuong));
+            }
+        });
+
+        // 3. Hàng hóa
+        new TreeMap<>(tongTheoHangHoa).forEach((hangHoaId, soLuong) -> {
+            if (hangHoaRepository.datTruCoDieuKien(hangHoaId, soLuong) == 0) {
+                throw khongDuHang(String.format(
+                        "Hàng hóa ID %d không còn đủ %d để giữ (vừa bị phiếu khác giữ hoặc xuất)",
+                        hangHoaId, soLuong));
+            }
+        });
+
+        // 4. Ghi các dòng đặt trước
+        LocalDateTime hetHanLuc = LocalDateTime.now().plusMinutes(thoiHanPhut);
+        List<DatTruTonKho> datTruList = new ArrayList<>();
+        for (FefoAllocator.PhanBo phanBo : phanBoLo) {
+            datTruList.add(taoDatTru(phieuXuat, phanBo.chiTiet(), phanBo.loHang(), phanBo.soLuong(), hetHanLuc));
+        }
+        for (ChiTietPhieuXuat chiTiet : chiTietKhongLo) {
+            datTruList.add(taoDatTru(phieuXuat, chiTiet, null, chiTiet.getSoLuongXuat(), hetHanLuc));
+        }
+
+        datTruList = datTruTonKhoRepository.saveAll(datTruList);
+        log.info("🔒 Giữ hàng cho phiếu {}: {} dòng, hết hạn lúc {}",
+                phieuXuat.getMaPhieuXuat(), datTruList.size(), hetHanLuc);
+        return datTruList;
+    }
+
+    // ==================== DUYỆT / HỦY ====================
+
+    /**
+     * Đặt trước đang giữ của phiếu (khóa dòng, kể cả dòng đã quá hạn nhưng chưa bị quét)
+     */
+    @Transactional
+    public List<DatTruTonKho> layDatTruDangGiu(Long phieuXuatId) {
+        return datTruTonKhoRepository.findDangGiuByPhieuXuatIdForUpdate(phieuXuatId);
+    }
+
+    /**
+     * Đặt trước đang giữ của phiếu, chỉ đọc (không khóa dòng)
+     */
+    @Transactional(readOnly = true)
+    public List<DatTruTonKho> xemDatTruDangGiu(Long phieuXuatId) {
+        return datTruTonKhoRepository.findDangGiuByPhieuXuatId(phieuXuatId);
+    }
+
+    /**
+     * Phần giữ hàng có phủ đủ số lượng xuất của mọi dòng chi tiết không
+     */
+    public boolean phuDuPhieu(List<DatTruTonKho> datTruList, List<ChiTietPhieuXuat> chiTietList) {
+        Map<Long, Integer> daGiuTheoChiTiet = datTruList.stream()
+                .collect(Collectors.groupingBy(d -> d.getChiTietPhieuXuat().getId(),
+                        Collectors.summingInt(DatTruTonKho::getSoLuong)));
+
+        return chiTietList.stream().allMatch(ct ->
+                ct.getSoLuongXuat().equals(daGiuTheoChiTiet.get(ct.getId())));
+    }
+
+    /**
+     * Các lô đã giữ còn xuất được không (không lô nào hết hạn kể từ lúc giữ hàng)
+     */
+    public boolean loConXuatDuoc(List<DatTruTonKho> datTruList) {
+        Set<Long> loHangIds = datTruList.stream()
+                .filter(d -> d.getLoHang() != null)
+                .map(d -> d.getLoHang().getId())
+                .collect(Collectors.toSet());
+        return loHangIds.isEmpty() || loHangRepository.countHetHanByIdIn(loHangIds) == 0;
+    }
+
+    /**
+     * Duyệt phiếu: chuyển phần đã giữ thành xuất kho
+     *
+     * @param giaTriXuat Nhận hangHoaId → giá trị đã xuất theo giá bình quân tại kho (1/100 đồng)
+     * @return loHangId → số lượng đã xuất (để cập nhật vị trí)
+     * @throws IllegalStateException Nếu số liệu giữ hàng bị lệch hoặc lô vừa hết hạn
+     */
+    @Transactional
+    public Map<Long, Integer> chuyenThanhXuat(List<DatTruTonKho> datTruList, Map<Long, Long> giaTriXuat) {
+        TongHop tongHop = tongHop(datTruList);
+
+        tongHop.theoKho().forEach((hangHoaId, theoKho) -> theoKho.forEach((khoId, soLuong) -> {
+            long giaTri = tonKhoTheoKhoService.xuatTuDatTru(hangHoaId, khoId, soLuong);
+            if (giaTri < 0) {
+                throw khongDuHang(String.format(
+                        "Số lượng đã giữ của hàng hóa ID %d tại kho ID %d bị lệch, không thể xuất %d",
+                        hangHoaId, khoId, soLuong));
+            }
+            giaTriXuat.merge(hangHoaId, giaTri, Long::sum);
+        }));
+        ThongKeLoHangService.TruocKhiGhi truoc = thongKeLoHangService.truocKhiGhi(tongHop.theoLo().keySet());
+        tongHop.theoLo().forEach((loHangId, soLuong) -> {
+            if (loHangRepository.xuatTuDatTru(loHangId, soLuong) == 0) {
+                throw khongDuHang(String.format(
+                        "Số lượng đã giữ của lô ID %d bị lệch hoặc lô đã hết hạn, không thể xuất %d",
+                        loHangId, soLuong));
+            }
+        });
+        thongKeLoHangService.sauKhiGhi(truoc);
+        tongHop.theoHangHoa().forEach((hangHoaId, soLuong) -> {
+            if (hangHoaRepository.xuatTuDatTru(hangHoaId, soLuong) == 0) {
+                throw khongDuHang(String.format(
+                        "Số lượng đã giữ của hàng hóa ID %d bị lệch, không thể xuất %d", hangHoaId, soLuong));
+            }
+        });
+
+        datTruTonKhoRepository.capNhatTrangThai(ids(datTruList), DatTruTonKho.TrangThaiDatTru.DA_XUAT);
+        log.info("✅ Chuyển {} dòng giữ hàng thành xuất kho", datTruList.size());
+        return tongHop.theoLo();
+    }
+
+    /**
+     * Trả lại số lượng đã giữ và đánh dấu trạng thái mới (DA_HUY / HET_HAN)
+     *
+     * @throws IllegalStateException Nếu số lượng đã giữ ở tồn kho theo kho / lô / hàng hóa nhỏ hơn phần cần trả
+     *                               (số liệu giữ hàng bị lệch - transaction rollback, cần đồng bộ lại tồn kho)
+     */
+    @Transactional
+    public void giaiPhong(List<DatTruTonKho> datTruList, DatTruTonKho.TrangThaiDatTru trangThaiMoi) {
+        if (datTruList.isEmpty()) {
+            return;
+        }
+
+        TongHop tongHop = tongHop(datTruList);
+
+        tongHop.theoKho().forEach((hangHoaId, theoKho) -> theoKho.forEach((khoId, soLuong) -> {
+            if (tonKhoTheoKhoRepository.giaiPhongDatTru(hangHoaId, khoId, soLuong) == 0) {
+                throw khongDuHang(String.format(
+                        "Số lượng đã giữ của hàng hóa ID %d tại kho ID %d bị lệch, không thể trả lại %d",
+                        hangHoaId, khoId, soLuong));
+            }
+        }));
+        tongHop.theoLo().forEach((loHangId, soLuong) -> {
+            if (loHangRepository.giaiPhongDatTru(loHangId, soLuong) == 0) {
+                throw khongDuHang(String.format(
+                        "Số lượng đã giữ của lô ID %d bị lệch, không thể trả lại %d", loHangId, soLuong));
+            }
+        });
+        tongHop.theoHangHoa().forEach((hangHoaId, soLuong) -> {
+            if (hangHoaRepository.giaiPhongDatTru(hangHoaId, soLuong) == 0) {
+                throw khongDuHang(String.format(
+                        "Số lượng đã giữ của hàng hóa ID %d bị lệch, không thể trả lại %d", hangHoaId, soLuong));
+            }
+        });
+
+        datTruTonKhoRepository.capNhatTrangThai(ids(datTruList), trangThaiMoi);
+        log.info("🔓 Trả lại {} dòng giữ hàng → {}", datTruList.size(), trangThaiMoi);
+    }
+
+    /**
+     * Hủy phiếu: trả lại toàn bộ phần đang giữ
+     */
+    @Transactional
+    public void giaiPhongTheoPhieu(Long phieuXuatId) {
+        giaiPhong(layDatTruDangGiu(phieuXuatId), DatTruTonKho.TrangThaiDatTru.DA_HUY);
+    }
+
+    /**
+     * Xóa phiếu: trả lại phần đang giữ rồi xóa các dòng đặt trước (phải chạy trước khi xóa chi tiết)
+     */
+    @Transactional
+    public void xoaTheoPhieu(Long phieuXuatId) {
+        giaiPhongTheoPhieu(phieuXuatId);
+        datTruTonKhoRepository.deleteByPhieuXuatId(phieuXuatId);
+    }
+
+    // ==================== QUÉT HẾT HẠN ====================
+
+    /**
+     * Định kỳ trả lại các phần giữ hàng đã quá hạn - xử lý theo lô:
+     * 1 câu SELECT ... FOR UPDATE, mỗi lô / hàng hóa / (hàng, kho) 1 câu UPDATE, 1 câu UPDATE trạng thái.
+     * Phần còn lại (nếu nhiều hơn soDongMoiLanQuet) được xử lý ở lần quét kế tiếp.
+     *
+     * Nếu cả lô bị rollback vì một phiếu lệch số liệu → trả lại từng phiếu trong transaction riêng:
+     * phiếu hợp lệ vẫn được giải phóng, phiếu lệch giữ nguyên DANG_GIU và được ghi log lỗi để đồng bộ lại.
+     */
+    @Scheduled(fixedDelayString = "${kho.dat-tru.chu-ky-quet-ms:60000}",
+            initialDelayString = "${kho.dat-tru.chu-ky-quet-ms:60000}")
+    public void quetDatTruHetHan() {
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        LocalDateTime now = LocalDateTime.now();
+        try {
+            transaction.executeWithoutResult(status -> {
+                List<DatTruTonKho> hetHan = datTruTonKhoRepository.findHetHanForUpdate(
+                        now, PageRequest.of(0, soDongMoiLanQuet));
+                if (!hetHan.isEmpty()) {
+                    log.info("⏰ Found {} expired reservations", hetHan.size());
+                    giaiPhong(hetHan, DatTruTonKho.TrangThaiDatTru.HET_HAN);
+                }
+            });
+        } catch (IllegalStateException e) {
+            log.warn("⚠️ Expired reservation batch rolled back ({}), retrying per voucher", e.getMessage());
+            quetTungPhieu(transaction, now);
+        }
+    }
+
+    private void quetTungPhieu(TransactionTemplate transaction, LocalDateTime now) {
+        List<Long> phieuXuatIds = datTruTonKhoRepository.findPhieuXuatIdHetHan(
+                now, PageRequest.of(0, soDongMoiLanQuet));
+
+        for (Long phieuXuatId : phieuXuatIds) {
+            try {
+                transaction.executeWithoutResult(status -> giaiPhong(
+                        datTruTonKhoRepository.findDangGiuByPhieuXuatIdForUpdate(phieuXuatId).stream()
+                                .filter(d -> d.getHetHanLuc().isBefore(now))
+                                .collect(Collectors.toList()),
+                        DatTruTonKho.TrangThaiDatTru.HET_HAN));
+            } catch (IllegalStateException e) {
+                log.error("❌ Không trả lại được phần giữ hàng hết hạn của phiếu xuất ID {} - cần đồng bộ lại tồn kho: {}",
+                        phieuXuatId, e.getMessage());
+            }
+        }
+    }
+
+    // ==================== HELPER ====================
+
+    /**
+     * Số lượng gộp theo từng bảng cần cập nhật, sắp xếp theo khóa tăng dần
+     */
+    private record TongHop(Map<Long, Map<Long, Integer>> theoKho,
+                           Map<Long, Integer> theoLo,
+                           Map<Long, Integer> theoHangHoa) {
+    }
+
+    private TongHop tongHop(List<DatTruTonKho> datTruList) {
+        Map<Long, Map<Long, Integer>> theoKho = new TreeMap<>();
+        Map<Long, Integer> theoLo = new TreeMap<>();
+        Map<Long, Integer> theoHangHoa = new TreeMap<>();
+
+        for (DatTruTonKho datTru : datTruList) {
+            Long hangHoaId = datTru.getHangHoa().getId();
+            theoKho.computeIfAbsent(hangHoaId, k -> new TreeMap<>())
+                    .merge(datTru.getKho().getId(), datTru.getSoLuong(), Integer::sum);
+            theoHangHoa.merge(hangHoaId, datTru.getSoLuong(), Integer::sum);
+            if (datTru.getLoHang() != null) {
+                theoLo.merge(datTru.getLoHang().getId(), datTru.getSoLuong(), Integer::sum);
+            }
+        }
+
+        return new TongHop(theoKho, theoLo, theoHangHoa);
+    }
+
+    private List<Long> ids(List<DatTruTonKho> datTruList) {
+        return datTruList.stream().map(DatTruTonKho::getId).collect(Collectors.toList());
+    }
+
+    private DatTruTonKho taoDatTru(PhieuXuatKho phieuXuat, ChiTietPhieuXuat chiTiet,
+                                   LoHang loHang, int soLuong, LocalDateTime hetHanLuc) {
+        return DatTruTonKho.builder()
+                .phieuXuat(phieuXuat)
+                .chiTietPhieuXuat(chiTiet)
+                .hangHoa(chiTiet.getHangHoa())
+                .kho(phieuXuat.getKho())
+                .loHang(loHang)
+                .soLuong(soLuong)
+                .hetHanLuc(hetHanLuc)
+                .trangThai(DatTruTonKho.TrangThaiDatTru.DANG_GIU)
+                .build();
+    }
+
+    private IllegalStateException khongDuHang(String errorMsg) {
+        log.error("❌ {}", errorMsg);
+        return new IllegalStateException(errorMsg);
+    }
+}
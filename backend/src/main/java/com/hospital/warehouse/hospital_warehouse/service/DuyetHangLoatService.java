@@ -0,0 +1,167 @@
+package com.hospital.warehouse.hospital_warehouse.service;
+
+import com.hospital.warehouse.hospital_warehouse.dto.KetQuaDuyetHangLoatDTO;
+import com.hospital.warehouse.hospital_warehouse.entity.User;
+import com.hospital.warehouse.hospital_warehouse.repository.PhieuNhapKhoRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.PhieuXuatKhoRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.NestedExceptionUtils;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Duyệt hàng loạt phiếu xuất / phiếu nhập.
+ *
+ * - Người duyệt và thông tin phiếu (mã, kho) được tra MỘT lần cho cả danh sách
+ * - Phiếu được gom theo kho (kho tăng dần, trong kho theo ID) để các phiếu cùng kho chạy liền nhau
+ *   và thứ tự khóa dòng tồn kho luôn ổn định giữa các lượt duyệt
+ * - Mỗi phiếu chạy trong transaction riêng (REQUIRES_NEW): phiếu lỗi chỉ rollback chính nó,
+ *   kết quả từng phiếu (thành công / lý do) được trả về
+ * - Phiếu xuất: hàng hóa, tồn kho tại kho và lô khả dụng được nạp MỘT lần cho mỗi nhóm kho rồi truyền
+ *   cho từng phiếu. Phiếu lỗi khi dùng dữ liệu nạp trước được duyệt lại một lần theo cách thường;
+ *   lần đó thành công nghĩa là dữ liệu nạp trước đã cũ → bỏ, các phiếu còn lại của nhóm tự truy vấn.
+ *   Phiếu nhập không cần nạp trước (chỉ cộng tồn kho, không kiểm tra / phân bổ lô).
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class DuyetHangLoatService {
+
+    private final PhieuXuatKhoService phieuXuatKhoService;
+    private final PhieuNhapKhoService phieuNhapKhoService;
+    private final PhieuXuatKhoRepository phieuXuatKhoRepository;
+    private final PhieuNhapKhoRepository phieuNhapKhoRepository;
+    private final NguoiDungHienTai nguoiDungHienTai;
+
+    public List<KetQuaDuyetHangLoatDTO> duyetPhieuXuatHangLoat(List<Long> ids) {
+        log.info("📦 Duyệt hàng loạt {} phiếu xuất", ids.size());
+        return duyetHangLoat(ids,
+                phieuXuatKhoRepository::findThongTinDuyetByIdIn,
+                phieuXuatKhoService::napTruocNhomKho,
+                phieuXuatKhoService::duyetPhieuXuatTrongLo,
+                "Không tìm thấy phiếu xuất");
+    }
+
+    public List<KetQuaDuyetHangLoatDTO> duyetPhieuNhapHangLoat(List<Long> ids) {
+        log.info("📦 Duyệt hàng loạt {} phiếu nhập", ids.size());
+        return duyetHangLoat(ids,
+                phieuNhapKhoRepository::findThongTinDuyetByIdIn,
+                (khoId, phieuIds) -> null,
+                (id, nguoiDuyet, nhom) -> phieuNhapKhoService.duyetPhieuNhapTrongLo(id, nguoiDuyet),
+                "Không tìm thấy phiếu nhập");
+    }
+
+    /**
+     * Duyệt một phiếu với dữ liệu nạp trước của nhóm kho (null → phiếu tự truy vấn)
+     */
+    @FunctionalInterface
+    private interface DuyetMotPhieu<N> {
+        void duyet(Long id, User nguoiDuyet, N nhom);
+    }
+
+    private <N> List<KetQuaDuyetHangLoatDTO> duyetHangLoat(
+            List<Long> ids,
+            Function<Collection<Long>, List<Object[]>> taiThongTin,
+            BiFunction<Long, Collection<Long>, N> napTruocNhom,
+            DuyetMotPhieu<N> duyetMotPhieu,
+            String thongBaoKhongTimThay) {
+
+        Set<Long> idDuyNhat = new LinkedHashSet<>(ids);
+        idDuyNhat.remove(null);
+        if (idDuyNhat.isEmpty()) {
+            throw new IllegalStateException("Danh sách phiếu cần duyệt không được để trống");
+        }
+
+        User nguoiDuyet = nguoiDungHienTai.thamChieu();
+
+        // Gom theo kho: khoId → (phiếu ID → kết quả khởi tạo)
+        Map<Long, TreeMap<Long, KetQuaDuyetHangLoatDTO>> theoKho = new TreeMap<>();
+        for (Object[] row : taiThongTin.apply(idDuyNhat)) {
+            Long id = (Long) row[0];
+            Long khoId = (Long) row[2];
+            theoKho.computeIfAbsent(khoId, k -> new TreeMap<>())
+                    .put(id, KetQuaDuyetHangLoatDTO.builder()
+                            .id(id)
+                            .maPhieu((String) row[1])
+                            .khoId(khoId)
+                            .tenKho((String) row[3])
+                            .build());
+        }
+
+        Map<Long, KetQuaDuyetHangLoatDTO> ketQuaTheoId = new HashMap<>();
+        for (Map.Entry<Long, TreeMap<Long, KetQuaDuyetHangLoatDTO>> nhomKho : theoKho.entrySet()) {
+            N napTruoc = napTruoc(napTruocNhom, nhomKho.getKey(), nhomKho.getValue().keySet());
+            for (KetQuaDuyetHangLoatDTO ketQua : nhomKho.getValue().values()) {
+                try {
+                    if (!duyetVoiNapTruoc(duyetMotPhieu, ketQua, nguoiDuyet, napTruoc)) {
+                        napTruoc = null;
+                    }
+                    ketQua.setThanhCong(true);
+                } catch (IllegalStateException | IllegalArgumentException e) {
+                    log.warn("⚠️ Không duyệt được phiếu {}: {}", ketQua.getMaPhieu(), e.getMessage());
+                    ketQua.setThanhCong(false);
+                    ketQua.setLyDo(e.getMessage());
+                } catch (RuntimeException e) {
+                    log.error("❌ Lỗi khi duyệt phiếu {}", ketQua.getMaPhieu(), e);
+                    ketQua.setThanhCong(false);
+                    ketQua.setLyDo("Lỗi hệ thống: "
+                            + NestedExceptionUtils.getMostSpecificCause(e).getMessage());
+                }
+                ketQuaTheoId.put(ketQua.getId(), ketQua);
+            }
+        }
+
+        // Trả kết quả theo đúng thứ tự yêu cầu
+        List<KetQuaDuyetHangLoatDTO> ketQua = new ArrayList<>(idDuyNhat.size());
+        for (Long id : idDuyNhat) {
+            KetQuaDuyetHangLoatDTO kq = ketQuaTheoId.get(id);
+            ketQua.add(kq != null ? kq : KetQuaDuyetHangLoatDTO.builder()
+                    .id(id)
+                    .thanhCong(false)
+                    .lyDo(thongBaoKhongTimThay)
+                    .build());
+        }
+
+        long soThanhCong = ketQua.stream().filter(KetQuaDuyetHangLoatDTO::getThanhCong).count();
+        log.info("✅ Duyệt hàng loạt: {}/{} phiếu thành công", soThanhCong, ketQua.size());
+        return ketQua;
+    }
+
+    /**
+     * Nạp trước cho một nhóm kho; lỗi khi nạp không chặn lượt duyệt (các phiếu tự truy vấn)
+     */
+    private <N> N napTruoc(BiFunction<Long, Collection<Long>, N> napTruocNhom, Long khoId, Collection<Long> phieuIds) {
+        try {
+            return napTruocNhom.apply(khoId, phieuIds);
+        } catch (RuntimeException e) {
+            log.warn("⚠️ Không nạp trước được kho {}, duyệt từng phiếu: {}", khoId, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Duyệt một phiếu; lỗi nghiệp vụ khi dùng dữ liệu nạp trước → duyệt lại một lần không dùng nó
+     *
+     * @return false nếu dữ liệu nạp trước đã cũ (lần duyệt lại thành công) và không nên dùng tiếp
+     */
+    private <N> boolean duyetVoiNapTruoc(DuyetMotPhieu<N> duyetMotPhieu, KetQuaDuyetHangLoatDTO ketQua,
+                                         User nguoiDuyet, N napTruoc) {
+        if (napTruoc == null) {
+            duyetMotPhieu.duyet(ketQua.getId(), nguoiDuyet, null);
+            return true;
+        }
+        try {
+            duyetMotPhieu.duyet(ketQua.getId(), nguoiDuyet, napTruoc);
+            return true;
+        } catch (IllegalStateException e) {
+            log.info("🔁 Phiếu {} lỗi với dữ liệu nạp trước, duyệt lại: {}", ketQua.getMaPhieu(), e.getMessage());
+        }
+        duyetMotPhieu.duyet(ketQua.getId(), nguoiDuyet, null);
+        log.warn("⚠️ Dữ liệu nạp trước của kho {} đã cũ, các phiếu còn lại tự truy vấn", ketQua.getKhoId());
+        return false;
+    }
+}
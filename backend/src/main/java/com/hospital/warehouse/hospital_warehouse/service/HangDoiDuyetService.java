@@ -0,0 +1,408 @@
+package com.hospital.warehouse.hospital_warehouse.service;
+
+import com.hospital.warehouse.hospital_warehouse.dto.CongViecDuyetDTO;
+import com.hospital.warehouse.hospital_warehouse.dto.ThongKeHangDoiDuyetDTO;
+import com.hospital.warehouse.hospital_warehouse.entity.User;
+import com.hospital.warehouse.hospital_warehouse.repository.PhieuNhapKhoRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.PhieuXuatKhoRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.UserRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.NestedExceptionUtils;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hàng đợi duyệt phiếu theo kho (chế độ duyệt bất đồng bộ - bật riêng cho từng kho qua Kho.duyetBatDongBo).
+ *
+ * Các phiếu cùng kho tranh nhau cùng các dòng lo_hang / ton_kho_theo_kho / hang_hoa → khóa chờ và deadlock
+ * khi nhiều người duyệt cùng lúc. Ở chế độ này:
+ * - PATCH /duyet chỉ xếp phiếu vào hàng đợi của kho và trả mã công việc; client hỏi lại kết quả theo mã
+ * - Mỗi kho chỉ có MỘT luồng duyệt tại một thời điểm (single writer), lấy phiếu theo đúng thứ tự xếp hàng
+ * - Các phiếu đang chờ liền nhau được gộp vào một transaction (tối đa kho.duyet-bat-dong-bo.so-phieu-moi-lo);
+ *   nếu transaction gộp lỗi thì duyệt lại từng phiếu trong transaction riêng để phiếu tốt không bị kéo theo
+ * - Các kho dùng chung một pool luồng nhỏ; sau mỗi lô, kho nhường luồng cho kho khác (xếp lại cuối pool)
+ *
+ * Hàng đợi và kết quả chỉ nằm trong bộ nhớ của node nhận yêu cầu; phiếu chưa duyệt khi node dừng
+ * vẫn ở trạng thái chờ duyệt và có thể duyệt lại. Kết quả được giữ kho.duyet-bat-dong-bo.thoi-gian-giu-phut.
+ */
+@Slf4j
+@Service
+public class HangDoiDuyetService {
+
+    private final PhieuXuatKhoService phieuXuatKhoService;
+    private final PhieuNhapKhoService phieuNhapKhoService;
+    private final PhieuXuatKhoRepository phieuXuatKhoRepository;
+    private final PhieuNhapKhoRepository phieuNhapKhoRepository;
+    private final UserRepository userRepository;
+    private final NguoiDungHienTai nguoiDungHienTai;
+    private final TransactionTemplate transactionMoi;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Value("${kho.duyet-bat-dong-bo.so-luong-xu-ly:4}")
+    private int soLuongXuLy;
+
+    @Value("${kho.duyet-bat-dong-bo.so-phieu-moi-lo:20}")
+    private int soPhieuMoiLo;
+
+    @Value("${kho.duyet-bat-dong-bo.hang-doi-toi-da:500}")
+    private int hangDoiToiDa;
+
+    @Value("${kho.duyet-bat-dong-bo.thoi-gian-giu-phut:60}")
+    private long thoiGianGiuPhut;
+
+    private final Map<Long, HangDoiKho> hangDoiTheoKho = new ConcurrentHashMap<>();
+
+    private final Map<String, CongViec> congViecTheoMa = new ConcurrentHashMap<>();
+
+    /** "XUAT:15" → mã công việc đang chờ / đang duyệt của phiếu (không xếp hàng trùng) */
+    private final Map<String, String> congViecTheoPhieu = new ConcurrentHashMap<>();
+
+    private ThreadPoolExecutor executor;
+
+    public HangDoiDuyetService(PhieuXuatKhoService phieuXuatKhoService,
+                               PhieuNhapKhoService phieuNhapKhoService,
+                               PhieuXuatKhoRepository phieuXuatKhoRepository,
+                               PhieuNhapKhoRepository phieuNhapKhoRepository,
+                               UserRepository userRepository,
+                               NguoiDungHienTai nguoiDungHienTai,
+                               PlatformTransactionManager transactionManager) {
+        this.phieuXuatKhoService = phieuXuatKhoService;
+        this.phieuNhapKhoService = phieuNhapKhoService;
+        this.phieuXuatKhoRepository = phieuXuatKhoRepository;
+        this.phieuNhapKhoRepository = phieuNhapKhoRepository;
+        this.userRepository = userRepository;
+        this.nguoiDungHienTai = nguoiDungHienTai;
+        this.transactionMoi = new TransactionTemplate(transactionManager);
+        this.transactionMoi.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    @PostConstruct
+    void khoiTao() {
+        AtomicInteger soLuong = new AtomicInteger();
+        // Số tác vụ trong hàng đợi của pool không vượt quá số kho (mỗi kho tối đa một tác vụ)
+        executor = new ThreadPoolExecutor(soLuongXuLy, soLuongXuLy, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "duyet-kho-" + soLuong.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    void dong() {
+        executor.shutdownNow();
+    }
+
+    // ==================== XẾP HÀNG ====================
+
+    /**
+     * Xếp phiếu vào hàng đợi duyệt của kho nếu kho đang bật duyệt bất đồng bộ
+     *
+     * @return Công việc đã xếp (hoặc công việc đang có của phiếu); empty nếu kho duyệt đồng bộ - gọi duyệt trực tiếp
+     * @throws IllegalArgumentException Không tìm thấy phiếu
+     * @throws IllegalStateException    Hàng đợi của kho đã đầy
+     */
+    public Optional<CongViecDuyetDTO> xepHangNeuBatDongBo(CongViecDuyetDTO.LoaiPhieu loaiPhieu, Long phieuId) {
+        List<Object[]> thongTin = loaiPhieu == CongViecDuyetDTO.LoaiPhieu.XUAT
+                ? phieuXuatKhoRepository.findThongTinDuyetByIdIn(List.of(phieuId))
+                : phieuNhapKhoRepository.findThongTinDuyetByIdIn(List.of(phieuId));
+        if (thongTin.isEmpty()) {
+            throw new IllegalArgumentException(loaiPhieu == CongViecDuyetDTO.LoaiPhieu.XUAT
+                    ? "Không tìm thấy phiếu xuất" : "Không tìm thấy phiếu nhập");
+        }
+
+        Object[] row = thongTin.get(0);
+        if (!Boolean.TRUE.equals(row[4])) {
+            return Optional.empty();
+        }
+
+        donDep();
+        String khoaPhieu = loaiPhieu + ":" + phieuId;
+        CongViec congViec = new CongViec(UUID.randomUUID().toString(), loaiPhieu, phieuId,
+                (String) row[1], (Long) row[2], (String) row[3], nguoiDungHienTai.thongTin().userId());
+
+        congViecTheoMa.put(congViec.ma, congViec);
+        String daCo = congViecTheoPhieu.putIfAbsent(khoaPhieu, congViec.ma);
+        if (daCo != null) {
+            // Phiếu đã chờ / đang duyệt (client gửi lại) → trả công việc đang có
+            congViecTheoMa.remove(congViec.ma);
+            return Optional.ofNullable(congViecTheoMa.get(daCo)).map(CongViec::toDTO);
+        }
+
+        HangDoiKho hangDoi = hangDoiTheoKho.computeIfAbsent(congViec.khoId, HangDoiKho::new);
+        try {
+            hangDoi.them(congViec);
+        } catch (RuntimeException e) {
+            congViecTheoPhieu.remove(khoaPhieu, congViec.ma);
+            congViecTheoMa.remove(congViec.ma);
+            throw e;
+        }
+
+        log.info("📥 Xếp phiếu {} vào hàng đợi duyệt kho {} - công việc {}", congViec.maPhieu, congViec.tenKho, congViec.ma);
+        return Optional.of(congViec.toDTO());
+    }
+
+    public Optional<CongViecDuyetDTO> layCongViec(String maCongViec) {
+        return Optional.ofNullable(congViecTheoMa.get(maCongViec)).map(CongViec::toDTO);
+    }
+
+    public List<ThongKeHangDoiDuyetDTO> thongKe() {
+        return hangDoiTheoKho.values().stream()
+                .sorted(Comparator.comparing(hangDoi -> hangDoi.khoId))
+                .map(HangDoiKho::thongKe)
+                .toList();
+    }
+
+    // ==================== XỬ LÝ NỀN ====================
+
+    /**
+     * Một lượt của luồng duyệt kho: lấy tối đa soPhieuMoiLo phiếu đầu hàng đợi và duyệt
+     */
+    private void chayLuot(HangDoiKho hangDoi) {
+        List<CongViec> lo = hangDoi.layLo(Math.max(soPhieuMoiLo, 1));
+        try {
+            if (!lo.isEmpty()) {
+                duyetLo(hangDoi, lo);
+            }
+        } catch (RuntimeException e) {
+            log.error("❌ Lỗi hàng đợi duyệt kho ID {}", hangDoi.khoId, e);
+            lo.stream().filter(cv -> cv.ketThucLuc == null)
+                    .forEach(cv -> ketThuc(hangDoi, cv, CongViecDuyetDTO.TrangThai.THAT_BAI, "Lỗi hệ thống: " + e.getMessage()));
+        } finally {
+            hangDoi.ketThucLuot();
+        }
+    }
+
+    private void duyetLo(HangDoiKho hangDoi, List<CongViec> lo) {
+        LocalDateTime batDau = LocalDateTime.now();
+        for (CongViec congViec : lo) {
+            congViec.trangThai = CongViecDuyetDTO.TrangThai.DANG_XU_LY;
+            congViec.batDauLuc = batDau;
+            hangDoi.ghiThoiGianCho(Duration.between(congViec.xepHangLuc, batDau).toMillis());
+        }
+
+        if (lo.size() > 1) {
+            try {
+                transactionMoi.executeWithoutResult(status -> {
+                    for (CongViec congViec : lo) {
+                        duyet(congViec);
+                        // Phiếu sau bắt đầu với persistence context sạch (tồn kho vừa cập nhật bằng UPDATE trực tiếp)
+                        entityManager.flush();
+                        entityManager.clear();
+                    }
+                });
+                hangDoi.soGiaoDich.incrementAndGet();
+                lo.forEach(cv -> ketThuc(hangDoi, cv, CongViecDuyetDTO.TrangThai.THANH_CONG, null));
+                log.info("✅ Hàng đợi kho ID {}: duyệt {} phiếu trong 1 transaction", hangDoi.khoId, lo.size());
+                return;
+            } catch (RuntimeException e) {
+                log.warn("⚠️ Hàng đợi kho ID {}: lô {} phiếu lỗi ({}), duyệt lại từng phiếu",
+                        hangDoi.khoId, lo.size(), NestedExceptionUtils.getMostSpecificCause(e).getMessage());
+            }
+        }
+
+        for (CongViec congViec : lo) {
+            try {
+                transactionMoi.executeWithoutResult(status -> duyet(congViec));
+                ketThuc(hangDoi, congViec, CongViecDuyetDTO.TrangThai.THANH_CONG, null);
+            } catch (IllegalStateException | IllegalArgumentException e) {
+                log.warn("⚠️ Không duyệt được phiếu {}: {}", congViec.maPhieu, e.getMessage());
+                ketThuc(hangDoi, congViec, CongViecDuyetDTO.TrangThai.THAT_BAI, e.getMessage());
+            } catch (RuntimeException e) {
+                log.error("❌ Lỗi khi duyệt phiếu {}", congViec.maPhieu, e);
+                ketThuc(hangDoi, congViec, CongViecDuyetDTO.TrangThai.THAT_BAI,
+                        "Lỗi hệ thống: " + NestedExceptionUtils.getMostSpecificCause(e).getMessage());
+            } finally {
+                hangDoi.soGiaoDich.incrementAndGet();
+            }
+        }
+    }
+
+    private void duyet(CongViec congViec) {
+        User nguoiDuyet = userRepository.getReferenceById(congViec.nguoiDuyetId);
+        if (congViec.loaiPhieu == CongViecDuyetDTO.LoaiPhieu.XUAT) {
+            phieuXuatKhoService.duyetPhieuXuatTrongGiaoDich(congViec.phieuId, nguoiDuyet);
+        } else {
+            phieuNhapKhoService.duyetPhieuNhapTrongGiaoDich(congViec.phieuId, nguoiDuyet);
+        }
+    }
+
+    private void ketThuc(HangDoiKho hangDoi, CongViec congViec, CongViecDuyetDTO.TrangThai trangThai, String thongBao) {
+        congViec.thongBao = thongBao;
+        congViec.ketThucLuc = LocalDateTime.now();
+        congViec.trangThai = trangThai;
+        if (trangThai == CongViecDuyetDTO.TrangThai.THANH_CONG) {
+            hangDoi.soPhieuThanhCong.incrementAndGet();
+        } else {
+            hangDoi.soPhieuThatBai.incrementAndGet();
+        }
+        congViecTheoPhieu.remove(congViec.loaiPhieu + ":" + congViec.phieuId, congViec.ma);
+    }
+
+    // ==================== HELPER ====================
+
+    private void donDep() {
+        LocalDateTime moc = LocalDateTime.now().minus(Duration.ofMinutes(thoiGianGiuPhut));
+        congViecTheoMa.values().removeIf(cv -> cv.ketThucLuc != null && cv.ketThucLuc.isBefore(moc));
+    }
+
+    /**
+     * Hàng đợi của một kho. dangChay = đang có (hoặc đã gửi) tác vụ duyệt của kho trong pool → single writer
+     */
+    private final class HangDoiKho {
+
+        private final Long khoId;
+        private final Deque<CongViec> hangDoi = new ArrayDeque<>();
+        private boolean dangChay;
+
+        private final AtomicLong soPhieuThanhCong = new AtomicLong();
+        private final AtomicLong soPhieuThatBai = new AtomicLong();
+        private final AtomicLong soGiaoDich = new AtomicLong();
+        private final AtomicLong soLanCho = new AtomicLong();
+        private final AtomicLong tongThoiGianChoMs = new AtomicLong();
+        private final AtomicLong thoiGianChoToiDaMs = new AtomicLong();
+
+        private HangDoiKho(Long khoId) {
+            this.khoId = khoId;
+        }
+
+        private synchronized void them(CongViec congViec) {
+            if (hangDoi.size() >= hangDoiToiDa) {
+                throw new IllegalStateException("Hàng đợi duyệt của kho " + congViec.tenKho
+                        + " đang đầy, vui lòng thử lại sau");
+            }
+            hangDoi.addLast(congViec);
+            if (!dangChay) {
+                try {
+                    guiLuot();
+                } catch (RejectedExecutionException e) {
+                    hangDoi.pollLast();
+                    throw new IllegalStateException("Hàng đợi duyệt đang dừng, vui lòng thử lại sau");
+                }
+            }
+        }
+
+        private synchronized List<CongViec> layLo(int toiDa) {
+            List<CongViec> lo = new ArrayList<>(Math.min(toiDa, hangDoi.size()));
+            while (lo.size() < toiDa && !hangDoi.isEmpty()) {
+                lo.add(hangDoi.pollFirst());
+            }
+            return lo;
+        }
+
+        /**
+         * Hết lượt: còn phiếu thì xếp lượt mới vào cuối pool (nhường kho khác), hết phiếu thì dừng
+         */
+        private synchronized void ketThucLuot() {
+            dangChay = false;
+            if (!hangDoi.isEmpty()) {
+                try {
+                    guiLuot();
+                } catch (RejectedExecutionException e) {
+                    // Pool đã dừng (node đang tắt) - phiếu còn lại giữ trạng thái chờ duyệt
+                    log.warn("Hàng đợi duyệt kho ID {} dừng với {} phiếu chưa duyệt", khoId, hangDoi.size());
+                }
+            }
+        }
+
+        private void guiLuot() {
+            executor.execute(() -> chayLuot(this));
+            dangChay = true;
+        }
+
+        private void ghiThoiGianCho(long ms) {
+            soLanCho.incrementAndGet();
+            tongThoiGianChoMs.addAndGet(ms);
+            thoiGianChoToiDaMs.accumulateAndGet(ms, Math::max);
+        }
+
+        private synchronized ThongKeHangDoiDuyetDTO thongKe() {
+            CongViec dau = hangDoi.peekFirst();
+            long soLan = soLanCho.get();
+            return ThongKeHangDoiDuyetDTO.builder()
+                    .khoId(khoId)
+                    .soPhieuDangCho(hangDoi.size())
+                    .dangXuLy(dangChay)
+                    .soPhieuThanhCong(soPhieuThanhCong.get())
+                    .soPhieuThatBai(soPhieuThatBai.get())
+                    .soGiaoDich(soGiaoDich.get())
+                    .thoiGianChoTrungBinhMs(soLan > 0 ? tongThoiGianChoMs.get() / soLan : 0)
+                    .thoiGianChoToiDaMs(thoiGianChoToiDaMs.get())
+                    .phieuChoLauNhatMs(dau != null ? Duration.between(dau.xepHangLuc, LocalDateTime.now()).toMillis() : 0)
+                    .build();
+        }
+    }
+
+    private static final class CongViec {
+
+        private final String ma;
+        private final CongViecDuyetDTO.LoaiPhieu loaiPhieu;
+        private final Long phieuId;
+        private final String maPhieu;
+        private final Long khoId;
+        private final String tenKho;
+        private final Long nguoiDuyetId;
+        private final LocalDateTime xepHangLuc = LocalDateTime.now();
+
+        private volatile CongViecDuyetDTO.TrangThai trangThai = CongViecDuyetDTO.TrangThai.CHO_XU_LY;
+        private volatile String thongBao;
+        private volatile LocalDateTime batDauLuc;
+        private volatile LocalDateTime ketThucLuc;
+
+        private CongViec(String ma, CongViecDuyetDTO.LoaiPhieu loaiPhieu, Long phieuId, String maPhieu,
+                         Long khoId, String tenKho, Long nguoiDuyetId) {
+            this.ma = ma;
+            this.loaiPhieu = loaiPhieu;
+            this.phieuId = phieuId;
+            this.maPhieu = maPhieu;
+            this.khoId = khoId;
+            this.tenKho = tenKho;
+            this.nguoiDuyetId = nguoiDuyetId;
+        }
+
+        private CongViecDuyetDTO toDTO() {
+            LocalDateTime batDau = batDauLuc;
+            return CongViecDuyetDTO.builder()
+                    .maCongViec(ma)
+                    .loaiPhieu(loaiPhieu)
+                    .phieuId(phieuId)
+                    .maPhieu(maPhieu)
+                    .khoId(khoId)
+                    .tenKho(tenKho)
+                    .trangThai(trangThai)
+                    .thongBao(thongBao)
+                    .thoiGianChoMs(Duration.between(xepHangLuc, batDau != null ? batDau : LocalDateTime.now()).toMillis())
+                    .xepHangLuc(xepHangLuc)
+                    .batDauLuc(batDau)
+                    .ketThucLuc(ketThucLuc)
+                    .build();
+        }
+    }
+}
@@ -6,25 +6,23 @@ import com.hospital.warehouse.hospital_warehouse.entity.HangHoa;
 import com.hospital.warehouse.hospital_warehouse.entity.DanhMuc;
 import com.hospital.warehouse.hospital_warehouse.entity.DonViTinh;
 import com.hospital.warehouse.hospital_warehouse.entity.NhaCungCap;
+import com.hospital.warehouse.hospital_warehouse.entity.TonKhoTheoKho;
 import com.hospital.warehouse.hospital_warehouse.entity.User;
 import com.hospital.warehouse.hospital_warehouse.repository.HangHoaRepository;
 import com.hospital.warehouse.hospital_warehouse.repository.DanhMucRepository;
 import com.hospital.warehouse.hospital_warehouse.repository.DonViTinhRepository;
 import com.hospital.warehouse.hospital_warehouse.repository.NhaCungCapRepository;
-import com.hospital.warehouse.hospital_warehouse.repository.UserRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
-import org.springframework.security.core.Authentication;
-import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
@@ -37,11 +35,22 @@ public class HangHoaService {
     private final DanhMucRepository danhMucRepository;
     private final DonViTinhRepository donViTinhRepository;
     private final NhaCungCapRepository nhaCungCapRepository;
-    private final UserRepository userRepository;
+    private final NguoiDungHienTai nguoiDungHienTai;
+    private final TonKhoTheoKhoService tonKhoTheoKhoService;
+    private final TruTonKhoService truTonKhoService;
 
     @Transactional(readOnly = true)
     public PageResponse<HangHoaDTO> getAllHangHoa(String search, Long danhMucId, HangHoa.TrangThaiHangHoa trangThai, Pageable pageable) {
-        log.info("Tìm kiếm hàng hóa với từ khóa: {}, danh mục: {}, trạng thái: {}", search, danhMucId, trangThai);
+        return getAllHangHoa(search, danhMucId, trangThai, null, pageable);
+    }
+
+    /**
+     * Danh sách hàng hóa; nếu có khoId → kèm tồn kho TẠI KHO đó (1 câu truy vấn theo khóa chính cho cả trang)
+     */
+    @Transactional(readOnly = true)
+    public PageResponse<HangHoaDTO> getAllHangHoa(String search, Long danhMucId, HangHoa.TrangThaiHangHoa trangThai,
+                                                  Long khoId, Pageable pageable) {
+        log.info("Tìm kiếm hàng hóa với từ khóa: {}, danh mục: {}, trạng thái: {}, kho: {}", search, danhMucId, trangThai, khoId);
 
         Page<HangHoa> page = hangHoaRepository.findByTrangThaiAndDanhMucAndSearch(trangThai, danhMucId, search, pageable);
 
@@ -49,6 +58,19 @@ public class HangHoaService {
                 .map(this::convertToDTO)
                 .collect(Collectors.toList());
 
+        if (khoId != null && !dtoList.isEmpty()) {
+            Map<Long, TonKhoTheoKho> tonKhoTaiKho = tonKhoTheoKhoService.getTonKhoTaiKho(
+                    khoId, dtoList.stream().map(HangHoaDTO::getId).collect(Collectors.toList()));
+
+            for (HangHoaDTO dto : dtoList) {
+                TonKhoTheoKho tonKho = tonKhoTaiKho.get(dto.getId());
+                dto.setKhoId(khoId);
+                dto.setTongSoLuongTaiKho(tonKho != null ? tonKho.getTongSoLuong() : 0);
+                dto.setSoLuongCoTheXuatTaiKho(tonKho != null ? tonKho.getSoLuongCoTheXuat() : 0);
+                dto.setSoLuongDaDatTaiKho(tonKho != null ? tonKho.getSoLuongDaDat() : 0);
+            }
+        }
+
         return PageResponse.<HangHoaDTO>builder()
                 .content(dtoList)
                 .pageNumber(page.getNumber())
@@ -342,81 +364,36 @@ public class HangHoaService {
     }
 
     private User getCurrentUser() {
-        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-        if (authentication != null && authentication.getName() != null) {
-            return userRepository.findByTenDangNhap(authentication.getName())
-                    .orElse(null);
-        }
-        return null;
+        return nguoiDungHienTai.thamChieuNeuCo();
     }
 
     // ==================== 🔥 BỔ SUNG 2 METHOD MỚI - HỖ TRỢ CẬP NHẬT TỒN KHO ====================
 
     /**
-     * ✅ METHOD 1: Cập nhật tồn kho sau khi nhập hàng
-     * Được gọi từ: PhieuNhapKhoService.updateInventoryFromNhap()
-     *
-     * Logic:
-     * 1. Cộng số lượng vào tồn kho
-     * 2. Tính lại giá nhập trung bình (WAVG)
-     * 3. Cập nhật ngày nhập gần nhất
+     * Cộng tồn kho của một hàng hóa cho cả phiếu nhập bằng 1 câu UPDATE (số lượng đã gộp
+     * theo hàng hóa trong bộ nhớ) - không đọc - sửa - ghi entity nên không ghi đè thay đổi của phiếu khác.
+     * Lưu ý: entity HangHoa đã load trong cùng transaction sẽ KHÔNG thấy giá trị mới.
      *
-     * @param hangHoaId ID hàng hóa
-     * @param soLuongNhap Số lượng nhập thêm
-     * @param donGia Đơn giá nhập
+     * @param soLuongNhap Tổng số lượng nhập
      */
     @Transactional
-    public void capNhatTonKhoSauNhap(Long hangHoaId, Integer soLuongNhap, BigDecimal donGia) {
-        log.info("📥 Updating inventory after NHAP: HangHoaId={}, Qty={}, Price={}",
-                hangHoaId, soLuongNhap, donGia);
-
-        // BƯỚC 1: Lấy thông tin hàng hóa
-        HangHoa hangHoa = hangHoaRepository.findById(hangHoaId)
-                .orElseThrow(() -> new IllegalArgumentException(
-                        "Không tìm thấy hàng hóa với ID: " + hangHoaId));
-
-        // BƯỚC 2: Lấy số lượng cũ
-        Integer oldTongSoLuong = hangHoa.getTongSoLuong() != null ?
-                hangHoa.getTongSoLuong() : 0;
-        Integer oldSoLuongCoTheXuat = hangHoa.getSoLuongCoTheXuat() != null ?
-                hangHoa.getSoLuongCoTheXuat() : 0;
-
-        // BƯỚC 3: Cập nhật số lượng mới
-        hangHoa.setTongSoLuong(oldTongSoLuong + soLuongNhap);
-        hangHoa.setSoLuongCoTheXuat(oldSoLuongCoTheXuat + soLuongNhap);
-
-        // BƯỚC 4: Tính giá nhập trung bình (Weighted Average)
-        // WAVG = (Giá cũ × SL cũ + Giá mới × SL mới) / Tổng SL
-        BigDecimal giaNhapTrungBinhCu = hangHoa.getGiaNhapTrungBinh() != null ?
-                hangHoa.getGiaNhapTrungBinh() : BigDecimal.ZERO;
-
-        BigDecimal tongGiaTriCu = giaNhapTrungBinhCu
-                .multiply(new BigDecimal(oldTongSoLuong));
-        BigDecimal giaTriNhapMoi = donGia.multiply(new BigDecimal(soLuongNhap));
-        BigDecimal tongGiaTriMoi = tongGiaTriCu.add(giaTriNhapMoi);
-
-        BigDecimal giaNhapTrungBinhMoi;
-        if (hangHoa.getTongSoLuong() > 0) {
-            giaNhapTrungBinhMoi = tongGiaTriMoi.divide(
-                    new BigDecimal(hangHoa.getTongSoLuong()),
-                    2,
-                    RoundingMode.HALF_UP
-            );
-        } else {
-            giaNhapTrungBinhMoi = BigDecimal.ZERO;
+    public void congTonKhoSauNhap(Long hangHoaId, int soLuongNhap) {
+        if (hangHoaRepository.congTonKhoSauNhap(hangHoaId, soLuongNhap) == 0) {
+            throw new IllegalArgumentException("Không tìm thấy hàng hóa với ID: " + hangHoaId);
         }
+        log.info("📥 Ton kho hang hoa +{}: HangHoa={}", soLuongNhap, hangHoaId);
+    }
 
-        hangHoa.setGiaNhapTrungBinh(giaNhapTrungBinhMoi);
-
-        // BƯỚC 5: Cập nhật ngày nhập gần nhất
-        hangHoa.setNgayNhapGanNhat(LocalDateTime.now());
-
-        // BƯỚC 6: Lưu vào DB
-        hangHoaRepository.save(hangHoa);
-
-        log.info("✅ Updated inventory NHAP: {} → {}, AvgPrice {} → {}",
-                oldTongSoLuong, hangHoa.getTongSoLuong(),
-                giaNhapTrungBinhCu, giaNhapTrungBinhMoi);
+    /**
+     * Tính lại giá nhập trung bình từ giá trị tồn theo kho (gọi SAU khi đã cập nhật ton_kho_theo_kho)
+     * - 1 câu UPDATE cho mọi hàng hóa của phiếu
+     */
+    @Transactional
+    public void capNhatGiaBinhQuan(Collection<Long> hangHoaIds) {
+        if (hangHoaIds == null || hangHoaIds.isEmpty()) {
+            return;
+        }
+        hangHoaRepository.capNhatGiaBinhQuan(hangHoaIds);
     }
 
     /**
@@ -436,36 +413,6 @@ public class HangHoaService {
     public void capNhatTonKhoSauXuat(Long hangHoaId, Integer soLuongXuat) {
         log.info("📤 Updating inventory after XUAT: HangHoaId={}, Qty={}",
                 hangHoaId, soLuongXuat);
-
-        // BƯỚC 1: Lấy thông tin hàng hóa
-        HangHoa hangHoa = hangHoaRepository.findById(hangHoaId)
-                .orElseThrow(() -> new IllegalArgumentException(
-                        "Không tìm thấy hàng hóa với ID: " + hangHoaId));
-
-        // BƯỚC 2: Kiểm tra tồn kho
-        Integer tonKhoHienTai = hangHoa.getSoLuongCoTheXuat() != null ?
-                hangHoa.getSoLuongCoTheXuat() : 0;
-
-        if (tonKhoHienTai < soLuongXuat) {
-            String errorMsg = String.format(
-                    "Không đủ hàng để xuất! Hàng hóa '%s': Yêu cầu %d, Tồn kho %d",
-                    hangHoa.getTenHangHoa(), soLuongXuat, tonKhoHienTai
-            );
-            log.error("❌ {}", errorMsg);
-            throw new IllegalStateException(errorMsg);
-        }
-
-        // BƯỚC 3: Trừ số lượng
-        hangHoa.setSoLuongCoTheXuat(tonKhoHienTai - soLuongXuat);
-        hangHoa.setTongSoLuong(hangHoa.getTongSoLuong() - soLuongXuat);
-
-        // BƯỚC 4: Cập nhật ngày xuất gần nhất
-        hangHoa.setNgayXuatGanNhat(LocalDateTime.now());
-
-        // BƯỚC 5: Lưu vào DB
-        hangHoaRepository.save(hangHoa);
-
-        log.info("✅ Updated inventory XUAT: {} → {}",
-                tonKhoHienTai, hangHoa.getSoLuongCoTheXuat());
+        truTonKhoService.truHangHoa(Map.of(hangHoaId, soLuongXuat));
     }
 }
\ No newline at end of file
@@ -0,0 +1,209 @@
+package com.hospital.warehouse.hospital_warehouse.service;
+
+import com.hospital.warehouse.hospital_warehouse.entity.KetQuaYeuCau;
+import com.hospital.warehouse.hospital_warehouse.repository.KetQuaYeuCauRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.HexFormat;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Idempotency-Key cho các thao tác duyệt / hủy / hủy duyệt phiếu: client gửi lại (mạng chập chờn)
+ * với cùng khóa thì nhận lại đúng phản hồi lần đầu, không chạy lại nghiệp vụ tồn kho.
+ *
+ * - Yêu cầu đầu tiên giữ chỗ khóa bằng INSERT ... WHERE NOT EXISTS trong transaction riêng (an toàn nhiều node)
+ * - Yêu cầu trùng khóa khi lần đầu còn đang chạy: chờ tới khi có kết quả (cùng node: đánh thức ngay khi xong,
+ *   khác node: kiểm tra lại theo chu kỳ), quá thời gian chờ thì trả 409
+ * - Lỗi hệ thống (5xx): bỏ giữ chỗ để lần thử lại được chạy lại từ đầu; lỗi nghiệp vụ (4xx) được lưu như kết quả
+ * - Kết quả giữ trong thời gian cấu hình rồi được dọn định kỳ
+ */
+@Slf4j
+@Service
+public class IdempotencyService {
+
+    private final KetQuaYeuCauRepository ketQuaYeuCauRepository;
+    private final TransactionTemplate transactionMoi;
+
+    @Value("${kho.idempotency.thoi-gian-luu-gio:24}")
+    private long thoiGianLuuGio;
+
+    @Value("${kho.idempotency.thoi-gian-xu-ly-toi-da-giay:120}")
+    private long thoiGianXuLyToiDaGiay;
+
+    @Value("${kho.idempotency.thoi-gian-cho-giay:30}")
+    private long thoiGianChoGiay;
+
+    @Value("${kho.idempotency.chu-ky-kiem-tra-ms:200}")
+    private long chuKyKiemTraMs;
+
+    /** Khóa đang được xử lý trên node này → yêu cầu trùng cùng node chờ trên latch thay vì hỏi DB liên tục */
+    private final ConcurrentHashMap<String, CountDownLatch> dangXuLy = new ConcurrentHashMap<>();
+
+    public IdempotencyService(KetQuaYeuCauRepository ketQuaYeuCauRepository,
+                              PlatformTransactionManager transactionManager) {
+        this.ketQuaYeuCauRepository = ketQuaYeuCauRepository;
+        this.transactionMoi = new TransactionTemplate(transactionManager);
+        this.transactionMoi.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    /**
+     * Phản hồi đã lưu của lần gửi đầu
+     */
+    public record KetQuaDaLuu(int maHttp, String kieuNoiDung, String noiDung) {
+    }
+
+    public enum LoaiLanGui {
+        /** Lần gửi đầu - đã giữ chỗ, phải gọi {@link #ketThuc} sau khi xử lý */
+        LAN_DAU,
+        /** Gửi lại - trả về ketQua đã lưu */
+        LAP_LAI,
+        /** Khóa đã dùng cho một yêu cầu khác (khác phiếu / thao tác / tham số) */
+        KHOA_DA_DUNG,
+        /** Lần đầu vẫn đang xử lý sau thời gian chờ */
+        DANG_XU_LY
+    }
+
+    public record LanGui(LoaiLanGui loai, KetQuaDaLuu ketQua) {
+    }
+
+    /**
+     * Nhận một yêu cầu có Idempotency-Key
+     *
+     * @param khoa      Khóa đã gắn phạm vi người dùng
+     * @param yeuCau    "METHOD URI?query" - để nhận ra khóa bị dùng lại cho yêu cầu khác
+     * @param duongDan  URI (lưu để tra cứu)
+     */
+    public LanGui batDau(String khoa, String yeuCau, String duongDan) {
+        String dauVanTay = dauVanTay(yeuCau);
+        long hanCho = System.nanoTime() + TimeUnit.SECONDS.toNanos(thoiGianChoGiay);
+
+        while (true) {
+            if (thuGiuCho(khoa, dauVanTay, duongDan)) {
+                dangXuLy.put(khoa, new CountDownLatch(1));
+                return new LanGui(LoaiLanGui.LAN_DAU, null);
+            }
+
+            Optional<KetQuaYeuCau> daCo = ketQuaYeuCauRepository.findById(khoa);
+            if (daCo.isEmpty()) {
+                // Vừa bị bỏ giữ chỗ (lần đầu lỗi hệ thống) → thử giữ chỗ lại
+                continue;
+            }
+
+            KetQuaYeuCau ketQua = daCo.get();
+            LocalDateTime now = LocalDateTime.now();
+            if (ketQua.getHetHanLuc().isBefore(now)) {
+                // Hết hạn lưu, hoặc node xử lý lần đầu đã dừng giữa chừng
+                transactionMoi.executeWithoutResult(status -> ketQuaYeuCauRepository.xoaNeuHetHan(khoa, now));
+                continue;
+            }
+
+            if (!ketQua.getDauVanTay().equals(dauVanTay)) {
+                return new LanGui(LoaiLanGui.KHOA_DA_DUNG, null);
+            }
+
+            if (ketQua.getTrangThai() == KetQuaYeuCau.TrangThai.HOAN_THANH) {
+                log.info("🔁 Trả lại kết quả đã lưu cho {} ({})", duongDan, ketQua.getMaHttp());
+                return new LanGui(LoaiLanGui.LAP_LAI,
+                        new KetQuaDaLuu(ketQua.getMaHttp(), ketQua.getKieuNoiDung(), ketQua.getNoiDung()));
+            }
+
+            long conLai = hanCho - System.nanoTime();
+            if (conLai <= 0 || !cho(khoa, conLai)) {
+                return new LanGui(LoaiLanGui.DANG_XU_LY, null);
+            }
+        }
+    }
+
+    /**
+     * Kết thúc lần gửi đầu: lưu phản hồi (hoặc bỏ giữ chỗ nếu lỗi hệ thống) và đánh thức các yêu cầu đang chờ
+     */
+    public void ketThuc(String khoa, int maHttp, String kieuNoiDung, String noiDung) {
+        try {
+            transactionMoi.executeWithoutResult(status -> {
+                if (maHttp >= 500) {
+                    ketQuaYeuCauRepository.boGiuCho(khoa);
+                } else {
+                    ketQuaYeuCauRepository.hoanThanh(khoa, maHttp, kieuNoiDung, noiDung,
+                            LocalDateTime.now().plusHours(thoiGianLuuGio));
+                }
+            });
+        } catch (RuntimeException e) {
+            // Giữ chỗ sẽ hết hạn sau thoiGianXuLyToiDaGiay; phiếu đã đổi trạng thái nên lần chạy lại bị chặn bởi nghiệp vụ
+            log.error("❌ Không lưu được kết quả cho Idempotency-Key {}: {}", khoa, e.getMessage(), e);
+        } finally {
+            CountDownLatch latch = dangXuLy.remove(khoa);
+            if (latch != null) {
+                latch.countDown();
+            }
+        }
+    }
+
+    /**
+     * Định kỳ xóa kết quả đã hết hạn lưu
+     */
+    @Scheduled(fixedDelayString = "${kho.idempotency.chu-ky-don-dep-ms:600000}",
+            initialDelayString = "${kho.idempotency.chu-ky-don-dep-ms:600000}")
+    public void donDepHetHan() {
+        Integer soDong = transactionMoi.execute(status -> ketQuaYeuCauRepository.xoaHetHan(LocalDateTime.now()));
+        if (soDong != null && soDong > 0) {
+            log.info("🧹 Đã xóa {} kết quả Idempotency-Key hết hạn", soDong);
+        }
+    }
+
+    // ==================== HELPER ====================
+
+    private boolean thuGiuCho(String khoa, String dauVanTay, String duongDan) {
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            Integer soDong = transactionMoi.execute(status -> ketQuaYeuCauRepository.giuCho(
+                    khoa, dauVanTay, duongDan, now, now.plusSeconds(thoiGianXuLyToiDaGiay)));
+            return soDong != null && soDong > 0;
+        } catch (DataIntegrityViolationException e) {
+            // Yêu cầu trùng khác vừa giữ chỗ trước
+            return false;
+        }
+    }
+
+    /**
+     * Chờ lần đầu xử lý xong (tối đa một chu kỳ kiểm tra nếu lần đầu chạy ở node khác)
+     *
+     * @return false nếu bị ngắt
+     */
+    private boolean cho(String khoa, long conLaiNanos) {
+        try {
+            CountDownLatch latch = dangXuLy.get(khoa);
+            if (latch != null) {
+                latch.await(conLaiNanos, TimeUnit.NANOSECONDS);
+            } else {
+                TimeUnit.NANOSECONDS.sleep(Math.min(conLaiNanos, TimeUnit.MILLISECONDS.toNanos(chuKyKiemTraMs)));
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static String dauVanTay(String yeuCau) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(sha256.digest(yeuCau.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Không hỗ trợ SHA-256", e);
+        }
+    }
+}
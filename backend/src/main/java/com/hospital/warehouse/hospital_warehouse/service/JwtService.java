@@ -119,6 +119,24 @@ public class JwtService {
         return extractClaim(token, claims -> claims.get("khoaPhongId", Long.class));
     }
 
+    /**
+     * Thông tin người dùng trong claims (parse token một lần), null nếu token không mang userId
+     */
+    public NguoiDungHienTai.ThongTin extractNguoiDung(String token) {
+        return extractClaim(token, claims -> {
+            Long userId = claims.get("userId", Long.class);
+            if (userId == null) {
+                return null;
+            }
+            return new NguoiDungHienTai.ThongTin(
+                    userId,
+                    claims.getSubject(),
+                    claims.get("role", String.class),
+                    claims.get("khoaPhongId", Long.class),
+                    claims.get("hoTen", String.class));
+        });
+    }
+
     public <T> T extractClaim(String token, Function<Claims, T> claimsResolver) {
         final Claims claims = extractAllClaims(token);
         return claimsResolver.apply(claims);
@@ -0,0 +1,93 @@
+package com.hospital.warehouse.hospital_warehouse.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bộ nhớ đệm kế hoạch FEFO theo (phiếu xuất, phiên bản tồn kho).
+ *
+ * Xem trước kế hoạch lưu lại kết quả phân bổ lô; duyệt phiếu ngay sau đó dùng lại nếu phiên bản
+ * tồn kho (lô của các hàng hóa trong phiếu tại kho xuất + nội dung các dòng phiếu) vẫn như cũ.
+ * Chỉ lưu ID và số lượng, không giữ entity giữa các transaction.
+ */
+@Slf4j
+@Component
+public class KeHoachXuatCache {
+
+    /**
+     * Một phần phân bổ đã tính: dòng chi tiết lấy soLuong từ lô
+     */
+    public record PhanBoDaTinh(Long chiTietId, Long loHangId, int soLuong) {
+    }
+
+    public record KeHoach(String phienBan, List<PhanBoDaTinh> phanBo, long taoLuc) {
+    }
+
+    private final Map<Long, KeHoach> keHoachTheoPhieu = new ConcurrentHashMap<>();
+
+    // Thời gian sống của kế hoạch đã tính (giây)
+    @Value("${kho.ke-hoach-xuat.thoi-gian-song-giay:300}")
+    private long thoiGianSongGiay;
+
+    @Value("${kho.ke-hoach-xuat.so-phieu-toi-da:1000}")
+    private int soPhieuToiDa;
+
+    public boolean co(Long phieuXuatId) {
+        return keHoachTheoPhieu.containsKey(phieuXuatId);
+    }
+
+    /**
+     * Kế hoạch đã tính của phiếu nếu còn hạn và đúng phiên bản tồn kho hiện tại
+     */
+    public List<PhanBoDaTinh> lay(Long phieuXuatId, String phienBan) {
+        KeHoach keHoach = keHoachTheoPhieu.get(phieuXuatId);
+        if (keHoach == null) {
+            return null;
+        }
+        if (hetHan(keHoach) || !keHoach.phienBan().equals(phienBan)) {
+            keHoachTheoPhieu.remove(phieuXuatId, keHoach);
+            return null;
+        }
+        return keHoach.phanBo();
+    }
+
+    public void luu(Long phieuXuatId, String phienBan, List<PhanBoDaTinh> phanBo) {
+        if (keHoachTheoPhieu.size() >= soPhieuToiDa) {
+            donDep();
+        }
+        keHoachTheoPhieu.put(phieuXuatId, new KeHoach(phienBan, List.copyOf(phanBo), System.currentTimeMillis()));
+    }
+
+    public void xoa(Long phieuXuatId) {
+        keHoachTheoPhieu.remove(phieuXuatId);
+    }
+
+    /**
+     * Bỏ kế hoạch hết hạn; nếu vẫn đầy thì bỏ bớt các kế hoạch cũ nhất
+     */
+    private void donDep() {
+        keHoachTheoPhieu.values().removeIf(this::hetHan);
+
+        int thuaRa = keHoachTheoPhieu.size() - soPhieuToiDa + 1;
+        if (thuaRa > 0) {
+            keHoachTheoPhieu.entrySet().stream()
+                    .sorted(Comparator.comparingLong(e -> e.getValue().taoLuc()))
+                    .limit(thuaRa)
+                    .map(Map.Entry::getKey)
+                    .toList()
+                    .forEach(keHoachTheoPhieu::remove);
+        }
+        log.debug("Dọn bộ nhớ đệm kế hoạch xuất: còn {} phiếu", keHoachTheoPhieu.size());
+    }
+
+    private boolean hetHan(KeHoach keHoach) {
+        return System.currentTimeMillis() - keHoach.taoLuc() > Duration.ofSeconds(thoiGianSongGiay).toMillis();
+    }
+}
@@ -170,6 +170,21 @@ public class KhoService {
         log.info("Đã kích hoạt kho ID: {}", id);
     }
 
+    /**
+     * Bật / tắt chế độ duyệt bất đồng bộ của kho - phiếu đã xếp hàng vẫn được duyệt tiếp
+     */
+    @Transactional
+    public KhoDTO datCheDoDuyet(Long id, boolean batDongBo) {
+        Kho existing = khoRepository.findById(id)
+                .orElseThrow(() -> new IllegalArgumentException("Không tìm thấy kho với ID: " + id));
+
+        existing.setDuyetBatDongBo(batDongBo);
+        existing.setUpdatedAt(LocalDateTime.now());
+        log.info("Kho ID {}: duyệt {}", id, batDongBo ? "bất đồng bộ (hàng đợi)" : "đồng bộ");
+
+        return convertToDTO(khoRepository.save(existing));
+    }
+
     @Transactional(readOnly = true)
     public long countKhoByTrangThai(Kho.TrangThaiKho trangThai) {
         return khoRepository.countByTrangThai(trangThai);
@@ -205,6 +220,9 @@ public class KhoService {
         if (dto.getTrangThai() != null) {
             entity.setTrangThai(dto.getTrangThai());
         }
+        if (dto.getDuyetBatDongBo() != null) {
+            entity.setDuyetBatDongBo(dto.getDuyetBatDongBo());
+        }
     }
 
     private KhoDTO convertToDTO(Kho entity) {
@@ -225,6 +243,7 @@ public class KhoService {
                 .quanLyKhoId(entity.getQuanLyKho() != null ? entity.getQuanLyKho().getId() : null)
                 .tenQuanLyKho(entity.getQuanLyKho() != null ? entity.getQuanLyKho().getHoTen() : null)
                 .trangThai(entity.getTrangThai())
+                .duyetBatDongBo(Boolean.TRUE.equals(entity.getDuyetBatDongBo()))
                 .createdAt(entity.getCreatedAt())
                 .updatedAt(entity.getUpdatedAt())
                 .build();
@@ -243,6 +262,7 @@ public class KhoService {
                 .doAmMin(dto.getDoAmMin())
                 .doAmMax(dto.getDoAmMax())
                 .trangThai(dto.getTrangThai() != null ? dto.getTrangThai() : Kho.TrangThaiKho.HOAT_DONG)
+                .duyetBatDongBo(Boolean.TRUE.equals(dto.getDuyetBatDongBo()))
                 .build();
     }
 }
\ No newline at end of file
@@ -0,0 +1,128 @@
+package com.hospital.warehouse.hospital_warehouse.service;
+
+import com.hospital.warehouse.hospital_warehouse.entity.LichSuTonKho;
+import com.hospital.warehouse.hospital_warehouse.repository.LichSuTonKhoRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Ghi nhật ký biến động tồn kho (lich_su_ton_kho) theo lô.
+ *
+ * Trong transaction: các dòng lịch sử được gom lại và chỉ persist một lần ngay trước khi commit
+ * → Hibernate đẩy xuống DB theo JDBC batch (ID cấp theo khối, không dùng IDENTITY).
+ * Transaction rollback → bộ đệm bị bỏ, không ghi gì.
+ * Ngoài transaction: ghi ngay.
+ * Sau khi persist, các dòng được cộng vào bảng tổng hợp theo ngày (BienDongTonKhoService) trong cùng transaction.
+ *
+ * Lưu ý: dòng lịch sử chưa có trong DB cho tới lúc commit, không truy vấn lại trong cùng transaction.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class LichSuTonKhoWriter {
+
+    private final LichSuTonKhoRepository lichSuTonKhoRepository;
+    private final BienDongTonKhoService bienDongTonKhoService;
+    private final ApplicationEventPublisher eventPublisher;
+
+    public void ghi(LichSuTonKho lichSu) {
+        ghi(List.of(lichSu));
+    }
+
+    public void ghi(Collection<LichSuTonKho> lichSuList) {
+        if (lichSuList.isEmpty()) {
+            return;
+        }
+        // Chỉ mục hạn sử dụng đọc lại các lô sau khi commit (rollback → bỏ qua)
+        Set<Long> loHangIds = new HashSet<>();
+        for (LichSuTonKho lichSu : lichSuList) {
+            if (lichSu.getLoHang() != null && lichSu.getLoHang().getId() != null) {
+                loHangIds.add(lichSu.getLoHang().getId());
+            }
+        }
+        if (!loHangIds.isEmpty()) {
+            eventPublisher.publishEvent(new ChiMucHanSuDungService.ThayDoi(loHangIds));
+        }
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()
+                || !TransactionSynchronizationManager.isActualTransactionActive()) {
+            lichSuTonKhoRepository.saveAll(lichSuList);
+            bienDongTonKhoService.congDon(lichSuList);
+            return;
+        }
+        layBoDem().danhSach.addAll(lichSuList);
+    }
+
+    /**
+     * Bộ đệm gắn với synchronization của transaction hiện tại
+     * (transaction REQUIRES_NEW lồng bên trong có bộ đệm riêng vì synchronization bị tạm treo)
+     */
+    private BoDem layBoDem() {
+        for (TransactionSynchronization sync : TransactionSynchronizationManager.getSynchronizations()) {
+            if (sync instanceof BoDem boDem && boDem.writer == this) {
+                return boDem;
+            }
+        }
+        BoDem boDem = new BoDem(this);
+        TransactionSynchronizationManager.registerSynchronization(boDem);
+        return boDem;
+    }
+
+    private void xaBoDem(List<LichSuTonKho> danhSach) {
+        lichSuTonKhoRepository.saveAll(danhSach);
+        bienDongTonKhoService.congDon(danhSach);
+        log.debug("📝 Ghi {} dòng lịch sử tồn kho khi commit", danhSach.size());
+    }
+
+    /**
+     * Đảm bảo bộ đếm ID nằm trên MAX(id) hiện có (dữ liệu cũ sinh bởi AUTO_INCREMENT)
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Transactional
+    public void canChinhBoDemId() {
+        // Pooled optimizer cấp các ID (giá trị - khối, giá trị] → chừa thêm một khối
+        long giaTri = lichSuTonKhoRepository.findMaxId() + LichSuTonKho.ID_ALLOCATION_SIZE + 1;
+        int soDong = lichSuTonKhoRepository.khoiTaoBoDemId(giaTri);
+        if (soDong == 0) {
+            soDong = lichSuTonKhoRepository.nangBoDemId(giaTri);
+        }
+        if (soDong > 0) {
+            log.info("Căn chỉnh bộ đếm ID lich_su_ton_kho → {}", giaTri);
+        }
+    }
+
+    private static final class BoDem implements TransactionSynchronization {
+
+        private final LichSuTonKhoWriter writer;
+        private final List<LichSuTonKho> danhSach = new ArrayList<>();
+
+        private BoDem(LichSuTonKhoWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void beforeCommit(boolean readOnly) {
+            if (!danhSach.isEmpty()) {
+                writer.xaBoDem(danhSach);
+            }
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            danhSach.clear();
+        }
+    }
+}
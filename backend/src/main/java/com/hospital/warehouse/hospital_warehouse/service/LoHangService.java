@@ -2,16 +2,22 @@ package com.hospital.warehouse.hospital_warehouse.service;
 
 import com.hospital.warehouse.hospital_warehouse.dto.LoHangDTO;
 import com.hospital.warehouse.hospital_warehouse.dto.PageResponse;
+import com.hospital.warehouse.hospital_warehouse.dto.PhanBoXuatLoDTO;
 import com.hospital.warehouse.hospital_warehouse.entity.*;
 import com.hospital.warehouse.hospital_warehouse.repository.*;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.domain.Specification;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Fetch;
+import jakarta.persistence.criteria.Join;
+import jakarta.persistence.criteria.JoinType;
 import jakarta.persistence.criteria.Predicate;
 
 import java.math.BigDecimal;
@@ -19,8 +25,12 @@ import java.math.RoundingMode;
 import java.time.LocalDate;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 @Slf4j
@@ -31,6 +41,12 @@ public class LoHangService {
     private final LoHangRepository loHangRepository;
     private final HangHoaRepository hangHoaRepository;
     private final NhaCungCapRepository nhaCungCapRepository;
+    private final PhanBoXuatLoRepository phanBoXuatLoRepository;
+    private final DatTruTonKhoRepository datTruTonKhoRepository;
+    private final ChiMucHanSuDungService chiMucHanSuDungService;
+    private final ThongKeLoHangService thongKeLoHangService;
+    private final ApplicationEventPublisher eventPublisher;
+    private final TruTonKhoService truTonKhoService;
 
     /**
      * Lấy danh sách lô hàng có phân trang và lọc
@@ -46,15 +62,35 @@ public class LoHangService {
             Boolean sapHetHan,
             Pageable pageable) {
 
+        boolean coTimKiem = search != null && !search.trim().isEmpty();
+
         Specification<LoHang> spec = (root, query, cb) -> {
             List<Predicate> predicates = new ArrayList<>();
 
+            // Câu SELECT trang: nạp kèm hàng hóa (và ĐVT / danh mục EAGER của nó) + NCC trong cùng câu lệnh,
+            // convertToDTO không phát sinh thêm SELECT. Câu COUNT: không fetch, chỉ join khi cần lọc theo tên.
+            Join<LoHang, HangHoa> hangHoa = null;
+            if (laCauDem(query)) {
+                if (coTimKiem) {
+                    hangHoa = root.join("hangHoa", JoinType.LEFT);
+                }
+            } else {
+                Fetch<LoHang, HangHoa> hangHoaFetch = root.fetch("hangHoa", JoinType.LEFT);
+                hangHoaFetch.fetch("donViTinh", JoinType.LEFT);
+                hangHoaFetch.fetch("danhMuc", JoinType.LEFT);
+                root.fetch("nhaCungCap", JoinType.LEFT);
+                // Hibernate: Fetch cũng là Join → dùng lại cho điều kiện lọc, không join hang_hoa lần nữa
+                @SuppressWarnings("unchecked")
+                Join<LoHang, HangHoa> hangHoaJoin = (Join<LoHang, HangHoa>) hangHoaFetch;
+                hangHoa = hangHoaJoin;
+            }
+
             // Tìm kiếm theo số lô hoặc tên hàng hóa
-            if (search != null && !search.trim().isEmpty()) {
+            if (coTimKiem) {
                 String searchPattern = "%" + search.toLowerCase() + "%";
                 predicates.add(cb.or(
                         cb.like(cb.lower(root.get("soLo")), searchPattern),
-                        cb.like(cb.lower(root.get("hangHoa").get("tenHangHoa")), searchPattern)
+                        cb.like(cb.lower(hangHoa.get("tenHangHoa")), searchPattern)
                 ));
             }
 
@@ -118,6 +154,20 @@ public class LoHangService {
                 .map(this::convertToDTO);
     }
 
+    /**
+     * Truy vết lô: lô đã được xuất theo những phiếu nào, cho khoa phòng nào, từ vị trí nào
+     */
+    @Transactional(readOnly = true)
+    public List<PhanBoXuatLoDTO> getPhanBoXuatTheoLo(Long loHangId) {
+        if (!loHangRepository.existsById(loHangId)) {
+            throw new IllegalArgumentException("Không tìm thấy lô hàng với ID: " + loHangId);
+        }
+
+        return phanBoXuatLoRepository.findByLoHangIdForTruyVet(loHangId).stream()
+                .map(this::convertPhanBoXuatToDTO)
+                .collect(Collectors.toList());
+    }
+
     /**
      * Lấy danh sách lô hàng theo hàng hóa
      */
@@ -176,6 +226,8 @@ public class LoHangService {
 
         loHang.setTrangThai(determineLoHangStatus(loHang));
         loHang = loHangRepository.save(loHang);
+        thongKeLoHangService.daTao(List.of(loHang.getId()));
+        eventPublisher.publishEvent(new ChiMucHanSuDungService.ThayDoi(List.of(loHang.getId())));
 
         log.info("Created lo hang successfully with ID: {}", loHang.getId());
         return convertToDTO(loHang);
@@ -188,6 +240,7 @@ public class LoHangService {
     public LoHangDTO updateLoHang(Long id, LoHangDTO dto) {
         LoHang loHang = loHangRepository.findById(id)
                 .orElseThrow(() -> new IllegalArgumentException("Không tìm thấy lô hàng"));
+        ThongKeLoHangService.TruocKhiGhi truoc = thongKeLoHangService.truocKhiGhi(List.of(id));
 
         // Chỉ cho phép sửa một số trường
         if (dto.getNgaySanXuat() != null) {
@@ -202,8 +255,11 @@ public class LoHangService {
 
         // Cập nhật trạng thái
         loHang.setTrangThai(determineLoHangStatus(loHang));
+        loHang = loHangRepository.save(loHang);
+        thongKeLoHangService.sauKhiGhi(truoc);
+        eventPublisher.publishEvent(new ChiMucHanSuDungService.ThayDoi(List.of(id)));
 
-        return convertToDTO(loHangRepository.save(loHang));
+        return convertToDTO(loHang);
     }
 
     /**
@@ -218,23 +274,59 @@ public class LoHangService {
             throw new IllegalStateException("Không thể xóa lô hàng đã xuất");
         }
 
-        loHangRepository.deleteById(id);
+        xoaLo(loHang);
         log.info("Deleted lo hang ID: {}", id);
     }
 
     /**
-     * Lấy danh sách lô sắp hết hạn
+     * Xóa lô (mọi đường xóa lô đi qua đây): trừ khỏi bộ đếm thống kê lô trong cùng transaction,
+     * chỉ mục hạn sử dụng bỏ lô sau khi commit. Các dòng giữ hàng đã trả lại của lô bị xóa theo.
+     *
+     * @throws IllegalStateException Nếu lô đang được giữ cho phiếu xuất
+     */
+    @Transactional
+    public void xoaLo(LoHang loHang) {
+        Long id = loHang.getId();
+        if (loHang.getSoLuongDaDat() != null && loHang.getSoLuongDaDat() > 0) {
+            throw new IllegalStateException("Không thể xóa lô '" + loHang.getSoLo()
+                    + "': đang được giữ " + loHang.getSoLuongDaDat() + " cho phiếu xuất chưa duyệt");
+        }
+        datTruTonKhoRepository.deleteDaTraLaiByLoHangId(id);
+        thongKeLoHangService.ghi(List.of(id), () -> loHangRepository.delete(loHang));
+        eventPublisher.publishEvent(new ChiMucHanSuDungService.ThayDoi(List.of(id)));
+    }
+
+    /**
+     * Lấy danh sách lô sắp hết hạn (còn hàng, hạn sử dụng từ hôm nay tới soNgay ngày tới).
+     * Lọc bằng chỉ mục hạn sử dụng trong bộ nhớ, chỉ đọc DB theo id các lô tìm được.
      */
     @Transactional(readOnly = true)
-    public List<LoHangDTO> getLoHangSapHetHan(int soNgay) {
+    public List<LoHangDTO> getLoHangSapHetHan(int soNgay, Long khoId, Long hangHoaId) {
         LocalDate now = LocalDate.now();
-        LocalDate future = now.plusDays(soNgay);
+        List<Long> ids = chiMucHanSuDungService.timLo(khoId, hangHoaId, now, now.plusDays(soNgay));
+
+        Map<Long, LoHang> theoId = new HashMap<>();
+        for (int i = 0; i < ids.size(); i += 1000) {
+            loHangRepository.findByIdInFetchHangHoa(ids.subList(i, Math.min(i + 1000, ids.size())))
+                    .forEach(loHang -> theoId.put(loHang.getId(), loHang));
+        }
 
-        return loHangRepository.findExpiringSoon(now, future).stream()
+        // Giữ thứ tự hạn sử dụng của chỉ mục
+        return ids.stream()
+                .map(theoId::get)
+                .filter(loHang -> loHang != null)
                 .map(this::convertToDTO)
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Số lô / tổng số lượng sắp hết hạn - chỉ đọc chỉ mục trong bộ nhớ
+     */
+    public ChiMucHanSuDungService.TongHop tongHopSapHetHan(int soNgay, Long khoId, Long hangHoaId) {
+        LocalDate now = LocalDate.now();
+        return chiMucHanSuDungService.tongHop(khoId, hangHoaId, now, now.plusDays(soNgay));
+    }
+
     /**
      * Lấy danh sách lô đã hết hàng
      */
@@ -245,28 +337,15 @@ public class LoHangService {
                 .collect(Collectors.toList());
     }
 
+    // ==================== PRIVATE HELPER METHODS ====================
+
     /**
-     * Cập nhật trạng thái tất cả các lô hàng
+     * Specification đang dựng câu COUNT của trang (không được fetch join)
      */
-    @Transactional
-    public void updateAllLoHangStatus() {
-        List<LoHang> allLoHang = loHangRepository.findAll();
-
-        for (LoHang loHang : allLoHang) {
-            LoHang.TrangThaiLoHang oldStatus = loHang.getTrangThai();
-            LoHang.TrangThaiLoHang newStatus = determineLoHangStatus(loHang);
-
-            if (oldStatus != newStatus) {
-                loHang.setTrangThai(newStatus);
-                loHangRepository.save(loHang);
-                log.info("Updated status for lo hang ID: {} from {} to {}",
-                        loHang.getId(), oldStatus, newStatus);
-            }
-        }
+    private static boolean laCauDem(CriteriaQuery<?> query) {
+        return Long.class.equals(query.getResultType()) || long.class.equals(query.getResultType());
     }
 
-    // ==================== PRIVATE HELPER METHODS ====================
-
     private void validateLoHangData(LoHangDTO dto) {
         if (dto.getHangHoaId() == null) {
             throw new IllegalArgumentException("Hàng hóa không được để trống");
@@ -311,8 +390,8 @@ public class LoHangService {
                 return LoHang.TrangThaiLoHang.HET_HAN;
             }
 
-            // Gần hết hạn (30 ngày)
-            LocalDate ganHetHan = now.plusDays(30);
+            // Gần hết hạn (theo cửa sổ cảnh báo của hàng hóa) - khớp LoHangRepository#tinhTrangThaiTheoKhoangId
+            LocalDate ganHetHan = now.plusDays(TrangThaiLoHangService.soNgayCanhBao(loHang.getHangHoa()));
             if (loHang.getHanSuDung().isBefore(ganHetHan)) {
                 return LoHang.TrangThaiLoHang.GAN_HET_HAN;
             }
@@ -337,7 +416,7 @@ public class LoHangService {
         if (entity.getHanSuDung() != null) {
             LocalDate now = LocalDate.now();
             soNgayConLai = (int) ChronoUnit.DAYS.between(now, entity.getHanSuDung());
-            sapHetHan = soNgayConLai >= 0 && soNgayConLai <= 30;
+            sapHetHan = soNgayConLai >= 0 && soNgayConLai <= TrangThaiLoHangService.soNgayCanhBao(hangHoa);
         }
 
         return LoHangDTO.builder()
@@ -407,55 +486,16 @@ public class LoHangService {
         if (existingLo.isPresent()) {
             // ✅ CẬP NHẬT LÔ ĐÃ TỒN TẠI
             LoHang lo = existingLo.get();
-
-            int soLuongCu = lo.getSoLuongNhap();
-            int soLuongMoi = chiTiet.getSoLuong();
-            int tongSoLuong = soLuongCu + soLuongMoi;
-
-            // Tính giá nhập trung bình theo công thức WAVG
-            BigDecimal giaCu = lo.getGiaNhap();
-            BigDecimal giaMoi = chiTiet.getDonGia();
-
-            BigDecimal tongGiaTriCu = giaCu.multiply(new BigDecimal(soLuongCu));
-            BigDecimal giaTriNhapMoi = giaMoi.multiply(new BigDecimal(soLuongMoi));
-            BigDecimal tongGiaTri = tongGiaTriCu.add(giaTriNhapMoi);
-
-            BigDecimal giaTrungBinh = tongGiaTri.divide(
-                    new BigDecimal(tongSoLuong),
-                    2,
-                    RoundingMode.HALF_UP
-            );
-
-            // Cập nhật thông tin lô
-            lo.setSoLuongNhap(tongSoLuong);
-            lo.setSoLuongHienTai(lo.getSoLuongHienTai() + soLuongMoi);
-            lo.setGiaNhap(giaTrungBinh);
-            lo.setTrangThai(determineLoHangStatus(lo));
-
+            ThongKeLoHangService.TruocKhiGhi truoc = thongKeLoHangService.truocKhiGhi(List.of(lo.getId()));
+            congNhapVaoLo(lo, chiTiet.getSoLuong(), chiTiet.getDonGia());
             LoHang saved = loHangRepository.save(lo);
-
-            log.info("✅ Updated existing lo_hang ID={}: Qty {} → {}, Avg Price {} → {}",
-                    saved.getId(), soLuongCu, saved.getSoLuongNhap(), giaCu, giaTrungBinh);
-
+            thongKeLoHangService.sauKhiGhi(truoc);
             return saved;
 
         } else {
             // ✅ TẠO LÔ MỚI - DÙNG .kho() THAY VÌ .khoId()
-            LoHang loMoi = LoHang.builder()
-                    .kho(kho)                              // ✅ SET OBJECT KHO (không phải ID)
-                    .hangHoa(hangHoa)
-                    .soLo(chiTiet.getSoLo())
-                    .ngaySanXuat(chiTiet.getNgaySanXuat())
-                    .hanSuDung(chiTiet.getHanSuDung())
-                    .soLuongNhap(chiTiet.getSoLuong())
-                    .soLuongHienTai(chiTiet.getSoLuong())
-                    .giaNhap(chiTiet.getDonGia())
-                    .nhaCungCap(phieuNhap.getNhaCungCap())
-                    .soChungTuNhap(phieuNhap.getMaPhieuNhap())
-                    .trangThai(LoHang.TrangThaiLoHang.DANG_SU_DUNG)
-                    .build();
-
-            LoHang saved = loHangRepository.save(loMoi);
+            LoHang saved = loHangRepository.save(taoLoMoi(chiTiet, phieuNhap));
+            thongKeLoHangService.daTao(List.of(saved.getId()));
 
             log.info("✅ Created new lo_hang ID={}: KhoId={}, SoLo={}, HSD={}, Qty={}, Price={}",
                     saved.getId(), khoId, saved.getSoLo(), saved.getHanSuDung(),
@@ -465,6 +505,112 @@ public class LoHangService {
         }
     }
 
+    /**
+     * Nhập lô cho cả phiếu: tìm TẤT CẢ lô đã có (hàng hóa, kho, số lô, HSD) bằng 1 câu truy vấn (khóa dòng,
+     * theo ID tăng dần), cộng dồn trong bộ nhớ rồi lưu một lượt
+     * → lô đã có: UPDATE theo JDBC batch lúc flush; lô mới: saveAll.
+     * Nhiều dòng cùng lô được cộng lần lượt như khi gọi findOrCreateLoHang từng dòng.
+     * Gán lô vào từng chi tiết (chiTiet.setLoHang), không save chi tiết.
+     *
+     * @param chiTietCoLo Các chi tiết có quản lý lô và có số lô
+     */
+    @Transactional
+    public void nhapLoTheoPhieu(PhieuNhapKho phieuNhap, List<ChiTietPhieuNhap> chiTietCoLo) {
+        if (chiTietCoLo.isEmpty()) {
+            return;
+        }
+
+        Set<Long> hangHoaIds = new HashSet<>();
+        Set<String> soLos = new HashSet<>();
+        for (ChiTietPhieuNhap chiTiet : chiTietCoLo) {
+            hangHoaIds.add(chiTiet.getHangHoa().getId());
+            soLos.add(chiTiet.getSoLo());
+        }
+
+        List<LoHang> loDaCoList = loHangRepository.findForUpdateByKhoIdAndHangHoaIdInAndSoLoIn(
+                phieuNhap.getKho().getId(), hangHoaIds, soLos);
+        ThongKeLoHangService.TruocKhiGhi truoc = thongKeLoHangService.truocKhiGhi(
+                loDaCoList.stream().map(LoHang::getId).toList());
+        Map<KhoaLo, LoHang> loTheoKhoa = new HashMap<>();
+        for (LoHang lo : loDaCoList) {
+            loTheoKhoa.putIfAbsent(new KhoaLo(lo.getHangHoa().getId(), lo.getSoLo(), lo.getHanSuDung()), lo);
+        }
+
+        List<LoHang> loMoiList = new ArrayList<>();
+        int soLoDaCo = 0;
+        for (ChiTietPhieuNhap chiTiet : chiTietCoLo) {
+            KhoaLo khoa = new KhoaLo(chiTiet.getHangHoa().getId(), chiTiet.getSoLo(), chiTiet.getHanSuDung());
+            LoHang lo = loTheoKhoa.get(khoa);
+
+            if (lo == null) {
+                lo = taoLoMoi(chiTiet, phieuNhap);
+                loTheoKhoa.put(khoa, lo);
+                loMoiList.add(lo);
+            } else {
+                if (lo.getId() != null) {
+                    soLoDaCo++;
+                }
+                congNhapVaoLo(lo, chiTiet.getSoLuong(), chiTiet.getDonGia());
+            }
+            chiTiet.setLoHang(lo);
+        }
+
+        loHangRepository.saveAll(loMoiList);
+        thongKeLoHangService.sauKhiGhi(truoc, loMoiList.stream().map(LoHang::getId).toList());
+
+        log.info("✅ Nhập lô cho phiếu {}: {} dòng, {} lần cộng vào lô đã có, {} lô mới",
+                phieuNhap.getMaPhieuNhap(), chiTietCoLo.size(), soLoDaCo, loMoiList.size());
+    }
+
+    /**
+     * Khóa nhận diện lô khi nhập: (hàng hóa, số lô, HSD) trong cùng kho
+     */
+    private record KhoaLo(Long hangHoaId, String soLo, LocalDate hanSuDung) {
+    }
+
+    private LoHang taoLoMoi(ChiTietPhieuNhap chiTiet, PhieuNhapKho phieuNhap) {
+        return LoHang.builder()
+                .kho(phieuNhap.getKho())
+                .hangHoa(chiTiet.getHangHoa())
+                .soLo(chiTiet.getSoLo())
+                .ngaySanXuat(chiTiet.getNgaySanXuat())
+                .hanSuDung(chiTiet.getHanSuDung())
+                .soLuongNhap(chiTiet.getSoLuong())
+                .soLuongHienTai(chiTiet.getSoLuong())
+                .giaNhap(chiTiet.getDonGia())
+                .nhaCungCap(phieuNhap.getNhaCungCap())
+                .soChungTuNhap(phieuNhap.getMaPhieuNhap())
+                .trangThai(LoHang.TrangThaiLoHang.DANG_SU_DUNG)
+                .build();
+    }
+
+    /**
+     * Cộng số lượng nhập vào lô đã có + tính lại giá nhập trung bình (WAVG) - chỉ sửa entity
+     */
+    private void congNhapVaoLo(LoHang lo, int soLuongMoi, BigDecimal giaMoi) {
+        int soLuongCu = lo.getSoLuongNhap();
+        int tongSoLuong = soLuongCu + soLuongMoi;
+
+        // Tính giá nhập trung bình theo công thức WAVG
+        BigDecimal giaCu = lo.getGiaNhap();
+        BigDecimal tongGiaTriCu = giaCu.multiply(new BigDecimal(soLuongCu));
+        BigDecimal giaTriNhapMoi = giaMoi.multiply(new BigDecimal(soLuongMoi));
+        BigDecimal giaTrungBinh = tongGiaTriCu.add(giaTriNhapMoi).divide(
+                new BigDecimal(tongSoLuong),
+                2,
+                RoundingMode.HALF_UP
+        );
+
+        // Cập nhật thông tin lô
+        lo.setSoLuongNhap(tongSoLuong);
+        lo.setSoLuongHienTai(lo.getSoLuongHienTai() + soLuongMoi);
+        lo.setGiaNhap(giaTrungBinh);
+        lo.setTrangThai(determineLoHangStatus(lo));
+
+        log.info("✅ Updated lo_hang ID={}: Qty {} → {}, Avg Price {} → {}",
+                lo.getId(), soLuongCu, tongSoLuong, giaCu, giaTrungBinh);
+    }
+
     /**
      * ✅ METHOD 2: Chọn danh sách lô theo FIFO để xuất kho
      * Được gọi từ: PhieuXuatKhoService.processChiTietXuatKho()
@@ -505,50 +651,37 @@ public class LoHangService {
 
     /**
      * ✅ METHOD 3: Trừ số lượng từ một lô hàng khi xuất
-     * Được gọi từ: PhieuXuatKhoService.processChiTietXuatKho()
+     * Kiểm tra đủ hàng + trừ + đổi trạng thái (hết hàng → HET_HANG) - xem TruTonKhoService
      *
-     * Logic:
-     * 1. Kiểm tra lô có đủ hàng không
-     * 2. Trừ số lượng xuất
-     * 3. Cập nhật trạng thái lô (nếu hết hàng → HET_HANG)
-     * 4. Lưu lại database
+     * @throws IllegalStateException Nếu lô không đủ hàng
      */
     @Transactional
     public void truSoLuongLo(Long loId, int soLuongXuat) {
         log.info("📤 Reducing lo_hang ID={} by quantity={}", loId, soLuongXuat);
+        truTonKhoService.truLo(Map.of(loId, soLuongXuat));
+    }
 
-        // BƯỚC 1: Lấy thông tin lô
-        LoHang lo = loHangRepository.findById(loId)
-                .orElseThrow(() -> new IllegalArgumentException(
-                        "Không tìm thấy lô hàng với ID: " + loId));
-
-        // BƯỚC 2: Kiểm tra đủ hàng
-        int soLuongHienTai = lo.getSoLuongHienTai();
-        if (soLuongHienTai < soLuongXuat) {
-            String errorMsg = String.format(
-                    "Lô '%s' (HSD: %s) không đủ hàng: Còn %d, yêu cầu xuất %d",
-                    lo.getSoLo(),
-                    lo.getHanSuDung(),
-                    soLuongHienTai,
-                    soLuongXuat
-            );
-            log.error("❌ {}", errorMsg);
-            throw new IllegalStateException(errorMsg);
-        }
-
-        // BƯỚC 3: Trừ số lượng
-        int soLuongConLai = soLuongHienTai - soLuongXuat;
-        lo.setSoLuongHienTai(soLuongConLai);
-
-        // BƯỚC 4: Cập nhật trạng thái
-        LoHang.TrangThaiLoHang trangThaiCu = lo.getTrangThai();
-        LoHang.TrangThaiLoHang trangThaiMoi = determineLoHangStatus(lo);
-        lo.setTrangThai(trangThaiMoi);
-
-        // BƯỚC 5: Lưu vào DB
-        loHangRepository.save(lo);
+    private PhanBoXuatLoDTO convertPhanBoXuatToDTO(PhanBoXuatLo entity) {
+        PhieuXuatKho phieuXuat = entity.getPhieuXuat();
+        KhoaPhong khoaPhong = phieuXuat.getKhoaPhongYeuCau();
+        ViTriKho viTriKho = entity.getViTriKho();
 
-        log.info("✅ Reduced lo_hang ID={}: Qty {} → {}, Status {} → {}",
-                loId, soLuongHienTai, soLuongConLai, trangThaiCu, trangThaiMoi);
+        return PhanBoXuatLoDTO.builder()
+                .id(entity.getId())
+                .phieuXuatId(phieuXuat.getId())
+                .maPhieuXuat(phieuXuat.getMaPhieuXuat())
+                .ngayXuat(phieuXuat.getNgayXuat())
+                .ngayDuyet(phieuXuat.getNgayDuyet())
+                .khoaPhongYeuCauId(khoaPhong != null ? khoaPhong.getId() : null)
+                .tenKhoaPhongYeuCau(khoaPhong != null ? khoaPhong.getTenKhoaPhong() : null)
+                .nguoiNhan(phieuXuat.getNguoiNhan())
+                .chiTietPhieuXuatId(entity.getChiTietPhieuXuat().getId())
+                .loHangId(entity.getLoHang().getId())
+                .viTriKhoId(viTriKho != null ? viTriKho.getId() : null)
+                .tenViTri(viTriKho != null ? viTriKho.getTenViTri() : null)
+                .soLuong(entity.getSoLuong())
+                .donGia(entity.getDonGia())
+                .thanhTien(entity.getDonGia().multiply(BigDecimal.valueOf(entity.getSoLuong())))
+                .build();
     }
-}
\ No newline at end of file
+}
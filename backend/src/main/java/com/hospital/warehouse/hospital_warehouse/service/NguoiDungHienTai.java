@@ -0,0 +1,93 @@
+package com.hospital.warehouse.hospital_warehouse.service;
+
+import com.hospital.warehouse.hospital_warehouse.entity.User;
+import com.hospital.warehouse.hospital_warehouse.repository.UserRepository;
+import lombok.RequiredArgsConstructor;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+import java.util.Optional;
+
+/**
+ * Người dùng đang đăng nhập của request hiện tại.
+ *
+ * JwtRequestFilter đọc thông tin từ claims của token MỘT lần và gắn vào request;
+ * các service lấy từ đây thay vì tra bảng user ở mỗi lần dùng.
+ * Cột audit (người tạo / duyệt / thực hiện) dùng tham chiếu getReferenceById - không phát sinh SELECT.
+ *
+ * Ngoài request (job nền) hoặc token không có userId: tra theo tên đăng nhập, nhớ lại trong request nếu có.
+ */
+@Component
+@RequiredArgsConstructor
+public class NguoiDungHienTai {
+
+    public static final String REQUEST_ATTRIBUTE = NguoiDungHienTai.class.getName() + ".THONG_TIN";
+
+    private final UserRepository userRepository;
+
+    /**
+     * Thông tin đăng nhập lấy từ JWT
+     */
+    public record ThongTin(Long userId, String tenDangNhap, String vaiTro, Long khoaPhongId, String hoTen) {
+    }
+
+    public Optional<ThongTin> layThongTin() {
+        RequestAttributes request = RequestContextHolder.getRequestAttributes();
+        if (request != null
+                && request.getAttribute(REQUEST_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST) instanceof ThongTin thongTin) {
+            return Optional.of(thongTin);
+        }
+
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        if (auth == null || auth.getName() == null) {
+            return Optional.empty();
+        }
+
+        Optional<ThongTin> thongTin = userRepository.findByTenDangNhap(auth.getName())
+                .map(user -> new ThongTin(user.getId(), user.getTenDangNhap(),
+                        user.getRole() != null ? user.getRole().getTenVaiTro() : null,
+                        user.getKhoaPhong() != null ? user.getKhoaPhong().getId() : null,
+                        user.getHoTen()));
+        if (request != null) {
+            thongTin.ifPresent(tt -> request.setAttribute(REQUEST_ATTRIBUTE, tt, RequestAttributes.SCOPE_REQUEST));
+        }
+        return thongTin;
+    }
+
+    /**
+     * @throws IllegalStateException Nếu chưa đăng nhập
+     */
+    public ThongTin thongTin() {
+        return layThongTin()
+                .orElseThrow(() -> new IllegalStateException("Không tìm thấy thông tin người dùng"));
+    }
+
+    /**
+     * Tham chiếu (proxy) tới người dùng hiện tại để gán vào cột audit
+     *
+     * @throws IllegalStateException Nếu chưa đăng nhập
+     */
+    public User thamChieu() {
+        return userRepository.getReferenceById(thongTin().userId());
+    }
+
+    /**
+     * Như thamChieu() nhưng trả về null nếu chưa đăng nhập
+     */
+    public User thamChieuNeuCo() {
+        return layThongTin()
+                .map(tt -> userRepository.getReferenceById(tt.userId()))
+                .orElse(null);
+    }
+
+    /**
+     * Tên hiển thị của người dùng hiện tại (họ tên, nếu token không có thì dùng tên đăng nhập)
+     */
+    public String hoTen() {
+        ThongTin thongTin = thongTin();
+        return thongTin.hoTen() != null ? thongTin.hoTen() : thongTin.tenDangNhap();
+    }
+}
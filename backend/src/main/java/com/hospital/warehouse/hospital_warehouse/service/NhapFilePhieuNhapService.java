@@ -0,0 +1,592 @@
+package com.hospital.warehouse.hospital_warehouse.service;
+
+import com.hospital.warehouse.hospital_warehouse.dto.TienTrinhNhapFileDTO;
+import com.hospital.warehouse.hospital_warehouse.entity.ChiTietPhieuNhap;
+import com.hospital.warehouse.hospital_warehouse.entity.PhieuNhapKho;
+import com.hospital.warehouse.hospital_warehouse.repository.ChiTietPhieuNhapRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.HangHoaRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.PhieuNhapKhoRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.ViTriKhoRepository;
+import com.hospital.warehouse.hospital_warehouse.util.DocBangTinh;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.Normalizer;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Nhập chi tiết phiếu nhập từ file CSV / XLSX (hồ sơ giao hàng trúng thầu hàng nghìn dòng).
+ *
+ * - File được lưu tạm xuống đĩa rồi xử lý nền trên pool luồng riêng; client theo dõi bằng mã tiến trình
+ * - Đọc từng dòng (DocBangTinh) - bộ nhớ không tăng theo kích thước file
+ * - Mã hàng hóa / mã vị trí tra qua bảng nạp sẵn 1 lần cho cả file (không findById từng dòng)
+ * - Dòng hợp lệ được ghi theo lô (kho.nhap-file.kich-thuoc-lo dòng / transaction), tổng tiền phiếu cộng cùng lô đó
+ * - Mặc định kiểm tra cả file trước: có dòng lỗi thì không nhập dòng nào.
+ *   boQuaDongLoi = true: nhập các dòng hợp lệ, báo lại dòng lỗi
+ *
+ * Tiến trình chỉ giữ trong bộ nhớ của node nhận file, xóa sau kho.nhap-file.thoi-gian-giu-phut khi đã kết thúc.
+ */
+@Slf4j
+@Service
+public class NhapFilePhieuNhapService {
+
+    private static final List<String> COT_BAT_BUOC = List.of("ma_hang_hoa", "ma_vi_tri", "so_luong", "don_gia");
+
+    private static final List<DateTimeFormatter> DINH_DANG_NGAY = List.of(
+            DateTimeFormatter.ISO_LOCAL_DATE,
+            DateTimeFormatter.ofPattern("d/M/yyyy"),
+            DateTimeFormatter.ofPattern("d-M-yyyy"));
+
+    private final PhieuNhapKhoRepository phieuNhapKhoRepository;
+    private final ChiTietPhieuNhapRepository chiTietPhieuNhapRepository;
+    private final HangHoaRepository hangHoaRepository;
+    private final ViTriKhoRepository viTriKhoRepository;
+    private final TransactionTemplate transactionTemplate;
+
+    @Value("${kho.nhap-file.kich-thuoc-lo:500}")
+    private int kichThuocLo;
+
+    @Value("${kho.nhap-file.so-luong-xu-ly:2}")
+    private int soLuongXuLy;
+
+    @Value("${kho.nhap-file.hang-doi-toi-da:20}")
+    private int hangDoiToiDa;
+
+    @Value("${kho.nhap-file.so-loi-toi-da:500}")
+    private int soLoiToiDa;
+
+    @Value("${kho.nhap-file.thoi-gian-giu-phut:60}")
+    private long thoiGianGiuPhut;
+
+    private final Map<String, TienTrinh> tienTrinhTheoMa = new ConcurrentHashMap<>();
+
+    /** Phiếu đang được nhập file → mã tiến trình (mỗi phiếu một file tại một thời điểm) */
+    private final Map<Long, String> phieuDangNhap = new ConcurrentHashMap<>();
+
+    private ThreadPoolExecutor executor;
+
+    public NhapFilePhieuNhapService(PhieuNhapKhoRepository phieuNhapKhoRepository,
+                                    ChiTietPhieuNhapRepository chiTietPhieuNhapRepository,
+                                    HangHoaRepository hangHoaRepository,
+                                    ViTriKhoRepository viTriKhoRepository,
+                                    PlatformTransactionManager transactionManager) {
+        this.phieuNhapKhoRepository = phieuNhapKhoRepository;
+        this.chiTietPhieuNhapRepository = chiTietPhieuNhapRepository;
+        this.hangHoaRepository = hangHoaRepository;
+        this.viTriKhoRepository = viTriKhoRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    @PostConstruct
+    void khoiTao() {
+        AtomicInteger soLuong = new AtomicInteger();
+        executor = new ThreadPoolExecutor(soLuongXuLy, soLuongXuLy, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(hangDoiToiDa), r -> {
+            Thread thread = new Thread(r, "nhap-file-" + soLuong.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    void dong() {
+        executor.shutdownNow();
+    }
+
+    // ==================== NHẬN FILE ====================
+
+    /**
+     * Nhận file và đưa vào hàng đợi xử lý nền
+     *
+     * @throws IllegalArgumentException File / phiếu không hợp lệ
+     * @throws IllegalStateException    Phiếu đã duyệt / hủy, đang nhập file khác hoặc hàng đợi đầy
+     */
+    public TienTrinhNhapFileDTO batDauNhap(Long phieuNhapId, MultipartFile file, boolean boQuaDongLoi) {
+        if (file == null || file.isEmpty()) {
+            throw new IllegalArgumentException("File không được để trống");
+        }
+        String tenFile = file.getOriginalFilename() != null ? file.getOriginalFilename() : "";
+        String duoiFile = tenFile.toLowerCase(Locale.ROOT).endsWith(".xlsx") ? ".xlsx"
+                : tenFile.toLowerCase(Locale.ROOT).endsWith(".csv") ? ".csv" : null;
+        if (duoiFile == null) {
+            throw new IllegalArgumentException("Chỉ hỗ trợ file .csv hoặc .xlsx");
+        }
+
+        PhieuNhapKho phieuNhap = phieuNhapKhoRepository.findById(phieuNhapId)
+                .orElseThrow(() -> new IllegalArgumentException("Không tìm thấy phiếu nhập"));
+        if (phieuNhap.getTrangThai() == PhieuNhapKho.TrangThaiPhieuNhap.DA_DUYET
+                || phieuNhap.getTrangThai() == PhieuNhapKho.TrangThaiPhieuNhap.HUY) {
+            throw new IllegalStateException("Chỉ nhập file vào phiếu nhập chưa duyệt");
+        }
+
+        donDep();
+        TienTrinh tienTrinh = new TienTrinh(UUID.randomUUID().toString(), phieuNhapId,
+                phieuNhap.getMaPhieuNhap(), phieuNhap.getKho().getId(), tenFile, boQuaDongLoi);
+        if (phieuDangNhap.putIfAbsent(phieuNhapId, tienTrinh.ma) != null) {
+            throw new IllegalStateException("Phiếu nhập đang được nhập từ file khác, vui lòng chờ hoàn thành");
+        }
+
+        Path fileTam = null;
+        try {
+            fileTam = Files.createTempFile("phieu-nhap-" + phieuNhapId + "-", duoiFile);
+            file.transferTo(fileTam);
+
+            tienTrinhTheoMa.put(tienTrinh.ma, tienTrinh);
+            Path fileXuLy = fileTam;
+            executor.execute(() -> xuLy(tienTrinh, fileXuLy));
+
+            log.info("📥 Nhận file {} cho phiếu nhập {} - tiến trình {}", tenFile, phieuNhap.getMaPhieuNhap(), tienTrinh.ma);
+            return tienTrinh.toDTO();
+        } catch (IOException | RuntimeException e) {
+            phieuDangNhap.remove(phieuNhapId, tienTrinh.ma);
+            tienTrinhTheoMa.remove(tienTrinh.ma);
+            xoaFileTam(fileTam);
+            if (e instanceof RejectedExecutionException) {
+                throw new IllegalStateException("Đang có quá nhiều file chờ xử lý, vui lòng thử lại sau");
+            }
+            if (e instanceof IOException) {
+                throw new IllegalStateException("Không lưu được file tải lên: " + e.getMessage(), e);
+            }
+            throw (RuntimeException) e;
+        }
+    }
+
+    public Optional<TienTrinhNhapFileDTO> layTienTrinh(String maTienTrinh) {
+        return Optional.ofNullable(tienTrinhTheoMa.get(maTienTrinh)).map(TienTrinh::toDTO);
+    }
+
+    /**
+     * Phiếu đang nhập chi tiết từ file (trên node này) - chưa được duyệt
+     */
+    public boolean dangNhapFile(Long phieuNhapId) {
+        return phieuDangNhap.containsKey(phieuNhapId);
+    }
+
+    // ==================== XỬ LÝ NỀN ====================
+
+    private void xuLy(TienTrinh tienTrinh, Path file) {
+        tienTrinh.batDauLuc = LocalDateTime.now();
+        try {
+            BangTra bangTra = napBangTra(tienTrinh.khoId);
+
+            if (!tienTrinh.boQuaDongLoi) {
+                // Lượt 1: chỉ kiểm tra, không ghi gì
+                tienTrinh.trangThai = TienTrinhNhapFileDTO.TrangThai.DANG_KIEM_TRA;
+                duyetFile(tienTrinh, file, bangTra, null);
+                if (tienTrinh.soDongLoi > 0) {
+                    ketThuc(tienTrinh, TienTrinhNhapFileDTO.TrangThai.THAT_BAI, String.format(
+                            "File có %d dòng lỗi - chưa nhập dòng nào", tienTrinh.soDongLoi));
+                    return;
+                }
+                tienTrinh.soDongDaDoc = 0;
+                tienTrinh.soDongHopLe = 0;
+            }
+
+            tienTrinh.trangThai = TienTrinhNhapFileDTO.TrangThai.DANG_NHAP;
+            duyetFile(tienTrinh, file, bangTra, lo -> ghiLo(tienTrinh, lo));
+
+            ketThuc(tienTrinh, TienTrinhNhapFileDTO.TrangThai.HOAN_THANH, String.format(
+                    "Đã nhập %d dòng%s", tienTrinh.soDongDaNhap,
+                    tienTrinh.soDongLoi > 0 ? ", bỏ qua " + tienTrinh.soDongLoi + " dòng lỗi" : ""));
+
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            ketThuc(tienTrinh, TienTrinhNhapFileDTO.TrangThai.THAT_BAI, e.getMessage());
+        } catch (Exception e) {
+            log.error("❌ Lỗi nhập file cho phiếu nhập ID: {}", tienTrinh.phieuNhapId, e);
+            ketThuc(tienTrinh, TienTrinhNhapFileDTO.TrangThai.THAT_BAI, "Lỗi xử lý file: " + e.getMessage());
+        } finally {
+            phieuDangNhap.remove(tienTrinh.phieuNhapId, tienTrinh.ma);
+            xoaFileTam(file);
+        }
+    }
+
+    /**
+     * Đọc hết file, kiểm tra từng dòng; dòng hợp lệ gom thành lô kichThuocLo dòng rồi chuyển cho ghiLo (null: chỉ kiểm tra)
+     */
+    private void duyetFile(TienTrinh tienTrinh, Path file, BangTra bangTra,
+                           Consumer<List<DongHopLe>> ghiLo) throws IOException {
+        try (DocBangTinh doc = DocBangTinh.mo(file, tienTrinh.tenFile)) {
+            List<String> tieuDe = doc.docDong();
+            if (tieuDe == null) {
+                throw new IllegalArgumentException("File không có dữ liệu");
+            }
+            Map<String, Integer> cot = anhXaCot(tieuDe);
+
+            List<DongHopLe> lo = new ArrayList<>(kichThuocLo);
+            List<String> dong;
+            while ((dong = doc.docDong()) != null) {
+                tienTrinh.soDongDaDoc++;
+                DongHopLe hopLe = kiemTraDong(tienTrinh, doc.soDong(), dong, cot, bangTra);
+                if (hopLe == null) {
+                    continue;
+                }
+                tienTrinh.soDongHopLe++;
+
+                if (ghiLo != null) {
+                    lo.add(hopLe);
+                    if (lo.size() >= kichThuocLo) {
+                        ghiLo.accept(lo);
+                        lo = new ArrayList<>(kichThuocLo);
+                    }
+                }
+            }
+            if (ghiLo != null && !lo.isEmpty()) {
+                ghiLo.accept(lo);
+            }
+        }
+    }
+
+    /**
+     * Ghi một lô dòng trong transaction riêng: cộng tổng tiền phiếu (kiểm tra phiếu chưa duyệt / hủy) rồi lưu chi tiết
+     */
+    private void ghiLo(TienTrinh tienTrinh, List<DongHopLe> lo) {
+        BigDecimal tienTruocThue = BigDecimal.ZERO;
+        BigDecimal tienThue = BigDecimal.ZERO;
+        for (DongHopLe dong : lo) {
+            tienTruocThue = tienTruocThue.add(dong.thanhTien());
+            tienThue = tienThue.add(dong.tienThue());
+        }
+        BigDecimal tongTruocThue = tienTruocThue;
+        BigDecimal tongThue = tienThue;
+
+        transactionTemplate.executeWithoutResult(status -> {
+            if (phieuNhapKhoRepository.congTongTienChuaDuyet(tienTrinh.phieuNhapId, tongTruocThue, tongThue) == 0) {
+                throw new IllegalStateException(String.format(
+                        "Phiếu nhập đã được duyệt hoặc hủy trong khi nhập file (đã nhập %d dòng)",
+                        tienTrinh.soDongDaNhap));
+            }
+
+            PhieuNhapKho phieuNhap = phieuNhapKhoRepository.getReferenceById(tienTrinh.phieuNhapId);
+            List<ChiTietPhieuNhap> chiTietList = new ArrayList<>(lo.size());
+            for (DongHopLe dong : lo) {
+                chiTietList.add(ChiTietPhieuNhap.builder()
+                        .phieuNhap(phieuNhap)
+                        .hangHoa(hangHoaRepository.getReferenceById(dong.hangHoaId()))
+                        .viTriKho(viTriKhoRepository.getReferenceById(dong.viTriKhoId()))
+                        .soLuong(dong.soLuong())
+                        .donGia(dong.donGia())
+                        .thanhTien(dong.thanhTien())
+                        .tyLeThue(dong.tyLeThue())
+                        .tienThue(dong.tienThue())
+                        .soLo(dong.soLo())
+                        .ngaySanXuat(dong.ngaySanXuat())
+                        .hanSuDung(dong.hanSuDung())
+                        .ghiChu(dong.ghiChu())
+                        .trangThai(ChiTietPhieuNhap.TrangThaiChiTiet.CHO_NHAP)
+                        .build());
+            }
+            chiTietPhieuNhapRepository.saveAll(chiTietList);
+        });
+
+        tienTrinh.soDongDaNhap += lo.size();
+        tienTrinh.tongTienDaNhap = tienTrinh.tongTienDaNhap.add(tongTruocThue).add(tongThue);
+        log.debug("Nhập file {}: đã ghi {} dòng", tienTrinh.ma, tienTrinh.soDongDaNhap);
+    }
+
+    private void ketThuc(TienTrinh tienTrinh, TienTrinhNhapFileDTO.TrangThai trangThai, String thongBao) {
+        tienTrinh.thongBao = thongBao;
+        tienTrinh.ketThucLuc = LocalDateTime.now();
+        tienTrinh.trangThai = trangThai;
+        log.info("{} Nhập file {} cho phiếu nhập {}: {}",
+                trangThai == TienTrinhNhapFileDTO.TrangThai.HOAN_THANH ? "✅" : "❌",
+                tienTrinh.tenFile, tienTrinh.maPhieuNhap, thongBao);
+    }
+
+    // ==================== KIỂM TRA DÒNG ====================
+
+    /**
+     * Cột theo tiêu đề đã chuẩn hóa: "Mã hàng hóa" → ma_hang_hoa
+     */
+    private Map<String, Integer> anhXaCot(List<String> tieuDe) {
+        Map<String, Integer> cot = new HashMap<>();
+        for (int i = 0; i < tieuDe.size(); i++) {
+            cot.putIfAbsent(chuanHoaTieuDe(tieuDe.get(i)), i);
+        }
+        List<String> thieu = COT_BAT_BUOC.stream().filter(ten -> !cot.containsKey(ten)).toList();
+        if (!thieu.isEmpty()) {
+            throw new IllegalArgumentException("File thiếu cột bắt buộc: " + String.join(", ", thieu));
+        }
+        return cot;
+    }
+
+    static String chuanHoaTieuDe(String tieuDe) {
+        String khongDau = Normalizer.normalize(tieuDe.trim().toLowerCase(Locale.ROOT).replace('đ', 'd'),
+                Normalizer.Form.NFD).replaceAll("\\p{M}", "");
+        return khongDau.replaceAll("[^a-z0-9]+", "_").replaceAll("^_+|_+$", "");
+    }
+
+    /**
+     * Dòng hợp lệ đã quy đổi, hoặc null nếu lỗi (lỗi được ghi vào tiến trình)
+     */
+    private DongHopLe kiemTraDong(TienTrinh tienTrinh, int soDong, List<String> dong,
+                                  Map<String, Integer> cot, BangTra bangTra) {
+        try {
+            String maHangHoa = batBuoc(dong, cot, "ma_hang_hoa", "Mã hàng hóa không được để trống");
+            HangHoaTra hangHoa = bangTra.hangHoa().get(maHangHoa.toUpperCase(Locale.ROOT));
+            if (hangHoa == null) {
+                throw new LoiDong("ma_hang_hoa", "Không tìm thấy hàng hóa mã " + maHangHoa);
+            }
+
+            String maViTri = batBuoc(dong, cot, "ma_vi_tri", "Vị trí kho không được để trống");
+            Long viTriKhoId = bangTra.viTri().get(maViTri.toUpperCase(Locale.ROOT));
+            if (viTriKhoId == null) {
+                throw new LoiDong("ma_vi_tri", "Không tìm thấy vị trí " + maViTri + " trong kho của phiếu");
+            }
+
+            int soLuong = soNguyenDuong(batBuoc(dong, cot, "so_luong", "Số lượng không được để trống"));
+            BigDecimal donGia = soThapPhan("don_gia", batBuoc(dong, cot, "don_gia", "Đơn giá không được để trống"));
+            if (donGia.signum() <= 0) {
+                throw new LoiDong("don_gia", "Đơn giá phải lớn hơn 0");
+            }
+
+            String tyLe = giaTri(dong, cot, "ty_le_thue");
+            BigDecimal tyLeThue = tyLe.isEmpty() ? null : soThapPhan("ty_le_thue", tyLe);
+            if (tyLeThue != null && (tyLeThue.signum() < 0 || tyLeThue.compareTo(BigDecimal.valueOf(100)) > 0)) {
+                throw new LoiDong("ty_le_thue", "Tỷ lệ thuế phải từ 0 đến 100");
+            }
+
+            LocalDate ngaySanXuat = ngay("ngay_san_xuat", giaTri(dong, cot, "ngay_san_xuat"));
+            LocalDate hanSuDung = ngay("han_su_dung", giaTri(dong, cot, "han_su_dung"));
+            if (hanSuDung != null && ngaySanXuat != null && hanSuDung.isBefore(ngaySanXuat)) {
+                throw new LoiDong("han_su_dung", "Hạn sử dụng phải sau ngày sản xuất");
+            }
+
+            String soLo = giaTri(dong, cot, "so_lo");
+            if (soLo.length() > 50) {
+                throw new LoiDong("so_lo", "Số lô không được quá 50 ký tự");
+            }
+            if (hangHoa.coQuanLyLo()) {
+                if (soLo.isEmpty()) {
+                    throw new LoiDong("so_lo", "Số lô không được để trống cho hàng hóa: " + hangHoa.ten());
+                }
+                if (hanSuDung == null) {
+                    throw new LoiDong("han_su_dung", "Hạn sử dụng không được để trống cho hàng hóa: " + hangHoa.ten());
+                }
+            }
+
+            String ghiChu = giaTri(dong, cot, "ghi_chu");
+            if (ghiChu.length() > 500) {
+                throw new LoiDong("ghi_chu", "Ghi chú không được quá 500 ký tự");
+            }
+
+            BigDecimal thanhTien = donGia.multiply(BigDecimal.valueOf(soLuong)).setScale(2, RoundingMode.HALF_UP);
+            BigDecimal tienThue = tyLeThue == null ? BigDecimal.ZERO
+                    : thanhTien.multiply(tyLeThue).divide(BigDecimal.valueOf(100), 2, RoundingMode.HALF_UP);
+
+            return new DongHopLe(hangHoa.id(), viTriKhoId, soLuong, donGia, thanhTien, tyLeThue, tienThue,
+                    soLo.isEmpty() ? null : soLo, ngaySanXuat, hanSuDung, ghiChu.isEmpty() ? null : ghiChu);
+
+        } catch (LoiDong e) {
+            tienTrinh.themLoi(soDong, e.cot, e.getMessage(), soLoiToiDa);
+            return null;
+        }
+    }
+
+    private static String giaTri(List<String> dong, Map<String, Integer> cot, String ten) {
+        Integer chiSo = cot.get(ten);
+        return chiSo == null || chiSo >= dong.size() ? "" : dong.get(chiSo).trim();
+    }
+
+    private static String batBuoc(List<String> dong, Map<String, Integer> cot, String ten, String thongBao) {
+        String giaTri = giaTri(dong, cot, ten);
+        if (giaTri.isEmpty()) {
+            throw new LoiDong(ten, thongBao);
+        }
+        return giaTri;
+    }
+
+    private static int soNguyenDuong(String giaTri) {
+        try {
+            int soLuong = new BigDecimal(giaTri.replace(" ", "")).intValueExact();
+            if (soLuong <= 0) {
+                throw new LoiDong("so_luong", "Số lượng phải lớn hơn 0");
+            }
+            return soLuong;
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw new LoiDong("so_luong", "Số lượng không hợp lệ: " + giaTri);
+        }
+    }
+
+    private static BigDecimal soThapPhan(String cot, String giaTri) {
+        try {
+            return new BigDecimal(giaTri.replace(" ", ""));
+        } catch (NumberFormatException e) {
+            throw new LoiDong(cot, "Giá trị số không hợp lệ: " + giaTri);
+        }
+    }
+
+    /**
+     * yyyy-MM-dd, dd/MM/yyyy, dd-MM-yyyy hoặc số serial ngày của Excel
+     */
+    private static LocalDate ngay(String cot, String giaTri) {
+        if (giaTri.isEmpty()) {
+            return null;
+        }
+        for (DateTimeFormatter dinhDang : DINH_DANG_NGAY) {
+            try {
+                return LocalDate.parse(giaTri, dinhDang);
+            } catch (DateTimeParseException ignored) {
+                // thử định dạng tiếp theo
+            }
+        }
+        LocalDate ngayExcel = DocBangTinh.ngayTuSoExcel(giaTri);
+        if (ngayExcel == null) {
+            throw new LoiDong(cot, "Ngày không hợp lệ: " + giaTri);
+        }
+        return ngayExcel;
+    }
+
+    /**
+     * Bảng tra mã → hàng hóa / vị trí, nạp 1 lần cho cả file (mã không phân biệt hoa thường)
+     */
+    private BangTra napBangTra(Long khoId) {
+        Map<String, HangHoaTra> hangHoa = new HashMap<>();
+        for (Object[] row : hangHoaRepository.findMaHangHoaTatCa()) {
+            hangHoa.put(((String) row[0]).trim().toUpperCase(Locale.ROOT),
+                    new HangHoaTra((Long) row[1], Boolean.TRUE.equals(row[2]), (String) row[3]));
+        }
+        Map<String, Long> viTri = new HashMap<>();
+        for (Object[] row : viTriKhoRepository.findMaViTriByKhoId(khoId)) {
+            viTri.put(((String) row[0]).trim().toUpperCase(Locale.ROOT), (Long) row[1]);
+        }
+        return new BangTra(hangHoa, viTri);
+    }
+
+    // ==================== TIẾN TRÌNH ====================
+
+    /**
+     * Bỏ các tiến trình đã kết thúc quá thời gian giữ
+     */
+    private void donDep() {
+        LocalDateTime moc = LocalDateTime.now().minus(Duration.ofMinutes(thoiGianGiuPhut));
+        tienTrinhTheoMa.values().removeIf(tt -> tt.ketThucLuc != null && tt.ketThucLuc.isBefore(moc));
+    }
+
+    private static void xoaFileTam(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Không xóa được file tạm {}", file, e);
+        }
+    }
+
+    private record HangHoaTra(Long id, boolean coQuanLyLo, String ten) {
+    }
+
+    private record BangTra(Map<String, HangHoaTra> hangHoa, Map<String, Long> viTri) {
+    }
+
+    private record DongHopLe(Long hangHoaId, Long viTriKhoId, int soLuong, BigDecimal donGia, BigDecimal thanhTien,
+                             BigDecimal tyLeThue, BigDecimal tienThue, String soLo,
+                             LocalDate ngaySanXuat, LocalDate hanSuDung, String ghiChu) {
+    }
+
+    private static final class LoiDong extends RuntimeException {
+
+        private final String cot;
+
+        private LoiDong(String cot, String thongBao) {
+            super(thongBao, null, false, false);
+            this.cot = cot;
+        }
+    }
+
+    /**
+     * Trạng thái một lượt nhập file - chỉ luồng xử lý ghi, request đọc (volatile)
+     */
+    private static final class TienTrinh {
+
+        private final String ma;
+        private final Long phieuNhapId;
+        private final String maPhieuNhap;
+        private final Long khoId;
+        private final String tenFile;
+        private final boolean boQuaDongLoi;
+
+        private volatile TienTrinhNhapFileDTO.TrangThai trangThai = TienTrinhNhapFileDTO.TrangThai.CHO_XU_LY;
+        private volatile int soDongDaDoc;
+        private volatile int soDongHopLe;
+        private volatile int soDongDaNhap;
+        private volatile int soDongLoi;
+        private volatile BigDecimal tongTienDaNhap = BigDecimal.ZERO;
+        private volatile String thongBao;
+        private volatile LocalDateTime batDauLuc;
+        private volatile LocalDateTime ketThucLuc;
+        private final List<TienTrinhNhapFileDTO.LoiDong> loi = new ArrayList<>();
+
+        private TienTrinh(String ma, Long phieuNhapId, String maPhieuNhap, Long khoId,
+                          String tenFile, boolean boQuaDongLoi) {
+            this.ma = ma;
+            this.phieuNhapId = phieuNhapId;
+            this.maPhieuNhap = maPhieuNhap;
+            this.khoId = khoId;
+            this.tenFile = tenFile;
+            this.boQuaDongLoi = boQuaDongLoi;
+        }
+
+        private void themLoi(int dong, String cot, String thongBao, int soLoiToiDa) {
+            soDongLoi++;
+            synchronized (loi) {
+                if (loi.size() < soLoiToiDa) {
+                    loi.add(new TienTrinhNhapFileDTO.LoiDong(dong, cot, thongBao));
+                }
+            }
+        }
+
+        private TienTrinhNhapFileDTO toDTO() {
+            List<TienTrinhNhapFileDTO.LoiDong> loiHienTai;
+            synchronized (loi) {
+                loiHienTai = List.copyOf(loi);
+            }
+            return TienTrinhNhapFileDTO.builder()
+                    .maTienTrinh(ma)
+                    .phieuNhapId(phieuNhapId)
+                    .maPhieuNhap(maPhieuNhap)
+                    .tenFile(tenFile)
+                    .trangThai(trangThai)
+                    .boQuaDongLoi(boQuaDongLoi)
+                    .soDongDaDoc(soDongDaDoc)
+                    .soDongHopLe(soDongHopLe)
+                    .soDongDaNhap(soDongDaNhap)
+                    .soDongLoi(soDongLoi)
+                    .tongTienDaNhap(tongTienDaNhap)
+                    .thongBao(thongBao)
+                    .loi(loiHienTai)
+                    .batDauLuc(batDauLuc)
+                    .ketThucLuc(ketThucLuc)
+                    .build();
+        }
+    }
+}
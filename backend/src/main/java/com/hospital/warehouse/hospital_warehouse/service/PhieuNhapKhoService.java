@@ -4,13 +4,12 @@ import com.hospital.warehouse.hospital_warehouse.dto.PageResponse;
 import com.hospital.warehouse.hospital_warehouse.dto.PhieuNhapKhoDTO;
 import com.hospital.warehouse.hospital_warehouse.entity.*;
 import com.hospital.warehouse.hospital_warehouse.repository.*;
+import com.hospital.warehouse.hospital_warehouse.util.DinhGiaTon;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.domain.Specification;
-import org.springframework.security.core.Authentication;
-import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
@@ -21,8 +20,18 @@ import java.math.RoundingMode;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -39,14 +48,20 @@ public class PhieuNhapKhoService {
     private final KhoRepository khoRepository;
     private final HangHoaRepository hangHoaRepository;
     private final LoHangRepository loHangRepository;
-    private final UserRepository userRepository;
+    private final NguoiDungHienTai nguoiDungHienTai;
     private final NhaCungCapRepository nhaCungCapRepository;
     private final HangHoaViTriRepository hangHoaViTriRepository;
     private final ViTriKhoRepository viTriKhoRepository;
-    private final LichSuTonKhoRepository lichSuTonKhoRepository;
+    private final ViTriKhoService viTriKhoService;
+    private final NhapFilePhieuNhapService nhapFilePhieuNhapService;
+    private final LichSuTonKhoWriter lichSuTonKhoWriter;
 
     private final LoHangService loHangService;  // ✅ THÊM DÒNG NÀY
+    private final ThongKeLoHangService thongKeLoHangService;
     private final HangHoaService hangHoaService;
+    private final TonKhoTheoKhoService tonKhoTheoKhoService;
+    private final SoChungTuService soChungTuService;
+    private final ThongKePhieuService thongKePhieuService;
 
     /**
      * Lấy danh sách phiếu nhập có phân trang và lọc
@@ -143,8 +158,8 @@ public class PhieuNhapKhoService {
     public PhieuNhapKhoDTO createPhieuNhap(PhieuNhapKhoDTO dto) {
         log.info("Creating phieu nhap with data: {}", dto);
 
-        // Validate dữ liệu đầu vào
-        validatePhieuNhapData(dto);
+        // Validate dữ liệu đầu vào (nạp hàng hóa của mọi dòng bằng 1 câu truy vấn)
+        Map<Long, HangHoa> hangHoaMap = validatePhieuNhapData(dto);
 
         User currentUser = getCurrentUser();
         Kho kho = khoRepository.findById(dto.getKhoId())
@@ -179,13 +194,18 @@ public class PhieuNhapKhoService {
 
         // Lưu phiếu nhập
         phieuNhap = phieuNhapKhoRepository.save(phieuNhap);
-
-        // Lưu chi tiết phiếu nhập
-        if (dto.getChiTiet() != null && !dto.getChiTiet().isEmpty()) {
-            for (PhieuNhapKhoDTO.ChiTietPhieuNhapDTO chiTietDTO : dto.getChiTiet()) {
-                saveChiTietPhieuNhap(phieuNhap, chiTietDTO);
-            }
+        ghiThongKe(phieuNhap, null, PhieuNhapKho.TrangThaiPhieuNhap.NHAP);
+
+        // Lưu chi tiết phiếu nhập (vị trí kho nạp bằng 1 câu truy vấn)
+        Map<Long, ViTriKho> viTriMap = viTriKhoRepository.findAllById(dto.getChiTiet().stream()
+                        .map(PhieuNhapKhoDTO.ChiTietPhieuNhapDTO::getViTriKhoId)
+                        .collect(Collectors.toSet())).stream()
+                .collect(Collectors.toMap(ViTriKho::getId, Function.identity()));
+        List<ChiTietPhieuNhap> chiTietList = new ArrayList<>(dto.getChiTiet().size());
+        for (PhieuNhapKhoDTO.ChiTietPhieuNhapDTO chiTietDTO : dto.getChiTiet()) {
+            chiTietList.add(taoChiTietPhieuNhap(phieuNhap, chiTietDTO, hangHoaMap, viTriMap));
         }
+        chiTietPhieuNhapRepository.saveAll(chiTietList);
 
         log.info("Created phieu nhap successfully with ID: {}", phieuNhap.getId());
         return convertToDTOWithDetails(phieuNhap);
@@ -234,162 +254,250 @@ public class PhieuNhapKhoService {
         PhieuNhapKho phieuNhap = phieuNhapKhoRepository.findById(id)
                 .orElseThrow(() -> new IllegalArgumentException("Không tìm thấy phiếu nhập"));
 
-        // Validate trạng thái
+        kiemTraCoTheDuyet(phieuNhap);
+
+        User currentUser = getCurrentUser();
+        List<ChiTietPhieuNhap> chiTietList = layChiTietDeDuyet(id);
+
+        try {
+            apDungDuyet(phieuNhap, chiTietList, currentUser);
+            return convertToDTOWithDetails(phieuNhap);
+
+        } catch (Exception e) {
+            log.error("❌ Error approving phieu nhap ID: {}", id, e);
+            throw new RuntimeException("Lỗi khi duyệt phiếu nhập: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Duyệt một phiếu trong lượt duyệt hàng loạt - transaction RIÊNG cho từng phiếu
+     * (phiếu lỗi chỉ rollback chính nó). Người duyệt được truyền vào, không tra lại.
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW, rollbackFor = Exception.class)
+    public void duyetPhieuNhapTrongLo(Long id, User nguoiDuyet) {
+        PhieuNhapKho phieuNhap = phieuNhapKhoRepository.findById(id)
+                .orElseThrow(() -> new IllegalArgumentException("Không tìm thấy phiếu nhập"));
+
+        kiemTraCoTheDuyet(phieuNhap);
+        apDungDuyet(phieuNhap, layChiTietDeDuyet(id), nguoiDuyet);
+    }
+
+    /**
+     * Duyệt một phiếu trong transaction đang có của hàng đợi duyệt (nhiều phiếu cùng kho chung một transaction).
+     * Lỗi ở bất kỳ phiếu nào làm cả transaction rollback - xem HangDoiDuyetService.
+     */
+    @Transactional(propagation = Propagation.MANDATORY, rollbackFor = Exception.class)
+    public void duyetPhieuNhapTrongGiaoDich(Long id, User nguoiDuyet) {
+        PhieuNhapKho phieuNhap = phieuNhapKhoRepository.findById(id)
+                .orElseThrow(() -> new IllegalArgumentException("Không tìm thấy phiếu nhập"));
+
+        kiemTraCoTheDuyet(phieuNhap);
+        apDungDuyet(phieuNhap, layChiTietDeDuyet(id), nguoiDuyet);
+    }
+
+    /**
+     * Cộng / trừ bảng thống kê phiếu theo ngày khi phiếu đổi trạng thái (cùng transaction)
+     */
+    private void ghiThongKe(PhieuNhapKho phieuNhap,
+                            PhieuNhapKho.TrangThaiPhieuNhap trangThaiCu,
+                            PhieuNhapKho.TrangThaiPhieuNhap trangThaiMoi) {
+        thongKePhieuService.chuyenTrangThai(ThongKePhieuNgay.LoaiPhieu.NHAP, phieuNhap.getNgayNhap(),
+                phieuNhap.getKho().getId(), trangThaiCu, trangThaiMoi, phieuNhap.getTongThanhToan());
+    }
+
+    private void kiemTraCoTheDuyet(PhieuNhapKho phieuNhap) {
         if (phieuNhap.getTrangThai() == PhieuNhapKho.TrangThaiPhieuNhap.DA_DUYET) {
             throw new IllegalStateException("Phiếu nhập đã được duyệt");
         }
         if (phieuNhap.getTrangThai() == PhieuNhapKho.TrangThaiPhieuNhap.HUY) {
             throw new IllegalStateException("Không thể duyệt phiếu nhập đã hủy");
         }
+        if (nhapFilePhieuNhapService.dangNhapFile(phieuNhap.getId())) {
+            throw new IllegalStateException("Phiếu nhập đang được nhập chi tiết từ file, vui lòng chờ hoàn thành");
+        }
+    }
 
-        User currentUser = getCurrentUser();
-        List<ChiTietPhieuNhap> chiTietList = chiTietPhieuNhapRepository.findByPhieuNhapId(id);
+    private List<ChiTietPhieuNhap> layChiTietDeDuyet(Long phieuNhapId) {
+        List<ChiTietPhieuNhap> chiTietList = chiTietPhieuNhapRepository.findByPhieuNhapId(phieuNhapId);
 
         if (chiTietList.isEmpty()) {
             throw new IllegalStateException("Phiếu nhập không có chi tiết");
         }
+        return chiTietList;
+    }
 
-        try {
-            // Xử lý từng chi tiết
-            for (ChiTietPhieuNhap chiTiet : chiTietList) {
-                processChiTietNhapKho(chiTiet, phieuNhap);
-            }
-
-            // Cập nhật trạng thái phiếu nhập
-            phieuNhap.setNguoiDuyet(currentUser);
-            phieuNhap.setNgayDuyet(LocalDateTime.now());
-            phieuNhap.setTrangThai(PhieuNhapKho.TrangThaiPhieuNhap.DA_DUYET);
-            phieuNhapKhoRepository.save(phieuNhap);
-
-            log.info("✅ Successfully approved phieu nhap ID: {} by user: {}",
-                    id, currentUser.getTenDangNhap());
-
-            return convertToDTOWithDetails(phieuNhap);
-
-        } catch (Exception e) {
-            log.error("❌ Error approving phieu nhap ID: {}", id, e);
-            throw new RuntimeException("Lỗi khi duyệt phiếu nhập: " + e.getMessage(), e);
-        }
+    /**
+     * Nhập kho cả phiếu + cập nhật trạng thái phiếu (đã qua kiểm tra trạng thái)
+     */
+    private void apDungDuyet(PhieuNhapKho phieuNhap, List<ChiTietPhieuNhap> chiTietList, User nguoiDuyet) {
+        nhapKhoTheoPhieu(phieuNhap, chiTietList, nguoiDuyet);
+
+        // Cập nhật trạng thái phiếu nhập
+        ghiThongKe(phieuNhap, phieuNhap.getTrangThai(), PhieuNhapKho.TrangThaiPhieuNhap.DA_DUYET);
+        phieuNhap.setNguoiDuyet(nguoiDuyet);
+        phieuNhap.setNgayDuyet(LocalDateTime.now());
+        phieuNhap.setTrangThai(PhieuNhapKho.TrangThaiPhieuNhap.DA_DUYET);
+        phieuNhapKhoRepository.save(phieuNhap);
+
+        log.info("✅ Successfully approved phieu nhap ID: {} by user ID: {}",
+                phieuNhap.getId(), nguoiDuyet.getId());
     }
 
     /**
-     * Xử lý một chi tiết phiếu nhập
+     * Nhập kho cho toàn bộ phiếu - xử lý theo tập hợp thay vì từng dòng:
+     * 1. Nạp hàng hóa / vị trí 1 lần, kiểm tra sức chứa mọi vị trí bằng 1 câu SUM ... GROUP BY
+     * 2. Cộng tồn kho theo kho theo tổng từng hàng hóa (thứ tự ID tăng dần)
+     * 3. Lô: tìm mọi lô đã có bằng 1 câu truy vấn, cộng dồn trong bộ nhớ, lưu một lượt (LoHangService)
+     * 4. Hàng - vị trí: nạp các dòng hiện có 1 lần, cộng / tạo mới trong bộ nhớ, saveAll
+     * 5. Hàng hóa: gộp số lượng theo hàng hóa, mỗi hàng hóa 1 câu UPDATE; giá nhập trung bình = giá trị tồn / số lượng
+     *    (giá trị tồn cộng chính xác ở bước 2, xem DinhGiaTon)
+     * 6. Lịch sử tồn kho: đọc lại tồn kho sau nhập 1 lần, tính trước / sau cho từng dòng
+     *
+     * Thứ tự khóa: ton_kho_theo_kho → lo_hang → hang_hoa (giống duyệt phiếu xuất).
      */
-    private void processChiTietNhapKho(ChiTietPhieuNhap chiTiet, PhieuNhapKho phieuNhap) {
-        HangHoa hangHoa = chiTiet.getHangHoa();
+    private void nhapKhoTheoPhieu(PhieuNhapKho phieuNhap,
+                                  List<ChiTietPhieuNhap> chiTietList,
+                                  User nguoiThucHien) {
+        Long khoId = phieuNhap.getKho().getId();
+
+        Map<Long, Integer> tongNhap = new LinkedHashMap<>();
+        Map<Long, Long> giaTriNhap = new LinkedHashMap<>();
+        Set<Long> viTriKhoIds = new HashSet<>();
+        for (ChiTietPhieuNhap chiTiet : chiTietList) {
+            if (chiTiet.getViTriKho() == null) {
+                throw new IllegalStateException(
+                        "Chi tiết phiếu nhập ID " + chiTiet.getId() + " chưa có vị trí kho");
+            }
+            Long hangHoaId = chiTiet.getHangHoa().getId();
+            tongNhap.merge(hangHoaId, chiTiet.getSoLuong(), Integer::sum);
+            giaTriNhap.merge(hangHoaId, DinhGiaTon.tuDonGia(chiTiet.getDonGia(), chiTiet.getSoLuong()), Math::addExact);
+            viTriKhoIds.add(chiTiet.getViTriKho().getId());
+        }
 
-        // Lưu số lượng trước khi nhập (để ghi lịch sử)
-        Integer soLuongTruocNhap = hangHoa.getSoLuongCoTheXuat() != null ?
-                hangHoa.getSoLuongCoTheXuat() : 0;
+        // 1. Nạp hàng hóa + vị trí vào persistence context (thay vì khởi tạo từng proxy)
+        hangHoaRepository.findAllById(tongNhap.keySet());
+        Map<Long, ViTriKho> viTriMap = viTriKhoRepository.findAllById(viTriKhoIds).stream()
+                .collect(Collectors.toMap(ViTriKho::getId, Function.identity()));
 
-        // 1. Kiểm tra sức chứa vị trí kho
-        validateViTriKhoCapacity(chiTiet);
+        // 2. Tồn kho + giá trị tồn theo kho
+        new TreeMap<>(tongNhap).forEach((hangHoaId, soLuong) ->
+                tonKhoTheoKhoService.congTonKho(hangHoaId, khoId, soLuong, giaTriNhap.get(hangHoaId)));
 
-        // 2. Tạo/Cập nhật lô hàng (nếu có quản lý lô)
-        LoHang loHang = null;
-        if (hangHoa.getCoQuanLyLo() != null && hangHoa.getCoQuanLyLo() &&
-                chiTiet.getSoLo() != null && !chiTiet.getSoLo().trim().isEmpty()) {
+        // 3. Lô hàng (chỉ hàng có quản lý lô và có số lô)
+        List<ChiTietPhieuNhap> chiTietCoLo = chiTietList.stream()
+                .filter(ct -> Boolean.TRUE.equals(ct.getHangHoa().getCoQuanLyLo())
+                        && ct.getSoLo() != null && !ct.getSoLo().trim().isEmpty())
+                .collect(Collectors.toList());
+        loHangService.nhapLoTheoPhieu(phieuNhap, chiTietCoLo);
 
-            // ✅ GỌI TỪ LoHangService thay vì method trong class này
-            loHang = loHangService.findOrCreateLoHang(chiTiet, phieuNhap);
-            chiTiet.setLoHang(loHang);
-            log.info("📦 Assigned lo_hang_id={} to chi_tiet_id={}",
-                    loHang.getId(), chiTiet.getId());
-        }
+        // 4. Hàng hóa - vị trí, bộ đếm sức chứa của vị trí (vượt sức chứa → IllegalStateException, rollback cả phiếu)
+        capNhatHangHoaViTriSauNhap(chiTietList, tongNhap.keySet(), viTriMap);
 
-        // 3. Cập nhật hàng hóa vị trí
-        if (chiTiet.getViTriKho() != null) {
-            updateHangHoaViTri(chiTiet, loHang);
+        // 5. Hàng hóa: 1 câu UPDATE / mặt hàng, thứ tự ID tăng dần; giá nhập trung bình suy ra từ giá trị tồn các kho
+        new TreeMap<>(tongNhap).forEach(hangHoaService::congTonKhoSauNhap);
+        hangHoaService.capNhatGiaBinhQuan(tongNhap.keySet());
+
+        // 6. Lịch sử tồn kho (đọc tồn kho thật sau nhập - dòng đang bị khóa bởi transaction này)
+        Map<Long, Integer> tonKhoTruoc = new HashMap<>();
+        for (Object[] row : hangHoaRepository.findSoLuongCoTheXuatByIdIn(tongNhap.keySet())) {
+            Long hangHoaId = (Long) row[0];
+            int tonKhoSau = row[1] != null ? (Integer) row[1] : 0;
+            tonKhoTruoc.put(hangHoaId, tonKhoSau - tongNhap.get(hangHoaId));
         }
 
-        // 4. Cập nhật tồn kho
-        updateInventoryFromNhap(chiTiet);
+        List<LichSuTonKho> lichSuList = new ArrayList<>(chiTietList.size());
+        for (ChiTietPhieuNhap chiTiet : chiTietList) {
+            Long hangHoaId = chiTiet.getHangHoa().getId();
+            int soLuongTruocNhap = tonKhoTruoc.get(hangHoaId);
+            int soLuongSauNhap = soLuongTruocNhap + chiTiet.getSoLuong();
+            tonKhoTruoc.put(hangHoaId, soLuongSauNhap);
 
-        // 5. Ghi lịch sử tồn kho ✅ THÊM MỚI
-        Integer soLuongSauNhap = hangHoa.getSoLuongCoTheXuat();
-        ghiLichSuTonKho(chiTiet, phieuNhap, soLuongTruocNhap, soLuongSauNhap);
+            lichSuList.add(taoLichSuNhapKho(chiTiet, phieuNhap, soLuongTruocNhap, soLuongSauNhap, nguoiThucHien));
+            chiTiet.setTrangThai(ChiTietPhieuNhap.TrangThaiChiTiet.DA_NHAP);
+        }
 
-        // 6. Cập nhật trạng thái chi tiết
-        chiTiet.setTrangThai(ChiTietPhieuNhap.TrangThaiChiTiet.DA_NHAP);
-        chiTietPhieuNhapRepository.save(chiTiet);
-    }
+        lichSuTonKhoWriter.ghi(lichSuList);
+        chiTietPhieuNhapRepository.saveAll(chiTietList);
 
+        log.info("✅ Nhập kho thành công: {} dòng, {} mặt hàng, {} dòng có lô",
+                chiTietList.size(), tongNhap.size(), chiTietCoLo.size());
+    }
 
     /**
-     * Kiểm tra sức chứa vị trí kho
+     * Cộng / tạo mới hang_hoa_vi_tri cho cả phiếu: nạp các dòng hiện có bằng 1 câu truy vấn,
+     * so khớp (hàng hóa, vị trí, lô) trong bộ nhớ, lưu dòng mới bằng saveAll; sau đó cộng bộ đếm sức chứa của vị trí
      */
-    private void validateViTriKhoCapacity(ChiTietPhieuNhap chiTiet) {
-        ViTriKho viTriKho = chiTiet.getViTriKho();
-
-        if (viTriKho == null) {
-            throw new IllegalStateException(
-                    "Chi tiết phiếu nhập ID " + chiTiet.getId() + " chưa có vị trí kho");
+    private void capNhatHangHoaViTriSauNhap(List<ChiTietPhieuNhap> chiTietList,
+                                            Collection<Long> hangHoaIds,
+                                            Map<Long, ViTriKho> viTriMap) {
+        Map<List<Long>, HangHoaViTri> dongTheoKhoa = new HashMap<>();
+        for (HangHoaViTri dong : hangHoaViTriRepository.findByViTriKhoIdInAndHangHoaIdIn(viTriMap.keySet(), hangHoaIds)) {
+            dongTheoKhoa.putIfAbsent(khoaHangHoaViTri(dong.getHangHoa(), dong.getViTriKho(), dong.getLoHang()), dong);
         }
 
-        if (viTriKho.getSucChuaToiDa() != null && viTriKho.getSucChuaToiDa() > 0) {
-            Integer soLuongHienTai = hangHoaViTriRepository
-                    .sumSoLuongByViTriKhoId(viTriKho.getId())
-                    .orElse(0);
-
-            Integer soLuongSauNhap = soLuongHienTai + chiTiet.getSoLuong();
-
-            if (soLuongSauNhap > viTriKho.getSucChuaToiDa()) {
-                // ✅ MESSAGE RÕ RÀNG CHO NGƯỜI DÙNG
-                String errorMessage = String.format(
-                        "Không thể nhập vào vị trí '%s': " +
-                                "Sức chứa tối đa %d, hiện tại đã có %d, " +
-                                "không thể nhập thêm %d (tổng sẽ là %d). " +
-                                "Vui lòng chọn vị trí khác hoặc tăng sức chứa.",
-                        viTriKho.getTenViTri(),
-                        viTriKho.getSucChuaToiDa(),
-                        soLuongHienTai,
-                        chiTiet.getSoLuong(),
-                        soLuongSauNhap
-                );
-
-                log.error("❌ Validation failed: {}", errorMessage);
-                throw new IllegalStateException(errorMessage);
+        List<HangHoaViTri> dongMoi = new ArrayList<>();
+        for (ChiTietPhieuNhap chiTiet : chiTietList) {
+            ViTriKho viTriKho = viTriMap.get(chiTiet.getViTriKho().getId());
+            List<Long> khoa = khoaHangHoaViTri(chiTiet.getHangHoa(), viTriKho, chiTiet.getLoHang());
+            HangHoaViTri dong = dongTheoKhoa.get(khoa);
+
+            if (dong != null) {
+                dong.setSoLuong(dong.getSoLuong() + chiTiet.getSoLuong());
+            } else {
+                dong = HangHoaViTri.builder()
+                        .hangHoa(chiTiet.getHangHoa())
+                        .viTriKho(viTriKho)
+                        .loHang(chiTiet.getLoHang())
+                        .soLuong(chiTiet.getSoLuong())
+                        .build();
+                dongTheoKhoa.put(khoa, dong);
+                dongMoi.add(dong);
             }
         }
-    }
 
+        hangHoaViTriRepository.saveAll(dongMoi);
+        log.info("Updated hang_hoa_vi_tri: {} dòng cộng thêm, {} dòng mới",
+                chiTietList.size() - dongMoi.size(), dongMoi.size());
 
+        ViTriKhoService.BienDongViTri bienDong = new ViTriKhoService.BienDongViTri();
+        for (ChiTietPhieuNhap chiTiet : chiTietList) {
+            bienDong.them(chiTiet.getViTriKho().getId(), chiTiet.getSoLuong(), 0);
+        }
+        for (HangHoaViTri dong : dongMoi) {
+            bienDong.them(dong.getViTriKho().getId(), 0, 1);
+        }
+        viTriKhoService.apDungBienDong(bienDong);
+    }
+
+    private static List<Long> khoaHangHoaViTri(HangHoa hangHoa, ViTriKho viTriKho, LoHang loHang) {
+        // Arrays.asList: cho phép phần tử null (hàng không quản lý lô)
+        return Arrays.asList(hangHoa.getId(), viTriKho.getId(), loHang != null ? loHang.getId() : null);
+    }
 
     /**
-     * Ghi lịch sử biến động tồn kho
+     * Dòng lịch sử biến động tồn kho cho một chi tiết phiếu nhập
      */
-    private void ghiLichSuTonKho(ChiTietPhieuNhap chiTiet,
-                                 PhieuNhapKho phieuNhap,
-                                 Integer soLuongTruoc,
-                                 Integer soLuongSau) {
-        try {
-            LichSuTonKho lichSu = LichSuTonKho.builder()
-                    .hangHoa(chiTiet.getHangHoa())
-                    .loHang(chiTiet.getLoHang())
-                    .viTriKho(chiTiet.getViTriKho())
-                    .loaiBienDong(LichSuTonKho.LoaiBienDong.NHAP_KHO)
-                    .soLuongTruoc(soLuongTruoc)
-                    .soLuongBienDong(chiTiet.getSoLuong())
-                    .soLuongSau(soLuongSau)
-                    .donGia(chiTiet.getDonGia())
-                    .giaTriBienDong(chiTiet.getThanhTien())
-                    .maChungTu(phieuNhap.getMaPhieuNhap())
-                    .loaiChungTu(LichSuTonKho.LoaiChungTu.PHIEU_NHAP)
-                    .lyDo("Nhập kho từ phiếu nhập " + phieuNhap.getMaPhieuNhap())
-                    .nguoiThucHien(getCurrentUser())
-                    .build();
-
-            lichSuTonKhoRepository.save(lichSu);
-
-            log.info("📝 Saved lich su ton kho: HangHoa={}, Before={}, After={}, Delta=+{}",
-                    chiTiet.getHangHoa().getTenHangHoa(),
-                    soLuongTruoc,
-                    soLuongSau,
-                    chiTiet.getSoLuong());
-        } catch (Exception e) {
-            log.error("❌ Error saving lich su ton kho", e);
-            throw new RuntimeException("Lỗi ghi lịch sử tồn kho: " + e.getMessage());
-        }
+    private LichSuTonKho taoLichSuNhapKho(ChiTietPhieuNhap chiTiet,
+                                          PhieuNhapKho phieuNhap,
+                                          Integer soLuongTruoc,
+                                          Integer soLuongSau,
+                                          User nguoiThucHien) {
+        return LichSuTonKho.builder()
+                .hangHoa(chiTiet.getHangHoa())
+                .kho(phieuNhap.getKho())
+                .loHang(chiTiet.getLoHang())
+                .viTriKho(chiTiet.getViTriKho())
+                .loaiBienDong(LichSuTonKho.LoaiBienDong.NHAP_KHO)
+                .soLuongTruoc(soLuongTruoc)
+                .soLuongBienDong(chiTiet.getSoLuong())
+                .soLuongSau(soLuongSau)
+                .donGia(chiTiet.getDonGia())
+                .giaTriBienDong(chiTiet.getThanhTien())
+                .maChungTu(phieuNhap.getMaPhieuNhap())
+                .loaiChungTu(LichSuTonKho.LoaiChungTu.PHIEU_NHAP)
+                .lyDo("Nhập kho từ phiếu nhập " + phieuNhap.getMaPhieuNhap())
+                .nguoiThucHien(nguoiThucHien)
+                .build();
     }
 
     /**
@@ -408,6 +516,7 @@ public class PhieuNhapKhoService {
             throw new IllegalArgumentException("Lý do hủy không được để trống");
         }
 
+        ghiThongKe(phieuNhap, phieuNhap.getTrangThai(), PhieuNhapKho.TrangThaiPhieuNhap.HUY);
         phieuNhap.setTrangThai(PhieuNhapKho.TrangThaiPhieuNhap.HUY);
         phieuNhap.setLyDoHuy(lyDoHuy);
         phieuNhap.setUpdatedBy(getCurrentUser());
@@ -442,8 +551,12 @@ public class PhieuNhapKhoService {
             for (ChiTietPhieuNhap chiTiet : chiTietList) {
                 rollbackChiTietNhapKho(chiTiet, phieuNhap);
             }
+            hangHoaService.capNhatGiaBinhQuan(chiTietList.stream()
+                    .map(ct -> ct.getHangHoa().getId())
+                    .collect(Collectors.toSet()));
 
             // Cập nhật trạng thái phiếu nhập
+            ghiThongKe(phieuNhap, phieuNhap.getTrangThai(), PhieuNhapKho.TrangThaiPhieuNhap.CHO_DUYET);
             phieuNhap.setTrangThai(PhieuNhapKho.TrangThaiPhieuNhap.CHO_DUYET);
             phieuNhap.setNguoiDuyet(null);
             phieuNhap.setNgayDuyet(null);
@@ -451,7 +564,7 @@ public class PhieuNhapKhoService {
                     (phieuNhap.getGhiChu() != null ? phieuNhap.getGhiChu() + "\n\n" : "") +
                             "⚠️ ĐÃ HỦY DUYỆT\n" +
                             "Lý do: " + lyDoHuyDuyet + "\n" +
-                            "Người thực hiện: " + getCurrentUser().getHoTen() + "\n" +
+                            "Người thực hiện: " + nguoiDungHienTai.hoTen() + "\n" +
                             "Thời gian: " + LocalDateTime.now()
             );
             phieuNhapKhoRepository.save(phieuNhap);
@@ -487,24 +600,27 @@ public class PhieuNhapKhoService {
             );
         }
 
-        // 2. Giảm tồn kho
+        // 2. Giảm tồn kho (tổng + theo kho) - giá trị tồn trừ đúng giá trị dòng đã nhập
         hangHoaService.capNhatTonKhoSauXuat(hangHoa.getId(), soLuongNhap);
+        tonKhoTheoKhoService.truTonKhoTheoGiaTri(hangHoa.getId(), phieuNhap.getKho().getId(), soLuongNhap,
+                DinhGiaTon.tuDonGia(chiTiet.getDonGia(), soLuongNhap));
 
         // 3. Xử lý lô hàng (nếu có)
         if (chiTiet.getLoHang() != null) {
             LoHang loHang = chiTiet.getLoHang();
 
-            // Trừ số lượng từ lô
-            loHang.setSoLuongNhap(loHang.getSoLuongNhap() - soLuongNhap);
-            loHang.setSoLuongHienTai(loHang.getSoLuongHienTai() - soLuongNhap);
-
-            // Nếu lô về 0 → Xóa lô
-            if (loHang.getSoLuongNhap() <= 0) {
-                loHangRepository.delete(loHang);
-                log.info("🗑️ Deleted lo_hang ID={}", loHang.getId());
-            } else {
-                loHangRepository.save(loHang);
-            }
+            // Trừ số lượng từ lô - không chạm vào phần đã xuất / đang giữ cho phiếu xuất (UPDATE có điều kiện).
+            // Lô về 0 vẫn được giữ lại (HET_HANG): chi tiết phiếu nhập, lịch sử tồn kho và các dòng giữ hàng
+            // đã trả lại còn tham chiếu tới lô; duyệt lại phiếu sẽ cộng lại vào đúng lô này.
+            thongKeLoHangService.ghi(List.of(loHang.getId()), () -> {
+                if (loHangRepository.rutSoLuongNhapCoDieuKien(loHang.getId(), soLuongNhap) == 0) {
+                    throw new IllegalStateException(
+                            "Không thể hủy duyệt: Lô '" + loHang.getSoLo() + "' của hàng hóa '" +
+                                    hangHoa.getTenHangHoa() + "' đã xuất hoặc đang được giữ cho phiếu xuất, " +
+                                    "không còn đủ " + soLuongNhap + " để rút lại."
+                    );
+                }
+            });
         }
 
         // 4. Xóa/Giảm hang_hoa_vi_tri
@@ -518,22 +634,26 @@ public class PhieuNhapKhoService {
 
             if (viTriOpt.isPresent()) {
                 HangHoaViTri viTri = viTriOpt.get();
-                viTri.setSoLuong(viTri.getSoLuong() - soLuongNhap);
+                int soLuongTruoc = viTri.getSoLuong();
+                viTri.setSoLuong(soLuongTruoc - soLuongNhap);
 
-                if (viTri.getSoLuong() <= 0) {
+                boolean xoaDong = viTri.getSoLuong() <= 0;
+                if (xoaDong) {
                     hangHoaViTriRepository.delete(viTri);
                 } else {
                     hangHoaViTriRepository.save(viTri);
                 }
 
-                // Cập nhật trạng thái vị trí kho
-                updateViTriKhoStatus(chiTiet.getViTriKho());
+                // Cập nhật bộ đếm sức chứa + trạng thái vị trí kho
+                viTriKhoService.apDungBienDong(new ViTriKhoService.BienDongViTri()
+                        .them(viTriKhoId, xoaDong ? -soLuongTruoc : -soLuongNhap, xoaDong ? -1 : 0));
             }
         }
 
         // 5. Ghi lịch sử
         LichSuTonKho lichSu = LichSuTonKho.builder()
                 .hangHoa(hangHoa)
+                .kho(phieuNhap.getKho())
                 .loHang(chiTiet.getLoHang())
                 .viTriKho(chiTiet.getViTriKho())
                 .loaiBienDong(LichSuTonKho.LoaiBienDong.HUY_DUYET_NHAP)
@@ -548,7 +668,7 @@ public class PhieuNhapKhoService {
                 .nguoiThucHien(getCurrentUser())
                 .build();
 
-        lichSuTonKhoRepository.save(lichSu);
+        lichSuTonKhoWriter.ghi(lichSu);
 
         // 6. Cập nhật trạng thái chi tiết
         chiTiet.setTrangThai(ChiTietPhieuNhap.TrangThaiChiTiet.CHO_NHAP);
@@ -572,6 +692,7 @@ public class PhieuNhapKhoService {
 
         // Xóa phiếu nhập
         phieuNhapKhoRepository.deleteById(id);
+        ghiThongKe(phieuNhap, phieuNhap.getTrangThai(), null);
 
         log.info("Deleted phieu nhap ID: {}", id);
     }
@@ -583,49 +704,29 @@ public class PhieuNhapKhoService {
     public PhieuNhapKhoDTO.ThongKePhieuNhap getThongKePhieuNhap(
             Long khoId, LocalDate tuNgay, LocalDate denNgay) {
 
-        Specification<PhieuNhapKho> spec = (root, query, cb) -> {
-            List<Predicate> predicates = new ArrayList<>();
-
-            if (khoId != null) {
-                predicates.add(cb.equal(root.get("kho").get("id"), khoId));
-            }
-
-            if (tuNgay != null) {
-                predicates.add(cb.greaterThanOrEqualTo(
-                        root.get("ngayNhap").as(LocalDate.class), tuNgay));
-            }
-
-            if (denNgay != null) {
-                predicates.add(cb.lessThanOrEqualTo(
-                        root.get("ngayNhap").as(LocalDate.class), denNgay));
-            }
-
-            return cb.and(predicates.toArray(new Predicate[0]));
-        };
-
-        List<PhieuNhapKho> phieuNhapList = phieuNhapKhoRepository.findAll(spec);
-
-        long tongSoPhieu = phieuNhapList.size();
-        long soPhieuChoDuyet = phieuNhapList.stream()
-                .filter(p -> p.getTrangThai() == PhieuNhapKho.TrangThaiPhieuNhap.CHO_DUYET)
-                .count();
-        long soPhieuDaDuyet = phieuNhapList.stream()
-                .filter(p -> p.getTrangThai() == PhieuNhapKho.TrangThaiPhieuNhap.DA_DUYET)
-                .count();
-
-        BigDecimal tongGiaTri = phieuNhapList.stream()
-                .filter(p -> p.getTrangThai() == PhieuNhapKho.TrangThaiPhieuNhap.DA_DUYET)
-                .map(PhieuNhapKho::getTongThanhToan)
-                .reduce(BigDecimal.ZERO, BigDecimal::add);
+        // Đếm / cộng bằng SQL theo trạng thái (khoảng dài đọc bảng tổng hợp theo ngày) - không nạp entity
+        Map<String, ThongKePhieuService.DongThongKe> theoTrangThai =
+                thongKePhieuService.thongKe(ThongKePhieuNgay.LoaiPhieu.NHAP, khoId, tuNgay, denNgay);
+        ThongKePhieuService.DongThongKe daDuyet = theoTrangThai.getOrDefault(
+                PhieuNhapKho.TrangThaiPhieuNhap.DA_DUYET.name(), new ThongKePhieuService.DongThongKe(0, BigDecimal.ZERO));
 
         return PhieuNhapKhoDTO.ThongKePhieuNhap.builder()
-                .tongSoPhieu(tongSoPhieu)
-                .soPhieuChoDuyet(soPhieuChoDuyet)
-                .soPhieuDaDuyet(soPhieuDaDuyet)
-                .tongGiaTri(tongGiaTri)
+                .tongSoPhieu(theoTrangThai.values().stream().mapToLong(ThongKePhieuService.DongThongKe::soPhieu).sum())
+                .soPhieuNhap(soPhieu(theoTrangThai, PhieuNhapKho.TrangThaiPhieuNhap.NHAP))
+                .soPhieuChoDuyet(soPhieu(theoTrangThai, PhieuNhapKho.TrangThaiPhieuNhap.CHO_DUYET))
+                .soPhieuDaDuyet(daDuyet.soPhieu())
+                .soPhieuHuy(soPhieu(theoTrangThai, PhieuNhapKho.TrangThaiPhieuNhap.HUY))
+                .tongGiaTri(daDuyet.tongGiaTri())
+                .giaTriDaDuyet(daDuyet.tongGiaTri())
                 .build();
     }
 
+    private static long soPhieu(Map<String, ThongKePhieuService.DongThongKe> theoTrangThai,
+                                PhieuNhapKho.TrangThaiPhieuNhap trangThai) {
+        ThongKePhieuService.DongThongKe dong = theoTrangThai.get(trangThai.name());
+        return dong != null ? dong.soPhieu() : 0L;
+    }
+
     /**
      * Lấy danh sách phiếu nhập chờ duyệt
      */
@@ -663,7 +764,7 @@ public class PhieuNhapKhoService {
     /**
      * Validate dữ liệu phiếu nhập
      */
-    private void validatePhieuNhapData(PhieuNhapKhoDTO dto) {
+    private Map<Long, HangHoa> validatePhieuNhapData(PhieuNhapKhoDTO dto) {
         if (dto.getKhoId() == null) {
             throw new IllegalArgumentException("Kho không được để trống");
         }
@@ -672,6 +773,12 @@ public class PhieuNhapKhoService {
             throw new IllegalArgumentException("Chi tiết phiếu nhập không được để trống");
         }
 
+        Map<Long, HangHoa> hangHoaMap = hangHoaRepository.findAllById(dto.getChiTiet().stream()
+                        .map(PhieuNhapKhoDTO.ChiTietPhieuNhapDTO::getHangHoaId)
+                        .filter(Objects::nonNull)
+                        .collect(Collectors.toSet())).stream()
+                .collect(Collectors.toMap(HangHoa::getId, Function.identity()));
+
         for (PhieuNhapKhoDTO.ChiTietPhieuNhapDTO chiTiet : dto.getChiTiet()) {
             if (chiTiet.getHangHoaId() == null) {
                 throw new IllegalArgumentException("Hàng hóa không được để trống");
@@ -696,8 +803,10 @@ public class PhieuNhapKhoService {
             }
 
             // ✅ THÊM VALIDATION SỐ LÔ
-            HangHoa hangHoa = hangHoaRepository.findById(chiTiet.getHangHoaId())
-                    .orElseThrow(() -> new IllegalArgumentException("Không tìm thấy hàng hóa"));
+            HangHoa hangHoa = hangHoaMap.get(chiTiet.getHangHoaId());
+            if (hangHoa == null) {
+                throw new IllegalArgumentException("Không tìm thấy hàng hóa");
+            }
 
             if (hangHoa.getCoQuanLyLo() != null && hangHoa.getCoQuanLyLo()) {
                 if (chiTiet.getSoLo() == null || chiTiet.getSoLo().trim().isEmpty()) {
@@ -710,6 +819,8 @@ public class PhieuNhapKhoService {
                 }
             }
         }
+
+        return hangHoaMap;
     }
 
     /**
@@ -756,17 +867,16 @@ public class PhieuNhapKhoService {
     }
 
     /**
-     * Lưu chi tiết phiếu nhập
+     * Tạo entity chi tiết phiếu nhập (hàng hóa, vị trí lấy từ map đã nạp sẵn)
      */
-    private void saveChiTietPhieuNhap(PhieuNhapKho phieuNhap,
-                                      PhieuNhapKhoDTO.ChiTietPhieuNhapDTO chiTietDTO) {
-
-        HangHoa hangHoa = hangHoaRepository.findById(chiTietDTO.getHangHoaId())
-                .orElseThrow(() -> new IllegalArgumentException("Không tìm thấy hàng hóa"));
+    private ChiTietPhieuNhap taoChiTietPhieuNhap(PhieuNhapKho phieuNhap,
+                                                 PhieuNhapKhoDTO.ChiTietPhieuNhapDTO chiTietDTO,
+                                                 Map<Long, HangHoa> hangHoaMap,
+                                                 Map<Long, ViTriKho> viTriMap) {
 
         ChiTietPhieuNhap chiTiet = new ChiTietPhieuNhap();
         chiTiet.setPhieuNhap(phieuNhap);
-        chiTiet.setHangHoa(hangHoa);
+        chiTiet.setHangHoa(hangHoaMap.get(chiTietDTO.getHangHoaId()));
         chiTiet.setSoLuong(chiTietDTO.getSoLuong());
         chiTiet.setDonGia(chiTietDTO.getDonGia());
         chiTiet.setThanhTien(chiTietDTO.getThanhTien());
@@ -780,63 +890,29 @@ public class PhieuNhapKhoService {
 
         // ✅ SET VỊ TRÍ KHO
         if (chiTietDTO.getViTriKhoId() != null) {
-            ViTriKho viTriKho = viTriKhoRepository.findById(chiTietDTO.getViTriKhoId())
-                    .orElseThrow(() -> new IllegalArgumentException("Không tìm thấy vị trí kho"));
+            ViTriKho viTriKho = viTriMap.get(chiTietDTO.getViTriKhoId());
+            if (viTriKho == null) {
+                throw new IllegalArgumentException("Không tìm thấy vị trí kho");
+            }
             chiTiet.setViTriKho(viTriKho);
         }
 
-        chiTietPhieuNhapRepository.save(chiTiet);
+        return chiTiet;
     }
 
     /**
-     * ✅ ĐÃ SỬA: Cập nhật tồn kho khi duyệt phiếu nhập
-     * Delegate logic sang HangHoaService
+     * Sinh mã phiếu nhập tự động: PN-yyyyMMdd-xxxx (cấp từ bộ đếm trong DB, không trùng giữa các node)
      */
-    private void updateInventoryFromNhap(ChiTietPhieuNhap chiTiet) {
-        log.info("🔄 Updating inventory for HangHoa ID: {} via HangHoaService",
-                chiTiet.getHangHoa().getId());
-
-        // ✅ GỌI METHOD TỪ HangHoaService (thay vì tự xử lý)
-        hangHoaService.capNhatTonKhoSauNhap(
-                chiTiet.getHangHoa().getId(),    // ID hàng hóa
-                chiTiet.getSoLuong(),            // Số lượng nhập
-                chiTiet.getDonGia()              // Đơn giá nhập
-        );
-
-        log.info("✅ Inventory updated successfully for HangHoa ID: {}",
-                chiTiet.getHangHoa().getId());
+    public String generateMaPhieuNhap() {
+        return soChungTuService.capMaTheoNgay("PN", prefix ->
+                phieuNhapKhoRepository.findMaxNumberByPrefix(prefix + "%", prefix.length()));
     }
 
     /**
-     * Sinh mã phiếu nhập tự động - Thread-safe
-     */
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public synchronized String generateMaPhieuNhap() {
-        LocalDate now = LocalDate.now();
-        String prefix = String.format("PN-%d%02d%02d-",
-                now.getYear(), now.getMonthValue(), now.getDayOfMonth());
-
-        try {
-            Long maxNumber = phieuNhapKhoRepository
-                    .findMaxNumberByPrefix(prefix + "%", prefix.length());
-
-            return String.format("%s%04d", prefix, (maxNumber != null ? maxNumber : 0) + 1);
-        } catch (Exception e) {
-            log.error("Error generating ma phieu nhap", e);
-            // Fallback: sử dụng timestamp
-            return String.format("%s%s", prefix,
-                    String.valueOf(System.currentTimeMillis()).substring(8));
-        }
-    }
-
-    /**
-     * Lấy thông tin user hiện tại từ SecurityContext
+     * Tham chiếu tới user hiện tại (lấy từ JWT của request, không tra lại bảng user)
      */
     private User getCurrentUser() {
-        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
-        String username = auth.getName();
-        return userRepository.findByTenDangNhap(username)
-                .orElseThrow(() -> new IllegalStateException("Không tìm thấy thông tin người dùng"));
+        return nguoiDungHienTai.thamChieu();
     }
 
     /**
@@ -1028,73 +1104,4 @@ public class PhieuNhapKhoService {
         // Mới (chưa xuất)
         return LoHang.TrangThaiLoHang.MOI;
     }
-
-    /**
-     * Cập nhật hoặc tạo mới bản ghi hang_hoa_vi_tri
-     */
-    private void updateHangHoaViTri(ChiTietPhieuNhap chiTiet, LoHang loHang) {
-        Long hangHoaId = chiTiet.getHangHoa().getId();
-        Long viTriKhoId = chiTiet.getViTriKho().getId();
-        Long loHangId = loHang != null ? loHang.getId() : null;
-
-        // Tìm bản ghi hiện có
-        Optional<HangHoaViTri> existingOpt = hangHoaViTriRepository
-                .findByHangHoaIdAndViTriKhoIdAndLoHangId(hangHoaId, viTriKhoId, loHangId);
-
-        HangHoaViTri hangHoaViTri;
-
-        if (existingOpt.isPresent()) {
-            // Cập nhật số lượng
-            hangHoaViTri = existingOpt.get();
-            hangHoaViTri.setSoLuong(hangHoaViTri.getSoLuong() + chiTiet.getSoLuong());
-            log.info("Updated hang_hoa_vi_tri: HangHoa={}, ViTri={}, LoHang={}, OldQty={}, NewQty={}",
-                    hangHoaId, viTriKhoId, loHangId,
-                    hangHoaViTri.getSoLuong() - chiTiet.getSoLuong(),
-                    hangHoaViTri.getSoLuong());
-        } else {
-            // Tạo mới
-            hangHoaViTri = HangHoaViTri.builder()
-                    .hangHoa(chiTiet.getHangHoa())
-                    .viTriKho(chiTiet.getViTriKho())
-                    .loHang(loHang)
-                    .soLuong(chiTiet.getSoLuong())
-                    .build();
-            log.info("Created new hang_hoa_vi_tri: HangHoa={}, ViTri={}, LoHang={}, Qty={}",
-                    hangHoaId, viTriKhoId, loHangId, chiTiet.getSoLuong());
-        }
-
-        hangHoaViTriRepository.save(hangHoaViTri);
-
-        // Cập nhật trạng thái vị trí kho
-        updateViTriKhoStatus(chiTiet.getViTriKho());
-    }
-
-    /**
-     * Cập nhật trạng thái vị trí kho dựa trên số lượng hàng
-     */
-    private void updateViTriKhoStatus(ViTriKho viTriKho) {
-        Long soLuongHangHoa = hangHoaViTriRepository.countByViTriKhoId(viTriKho.getId());
-
-        ViTriKho.TrangThaiViTri trangThaiMoi;
-
-        if (soLuongHangHoa == 0) {
-            trangThaiMoi = ViTriKho.TrangThaiViTri.TRONG;
-        } else if (viTriKho.getSucChuaToiDa() != null &&
-                viTriKho.getSucChuaToiDa() > 0 &&
-                soLuongHangHoa >= viTriKho.getSucChuaToiDa() * 0.9) {
-            trangThaiMoi = ViTriKho.TrangThaiViTri.DAY;
-        } else {
-            trangThaiMoi = ViTriKho.TrangThaiViTri.CO_HANG;
-        }
-
-        // ✅ THÊM SAVE VÀ CHECK
-        if (viTriKho.getTrangThai() != trangThaiMoi) {
-            viTriKho.setTrangThai(trangThaiMoi);
-            viTriKhoRepository.save(viTriKho);
-            log.info("Updated vi tri kho ID: {} status to {}",
-                    viTriKho.getId(), trangThaiMoi);
-        }
-    }
-
-
-}
\ No newline at end of file
+}
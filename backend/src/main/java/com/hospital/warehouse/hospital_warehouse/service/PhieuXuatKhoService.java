@@ -1,27 +1,42 @@
 package com.hospital.warehouse.hospital_warehouse.service;
 
+import com.hospital.warehouse.hospital_warehouse.dto.KeHoachXuatDTO;
 import com.hospital.warehouse.hospital_warehouse.dto.PageResponse;
 import com.hospital.warehouse.hospital_warehouse.dto.PhieuXuatKhoDTO;
 import com.hospital.warehouse.hospital_warehouse.entity.*;
 import com.hospital.warehouse.hospital_warehouse.repository.*;
+import com.hospital.warehouse.hospital_warehouse.util.DinhGiaTon;
+import com.hospital.warehouse.hospital_warehouse.util.FefoAllocator;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.domain.Specification;
-import org.springframework.security.core.Authentication;
-import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import jakarta.persistence.criteria.Predicate;
 import java.math.BigDecimal;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 @Slf4j
@@ -34,14 +49,22 @@ public class PhieuXuatKhoService {
     private final KhoRepository khoRepository;
     private final HangHoaRepository hangHoaRepository;
     private final LoHangRepository loHangRepository;
-    private final UserRepository userRepository;
+    private final NguoiDungHienTai nguoiDungHienTai;
     private final HangHoaViTriRepository hangHoaViTriRepository;
-    private final ViTriKhoRepository viTriKhoRepository;
-    private final LichSuTonKhoRepository lichSuTonKhoRepository;
+    private final ViTriKhoService viTriKhoService;
+    private final LichSuTonKhoWriter lichSuTonKhoWriter;
     private final KhoaPhongRepository khoaPhongRepository;
     private final LoHangService loHangService;  // ✅ THÊM DÒNG NÀY
 
     private final HangHoaService hangHoaService;
+    private final TonKhoTheoKhoService tonKhoTheoKhoService;
+    private final DatTruTonKhoService datTruTonKhoService;
+    private final SoChungTuService soChungTuService;
+    private final PhanBoXuatLoRepository phanBoXuatLoRepository;
+    private final KeHoachXuatCache keHoachXuatCache;
+    private final ThongKePhieuService thongKePhieuService;
+    private final TruTonKhoService truTonKhoService;
+    private final ThongKeLoHangService thongKeLoHangService;
 
     /**
      * Lấy danh sách phiếu xuất có phân trang và lọc
@@ -181,14 +204,19 @@ public class PhieuXuatKhoService {
 
         // Lưu phiếu xuất
         phieuXuat = phieuXuatKhoRepository.save(phieuXuat);
+        ghiThongKe(phieuXuat, null, PhieuXuatKho.TrangThaiPhieuXuat.XUAT);
 
         // Lưu chi tiết phiếu xuất
+        List<ChiTietPhieuXuat> chiTietList = new ArrayList<>();
         if (dto.getChiTiet() != null && !dto.getChiTiet().isEmpty()) {
             for (PhieuXuatKhoDTO.ChiTietPhieuXuatDTO chiTietDTO : dto.getChiTiet()) {
-                saveChiTietPhieuXuat(phieuXuat, chiTietDTO);
+                chiTietList.add(saveChiTietPhieuXuat(phieuXuat, chiTietDTO));
             }
         }
 
+        // Giữ hàng theo FEFO ngay lúc lập phiếu → thiếu hàng được báo ngay, duyệt chỉ việc xuất
+        giuHangChoPhieu(phieuXuat, chiTietList);
+
         log.info("Created phieu xuat successfully with ID: {}", phieuXuat.getId());
         return convertToDTOWithDetails(phieuXuat);
     }
@@ -220,6 +248,160 @@ public class PhieuXuatKhoService {
         return convertToDTOWithDetails(phieuXuatKhoRepository.save(phieuXuat));
     }
 
+    /**
+     * Xem trước kế hoạch xuất: chạy đúng logic phân bổ của duyệt phiếu (FEFO + vị trí) nhưng chỉ đọc.
+     * Kế hoạch FEFO đủ hàng được lưu theo phiên bản tồn kho để lần duyệt ngay sau đó dùng lại.
+     */
+    @Transactional(readOnly = true)
+    public KeHoachXuatDTO getKeHoachXuat(Long id) {
+        PhieuXuatKho phieuXuat = phieuXuatKhoRepository.findById(id)
+                .orElseThrow(() -> new IllegalArgumentException("Không tìm thấy phiếu xuất"));
+
+        kiemTraCoTheDuyet(phieuXuat);
+        List<ChiTietPhieuXuat> chiTietList = layChiTietDeDuyet(id);
+
+        List<FefoAllocator.PhanBo> phanBoLo;
+        Map<ChiTietPhieuXuat, KeHoachXuatDTO.ThieuHang> thieuHang = new LinkedHashMap<>();
+        Map<Long, Integer> coTheXuatKhongLo = new HashMap<>();
+        String nguon;
+        String phienBan = null;
+
+        List<DatTruTonKho> datTruList = datTruTonKhoService.xemDatTruDangGiu(id);
+        if (!datTruList.isEmpty() && datTruTonKhoService.phuDuPhieu(datTruList, chiTietList)
+                && datTruTonKhoService.loConXuatDuoc(datTruList)) {
+            // Duyệt sẽ xuất đúng theo phần đã giữ
+            nguon = "DAT_TRU";
+            phanBoLo = datTruList.stream()
+                    .filter(d -> d.getLoHang() != null)
+                    .map(d -> new FefoAllocator.PhanBo(d.getChiTietPhieuXuat(), d.getLoHang(), d.getSoLuong()))
+                    .collect(Collectors.toList());
+        } else {
+            nguon = "FEFO";
+            List<ChiTietPhieuXuat> chiTietCoLo = locChiTietCoLo(chiTietList);
+            phanBoLo = new ArrayList<>();
+
+            if (!chiTietCoLo.isEmpty()) {
+                phienBan = tinhPhienBanTonKho(phieuXuat, chiTietCoLo);
+                FefoAllocator.KetQua ketQua = tinhPhanBoFefo(phieuXuat, chiTietCoLo);
+                phanBoLo = ketQua.phanBo();
+
+                Set<Long> hangHoaCoLo = phanBoLo.stream()
+                        .map(pb -> pb.chiTiet().getHangHoa().getId())
+                        .collect(Collectors.toSet());
+                ketQua.thieuHang().forEach((chiTiet, soLuongThieu) -> thieuHang.put(chiTiet,
+                        taoThieuHang(chiTiet, soLuongThieu,
+                                hangHoaCoLo.contains(chiTiet.getHangHoa().getId())
+                                        ? "Các lô tại kho không đủ hàng"
+                                        : "Kho không có lô khả dụng")));
+
+                if (ketQua.duHang()) {
+                    keHoachXuatCache.luu(id, phienBan, phanBoLo.stream()
+                            .map(pb -> new KeHoachXuatCache.PhanBoDaTinh(
+                                    pb.chiTiet().getId(), pb.loHang().getId(), pb.soLuong()))
+                            .collect(Collectors.toList()));
+                }
+            }
+
+            // Hàng không quản lý lô: đối chiếu tồn kho tại kho, trừ dần theo từng dòng
+            Set<Long> hangHoaKhongLoIds = chiTietList.stream()
+                    .filter(ct -> !Boolean.TRUE.equals(ct.getHangHoa().getCoQuanLyLo()))
+                    .map(ct -> ct.getHangHoa().getId())
+                    .collect(Collectors.toSet());
+            if (!hangHoaKhongLoIds.isEmpty()) {
+                tonKhoTheoKhoService.getTonKhoTaiKho(phieuXuat.getKho().getId(), hangHoaKhongLoIds)
+                        .forEach((hangHoaId, tonKho) -> coTheXuatKhongLo.put(hangHoaId, tonKho.getSoLuongCoTheXuat()));
+
+                for (ChiTietPhieuXuat chiTiet : chiTietList) {
+                    Long hangHoaId = chiTiet.getHangHoa().getId();
+                    if (!hangHoaKhongLoIds.contains(hangHoaId)) continue;
+
+                    int conLai = coTheXuatKhongLo.getOrDefault(hangHoaId, 0);
+                    int lay = Math.min(conLai, chiTiet.getSoLuongXuat());
+                    coTheXuatKhongLo.put(hangHoaId, conLai - lay);
+                    if (lay < chiTiet.getSoLuongXuat()) {
+                        thieuHang.put(chiTiet, taoThieuHang(chiTiet, chiTiet.getSoLuongXuat() - lay,
+                                "Tồn kho tại kho không đủ"));
+                    }
+                }
+            }
+        }
+
+        // Vị trí lấy hàng của từng lô (chỉ đọc)
+        Map<Long, Integer> xuatTheoLo = new LinkedHashMap<>();
+        phanBoLo.forEach(pb -> xuatTheoLo.merge(pb.loHang().getId(), pb.soLuong(), Integer::sum));
+        List<PhanBoTaiViTri> taiViTri = xuatTheoLo.isEmpty() ? List.of() : chiaTheoViTri(phanBoLo,
+                nhomTheoLo(chonViTriLayHang(
+                        hangHoaViTriRepository.findByLoHangIdInWithViTriKho(xuatTheoLo.keySet()), xuatTheoLo)));
+
+        Map<ChiTietPhieuXuat, List<PhanBoTaiViTri>> taiViTriTheoDong = taiViTri.stream()
+                .collect(Collectors.groupingBy(pb -> pb.phanBo().chiTiet(), LinkedHashMap::new, Collectors.toList()));
+
+        List<KeHoachXuatDTO.DongKeHoach> dongKeHoach = new ArrayList<>();
+        for (ChiTietPhieuXuat chiTiet : chiTietList) {
+            if (Boolean.TRUE.equals(chiTiet.getHangHoa().getCoQuanLyLo())) {
+                for (PhanBoTaiViTri pb : taiViTriTheoDong.getOrDefault(chiTiet, List.of())) {
+                    LoHang lo = pb.phanBo().loHang();
+                    dongKeHoach.add(taoDongKeHoach(chiTiet, lo, pb.viTriKho(), pb.soLuong(),
+                            lo.getGiaNhap() != null ? lo.getGiaNhap() : BigDecimal.ZERO));
+                }
+            } else {
+                KeHoachXuatDTO.ThieuHang thieu = thieuHang.get(chiTiet);
+                int soLuong = chiTiet.getSoLuongXuat() - (thieu != null ? thieu.getSoLuongThieu() : 0);
+                if (soLuong > 0) {
+                    dongKeHoach.add(taoDongKeHoach(chiTiet, null, null, soLuong,
+                            chiTiet.getDonGia() != null ? chiTiet.getDonGia() : BigDecimal.ZERO));
+                }
+            }
+        }
+
+        return KeHoachXuatDTO.builder()
+                .phieuXuatId(phieuXuat.getId())
+                .maPhieuXuat(phieuXuat.getMaPhieuXuat())
+                .khoId(phieuXuat.getKho().getId())
+                .tenKho(phieuXuat.getKho().getTenKho())
+                .nguon(nguon)
+                .duHang(thieuHang.isEmpty())
+                .phienBanTonKho(phienBan)
+                .tongGiaVon(dongKeHoach.stream()
+                        .map(KeHoachXuatDTO.DongKeHoach::getThanhTien)
+                        .reduce(BigDecimal.ZERO, BigDecimal::add))
+                .thoiGianLap(LocalDateTime.now())
+                .dongKeHoach(dongKeHoach)
+                .thieuHang(new ArrayList<>(thieuHang.values()))
+                .build();
+    }
+
+    private KeHoachXuatDTO.DongKeHoach taoDongKeHoach(ChiTietPhieuXuat chiTiet, LoHang loHang,
+                                                      ViTriKho viTriKho, int soLuong, BigDecimal donGia) {
+        HangHoa hangHoa = chiTiet.getHangHoa();
+        return KeHoachXuatDTO.DongKeHoach.builder()
+                .chiTietPhieuXuatId(chiTiet.getId())
+                .hangHoaId(hangHoa.getId())
+                .maHangHoa(hangHoa.getMaHangHoa())
+                .tenHangHoa(hangHoa.getTenHangHoa())
+                .loHangId(loHang != null ? loHang.getId() : null)
+                .soLo(loHang != null ? loHang.getSoLo() : null)
+                .hanSuDung(loHang != null ? loHang.getHanSuDung() : null)
+                .viTriKhoId(viTriKho != null ? viTriKho.getId() : null)
+                .maViTri(viTriKho != null ? viTriKho.getMaViTri() : null)
+                .tenViTri(viTriKho != null ? viTriKho.getTenViTri() : null)
+                .soLuong(soLuong)
+                .donGia(donGia)
+                .thanhTien(donGia.multiply(BigDecimal.valueOf(soLuong)))
+                .build();
+    }
+
+    private KeHoachXuatDTO.ThieuHang taoThieuHang(ChiTietPhieuXuat chiTiet, int soLuongThieu, String lyDo) {
+        return KeHoachXuatDTO.ThieuHang.builder()
+                .chiTietPhieuXuatId(chiTiet.getId())
+                .hangHoaId(chiTiet.getHangHoa().getId())
+                .tenHangHoa(chiTiet.getHangHoa().getTenHangHoa())
+                .soLuongYeuCau(chiTiet.getSoLuongXuat())
+                .soLuongThieu(soLuongThieu)
+                .lyDo(lyDo)
+                .build();
+    }
+
     /**
      * Duyệt phiếu xuất - Logic quan trọng nhất
      */
@@ -228,260 +410,799 @@ public class PhieuXuatKhoService {
         PhieuXuatKho phieuXuat = phieuXuatKhoRepository.findById(id)
                 .orElseThrow(() -> new IllegalArgumentException("Không tìm thấy phiếu xuất"));
 
-        // Validate trạng thái
+        kiemTraCoTheDuyet(phieuXuat);
+
+        User currentUser = getCurrentUser();
+        List<ChiTietPhieuXuat> chiTietList = layChiTietDeDuyet(id);
+
+        try {
+            apDungDuyet(phieuXuat, chiTietList, currentUser, null);
+            return convertToDTOWithDetails(phieuXuat);
+
+        } catch (Exception e) {
+            log.error("❌ Error approving phieu xuat ID: {}", id, e);
+            throw new RuntimeException("Lỗi khi duyệt phiếu xuất: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Duyệt một phiếu trong lượt duyệt hàng loạt - transaction RIÊNG cho từng phiếu
+     * (phiếu lỗi chỉ rollback chính nó). Người duyệt được truyền vào, không tra lại;
+     * không dựng DTO chi tiết cho từng phiếu.
+     *
+     * @param nhom Hàng hóa / tồn kho / lô đã nạp trước cho cả nhóm phiếu cùng kho (null → tự truy vấn)
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW, rollbackFor = Exception.class)
+    public void duyetPhieuXuatTrongLo(Long id, User nguoiDuyet, NhomKhoDuyet nhom) {
+        PhieuXuatKho phieuXuat = phieuXuatKhoRepository.findById(id)
+                .orElseThrow(() -> new IllegalArgumentException("Không tìm thấy phiếu xuất"));
+
+        kiemTraCoTheDuyet(phieuXuat);
+        apDungDuyet(phieuXuat, layChiTietDeDuyet(id), nguoiDuyet, nhom);
+    }
+
+    /**
+     * Nạp trước cho một nhóm phiếu xuất cùng kho (duyệt hàng loạt): hàng hóa của các phiếu,
+     * tồn kho có thể xuất tại kho và lô khả dụng theo FEFO - 3 câu truy vấn cho cả nhóm
+     * thay vì mỗi phiếu tự tra lại.
+     */
+    @Transactional(readOnly = true)
+    public NhomKhoDuyet napTruocNhomKho(Long khoId, Collection<Long> phieuXuatIds) {
+        Map<Long, HangHoa> hangHoaTheoId = chiTietPhieuXuatRepository.findHangHoaByPhieuXuatIdIn(phieuXuatIds)
+                .stream()
+                .collect(Collectors.toMap(HangHoa::getId, Function.identity()));
+
+        Map<Long, Integer> coTheXuat = new HashMap<>();
+        tonKhoTheoKhoService.getTonKhoTaiKho(khoId, hangHoaTheoId.keySet())
+                .forEach((hangHoaId, tonKho) -> coTheXuat.put(hangHoaId, tonKho.getSoLuongCoTheXuat()));
+
+        Set<Long> hangHoaCoLoIds = hangHoaTheoId.values().stream()
+                .filter(hh -> Boolean.TRUE.equals(hh.getCoQuanLyLo()))
+                .map(HangHoa::getId)
+                .collect(Collectors.toCollection(TreeSet::new));
+        Map<Long, List<LoHang>> loTheoHangHoa = hangHoaCoLoIds.isEmpty()
+                ? new HashMap<>()
+                : loHangRepository.findAvailableLoHangForXuatByHangHoaIds(hangHoaCoLoIds, khoId).stream()
+                        .collect(Collectors.groupingBy(lo -> lo.getHangHoa().getId(),
+                                LinkedHashMap::new, Collectors.toList()));
+
+        log.info("📦 Nạp trước kho {}: {} phiếu, {} hàng hóa, {} lô khả dụng", khoId, phieuXuatIds.size(),
+                hangHoaTheoId.size(), loTheoHangHoa.values().stream().mapToInt(List::size).sum());
+        return new NhomKhoDuyet(khoId, hangHoaTheoId, coTheXuat, loTheoHangHoa);
+    }
+
+    /**
+     * Duyệt một phiếu trong transaction đang có của hàng đợi duyệt (nhiều phiếu cùng kho chung một transaction).
+     * Lỗi ở bất kỳ phiếu nào làm cả transaction rollback - xem HangDoiDuyetService.
+     */
+    @Transactional(propagation = Propagation.MANDATORY, rollbackFor = Exception.class)
+    public void duyetPhieuXuatTrongGiaoDich(Long id, User nguoiDuyet) {
+        PhieuXuatKho phieuXuat = phieuXuatKhoRepository.findById(id)
+                .orElseThrow(() -> new IllegalArgumentException("Không tìm thấy phiếu xuất"));
+
+        kiemTraCoTheDuyet(phieuXuat);
+        apDungDuyet(phieuXuat, layChiTietDeDuyet(id), nguoiDuyet, null);
+    }
+
+    private void kiemTraCoTheDuyet(PhieuXuatKho phieuXuat) {
         if (phieuXuat.getTrangThai() == PhieuXuatKho.TrangThaiPhieuXuat.DA_DUYET) {
             throw new IllegalStateException("Phiếu xuất đã được duyệt");
         }
         if (phieuXuat.getTrangThai() == PhieuXuatKho.TrangThaiPhieuXuat.HUY) {
             throw new IllegalStateException("Không thể duyệt phiếu xuất đã hủy");
         }
+    }
 
-        User currentUser = getCurrentUser();
-        List<ChiTietPhieuXuat> chiTietList = chiTietPhieuXuatRepository.findByPhieuXuatId(id);
+    private List<ChiTietPhieuXuat> layChiTietDeDuyet(Long phieuXuatId) {
+        List<ChiTietPhieuXuat> chiTietList = chiTietPhieuXuatRepository.findByPhieuXuatId(phieuXuatId);
 
         if (chiTietList.isEmpty()) {
             throw new IllegalStateException("Phiếu xuất không có chi tiết");
         }
+        return chiTietList;
+    }
 
-        try {
-            // Xử lý từng chi tiết
-            for (ChiTietPhieuXuat chiTiet : chiTietList) {
-                processChiTietXuatKho(chiTiet, phieuXuat);
+    /**
+     * Xuất kho + cập nhật trạng thái phiếu (đã qua kiểm tra trạng thái)
+     */
+    private void apDungDuyet(PhieuXuatKho phieuXuat, List<ChiTietPhieuXuat> chiTietList, User nguoiDuyet,
+                             NhomKhoDuyet nhom) {
+        // Phân bổ FEFO + trừ tồn kho cho toàn bộ phiếu
+        xuatKhoTheoPhieu(phieuXuat, chiTietList, nguoiDuyet, nhom);
+
+        // Cập nhật trạng thái phiếu xuất
+        ghiThongKe(phieuXuat, phieuXuat.getTrangThai(), PhieuXuatKho.TrangThaiPhieuXuat.DA_DUYET);
+        phieuXuat.setNguoiDuyet(nguoiDuyet);
+        phieuXuat.setNgayDuyet(LocalDateTime.now());
+        phieuXuat.setTrangThai(PhieuXuatKho.TrangThaiPhieuXuat.DA_DUYET);
+        phieuXuatKhoRepository.save(phieuXuat);
+        keHoachXuatCache.xoa(phieuXuat.getId());
+
+        log.info("✅ Successfully approved phieu xuat ID: {} by user ID: {}",
+                phieuXuat.getId(), nguoiDuyet.getId());
+    }
+
+    /**
+     * Xuất kho cho toàn bộ phiếu theo FEFO (First Expired First Out) - xử lý theo tập hợp
+     *
+     * Phiếu đã giữ hàng đủ lúc lập (DatTruTonKho) → chỉ chuyển phần đã giữ thành xuất, không tìm lô lại.
+     * Ngược lại (phiếu cũ, giữ hàng đã hết hạn, đã hủy duyệt) → trả lại phần giữ còn sót rồi:
+     * 1. Kiểm tra + trừ tồn kho TẠI KHO XUẤT theo tổng số lượng từng hàng hóa (gộp các dòng trùng hàng)
+     * 2. Lấy lô khả dụng của TẤT CẢ hàng có quản lý lô bằng 1 câu truy vấn
+     * 3. Phân bổ FEFO trong bộ nhớ (FefoAllocator) - các dòng trùng hàng dùng chung lô
+     * 4. Trừ lô / hàng hóa qua TruTonKhoService (UPDATE có điều kiện hoặc sửa entity - theo cấu hình);
+     *    vị trí luôn được sửa trên entity → Hibernate gom UPDATE theo batch lúc flush
+     * 5. Ghi lịch sử tồn kho bằng saveAll
+     *
+     * Có nhóm nạp trước (duyệt hàng loạt) → bước 1-3 đọc từ nhóm, không truy vấn; nhóm báo thiếu thì
+     * vẫn kiểm tra lại trên DB. UPDATE có điều kiện ở bước 4 luôn là chốt chặn cuối cùng.
+     */
+    private void xuatKhoTheoPhieu(PhieuXuatKho phieuXuat,
+                                  List<ChiTietPhieuXuat> chiTietList,
+                                  User currentUser,
+                                  NhomKhoDuyet nhom) {
+        Long khoId = phieuXuat.getKho().getId();
+
+        Map<Long, HangHoa> hangHoaMap = new LinkedHashMap<>();
+        Map<Long, Integer> tongCanXuat = new LinkedHashMap<>();
+        gopTheoHangHoa(chiTietList, hangHoaMap, tongCanXuat);
+        if (nhom != null) {
+            // Hàng hóa đã nạp trước: không khởi tạo proxy của từng dòng
+            hangHoaMap.replaceAll((hangHoaId, hangHoa) -> nhom.hangHoaTheoId.getOrDefault(hangHoaId, hangHoa));
+        }
+
+        List<DatTruTonKho> datTruList = datTruTonKhoService.layDatTruDangGiu(phieuXuat.getId());
+        if (!datTruList.isEmpty()) {
+            if (datTruTonKhoService.phuDuPhieu(datTruList, chiTietList)
+                    && datTruTonKhoService.loConXuatDuoc(datTruList)) {
+                xuatTheoDatTru(phieuXuat, chiTietList, datTruList, tongCanXuat, currentUser);
+                return;
             }
+            log.warn("⚠️ Giữ hàng của phiếu {} không đủ hoặc có lô đã hết hạn, trả lại và phân bổ lại",
+                    phieuXuat.getMaPhieuXuat());
+            datTruTonKhoService.giaiPhong(datTruList, DatTruTonKho.TrangThaiDatTru.DA_HUY);
+        }
 
-            // Cập nhật trạng thái phiếu xuất
-            phieuXuat.setNguoiDuyet(currentUser);
-            phieuXuat.setNgayDuyet(LocalDateTime.now());
-            phieuXuat.setTrangThai(PhieuXuatKho.TrangThaiPhieuXuat.DA_DUYET);
-            phieuXuatKhoRepository.save(phieuXuat);
+        // 1. Kiểm tra + trừ tồn kho theo kho (UPDATE có điều kiện, thứ tự ID tăng dần), giá trị theo giá bình quân tại kho
+        if (nhom == null || !nhom.duTonKho(tongCanXuat)) {
+            kiemTraTonKhoTaiKho(phieuXuat, hangHoaMap, tongCanXuat);
+        }
+        Map<Long, Long> giaTriXuat = new HashMap<>();
+        new TreeMap<>(tongCanXuat).forEach((hangHoaId, soLuong) ->
+                giaTriXuat.put(hangHoaId, tonKhoTheoKhoService.truTonKho(hangHoaId, khoId, soLuong)));
+        ganGiaTriXuat(chiTietList, giaTriXuat);
+
+        // 2-4. Hàng có quản lý lô → phân bổ FEFO
+        List<FefoAllocator.PhanBo> phanBoLo = nhom != null
+                ? phanBoLoTheoNhom(phieuXuat, chiTietList, hangHoaMap, tongCanXuat, nhom)
+                : phanBoLoFefo(phieuXuat, chiTietList, hangHoaMap, tongCanXuat);
+
+        // Gộp số lượng xuất theo lô (2 dòng cùng hàng có thể lấy chung 1 lô)
+        Map<Long, Integer> xuatTheoLo = new LinkedHashMap<>();
+        if (!phanBoLo.isEmpty()) {
+            for (FefoAllocator.PhanBo phanBo : phanBoLo) {
+                log.info("📤 XUAT from Lot: ID={}, SoLo={}, XuatRa={}",
+                        phanBo.loHang().getId(), phanBo.loHang().getSoLo(), phanBo.soLuong());
+                xuatTheoLo.merge(phanBo.loHang().getId(), phanBo.soLuong(), Integer::sum);
+            }
 
-            log.info("✅ Successfully approved phieu xuat ID: {} by user: {}",
-                    id, currentUser.getTenDangNhap());
+            truTonKhoService.truLo(xuatTheoLo);
 
-            return convertToDTOWithDetails(phieuXuat);
+            ghiPhanBoXuatLo(phieuXuat, phanBoLo, capNhatHangHoaViTriSauXuat(xuatTheoLo));
+        }
 
-        } catch (Exception e) {
-            log.error("❌ Error approving phieu xuat ID: {}", id, e);
-            throw new RuntimeException("Lỗi khi duyệt phiếu xuất: " + e.getMessage(), e);
+        // 4-5. Trừ tồn kho hàng hóa, rồi đọc tồn kho thật sau khi trừ (1 câu) để ghi lịch sử
+        // (dòng đang bị transaction này khóa nên giá trị là chính xác)
+        truTonKhoService.truHangHoa(tongCanXuat);
+        List<LichSuTonKho> lichSuList = taoLichSuTheoTonKhoSau(phieuXuat, chiTietList, tongCanXuat,
+                hangHoaRepository.findSoLuongCoTheXuatByIdIn(tongCanXuat.keySet()), currentUser);
+
+        lichSuTonKhoWriter.ghi(lichSuList);
+        chiTietPhieuXuatRepository.saveAll(chiTietList);
+        hangHoaService.capNhatGiaBinhQuan(tongCanXuat.keySet());
+
+        if (nhom != null) {
+            // Phiếu đã commit mới trừ vào nhóm nạp trước (phiếu rollback không làm lệch nhóm)
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    nhom.daXuat(tongCanXuat, xuatTheoLo);
+                }
+            });
         }
+
+        log.info("✅ Xuất kho thành công: {} dòng, {} mặt hàng", chiTietList.size(), hangHoaMap.size());
     }
 
     /**
-     * Xử lý xuất kho theo FEFO (First Expired First Out)
+     * Duyệt phiếu đã giữ hàng: áp dụng kế hoạch đã tính lúc lập phiếu
+     * (không kiểm tra tồn kho, không tìm lô - phần giữ hàng đã bảo đảm đủ)
      */
-    private void processChiTietXuatKho(ChiTietPhieuXuat chiTiet, PhieuXuatKho phieuXuat) {
-        HangHoa hangHoa = chiTiet.getHangHoa();
-        Integer soLuongCanXuat = chiTiet.getSoLuongXuat();
-        Long khoId = phieuXuat.getKho().getId();
+    private void xuatTheoDatTru(PhieuXuatKho phieuXuat,
+                                List<ChiTietPhieuXuat> chiTietList,
+                                List<DatTruTonKho> datTruList,
+                                Map<Long, Integer> tongCanXuat,
+                                User currentUser) {
+        Map<Long, Long> giaTriXuat = new HashMap<>();
+        Map<Long, Integer> xuatTheoLo = datTruTonKhoService.chuyenThanhXuat(datTruList, giaTriXuat);
+        ganGiaTriXuat(chiTietList, giaTriXuat);
+
+        if (!xuatTheoLo.isEmpty()) {
+            // Nạp các lô 1 lần (lấy giá vốn) thay vì khởi tạo từng proxy
+            loHangRepository.findAllById(xuatTheoLo.keySet());
+
+            List<FefoAllocator.PhanBo> phanBoLo = datTruList.stream()
+                    .filter(d -> d.getLoHang() != null)
+                    .map(d -> new FefoAllocator.PhanBo(d.getChiTietPhieuXuat(), d.getLoHang(), d.getSoLuong()))
+                    .collect(Collectors.toList());
+
+            ghiPhanBoXuatLo(phieuXuat, phanBoLo, capNhatHangHoaViTriSauXuat(xuatTheoLo));
+        }
 
-        log.info("🔄 Processing xuat kho: HangHoa={}, Kho={}, SoLuong={}, QuanLyLo={}",
-                hangHoa.getTenHangHoa(), khoId, soLuongCanXuat, hangHoa.getCoQuanLyLo());
+        // Lịch sử theo "có thể xuất" như mọi dòng lịch sử khác: phần giữ hàng đã rời "có thể xuất" từ lúc lập phiếu
+        // (không ghi lịch sử) nên được ghi nhận tại đây - "trước" = có thể xuất hiện tại + số lượng xuất
+        List<LichSuTonKho> lichSuList = taoLichSuTheoTonKhoSau(phieuXuat, chiTietList, tongCanXuat,
+                hangHoaRepository.findSoLuongCoTheXuatByIdIn(tongCanXuat.keySet()), currentUser);
 
-        // 1. Kiểm tra tồn kho
-        Integer tonKhoHienTai = hangHoa.getSoLuongCoTheXuat() != null ?
-                hangHoa.getSoLuongCoTheXuat() : 0;
+        lichSuTonKhoWriter.ghi(lichSuList);
+        chiTietPhieuXuatRepository.saveAll(chiTietList);
+        hangHoaService.capNhatGiaBinhQuan(tongCanXuat.keySet());
 
-        if (tonKhoHienTai < soLuongCanXuat) {
-            throw new IllegalStateException(String.format(
-                    "❌ Không đủ hàng để xuất!\n\n" +
-                            "Hàng hóa: %s\n" +
-                            "Tồn kho: %d\n" +
-                            "Yêu cầu xuất: %d\n" +
-                            "Còn thiếu: %d\n\n" +
-                            "💡 Vui lòng nhập thêm hàng hoặc giảm số lượng xuất.",
-                    hangHoa.getTenHangHoa(), tonKhoHienTai, soLuongCanXuat,
-                    soLuongCanXuat - tonKhoHienTai
-            ));
+        log.info("✅ Xuất kho theo phần đã giữ: {} dòng, {} mặt hàng", chiTietList.size(), tongCanXuat.size());
+    }
+
+    /**
+     * Giữ hàng cho phiếu vừa lập: kiểm tra tồn kho tại kho, lập kế hoạch FEFO và giữ theo kế hoạch đó
+     *
+     * @throws IllegalStateException Nếu kho không đủ hàng - báo ngay lúc lập phiếu thay vì lúc duyệt
+     */
+    private void giuHangChoPhieu(PhieuXuatKho phieuXuat, List<ChiTietPhieuXuat> chiTietList) {
+        Map<Long, HangHoa> hangHoaMap = new LinkedHashMap<>();
+        Map<Long, Integer> tongCanXuat = new LinkedHashMap<>();
+        gopTheoHangHoa(chiTietList, hangHoaMap, tongCanXuat);
+
+        kiemTraTonKhoTaiKho(phieuXuat, hangHoaMap, tongCanXuat);
+        List<FefoAllocator.PhanBo> phanBoLo = phanBoLoFefo(phieuXuat, chiTietList, hangHoaMap, tongCanXuat);
+
+        List<ChiTietPhieuXuat> chiTietKhongLo = chiTietList.stream()
+                .filter(ct -> !Boolean.TRUE.equals(ct.getHangHoa().getCoQuanLyLo()))
+                .collect(Collectors.toList());
+
+        datTruTonKhoService.giuHang(phieuXuat, tongCanXuat, phanBoLo, chiTietKhongLo);
+    }
+
+    /**
+     * Gộp số lượng xuất theo hàng hóa (các dòng trùng hàng được cộng dồn)
+     */
+    private void gopTheoHangHoa(List<ChiTietPhieuXuat> chiTietList,
+                                Map<Long, HangHoa> hangHoaMap,
+                                Map<Long, Integer> tongCanXuat) {
+        for (ChiTietPhieuXuat chiTiet : chiTietList) {
+            HangHoa hangHoa = chiTiet.getHangHoa();
+            hangHoaMap.putIfAbsent(hangHoa.getId(), hangHoa);
+            tongCanXuat.merge(hangHoa.getId(), chiTiet.getSoLuongXuat(), Integer::sum);
         }
+    }
 
-        Integer soLuongTruocXuat = tonKhoHienTai;
+    /**
+     * Chia giá trị xuất của từng hàng hóa cho các dòng theo số lượng; dòng cuối nhận phần còn lại
+     * nên tổng các dòng đúng bằng giá trị đã trừ khỏi kho (hủy duyệt cộng lại chính xác)
+     */
+    private void ganGiaTriXuat(List<ChiTietPhieuXuat> chiTietList, Map<Long, Long> giaTriXuat) {
+        Map<Long, List<ChiTietPhieuXuat>> theoHangHoa = chiTietList.stream()
+                .collect(Collectors.groupingBy(ct -> ct.getHangHoa().getId(), LinkedHashMap::new, Collectors.toList()));
+        theoHangHoa.forEach((hangHoaId, cacDong) -> {
+            long[] giaTriDong = DinhGiaTon.chiaTheoDong(giaTriXuat.getOrDefault(hangHoaId, 0L),
+                    cacDong.stream().mapToInt(ChiTietPhieuXuat::getSoLuongXuat).toArray());
+            for (int i = 0; i < cacDong.size(); i++) {
+                cacDong.get(i).setGiaTriXuat(giaTriDong[i]);
+            }
+        });
+    }
 
-        // ✅ 2. PHÂN BIỆT 2 TRƯỜNG HỢP
-        if (hangHoa.getCoQuanLyLo() != null && hangHoa.getCoQuanLyLo()) {
-            // ========== TRƯỜNG HỢP 1: CÓ QUẢN LÝ LÔ ==========
-            log.info("📦 Hàng có quản lý lô → Xuất theo FIFO");
+    /**
+     * Cộng / trừ bảng thống kê phiếu theo ngày khi phiếu đổi trạng thái (cùng transaction)
+     */
+    private void ghiThongKe(PhieuXuatKho phieuXuat,
+                            PhieuXuatKho.TrangThaiPhieuXuat trangThaiCu,
+                            PhieuXuatKho.TrangThaiPhieuXuat trangThaiMoi) {
+        thongKePhieuService.chuyenTrangThai(ThongKePhieuNgay.LoaiPhieu.XUAT, phieuXuat.getNgayXuat(),
+                phieuXuat.getKho().getId(), trangThaiCu, trangThaiMoi, phieuXuat.getTongGiaTri());
+    }
 
-            List<LoHang> danhSachLoHang = loHangRepository.findAvailableLoHangForXuat(
-                    hangHoa.getId(),
-                    khoId,
-                    0
-            );
+    /**
+     * Kiểm tra theo tồn kho CỦA KHO XUẤT (1 câu truy vấn theo khóa chính), không theo tổng toàn viện
+     */
+    private void kiemTraTonKhoTaiKho(PhieuXuatKho phieuXuat,
+                                     Map<Long, HangHoa> hangHoaMap,
+                                     Map<Long, Integer> tongCanXuat) {
+        Map<Long, TonKhoTheoKho> tonKhoTaiKho =
+                tonKhoTheoKhoService.getTonKhoTaiKho(phieuXuat.getKho().getId(), tongCanXuat.keySet());
+
+        for (Map.Entry<Long, Integer> entry : tongCanXuat.entrySet()) {
+            HangHoa hangHoa = hangHoaMap.get(entry.getKey());
+            TonKhoTheoKho tonKho = tonKhoTaiKho.get(entry.getKey());
+            int tonKhoHienTai = tonKho != null ? tonKho.getSoLuongCoTheXuat() : 0;
+            int soLuongCanXuat = entry.getValue();
+
+            if (tonKhoHienTai < soLuongCanXuat) {
+                throw new IllegalStateException(String.format(
+                        "❌ Không đủ hàng để xuất!\n\n" +
+                                "Hàng hóa: %s\n" +
+                                "Kho: %s\n" +
+                                "Tồn kho: %d\n" +
+                                "Yêu cầu xuất: %d\n" +
+                                "Còn thiếu: %d\n\n" +
+                                "💡 Vui lòng nhập thêm hàng hoặc giảm số lượng xuất.",
+                        hangHoa.getTenHangHoa(), phieuXuat.getKho().getTenKho(),
+                        tonKhoHienTai, soLuongCanXuat, soLuongCanXuat - tonKhoHienTai
+                ));
+            }
+        }
+    }
 
-            log.info("📦 Found {} available lots", danhSachLoHang.size());
-
-            if (danhSachLoHang.isEmpty()) {
-                // Kiểm tra xem có lô ở kho khác không
-                List<LoHang> loHangKhoKhac = loHangRepository
-                        .findByHangHoaIdAndSoLuongHienTaiGreaterThan(hangHoa.getId(), 0);
-
-                String errorMsg;
-                if (loHangKhoKhac.isEmpty()) {
-                    errorMsg = String.format(
-                            "❌ Không thể xuất '%s'!\n\n" +
-                                    "📦 Hàng này CÓ QUẢN LÝ LÔ nhưng CHƯA CÓ LÔ NÀO trong hệ thống.\n\n" +
-                                    "💡 Giải pháp:\n" +
-                                    "1. Tạo PHIẾU NHẬP với thông tin lô (số lô, HSD)\n" +
-                                    "2. Sau đó mới có thể xuất\n\n" +
-                                    "Chi tiết:\n" +
-                                    "- Kho: %s (ID: %d)\n" +
-                                    "- Cần xuất: %d",
-                            hangHoa.getTenHangHoa(),
-                            phieuXuat.getKho().getTenKho(), khoId,
-                            soLuongCanXuat
-                    );
-                } else {
-                    StringBuilder khoInfo = new StringBuilder();
-                    for (LoHang lo : loHangKhoKhac) {
-                        if (lo.getKho() != null) {
-                            khoInfo.append(String.format(
-                                    "\n  • %s: %d (Lô: %s, HSD: %s)",
-                                    lo.getKho().getTenKho(),
-                                    lo.getSoLuongHienTai(),
-                                    lo.getSoLo(),
-                                    lo.getHanSuDung() != null ? lo.getHanSuDung().toString() : "N/A"
-                            ));
-                        }
-                    }
+    /**
+     * Phân bổ FEFO cho các dòng hàng có quản lý lô: 1 câu truy vấn lấy lô + phân bổ trong bộ nhớ
+     * (chỉ tính phần chưa bị phiếu khác giữ). Nếu vừa xem trước kế hoạch và tồn kho lô chưa đổi
+     * thì dùng lại kế hoạch đó, không tìm lô lại.
+     *
+     * @return Kế hoạch phân bổ (rỗng nếu phiếu không có hàng quản lý lô)
+     * @throws IllegalStateException Nếu không có lô hoặc các lô không đủ hàng
+     */
+    private List<FefoAllocator.PhanBo> phanBoLoFefo(PhieuXuatKho phieuXuat,
+                                                    List<ChiTietPhieuXuat> chiTietList,
+                                                    Map<Long, HangHoa> hangHoaMap,
+                                                    Map<Long, Integer> tongCanXuat) {
+        List<ChiTietPhieuXuat> chiTietCoLo = locChiTietCoLo(chiTietList);
+
+        if (chiTietCoLo.isEmpty()) {
+            return new ArrayList<>();
+        }
 
-                    errorMsg = String.format(
-                            "❌ Không thể xuất '%s' từ '%s'!\n\n" +
-                                    "⚠️ Hàng này KHÔNG CÓ LÔ trong kho bạn chọn.\n" +
-                                    "📍 Hàng đang có ở:%s\n\n" +
-                                    "💡 Giải pháp:\n" +
-                                    "1. Nhập hàng vào '%s', hoặc\n" +
-                                    "2. Chuyển kho, hoặc\n" +
-                                    "3. Đổi kho xuất\n\n" +
-                                    "Chi tiết: Cần xuất %d",
-                            hangHoa.getTenHangHoa(),
-                            phieuXuat.getKho().getTenKho(),
-                            khoInfo.toString(),
-                            phieuXuat.getKho().getTenKho(),
-                            soLuongCanXuat
-                    );
-                }
+        if (phieuXuat.getId() != null && keHoachXuatCache.co(phieuXuat.getId())) {
+            List<FefoAllocator.PhanBo> daTinh = layKeHoachDaTinh(phieuXuat, chiTietCoLo,
+                    tinhPhienBanTonKho(phieuXuat, chiTietCoLo));
+            if (daTinh != null) {
+                return daTinh;
+            }
+        }
 
+        FefoAllocator.KetQua ketQua = tinhPhanBoFefo(phieuXuat, chiTietCoLo);
+
+        Set<Long> hangHoaCoLo = ketQua.phanBo().stream()
+                .map(pb -> pb.chiTiet().getHangHoa().getId())
+                .collect(Collectors.toSet());
+        for (ChiTietPhieuXuat chiTiet : chiTietCoLo) {
+            Long hangHoaId = chiTiet.getHangHoa().getId();
+            if (!hangHoaCoLo.contains(hangHoaId)) {
+                String errorMsg = buildKhongCoLoMessage(
+                        hangHoaMap.get(hangHoaId), phieuXuat, tongCanXuat.get(hangHoaId));
                 log.error("❌ {}", errorMsg);
                 throw new IllegalStateException(errorMsg);
             }
+        }
 
-            // Xuất theo từng lô (FIFO)
-            Integer soLuongDaXuat = 0;
-            for (LoHang loHang : danhSachLoHang) {
-                if (soLuongDaXuat >= soLuongCanXuat) break;
+        if (!ketQua.duHang()) {
+            Map.Entry<ChiTietPhieuXuat, Integer> thieu =
+                    ketQua.thieuHang().entrySet().iterator().next();
+            int canXuat = thieu.getKey().getSoLuongXuat();
+            throw new IllegalStateException(String.format(
+                    "Không đủ hàng trong các lô của '%s'. Cần: %d, Có: %d, Thiếu: %d",
+                    thieu.getKey().getHangHoa().getTenHangHoa(),
+                    canXuat, canXuat - thieu.getValue(), thieu.getValue()
+            ));
+        }
 
-                Integer soLuongCoTheLay = Math.min(
-                        loHang.getSoLuongHienTai(),
-                        soLuongCanXuat - soLuongDaXuat
-                );
+        return ketQua.phanBo();
+    }
 
-                log.info("📤 XUAT from Lot: ID={}, SoLo={}, Before={}, XuatRa={}",
-                        loHang.getId(), loHang.getSoLo(),
-                        loHang.getSoLuongHienTai(), soLuongCoTheLay);
+    /**
+     * Phân bổ FEFO trên lô đã nạp trước của nhóm (không truy vấn). Nhóm không đủ lô cho phiếu
+     * (có thể vừa nhập thêm hàng) → tìm lô lại trên DB như duyệt từng phiếu.
+     */
+    private List<FefoAllocator.PhanBo> phanBoLoTheoNhom(PhieuXuatKho phieuXuat,
+                                                        List<ChiTietPhieuXuat> chiTietList,
+                                                        Map<Long, HangHoa> hangHoaMap,
+                                                        Map<Long, Integer> tongCanXuat,
+                                                        NhomKhoDuyet nhom) {
+        List<ChiTietPhieuXuat> chiTietCoLo = chiTietList.stream()
+                .filter(ct -> Boolean.TRUE.equals(hangHoaMap.get(ct.getHangHoa().getId()).getCoQuanLyLo()))
+                .collect(Collectors.toList());
 
-                // Trừ số lượng từ lô
-                loHangService.truSoLuongLo(loHang.getId(), soLuongCoTheLay);
+        if (chiTietCoLo.isEmpty()) {
+            return new ArrayList<>();
+        }
 
-                // Cập nhật hang_hoa_vi_tri
-                updateHangHoaViTriAfterXuat(hangHoa.getId(), loHang.getId(), soLuongCoTheLay);
+        FefoAllocator.KetQua ketQua = FefoAllocator.phanBo(chiTietCoLo, nhom.loTheoHangHoa,
+                new HashMap<>(nhom.conLaiTheoLo));
+        if (ketQua.duHang()) {
+            return ketQua.phanBo();
+        }
+        return phanBoLoFefo(phieuXuat, chiTietList, hangHoaMap, tongCanXuat);
+    }
 
-                soLuongDaXuat += soLuongCoTheLay;
-            }
+    private List<ChiTietPhieuXuat> locChiTietCoLo(List<ChiTietPhieuXuat> chiTietList) {
+        return chiTietList.stream()
+                .filter(ct -> Boolean.TRUE.equals(ct.getHangHoa().getCoQuanLyLo()))
+                .collect(Collectors.toList());
+    }
 
-            if (soLuongDaXuat < soLuongCanXuat) {
-                throw new IllegalStateException(String.format(
-                        "Không đủ hàng trong các lô. Cần: %d, Có: %d, Thiếu: %d",
-                        soLuongCanXuat, soLuongDaXuat, soLuongCanXuat - soLuongDaXuat
-                ));
-            }
+    /**
+     * Tìm lô khả dụng (1 câu truy vấn) + phân bổ FEFO trong bộ nhớ, không ném lỗi khi thiếu hàng
+     * (dòng của hàng hóa không có lô nào nằm trọn trong thieuHang)
+     */
+    private FefoAllocator.KetQua tinhPhanBoFefo(PhieuXuatKho phieuXuat, List<ChiTietPhieuXuat> chiTietCoLo) {
+        Long khoId = phieuXuat.getKho().getId();
+        Set<Long> hangHoaCoLoIds = chiTietCoLo.stream()
+                .map(ct -> ct.getHangHoa().getId())
+                .collect(Collectors.toCollection(LinkedHashSet::new));
 
-        } else {
-            // ========== TRƯỜNG HỢP 2: KHÔNG QUẢN LÝ LÔ ==========
-            log.info("📦 Hàng KHÔNG quản lý lô → Trừ trực tiếp từ tồn kho");
+        Map<Long, List<LoHang>> loTheoHangHoa = loHangRepository
+                .findAvailableLoHangForXuatByHangHoaIds(hangHoaCoLoIds, khoId)
+                .stream()
+                .collect(Collectors.groupingBy(
+                        lo -> lo.getHangHoa().getId(),
+                        LinkedHashMap::new,
+                        Collectors.toList()));
+
+        log.info("📦 Found {} available lots for {} items in kho {}",
+                loTheoHangHoa.values().stream().mapToInt(List::size).sum(),
+                hangHoaCoLoIds.size(), khoId);
 
-            // Không cần kiểm tra lô, chỉ cần tồn kho đủ (đã check ở bước 1)
-            // Không cần làm gì thêm, chỉ cập nhật tồn kho ở bước sau
+        return FefoAllocator.phanBo(chiTietCoLo, loTheoHangHoa);
+    }
+
+    /**
+     * Phiên bản tồn kho mà kế hoạch FEFO phụ thuộc: lô của các hàng hóa tại kho xuất (1 câu tổng hợp)
+     * + nội dung các dòng phiếu (sửa phiếu → kế hoạch cũ không còn dùng được)
+     */
+    private String tinhPhienBanTonKho(PhieuXuatKho phieuXuat, List<ChiTietPhieuXuat> chiTietCoLo) {
+        Set<Long> hangHoaIds = chiTietCoLo.stream()
+                .map(ct -> ct.getHangHoa().getId())
+                .collect(Collectors.toCollection(TreeSet::new));
+
+        Object[] lo = loHangRepository.findPhienBanTonKhoLo(hangHoaIds, phieuXuat.getKho().getId()).get(0);
+        String dong = chiTietCoLo.stream()
+                .sorted(Comparator.comparing(ChiTietPhieuXuat::getId))
+                .map(ct -> ct.getId() + ":" + ct.getHangHoa().getId() + ":" + ct.getSoLuongXuat())
+                .collect(Collectors.joining(","));
+
+        return lo[0] + "/" + lo[1] + "/" + lo[2] + "/" + lo[3] + "|" + dong;
+    }
+
+    /**
+     * Dựng lại kế hoạch đã xem trước (nạp các lô theo khóa chính), null nếu không dùng được
+     */
+    private List<FefoAllocator.PhanBo> layKeHoachDaTinh(PhieuXuatKho phieuXuat,
+                                                        List<ChiTietPhieuXuat> chiTietCoLo,
+                                                        String phienBan) {
+        List<KeHoachXuatCache.PhanBoDaTinh> daTinh = keHoachXuatCache.lay(phieuXuat.getId(), phienBan);
+        if (daTinh == null) {
+            return null;
+        }
+
+        Map<Long, ChiTietPhieuXuat> chiTietMap = chiTietCoLo.stream()
+                .collect(Collectors.toMap(ChiTietPhieuXuat::getId, Function.identity()));
+        Map<Long, LoHang> loMap = loHangRepository.findAllById(daTinh.stream()
+                        .map(KeHoachXuatCache.PhanBoDaTinh::loHangId)
+                        .collect(Collectors.toSet()))
+                .stream()
+                .collect(Collectors.toMap(LoHang::getId, Function.identity()));
+
+        List<FefoAllocator.PhanBo> phanBo = new ArrayList<>();
+        for (KeHoachXuatCache.PhanBoDaTinh pb : daTinh) {
+            ChiTietPhieuXuat chiTiet = chiTietMap.get(pb.chiTietId());
+            LoHang loHang = loMap.get(pb.loHangId());
+            if (chiTiet == null || loHang == null) {
+                return null;
+            }
+            phanBo.add(new FefoAllocator.PhanBo(chiTiet, loHang, pb.soLuong()));
         }
 
-        // ✅ 3. Cập nhật tồn kho hàng hóa (cho cả 2 trường hợp)
-        log.info("🔄 Updating inventory via HangHoaService");
-        hangHoaService.capNhatTonKhoSauXuat(hangHoa.getId(), soLuongCanXuat);
+        log.info("♻️ Dùng lại kế hoạch FEFO đã xem trước cho phiếu {} ({} phần)",
+                phieuXuat.getMaPhieuXuat(), phanBo.size());
+        return phanBo;
+    }
 
-        // ✅ 4. Ghi lịch sử tồn kho
-        ghiLichSuTonKho(chiTiet, phieuXuat, soLuongTruocXuat,
-                hangHoa.getSoLuongCoTheXuat());
+    /**
+     * Lập lịch sử xuất cho từng dòng từ tồn kho SAU khi trừ đọc thẳng từ DB ([hangHoaId, soLuong]):
+     * tồn trước = tồn sau + tổng xuất, rồi trừ dần theo từng dòng
+     */
+    private List<LichSuTonKho> taoLichSuTheoTonKhoSau(PhieuXuatKho phieuXuat,
+                                                     List<ChiTietPhieuXuat> chiTietList,
+                                                     Map<Long, Integer> tongCanXuat,
+                                                     List<Object[]> tonKhoSauRows,
+                                                     User currentUser) {
+        Map<Long, Integer> tonKhoTruoc = new HashMap<>();
+        for (Object[] row : tonKhoSauRows) {
+            Long hangHoaId = (Long) row[0];
+            int tonKhoSau = row[1] != null ? (Integer) row[1] : 0;
+            tonKhoTruoc.put(hangHoaId, tonKhoSau + tongCanXuat.get(hangHoaId));
+        }
 
-        // ✅ 5. Cập nhật trạng thái chi tiết
-        chiTiet.setTrangThai(ChiTietPhieuXuat.TrangThaiChiTiet.DA_XUAT);
-        chiTietPhieuXuatRepository.save(chiTiet);
+        List<LichSuTonKho> lichSuList = new ArrayList<>();
+        for (ChiTietPhieuXuat chiTiet : chiTietList) {
+            Long hangHoaId = chiTiet.getHangHoa().getId();
+            int soLuongTruocXuat = tonKhoTruoc.get(hangHoaId);
+            int soLuongSauXuat = soLuongTruocXuat - chiTiet.getSoLuongXuat();
+            tonKhoTruoc.put(hangHoaId, soLuongSauXuat);
 
-        log.info("✅ Xuất kho thành công: {} x {}",
-                hangHoa.getTenHangHoa(), soLuongCanXuat);
+            lichSuList.add(taoLichSuXuatKho(chiTiet, phieuXuat,
+                    soLuongTruocXuat, soLuongSauXuat, currentUser));
+            chiTiet.setTrangThai(ChiTietPhieuXuat.TrangThaiChiTiet.DA_XUAT);
+        }
+        return lichSuList;
     }
 
     /**
-     * Cập nhật hang_hoa_vi_tri sau khi xuất
+     * Thông báo lỗi khi hàng có quản lý lô nhưng kho xuất không có lô khả dụng
      */
-    private void updateHangHoaViTriAfterXuat(Long hangHoaId, Long loHangId, Integer soLuongXuat) {
-        List<HangHoaViTri> viTriList = hangHoaViTriRepository
-                .findByHangHoaIdAndLoHangId(hangHoaId, loHangId);
+    private String buildKhongCoLoMessage(HangHoa hangHoa, PhieuXuatKho phieuXuat, Integer soLuongCanXuat) {
+        Long khoId = phieuXuat.getKho().getId();
+
+        // Kiểm tra xem có lô ở kho khác không
+        List<LoHang> loHangKhoKhac = loHangRepository
+                .findByHangHoaIdAndSoLuongHienTaiGreaterThan(hangHoa.getId(), 0);
+
+        if (loHangKhoKhac.isEmpty()) {
+            return String.format(
+                    "❌ Không thể xuất '%s'!\n\n" +
+                            "📦 Hàng này CÓ QUẢN LÝ LÔ nhưng CHƯA CÓ LÔ NÀO trong hệ thống.\n\n" +
+                            "💡 Giải pháp:\n" +
+                            "1. Tạo PHIẾU NHẬP với thông tin lô (số lô, HSD)\n" +
+                            "2. Sau đó mới có thể xuất\n\n" +
+                            "Chi tiết:\n" +
+                            "- Kho: %s (ID: %d)\n" +
+                            "- Cần xuất: %d",
+                    hangHoa.getTenHangHoa(),
+                    phieuXuat.getKho().getTenKho(), khoId,
+                    soLuongCanXuat
+            );
+        }
+
+        StringBuilder khoInfo = new StringBuilder();
+        for (LoHang lo : loHangKhoKhac) {
+            if (lo.getKho() != null) {
+                khoInfo.append(String.format(
+                        "\n  • %s: %d (Lô: %s, HSD: %s)",
+                        lo.getKho().getTenKho(),
+                        lo.getSoLuongHienTai(),
+                        lo.getSoLo(),
+                        lo.getHanSuDung() != null ? lo.getHanSuDung().toString() : "N/A"
+                ));
+            }
+        }
 
-        Integer soLuongConLai = soLuongXuat;
+        return String.format(
+                "❌ Không thể xuất '%s' từ '%s'!\n\n" +
+                        "⚠️ Hàng này KHÔNG CÓ LÔ trong kho bạn chọn.\n" +
+                        "📍 Hàng đang có ở:%s\n\n" +
+                        "💡 Giải pháp:\n" +
+                        "1. Nhập hàng vào '%s', hoặc\n" +
+                        "2. Chuyển kho, hoặc\n" +
+                        "3. Đổi kho xuất\n\n" +
+                        "Chi tiết: Cần xuất %d",
+                hangHoa.getTenHangHoa(),
+                phieuXuat.getKho().getTenKho(),
+                khoInfo.toString(),
+                phieuXuat.getKho().getTenKho(),
+                soLuongCanXuat
+        );
+    }
 
-        for (HangHoaViTri viTri : viTriList) {
-            if (soLuongConLai <= 0) break;
+    /**
+     * Cập nhật hang_hoa_vi_tri sau khi xuất cho nhiều lô cùng lúc
+     * - 1 câu truy vấn lấy vị trí của tất cả lô
+     * - Dòng về 0 bị xóa, dòng còn lại được sửa trên entity (batch UPDATE lúc flush)
+     * - Bộ đếm sức chứa + trạng thái vị trí: 1 câu UPDATE / vị trí bị ảnh hưởng
+     *
+     * @return loHangId → các phần đã lấy từ từng vị trí (để ghi phân bổ xuất)
+     */
+    private Map<Long, List<LayTuViTri>> capNhatHangHoaViTriSauXuat(Map<Long, Integer> xuatTheoLo) {
+        List<ViTriLay> layTuDong = chonViTriLayHang(
+                hangHoaViTriRepository.findByLoHangIdInWithViTriKho(xuatTheoLo.keySet()), xuatTheoLo);
+
+        ViTriKhoService.BienDongViTri bienDong = new ViTriKhoService.BienDongViTri();
+        List<HangHoaViTri> canXoa = new ArrayList<>();
 
-            Integer soLuongTru = Math.min(viTri.getSoLuong(), soLuongConLai);
-            viTri.setSoLuong(viTri.getSoLuong() - soLuongTru);
+        for (ViTriLay lay : layTuDong) {
+            HangHoaViTri viTri = lay.dong();
+            Long viTriKhoId = viTri.getViTriKho().getId();
 
-            if (viTri.getSoLuong() <= 0) {
-                hangHoaViTriRepository.delete(viTri);
+            if (viTri.getSoLuong() - lay.soLuong() <= 0) {
+                bienDong.them(viTriKhoId, -viTri.getSoLuong(), -1);
+                canXoa.add(viTri);
                 log.info("🗑️ Deleted hang_hoa_vi_tri: ViTri={}", viTri.getViTriKho().getTenViTri());
             } else {
-                hangHoaViTriRepository.save(viTri);
+                bienDong.them(viTriKhoId, -lay.soLuong(), 0);
+                viTri.setSoLuong(viTri.getSoLuong() - lay.soLuong());
             }
+        }
+
+        if (!canXoa.isEmpty()) {
+            hangHoaViTriRepository.deleteAll(canXoa);
+        }
 
-            // Cập nhật trạng thái vị trí kho
-            updateViTriKhoStatus(viTri.getViTriKho());
+        viTriKhoService.apDungBienDong(bienDong);
+        return nhomTheoLo(layTuDong);
+    }
 
-            soLuongConLai -= soLuongTru;
+    /**
+     * Chọn các dòng hang_hoa_vi_tri sẽ lấy hàng cho từng lô (theo thứ tự ID dòng) - KHÔNG sửa entity,
+     * dùng chung cho duyệt phiếu và xem trước kế hoạch xuất
+     */
+    private List<ViTriLay> chonViTriLayHang(List<HangHoaViTri> viTriList, Map<Long, Integer> xuatTheoLo) {
+        Map<Long, Integer> conLaiTheoLo = new HashMap<>(xuatTheoLo);
+        List<ViTriLay> result = new ArrayList<>();
+
+        for (HangHoaViTri viTri : viTriList) {
+            Long loHangId = viTri.getLoHang().getId();
+            int soLuongConLai = conLaiTheoLo.getOrDefault(loHangId, 0);
+            if (soLuongConLai <= 0) continue;
+
+            int soLuongTru = Math.min(viTri.getSoLuong(), soLuongConLai);
+            conLaiTheoLo.put(loHangId, soLuongConLai - soLuongTru);
+            result.add(new ViTriLay(viTri, soLuongTru));
         }
+        return result;
+    }
+
+    private Map<Long, List<LayTuViTri>> nhomTheoLo(List<ViTriLay> layTuDong) {
+        Map<Long, List<LayTuViTri>> layTheoLo = new HashMap<>();
+        for (ViTriLay lay : layTuDong) {
+            layTheoLo.computeIfAbsent(lay.dong().getLoHang().getId(), k -> new ArrayList<>())
+                    .add(new LayTuViTri(lay.dong().getViTriKho(), lay.soLuong()));
+        }
+        return layTheoLo;
     }
 
     /**
-     * Ghi lịch sử tồn kho cho xuất kho
+     * Phần số lượng của một lô đã lấy ra từ một vị trí
      */
-    private void ghiLichSuTonKho(ChiTietPhieuXuat chiTiet,
-                                 PhieuXuatKho phieuXuat,
-                                 Integer soLuongTruoc,
-                                 Integer soLuongSau) {
-        try {
-            LichSuTonKho lichSu = LichSuTonKho.builder()
-                    .hangHoa(chiTiet.getHangHoa())
-                    .loHang(chiTiet.getLoHang())
-                    .viTriKho(chiTiet.getViTriKho())
-                    .loaiBienDong(LichSuTonKho.LoaiBienDong.XUAT_KHO)
-                    .soLuongTruoc(soLuongTruoc)
-                    .soLuongBienDong(chiTiet.getSoLuongXuat())
-                    .soLuongSau(soLuongSau)
-                    .donGia(chiTiet.getDonGia())
-                    .giaTriBienDong(chiTiet.getThanhTien())
-                    .maChungTu(phieuXuat.getMaPhieuXuat())
-                    .loaiChungTu(LichSuTonKho.LoaiChungTu.PHIEU_XUAT)
-                    .lyDo("Xuất kho từ phiếu xuất " + phieuXuat.getMaPhieuXuat())
-                    .nguoiThucHien(getCurrentUser())
-                    .build();
-
-            lichSuTonKhoRepository.save(lichSu);
-
-            log.info("📝 Saved lich su ton kho: HangHoa={}, Before={}, After={}, Delta=-{}",
-                    chiTiet.getHangHoa().getTenHangHoa(),
-                    soLuongTruoc,
-                    soLuongSau,
-                    chiTiet.getSoLuongXuat());
-        } catch (Exception e) {
-            log.error("❌ Error saving lich su ton kho", e);
-            throw new RuntimeException("Lỗi ghi lịch sử tồn kho: " + e.getMessage());
+    private record LayTuViTri(ViTriKho viTriKho, int soLuong) {
+    }
+
+    /**
+     * Số lượng sẽ lấy ra từ một dòng hang_hoa_vi_tri
+     */
+    private record ViTriLay(HangHoaViTri dong, int soLuong) {
+    }
+
+    /**
+     * Một phần phân bổ lô đã gắn với vị trí (viTriKho = null nếu phần đó không nằm ở vị trí nào)
+     */
+    private record PhanBoTaiViTri(FefoAllocator.PhanBo phanBo, ViTriKho viTriKho, int soLuong) {
+    }
+
+    /**
+     * Dữ liệu nạp trước cho một nhóm phiếu xuất cùng kho trong lượt duyệt hàng loạt
+     * (xem {@link #napTruocNhomKho}). Mỗi phiếu duyệt xong (đã commit) trừ phần đã lấy
+     * nên phiếu sau thấy đúng tồn kho / lô còn lại. Chỉ dùng trong một luồng.
+     */
+    public static final class NhomKhoDuyet {
+
+        private final Long khoId;
+        private final Map<Long, HangHoa> hangHoaTheoId;
+        private final Map<Long, Integer> coTheXuat;
+        private final Map<Long, List<LoHang>> loTheoHangHoa;
+        private final Map<Long, Integer> conLaiTheoLo = new HashMap<>();
+
+        private NhomKhoDuyet(Long khoId,
+                             Map<Long, HangHoa> hangHoaTheoId,
+                             Map<Long, Integer> coTheXuat,
+                             Map<Long, List<LoHang>> loTheoHangHoa) {
+            this.khoId = khoId;
+            this.hangHoaTheoId = hangHoaTheoId;
+            this.coTheXuat = coTheXuat;
+            this.loTheoHangHoa = loTheoHangHoa;
+            loTheoHangHoa.values().forEach(danhSach -> danhSach.forEach(lo ->
+                    conLaiTheoLo.put(lo.getId(), FefoAllocator.soLuongKhaDung(lo))));
+        }
+
+        public Long getKhoId() {
+            return khoId;
+        }
+
+        private boolean duTonKho(Map<Long, Integer> tongCanXuat) {
+            return tongCanXuat.entrySet().stream()
+                    .allMatch(e -> coTheXuat.getOrDefault(e.getKey(), 0) >= e.getValue());
+        }
+
+        private void daXuat(Map<Long, Integer> tongCanXuat, Map<Long, Integer> xuatTheoLo) {
+            tongCanXuat.forEach((hangHoaId, soLuong) -> coTheXuat.merge(hangHoaId, -soLuong, Integer::sum));
+            xuatTheoLo.forEach((loHangId, soLuong) -> conLaiTheoLo.merge(loHangId, -soLuong, Integer::sum));
+        }
+    }
+
+    /**
+     * Ghi phân bổ xuất thực tế: dòng → lô → vị trí → số lượng → giá vốn (1 lần saveAll, batch INSERT)
+     * Phần của lô không nằm ở vị trí nào được ghi với viTriKho = null.
+     */
+    private void ghiPhanBoXuatLo(PhieuXuatKho phieuXuat,
+                                 List<FefoAllocator.PhanBo> phanBoLo,
+                                 Map<Long, List<LayTuViTri>> layTheoLo) {
+        List<PhanBoXuatLo> result = chiaTheoViTri(phanBoLo, layTheoLo).stream()
+                .map(pb -> taoPhanBoXuatLo(phieuXuat, pb.phanBo().chiTiet(), pb.phanBo().loHang(),
+                        pb.viTriKho(), pb.soLuong()))
+                .collect(Collectors.toList());
+
+        phanBoXuatLoRepository.saveAll(result);
+        log.info("📝 Ghi {} dòng phân bổ xuất cho phiếu {}", result.size(), phieuXuat.getMaPhieuXuat());
+    }
+
+    /**
+     * Chia từng phần phân bổ lô theo các vị trí đã lấy của lô đó (theo thứ tự)
+     */
+    private List<PhanBoTaiViTri> chiaTheoViTri(List<FefoAllocator.PhanBo> phanBoLo,
+                                               Map<Long, List<LayTuViTri>> layTheoLo) {
+        Map<Long, Deque<LayTuViTri>> conLaiTheoLo = new HashMap<>();
+        layTheoLo.forEach((loHangId, list) -> conLaiTheoLo.put(loHangId, new ArrayDeque<>(list)));
+
+        List<PhanBoTaiViTri> result = new ArrayList<>();
+        for (FefoAllocator.PhanBo phanBo : phanBoLo) {
+            Deque<LayTuViTri> viTriConLai = conLaiTheoLo.getOrDefault(phanBo.loHang().getId(), new ArrayDeque<>());
+            int canGhi = phanBo.soLuong();
+
+            while (canGhi > 0 && !viTriConLai.isEmpty()) {
+                LayTuViTri lay = viTriConLai.pollFirst();
+                int soLuong = Math.min(lay.soLuong(), canGhi);
+                if (lay.soLuong() > soLuong) {
+                    viTriConLai.addFirst(new LayTuViTri(lay.viTriKho(), lay.soLuong() - soLuong));
+                }
+                result.add(new PhanBoTaiViTri(phanBo, lay.viTriKho(), soLuong));
+                canGhi -= soLuong;
+            }
+
+            if (canGhi > 0) {
+                result.add(new PhanBoTaiViTri(phanBo, null, canGhi));
+            }
         }
+        return result;
+    }
+
+    private PhanBoXuatLo taoPhanBoXuatLo(PhieuXuatKho phieuXuat, ChiTietPhieuXuat chiTiet,
+                                         LoHang loHang, ViTriKho viTriKho, int soLuong) {
+        return PhanBoXuatLo.builder()
+                .phieuXuat(phieuXuat)
+                .chiTietPhieuXuat(chiTiet)
+                .hangHoa(chiTiet.getHangHoa())
+                .loHang(loHang)
+                .viTriKho(viTriKho)
+                .soLuong(soLuong)
+                .donGia(loHang.getGiaNhap() != null ? loHang.getGiaNhap() : BigDecimal.ZERO)
+                .build();
+    }
+
+    /**
+     * Tạo bản ghi lịch sử tồn kho cho xuất kho (chưa lưu)
+     */
+    private LichSuTonKho taoLichSuXuatKho(ChiTietPhieuXuat chiTiet,
+                                          PhieuXuatKho phieuXuat,
+                                          Integer soLuongTruoc,
+                                          Integer soLuongSau,
+                                          User nguoiThucHien) {
+        log.info("📝 Lich su ton kho: HangHoaId={}, Before={}, After={}, Delta=-{}",
+                chiTiet.getHangHoa().getId(),
+                soLuongTruoc,
+                soLuongSau,
+                chiTiet.getSoLuongXuat());
+
+        return LichSuTonKho.builder()
+                .hangHoa(chiTiet.getHangHoa())
+                .kho(phieuXuat.getKho())
+                .loHang(chiTiet.getLoHang())
+                .viTriKho(chiTiet.getViTriKho())
+                .loaiBienDong(LichSuTonKho.LoaiBienDong.XUAT_KHO)
+                .soLuongTruoc(soLuongTruoc)
+                .soLuongBienDong(chiTiet.getSoLuongXuat())
+                .soLuongSau(soLuongSau)
+                .donGia(chiTiet.getDonGia())
+                .giaTriBienDong(chiTiet.getThanhTien())
+                .maChungTu(phieuXuat.getMaPhieuXuat())
+                .loaiChungTu(LichSuTonKho.LoaiChungTu.PHIEU_XUAT)
+                .lyDo("Xuất kho từ phiếu xuất " + phieuXuat.getMaPhieuXuat())
+                .nguoiThucHien(nguoiThucHien)
+                .build();
     }
 
     /**
@@ -501,6 +1222,11 @@ public class PhieuXuatKhoService {
             throw new IllegalArgumentException("Lý do hủy không được để trống");
         }
 
+        // Trả lại phần đang giữ hàng
+        datTruTonKhoService.giaiPhongTheoPhieu(id);
+        keHoachXuatCache.xoa(id);
+
+        ghiThongKe(phieuXuat, phieuXuat.getTrangThai(), PhieuXuatKho.TrangThaiPhieuXuat.HUY);
         phieuXuat.setTrangThai(PhieuXuatKho.TrangThaiPhieuXuat.HUY);
         phieuXuat.setLyDoHuy(lyDoHuy);
         phieuXuat.setUpdatedBy(getCurrentUser());
@@ -528,12 +1254,18 @@ public class PhieuXuatKhoService {
         try {
             List<ChiTietPhieuXuat> chiTietList = chiTietPhieuXuatRepository.findByPhieuXuatId(id);
 
-            // Hoàn nguyên từng chi tiết (CỘNG LẠI TỒN KHO)
-            for (ChiTietPhieuXuat chiTiet : chiTietList) {
-                rollbackChiTietXuatKho(chiTiet, phieuXuat);
+            if (phanBoXuatLoRepository.existsByPhieuXuatId(id)) {
+                // Có phân bổ xuất → hoàn nguyên chính xác theo lô / vị trí bằng câu lệnh tập hợp
+                hoanNguyenTheoPhanBo(phieuXuat, chiTietList);
+            } else {
+                // Phiếu duyệt trước khi có phân bổ xuất → hoàn nguyên từng chi tiết (CỘNG LẠI TỒN KHO)
+                for (ChiTietPhieuXuat chiTiet : chiTietList) {
+                    rollbackChiTietXuatKho(chiTiet, phieuXuat);
+                }
             }
 
             // Cập nhật trạng thái
+            ghiThongKe(phieuXuat, phieuXuat.getTrangThai(), PhieuXuatKho.TrangThaiPhieuXuat.CHO_DUYET);
             phieuXuat.setTrangThai(PhieuXuatKho.TrangThaiPhieuXuat.CHO_DUYET);
             phieuXuat.setNguoiDuyet(null);
             phieuXuat.setNgayDuyet(null);
@@ -541,7 +1273,7 @@ public class PhieuXuatKhoService {
                     (phieuXuat.getGhiChu() != null ? phieuXuat.getGhiChu() + "\n\n" : "") +
                             "⚠️ ĐÃ HỦY DUYỆT\n" +
                             "Lý do: " + lyDoHuyDuyet + "\n" +
-                            "Người thực hiện: " + getCurrentUser().getHoTen() + "\n" +
+                            "Người thực hiện: " + nguoiDungHienTai.hoTen() + "\n" +
                             "Thời gian: " + LocalDateTime.now()
             );
             phieuXuatKhoRepository.save(phieuXuat);
@@ -555,6 +1287,117 @@ public class PhieuXuatKhoService {
         }
     }
 
+    /**
+     * Hoàn nguyên cả phiếu theo phân bổ xuất đã ghi lúc duyệt:
+     * - Tồn kho theo kho, hàng hóa, lô: mỗi bảng 1 câu UPDATE cho cả phiếu
+     * - Vị trí: 1 câu UPDATE cho dòng còn tồn tại + 1 câu INSERT ... SELECT cho dòng đã bị xóa khi xuất hết,
+     *   1 câu tính lại bộ đếm sức chứa của các vị trí liên quan
+     * - Lịch sử: 1 dòng cho mỗi phân bổ (có lô, vị trí) - saveAll
+     * - Xóa phân bổ xuất: 1 câu DELETE
+     */
+    private void hoanNguyenTheoPhanBo(PhieuXuatKho phieuXuat, List<ChiTietPhieuXuat> chiTietList) {
+        Long phieuXuatId = phieuXuat.getId();
+        User currentUser = getCurrentUser();
+        List<PhanBoXuatLo> phanBoList = phanBoXuatLoRepository.findByPhieuXuatId(phieuXuatId);
+
+        // 1. Cộng lại tồn kho (thứ tự bảng giống luồng duyệt: theo kho → lô → vị trí → hàng hóa)
+        tonKhoTheoKhoService.hoanLaiTheoPhieuXuat(phieuXuatId, phieuXuat.getKho().getId());
+        ThongKeLoHangService.TruocKhiGhi truoc = thongKeLoHangService.truocKhiGhi(phanBoList.stream()
+                .map(pb -> pb.getLoHang().getId())
+                .collect(Collectors.toSet()));
+        int soLo = phanBoXuatLoRepository.hoanLaiLoHang(phieuXuatId);
+        thongKeLoHangService.sauKhiGhi(truoc);
+
+        // 2. Trả hàng về đúng vị trí đã lấy, tính lại bộ đếm sức chứa của các vị trí đó
+        int soViTriCapNhat = phanBoXuatLoRepository.hoanLaiViTriConDong(phieuXuatId);
+        int soViTriTaoLai = phanBoXuatLoRepository.taoLaiViTriDaXoa(phieuXuatId);
+        viTriKhoService.dongBoSucChua(phanBoList.stream()
+                .filter(pb -> pb.getViTriKho() != null)
+                .map(pb -> pb.getViTriKho().getId())
+                .collect(Collectors.toSet()));
+
+        hangHoaRepository.hoanLaiTheoPhieuXuat(phieuXuatId);
+        hangHoaService.capNhatGiaBinhQuan(chiTietList.stream()
+                .map(ct -> ct.getHangHoa().getId())
+                .collect(Collectors.toSet()));
+
+        // 3. Lịch sử: tồn sau đọc thẳng từ DB, tồn trước = tồn sau - tổng hoàn lại
+        Map<Long, Integer> tongHoanLai = new LinkedHashMap<>();
+        gopTheoHangHoa(chiTietList, new LinkedHashMap<>(), tongHoanLai);
+
+        Map<Long, Integer> tonKhoHienTai = new HashMap<>();
+        for (Object[] row : hangHoaRepository.findSoLuongCoTheXuatByIdIn(tongHoanLai.keySet())) {
+            Long hangHoaId = (Long) row[0];
+            int tonKhoSau = row[1] != null ? (Integer) row[1] : 0;
+            tonKhoHienTai.put(hangHoaId, tonKhoSau - tongHoanLai.get(hangHoaId));
+        }
+
+        Map<Long, List<PhanBoXuatLo>> phanBoTheoChiTiet = phanBoList.stream()
+                .collect(Collectors.groupingBy(pb -> pb.getChiTietPhieuXuat().getId()));
+
+        List<LichSuTonKho> lichSuList = new ArrayList<>();
+        for (ChiTietPhieuXuat chiTiet : chiTietList) {
+            List<PhanBoXuatLo> phanBoCuaDong = phanBoTheoChiTiet.get(chiTiet.getId());
+
+            if (phanBoCuaDong == null) {
+                // Hàng không quản lý lô
+                lichSuList.add(taoLichSuHuyDuyetXuat(chiTiet, null, chiTiet.getViTriKho(),
+                        chiTiet.getSoLuongXuat(), chiTiet.getDonGia(), tonKhoHienTai, phieuXuat, currentUser));
+            } else {
+                // Giá trị hoàn lại theo giá vốn của lô đã ghi lúc duyệt (các lô cùng dòng có thể khác giá)
+                for (PhanBoXuatLo phanBo : phanBoCuaDong) {
+                    lichSuList.add(taoLichSuHuyDuyetXuat(chiTiet, phanBo.getLoHang(), phanBo.getViTriKho(),
+                            phanBo.getSoLuong(), phanBo.getDonGia(), tonKhoHienTai, phieuXuat, currentUser));
+                }
+            }
+            chiTiet.setTrangThai(ChiTietPhieuXuat.TrangThaiChiTiet.CHO_XUAT);
+        }
+
+        lichSuTonKhoWriter.ghi(lichSuList);
+        chiTietPhieuXuatRepository.saveAll(chiTietList);
+
+        // 4. Phiếu không còn xuất khỏi các lô này
+        phanBoXuatLoRepository.deleteByPhieuXuatId(phieuXuatId);
+
+        log.info("🔄 Rolled back phieu xuat {} by allocation: {} lots, {} locations updated, {} locations recreated",
+                phieuXuat.getMaPhieuXuat(), soLo, soViTriCapNhat, soViTriTaoLai);
+    }
+
+    /**
+     * Lịch sử hủy duyệt xuất cho một phần hoàn lại (chưa lưu) - cộng dồn tồn kho theo hàng hóa
+     *
+     * @param donGia Giá vốn của phần hoàn lại (phân bổ lô: giá nhập của lô; hàng không lô: đơn giá dòng)
+     */
+    private LichSuTonKho taoLichSuHuyDuyetXuat(ChiTietPhieuXuat chiTiet,
+                                               LoHang loHang,
+                                               ViTriKho viTriKho,
+                                               int soLuong,
+                                               BigDecimal donGia,
+                                               Map<Long, Integer> tonKhoHienTai,
+                                               PhieuXuatKho phieuXuat,
+                                               User nguoiThucHien) {
+        Long hangHoaId = chiTiet.getHangHoa().getId();
+        int soLuongTruoc = tonKhoHienTai.getOrDefault(hangHoaId, 0);
+        tonKhoHienTai.put(hangHoaId, soLuongTruoc + soLuong);
+
+        return LichSuTonKho.builder()
+                .hangHoa(chiTiet.getHangHoa())
+                .kho(phieuXuat.getKho())
+                .loHang(loHang)
+                .viTriKho(viTriKho)
+                .loaiBienDong(LichSuTonKho.LoaiBienDong.HUY_DUYET_XUAT)
+                .soLuongTruoc(soLuongTruoc)
+                .soLuongBienDong(soLuong)
+                .soLuongSau(soLuongTruoc + soLuong)
+                .donGia(donGia)
+                .giaTriBienDong(donGia.multiply(BigDecimal.valueOf(soLuong)))
+                .maChungTu(phieuXuat.getMaPhieuXuat())
+                .loaiChungTu(LichSuTonKho.LoaiChungTu.HUY_DUYET_XUAT)
+                .lyDo("Hủy duyệt phiếu xuất " + phieuXuat.getMaPhieuXuat())
+                .nguoiThucHien(nguoiThucHien)
+                .build();
+    }
+
     /**
      * Hoàn nguyên một chi tiết phiếu xuất (CỘNG LẠI TỒN KHO)
      */
@@ -568,18 +1411,20 @@ public class PhieuXuatKhoService {
         Integer tonKhoHienTai = hangHoa.getSoLuongCoTheXuat() != null ?
                 hangHoa.getSoLuongCoTheXuat() : 0;
 
-        // 1. Cộng lại tồn kho
-        hangHoaService.capNhatTonKhoSauNhap(
-                hangHoa.getId(),
-                soLuongXuat,
-                chiTiet.getDonGia()
-        );
+        // 1. Cộng lại tồn kho + đúng giá trị đã xuất (dòng duyệt trước khi có định giá: theo thành tiền)
+        long giaTriXuat = chiTiet.getGiaTriXuat() != null
+                ? chiTiet.getGiaTriXuat() : DinhGiaTon.tuThanhTien(chiTiet.getThanhTien());
+        tonKhoTheoKhoService.congTonKho(hangHoa.getId(), phieuXuat.getKho().getId(), soLuongXuat, giaTriXuat);
+        hangHoaService.congTonKhoSauNhap(hangHoa.getId(), soLuongXuat);
+        hangHoaService.capNhatGiaBinhQuan(List.of(hangHoa.getId()));
 
         // 2. Cộng lại lô hàng (nếu có)
         if (chiTiet.getLoHang() != null) {
             LoHang loHang = chiTiet.getLoHang();
-            loHang.setSoLuongHienTai(loHang.getSoLuongHienTai() + soLuongXuat);
-            loHangRepository.save(loHang);
+            thongKeLoHangService.ghi(List.of(loHang.getId()), () -> {
+                loHang.setSoLuongHienTai(loHang.getSoLuongHienTai() + soLuongXuat);
+                loHangRepository.save(loHang);
+            });
             log.info("✅ Restored lo_hang ID={}, new qty={}",
                     loHang.getId(), loHang.getSoLuongHienTai());
         }
@@ -587,6 +1432,7 @@ public class PhieuXuatKhoService {
         // 3. Ghi lịch sử
         LichSuTonKho lichSu = LichSuTonKho.builder()
                 .hangHoa(hangHoa)
+                .kho(phieuXuat.getKho())
                 .loHang(chiTiet.getLoHang())
                 .viTriKho(chiTiet.getViTriKho())
                 .loaiBienDong(LichSuTonKho.LoaiBienDong.HUY_DUYET_XUAT)
@@ -601,7 +1447,7 @@ public class PhieuXuatKhoService {
                 .nguoiThucHien(getCurrentUser())
                 .build();
 
-        lichSuTonKhoRepository.save(lichSu);
+        lichSuTonKhoWriter.ghi(lichSu);
 
         // 4. Cập nhật trạng thái
         chiTiet.setTrangThai(ChiTietPhieuXuat.TrangThaiChiTiet.CHO_XUAT);
@@ -621,11 +1467,16 @@ public class PhieuXuatKhoService {
             throw new IllegalStateException("Không thể xóa phiếu xuất đã duyệt hoặc đã giao");
         }
 
+        // Trả lại phần đang giữ hàng + xóa đặt trước (tham chiếu tới chi tiết)
+        datTruTonKhoService.xoaTheoPhieu(id);
+        keHoachXuatCache.xoa(id);
+
         // Xóa chi tiết trước
         chiTietPhieuXuatRepository.deleteByPhieuXuatId(id);
 
         // Xóa phiếu xuất
         phieuXuatKhoRepository.deleteById(id);
+        ghiThongKe(phieuXuat, phieuXuat.getTrangThai(), null);
 
         log.info("Deleted phieu xuat ID: {}", id);
     }
@@ -676,8 +1527,8 @@ public class PhieuXuatKhoService {
     /**
      * Lưu chi tiết phiếu xuất
      */
-    private void saveChiTietPhieuXuat(PhieuXuatKho phieuXuat,
-                                      PhieuXuatKhoDTO.ChiTietPhieuXuatDTO chiTietDTO) {
+    private ChiTietPhieuXuat saveChiTietPhieuXuat(PhieuXuatKho phieuXuat,
+                                                  PhieuXuatKhoDTO.ChiTietPhieuXuatDTO chiTietDTO) {
 
         HangHoa hangHoa = hangHoaRepository.findById(chiTietDTO.getHangHoaId())
                 .orElseThrow(() -> new IllegalArgumentException("Không tìm thấy hàng hóa"));
@@ -697,7 +1548,7 @@ public class PhieuXuatKhoService {
         chiTiet.setGhiChu(chiTietDTO.getGhiChu());
         chiTiet.setTrangThai(ChiTietPhieuXuat.TrangThaiChiTiet.CHO_XUAT);
 
-        chiTietPhieuXuatRepository.save(chiTiet);
+        return chiTietPhieuXuatRepository.save(chiTiet);
     }
 
 //    /**
@@ -726,52 +1577,18 @@ public class PhieuXuatKhoService {
 //    }
 
     /**
-     * Cập nhật trạng thái vị trí kho
-     */
-    private void updateViTriKhoStatus(ViTriKho viTriKho) {
-        Long soLuongHangHoa = hangHoaViTriRepository.countByViTriKhoId(viTriKho.getId());
-
-        ViTriKho.TrangThaiViTri trangThaiMoi;
-
-        if (soLuongHangHoa == 0) {
-            trangThaiMoi = ViTriKho.TrangThaiViTri.TRONG;
-        } else if (viTriKho.getSucChuaToiDa() != null &&
-                viTriKho.getSucChuaToiDa() > 0 &&
-                soLuongHangHoa >= viTriKho.getSucChuaToiDa() * 0.9) {
-            trangThaiMoi = ViTriKho.TrangThaiViTri.DAY;
-        } else {
-            trangThaiMoi = ViTriKho.TrangThaiViTri.CO_HANG;
-        }
-
-        if (viTriKho.getTrangThai() != trangThaiMoi) {
-            viTriKho.setTrangThai(trangThaiMoi);
-            viTriKhoRepository.save(viTriKho);
-            log.info("Updated vi tri kho ID: {} status to {}",
-                    viTriKho.getId(), trangThaiMoi);
-        }
-    }
-
-    /**
-     * Sinh mã phiếu xuất tự động - Thread-safe
+     * Sinh mã phiếu xuất tự động: PX-yyyyMMdd-xxxx (cấp từ bộ đếm trong DB, không trùng giữa các node)
      */
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public synchronized String generateMaPhieuXuat() {
-        LocalDate now = LocalDate.now();
-        String prefix = String.format("PX-%d%02d%02d-",
-                now.getYear(), now.getMonthValue(), now.getDayOfMonth());
-
-        long count = phieuXuatKhoRepository.countByMaPhieuXuatStartingWith(prefix);
-        return String.format("%s%04d", prefix, count + 1);
+    public String generateMaPhieuXuat() {
+        return soChungTuService.capMaTheoNgay("PX", prefix ->
+                phieuXuatKhoRepository.findMaxNumberByPrefix(prefix + "%", prefix.length()));
     }
 
     /**
-     * Lấy thông tin user hiện tại
+     * Tham chiếu tới user hiện tại (lấy từ JWT của request, không tra lại bảng user)
      */
     private User getCurrentUser() {
-        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
-        String username = auth.getName();
-        return userRepository.findByTenDangNhap(username)
-                .orElseThrow(() -> new IllegalStateException("Không tìm thấy thông tin người dùng"));
+        return nguoiDungHienTai.thamChieu();
     }
 
     /**
@@ -867,46 +1684,26 @@ public class PhieuXuatKhoService {
     public PhieuXuatKhoDTO.ThongKePhieuXuat getThongKePhieuXuat(
             Long khoId, LocalDate tuNgay, LocalDate denNgay) {
 
-        Specification<PhieuXuatKho> spec = (root, query, cb) -> {
-            List<Predicate> predicates = new ArrayList<>();
-
-            if (khoId != null) {
-                predicates.add(cb.equal(root.get("kho").get("id"), khoId));
-            }
-
-            if (tuNgay != null) {
-                predicates.add(cb.greaterThanOrEqualTo(
-                        root.get("ngayXuat").as(LocalDate.class), tuNgay));
-            }
-
-            if (denNgay != null) {
-                predicates.add(cb.lessThanOrEqualTo(
-                        root.get("ngayXuat").as(LocalDate.class), denNgay));
-            }
-
-            return cb.and(predicates.toArray(new Predicate[0]));
-        };
-
-        List<PhieuXuatKho> phieuXuatList = phieuXuatKhoRepository.findAll(spec);
-
-        long tongSoPhieu = phieuXuatList.size();
-        long soPhieuChoDuyet = phieuXuatList.stream()
-                .filter(p -> p.getTrangThai() == PhieuXuatKho.TrangThaiPhieuXuat.CHO_DUYET)
-                .count();
-        long soPhieuDaDuyet = phieuXuatList.stream()
-                .filter(p -> p.getTrangThai() == PhieuXuatKho.TrangThaiPhieuXuat.DA_DUYET)
-                .count();
-
-        BigDecimal tongGiaTri = phieuXuatList.stream()
-                .filter(p -> p.getTrangThai() == PhieuXuatKho.TrangThaiPhieuXuat.DA_DUYET)
-                .map(PhieuXuatKho::getTongGiaTri)
-                .reduce(BigDecimal.ZERO, BigDecimal::add);
+        // Đếm / cộng bằng SQL theo trạng thái (khoảng dài đọc bảng tổng hợp theo ngày) - không nạp entity
+        Map<String, ThongKePhieuService.DongThongKe> theoTrangThai =
+                thongKePhieuService.thongKe(ThongKePhieuNgay.LoaiPhieu.XUAT, khoId, tuNgay, denNgay);
+        ThongKePhieuService.DongThongKe daDuyet = theoTrangThai.getOrDefault(
+                PhieuXuatKho.TrangThaiPhieuXuat.DA_DUYET.name(), new ThongKePhieuService.DongThongKe(0, BigDecimal.ZERO));
 
         return PhieuXuatKhoDTO.ThongKePhieuXuat.builder()
-                .tongSoPhieu(tongSoPhieu)
-                .soPhieuChoDuyet(soPhieuChoDuyet)
-                .soPhieuDaDuyet(soPhieuDaDuyet)
-                .tongGiaTri(tongGiaTri)
+                .tongSoPhieu(theoTrangThai.values().stream().mapToLong(ThongKePhieuService.DongThongKe::soPhieu).sum())
+                .soPhieuXuat(soPhieu(theoTrangThai, PhieuXuatKho.TrangThaiPhieuXuat.XUAT))
+                .soPhieuChoDuyet(soPhieu(theoTrangThai, PhieuXuatKho.TrangThaiPhieuXuat.CHO_DUYET))
+                .soPhieuDaDuyet(daDuyet.soPhieu())
+                .soPhieuDaGiao(soPhieu(theoTrangThai, PhieuXuatKho.TrangThaiPhieuXuat.DA_GIAO))
+                .soPhieuHuy(soPhieu(theoTrangThai, PhieuXuatKho.TrangThaiPhieuXuat.HUY))
+                .tongGiaTri(daDuyet.tongGiaTri())
                 .build();
     }
+
+    private static long soPhieu(Map<String, ThongKePhieuService.DongThongKe> theoTrangThai,
+                                PhieuXuatKho.TrangThaiPhieuXuat trangThai) {
+        ThongKePhieuService.DongThongKe dong = theoTrangThai.get(trangThai.name());
+        return dong != null ? dong.soPhieu() : 0L;
+    }
 }
\ No newline at end of file
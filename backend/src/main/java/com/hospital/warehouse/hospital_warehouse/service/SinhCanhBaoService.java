@@ -0,0 +1,199 @@
+package com.hospital.warehouse.hospital_warehouse.service;
+
+import com.hospital.warehouse.hospital_warehouse.entity.CanhBaoHeThong;
+import com.hospital.warehouse.hospital_warehouse.entity.LoHang;
+import com.hospital.warehouse.hospital_warehouse.repository.CanhBaoRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.HangHoaRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.LoHangRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sinh cảnh báo tự động vào canh_bao_he_thong:
+ * - GAN_HET_HAN / HET_HAN: lô còn hàng có trạng thái gần hết hạn / hết hạn (trạng thái do TrangThaiLoHangService tính)
+ * - TON_KHO_THAP: hàng hóa có số lượng có thể xuất dưới mức tối thiểu
+ *
+ * Mỗi lần quét chỉ đọc các lô / hàng hóa có updated_at từ lần quét trước (trừ lùi kho.canh-bao.do-tre-giay
+ * cho transaction commit muộn); lần đầu sau khi khởi động quét toàn bộ. Mỗi (loại, đối tượng) có một dấu vết
+ * duy nhất nên cảnh báo chỉ tạo một lần; quét lại / quét trùng khoảng thời gian chỉ tốn câu SELECT.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class SinhCanhBaoService {
+
+    private static final LocalDateTime MOC_DAU = LocalDateTime.of(2000, 1, 1, 0, 0);
+    private static final int SO_DAU_VET_MOI_CAU = 1000;
+    private static final DateTimeFormatter DINH_DANG_NGAY = DateTimeFormatter.ofPattern("dd/MM/yyyy");
+
+    private final LoHangRepository loHangRepository;
+    private final HangHoaRepository hangHoaRepository;
+    private final CanhBaoRepository canhBaoRepository;
+    private final CanhBaoService canhBaoService;
+
+    @Value("${kho.canh-bao.do-tre-giay:300}")
+    private long doTreGiay;
+
+    /** Thời điểm bắt đầu lần quét thành công gần nhất (null: chưa quét từ khi khởi động) */
+    private volatile LocalDateTime lanQuetTruoc;
+
+    /**
+     * Quét và sinh cảnh báo mới
+     *
+     * @return Số cảnh báo đã tạo theo từng loại
+     */
+    @Scheduled(fixedDelayString = "${kho.canh-bao.chu-ky-quet-ms:900000}",
+            initialDelayString = "${kho.canh-bao.chu-ky-quet-ms:900000}")
+    @Transactional
+    public Map<CanhBaoHeThong.LoaiCanhBao, Integer> quet() {
+        LocalDateTime batDau = LocalDateTime.now();
+        LocalDateTime tu = lanQuetTruoc != null ? lanQuetTruoc.minusSeconds(doTreGiay) : MOC_DAU;
+
+        Map<CanhBaoHeThong.LoaiCanhBao, Integer> soCanhBao = new EnumMap<>(CanhBaoHeThong.LoaiCanhBao.class);
+        soCanhBao.put(CanhBaoHeThong.LoaiCanhBao.GAN_HET_HAN, 0);
+        soCanhBao.put(CanhBaoHeThong.LoaiCanhBao.HET_HAN, 0);
+        soCanhBao.put(CanhBaoHeThong.LoaiCanhBao.TON_KHO_THAP, 0);
+
+        // Lô gần hết hạn / hết hạn
+        LocalDate homNay = LocalDate.now();
+        Map<String, CanhBaoHeThong> canhBaoLo = new LinkedHashMap<>();
+        for (Object[] row : loHangRepository.findSapHetHanThayDoiTu(tu)) {
+            CanhBaoHeThong canhBao = canhBaoLo((Long) row[0], (LoHang.TrangThaiLoHang) row[1], (String) row[2],
+                    (LocalDate) row[3], (Integer) row[4], (String) row[5], (String) row[6], homNay);
+            canhBaoLo.put(canhBao.getDauVet(), canhBao);
+        }
+        taoMoi(canhBaoLo, soCanhBao);
+
+        // Tồn kho thấp; hàng đã đủ lại → bỏ dấu vết để lần thiếu sau cảnh báo lại
+        Map<String, CanhBaoHeThong> canhBaoTonKho = new LinkedHashMap<>();
+        List<String> daDu = new ArrayList<>();
+        for (Object[] row : hangHoaRepository.findTonKhoThayDoiTu(tu)) {
+            Long hangHoaId = (Long) row[0];
+            int coTheXuat = ((Number) row[3]).intValue();
+            int toiThieu = ((Number) row[4]).intValue();
+            String dauVet = dauVet(CanhBaoHeThong.LoaiCanhBao.TON_KHO_THAP,
+                    CanhBaoHeThong.LoaiDoiTuong.HANG_HOA, hangHoaId);
+            if (toiThieu > 0 && coTheXuat < toiThieu) {
+                canhBaoTonKho.put(dauVet, canhBaoTonKho(hangHoaId, (String) row[1], (String) row[2],
+                        coTheXuat, toiThieu, dauVet));
+            } else {
+                daDu.add(dauVet);
+            }
+        }
+        taoMoi(canhBaoTonKho, soCanhBao);
+        int soGiaiPhong = 0;
+        for (List<String> phan : chia(daDu)) {
+            soGiaiPhong += canhBaoRepository.giaiPhongDauVet(phan);
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                lanQuetTruoc = batDau;
+            }
+        });
+
+        log.info("🚨 Quét cảnh báo từ {}: tạo mới {}, bỏ dấu vết tồn kho thấp đã hết {} ({} ms)",
+                tu, soCanhBao, soGiaiPhong, ChronoUnit.MILLIS.between(batDau, LocalDateTime.now()));
+        return soCanhBao;
+    }
+
+    // ==================== HELPER ====================
+
+    /**
+     * Bỏ các cảnh báo đã có dấu vết, tạo phần còn lại theo batch
+     */
+    private void taoMoi(Map<String, CanhBaoHeThong> theoDauVet, Map<CanhBaoHeThong.LoaiCanhBao, Integer> soCanhBao) {
+        if (theoDauVet.isEmpty()) {
+            return;
+        }
+
+        Set<String> daCo = new HashSet<>();
+        for (List<String> phan : chia(theoDauVet.keySet())) {
+            daCo.addAll(canhBaoRepository.findDauVetDaCo(phan));
+        }
+
+        Map<CanhBaoHeThong.LoaiCanhBao, List<CanhBaoHeThong>> moiTheoLoai = new EnumMap<>(CanhBaoHeThong.LoaiCanhBao.class);
+        theoDauVet.forEach((dauVet, canhBao) -> {
+            if (!daCo.contains(dauVet)) {
+                moiTheoLoai.computeIfAbsent(canhBao.getLoaiCanhBao(), k -> new ArrayList<>()).add(canhBao);
+            }
+        });
+        moiTheoLoai.forEach((loai, list) ->
+                soCanhBao.merge(loai, canhBaoService.taoCanhBaoHangLoat(list), Integer::sum));
+    }
+
+    private CanhBaoHeThong canhBaoLo(Long loHangId, LoHang.TrangThaiLoHang trangThai, String soLo,
+                                     LocalDate hanSuDung, Integer soLuong, String tenHangHoa, String tenKho,
+                                     LocalDate homNay) {
+        CanhBaoHeThong canhBao = new CanhBaoHeThong();
+        canhBao.setLoaiDoiTuong(CanhBaoHeThong.LoaiDoiTuong.LO_HANG);
+        canhBao.setDoiTuongLienQuanId(loHangId);
+
+        if (trangThai == LoHang.TrangThaiLoHang.HET_HAN) {
+            canhBao.setLoaiCanhBao(CanhBaoHeThong.LoaiCanhBao.HET_HAN);
+            canhBao.setMucDo(CanhBaoHeThong.MucDo.NGHIEM_TRONG);
+            canhBao.setTieuDe("Lô đã hết hạn: " + tenHangHoa + " - lô " + soLo);
+            canhBao.setNoiDung(String.format("Lô %s của %s tại %s đã hết hạn từ ngày %s, còn %d đơn vị cần xử lý.",
+                    soLo, tenHangHoa, tenKho, hanSuDung.format(DINH_DANG_NGAY), soLuong));
+        } else {
+            canhBao.setLoaiCanhBao(CanhBaoHeThong.LoaiCanhBao.GAN_HET_HAN);
+            canhBao.setMucDo(CanhBaoHeThong.MucDo.CANH_BAO);
+            canhBao.setTieuDe("Lô sắp hết hạn: " + tenHangHoa + " - lô " + soLo);
+            canhBao.setNoiDung(String.format("Lô %s của %s tại %s hết hạn ngày %s (còn %d ngày), còn %d đơn vị.",
+                    soLo, tenHangHoa, tenKho, hanSuDung.format(DINH_DANG_NGAY),
+                    ChronoUnit.DAYS.between(homNay, hanSuDung), soLuong));
+            // Sau ngày hết hạn lô chuyển sang cảnh báo HET_HAN
+            canhBao.setNgayHetHieuLuc(hanSuDung);
+        }
+
+        canhBao.setDauVet(dauVet(canhBao.getLoaiCanhBao(), CanhBaoHeThong.LoaiDoiTuong.LO_HANG, loHangId));
+        return canhBao;
+    }
+
+    private CanhBaoHeThong canhBaoTonKho(Long hangHoaId, String maHangHoa, String tenHangHoa,
+                                         int coTheXuat, int toiThieu, String dauVet) {
+        CanhBaoHeThong canhBao = new CanhBaoHeThong();
+        canhBao.setLoaiCanhBao(CanhBaoHeThong.LoaiCanhBao.TON_KHO_THAP);
+        canhBao.setMucDo(coTheXuat <= 0 ? CanhBaoHeThong.MucDo.NGHIEM_TRONG : CanhBaoHeThong.MucDo.CANH_BAO);
+        canhBao.setTieuDe("Tồn kho thấp: " + tenHangHoa);
+        canhBao.setNoiDung(String.format("%s - %s: số lượng có thể xuất %d, dưới mức tối thiểu %d.",
+                maHangHoa, tenHangHoa, coTheXuat, toiThieu));
+        canhBao.setLoaiDoiTuong(CanhBaoHeThong.LoaiDoiTuong.HANG_HOA);
+        canhBao.setDoiTuongLienQuanId(hangHoaId);
+        canhBao.setDauVet(dauVet);
+        return canhBao;
+    }
+
+    static String dauVet(CanhBaoHeThong.LoaiCanhBao loai, CanhBaoHeThong.LoaiDoiTuong loaiDoiTuong, Long id) {
+        return loai.name() + ":" + loaiDoiTuong.name() + ":" + id;
+    }
+
+    private static List<List<String>> chia(Collection<String> dauVet) {
+        List<String> tatCa = new ArrayList<>(dauVet);
+        List<List<String>> phan = new ArrayList<>();
+        for (int i = 0; i < tatCa.size(); i += SO_DAU_VET_MOI_CAU) {
+            phan.add(tatCa.subList(i, Math.min(i + SO_DAU_VET_MOI_CAU, tatCa.size())));
+        }
+        return phan;
+    }
+}
@@ -0,0 +1,153 @@
+package com.hospital.warehouse.hospital_warehouse.service;
+
+import com.hospital.warehouse.hospital_warehouse.repository.BoDemSoChungTuRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/**
+ * Cấp số chứng từ (mã phiếu nhập / xuất, mã danh mục...) an toàn khi chạy nhiều node.
+ *
+ * - Mỗi tiền tố có một bộ đếm trong bảng bo_dem_so_chung_tu
+ * - Node lấy cả khối số (hi/lo) trong transaction riêng: UPDATE += kích thước khối → chỉ khóa dòng bộ đếm
+ *   của tiền tố đó trong thời gian rất ngắn
+ * - Trong khối, số được cấp bằng AtomicLong - không khóa; chỉ lúc hết khối mới khóa theo tiền tố để lấy khối mới
+ *
+ * Số chưa dùng trong khối sẽ bị bỏ qua khi node khởi động lại (mã có thể nhảy số, nhưng không bao giờ trùng).
+ * Đặt kho.so-chung-tu.kich-thuoc-khoi=1 nếu cần số liên tục.
+ */
+@Slf4j
+@Service
+public class SoChungTuService {
+
+    private static final DateTimeFormatter DINH_DANG_NGAY = DateTimeFormatter.BASIC_ISO_DATE;
+
+    private final BoDemSoChungTuRepository boDemSoChungTuRepository;
+    private final TransactionTemplate transactionMoi;
+
+    @Value("${kho.so-chung-tu.kich-thuoc-khoi:20}")
+    private int kichThuocKhoi;
+
+    /** Khối số đang cấp theo tiền tố */
+    private final ConcurrentHashMap<String, KhoiSo> khoiTheoTienTo = new ConcurrentHashMap<>();
+
+    /** Khóa khi lấy khối mới - riêng cho từng tiền tố */
+    private final ConcurrentHashMap<String, Object> khoaTheoTienTo = new ConcurrentHashMap<>();
+
+    public SoChungTuService(BoDemSoChungTuRepository boDemSoChungTuRepository,
+                            PlatformTransactionManager transactionManager) {
+        this.boDemSoChungTuRepository = boDemSoChungTuRepository;
+        this.transactionMoi = new TransactionTemplate(transactionManager);
+        this.transactionMoi.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    /**
+     * Mã chứng từ đánh số theo ngày: {loai}-yyyyMMdd-{số 4 chữ số}, VD: PX-20250115-0001
+     *
+     * @param soLonNhatDaDung Số lớn nhất đã dùng với tiền tố (dữ liệu có trước khi có bộ đếm),
+     *                        chỉ được gọi khi tạo bộ đếm cho tiền tố lần đầu
+     */
+    public String capMaTheoNgay(String loai, ToLongFunction<String> soLonNhatDaDung) {
+        String tienTo = String.format("%s-%s-", loai, LocalDate.now().format(DINH_DANG_NGAY));
+        return String.format("%s%04d", tienTo, capSo(tienTo, soLonNhatDaDung));
+    }
+
+    /**
+     * Số tiếp theo của tiền tố, bắt đầu từ 1
+     */
+    public long capSo(String tienTo) {
+        return capSo(tienTo, t -> 0L);
+    }
+
+    public long capSo(String tienTo, ToLongFunction<String> soLonNhatDaDung) {
+        while (true) {
+            KhoiSo khoi = khoiTheoTienTo.get(tienTo);
+            if (khoi != null) {
+                long so = khoi.tiepTheo.getAndIncrement();
+                if (so <= khoi.ketThuc) {
+                    return so;
+                }
+            }
+
+            // Hết khối: chỉ một thread của tiền tố này đi lấy khối mới, các thread khác chờ rồi thử lại
+            synchronized (khoaTheoTienTo.computeIfAbsent(tienTo, k -> new Object())) {
+                if (khoiTheoTienTo.get(tienTo) == khoi) {
+                    khoiTheoTienTo.put(tienTo, layKhoiMoi(tienTo, soLonNhatDaDung));
+                }
+            }
+        }
+    }
+
+    private KhoiSo layKhoiMoi(String tienTo, ToLongFunction<String> soLonNhatDaDung) {
+        int kichThuoc = Math.max(kichThuocKhoi, 1);
+
+        while (true) {
+            Long giaTri = transactionMoi.execute(status ->
+                    boDemSoChungTuRepository.tangGiaTri(tienTo, kichThuoc, LocalDateTime.now()) > 0
+                            ? boDemSoChungTuRepository.findGiaTriHienTai(tienTo)
+                            : null);
+
+            if (giaTri != null) {
+                log.debug("Cấp khối số {}: {} → {}", tienTo, giaTri - kichThuoc + 1, giaTri);
+                donKhoiCu(tienTo);
+                return new KhoiSo(giaTri - kichThuoc + 1, giaTri);
+            }
+
+            // Tiền tố mới: tạo bộ đếm, bắt đầu sau số lớn nhất đã có trong dữ liệu
+            try {
+                transactionMoi.executeWithoutResult(status -> {
+                    long batDau = soLonNhatDaDung.applyAsLong(tienTo);
+                    if (boDemSoChungTuRepository.khoiTao(tienTo, batDau, LocalDateTime.now()) > 0) {
+                        log.info("Tạo bộ đếm số chứng từ {} (bắt đầu sau {})", tienTo, batDau);
+                    }
+                });
+            } catch (DataIntegrityViolationException e) {
+                // Node khác vừa tạo bộ đếm cùng tiền tố → quay lại lấy khối
+                log.debug("Bộ đếm {} đã được tạo bởi node khác", tienTo);
+            }
+        }
+    }
+
+    /**
+     * Bỏ các khối đã dùng hết hoặc lấy từ hôm trước (tiền tố theo ngày cũ) để bộ nhớ không tăng theo số ngày
+     */
+    private void donKhoiCu(String tienToDangLay) {
+        LocalDate homNay = LocalDate.now();
+        khoiTheoTienTo.forEach((tienTo, khoi) -> {
+            boolean cu = khoi.ngayLay.isBefore(homNay);
+            if (cu || khoi.hetSo()) {
+                khoiTheoTienTo.remove(tienTo, khoi);
+            }
+            if (cu && !tienTo.equals(tienToDangLay)) {
+                khoaTheoTienTo.remove(tienTo);
+            }
+        });
+    }
+
+    private static final class KhoiSo {
+
+        private final AtomicLong tiepTheo;
+        private final long ketThuc;
+        private final LocalDate ngayLay = LocalDate.now();
+
+        private KhoiSo(long batDau, long ketThuc) {
+            this.tiepTheo = new AtomicLong(batDau);
+            this.ketThuc = ketThuc;
+        }
+
+        private boolean hetSo() {
+            return tiepTheo.get() > ketThuc;
+        }
+    }
+}
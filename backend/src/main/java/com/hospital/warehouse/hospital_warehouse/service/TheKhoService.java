@@ -0,0 +1,257 @@
+package com.hospital.warehouse.hospital_warehouse.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hospital.warehouse.hospital_warehouse.entity.HangHoa;
+import com.hospital.warehouse.hospital_warehouse.entity.Kho;
+import com.hospital.warehouse.hospital_warehouse.entity.LichSuTonKho;
+import com.hospital.warehouse.hospital_warehouse.entity.TonDauKy;
+import com.hospital.warehouse.hospital_warehouse.repository.BienDongTonKhoNgayRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.HangHoaRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.KhoRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.LichSuTonKhoRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.TonDauKyRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Thẻ kho của một mặt hàng trong một kho: tồn đầu kỳ, từng dòng biến động kèm tồn lũy kế, tồn cuối kỳ.
+ *
+ * - Tồn đầu kỳ: mốc tồn đầu tháng (ton_dau_ky) + biến động theo ngày (bien_dong_ton_kho_ngay) từ đầu tháng tới tuNgay;
+ *   chưa có mốc tháng đó thì tính từ mốc gần nhất trước đó rồi lưu lại
+ * - Các dòng: đọc lich_su_ton_kho theo từng trang keyset (created_at, id), mỗi trang một câu truy vấn ngắn;
+ *   tồn lũy kế tính khi ghi ra, không giữ cả thẻ kho trong bộ nhớ
+ * - Xuất thẳng ra luồng phản hồi dạng CSV hoặc JSON
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class TheKhoService {
+
+    private static final LocalDate NGAY_NHO_NHAT = LocalDate.of(1900, 1, 1);
+    private static final DateTimeFormatter DINH_DANG_THOI_GIAN = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss");
+
+    private final HangHoaRepository hangHoaRepository;
+    private final KhoRepository khoRepository;
+    private final LichSuTonKhoRepository lichSuTonKhoRepository;
+    private final BienDongTonKhoNgayRepository bienDongTonKhoNgayRepository;
+    private final TonDauKyRepository tonDauKyRepository;
+    private final ObjectMapper objectMapper;
+
+    @Value("${kho.the-kho.kich-thuoc-trang:500}")
+    private int kichThuocTrang;
+
+    /**
+     * Thông tin đầu thẻ kho + tồn đầu kỳ (tồn lúc 00:00 ngày tuNgay)
+     */
+    public record TheKho(Long hangHoaId, String maHangHoa, String tenHangHoa, String donViTinh,
+                         Long khoId, String tenKho, LocalDate tuNgay, LocalDate denNgay, long tonDauKy) {
+    }
+
+    /**
+     * Một dòng thẻ kho
+     */
+    public record DongTheKho(LocalDateTime thoiGian, String maChungTu, String loaiBienDong, String soLo,
+                             String dienGiai, long soLuongNhap, long soLuongXuat, long ton,
+                             BigDecimal donGia, BigDecimal giaTri) {
+    }
+
+    /**
+     * Tổng kết sau khi duyệt hết các dòng
+     */
+    public record TongKet(long tongNhap, long tongXuat, long tonCuoiKy, long soDong) {
+    }
+
+    @FunctionalInterface
+    public interface NguoiNhanDong {
+        void nhan(DongTheKho dong) throws IOException;
+    }
+
+    // ==================== LẬP THẺ KHO ====================
+
+    /**
+     * Kiểm tra tham số và tính tồn đầu kỳ (tạo mốc đầu tháng nếu chưa có).
+     * Mặc định: từ đầu tháng hiện tại tới hôm nay.
+     */
+    @Transactional
+    public TheKho chuanBi(Long hangHoaId, Long khoId, LocalDate tuNgay, LocalDate denNgay) {
+        HangHoa hangHoa = hangHoaRepository.findById(hangHoaId)
+                .orElseThrow(() -> new IllegalArgumentException("Không tìm thấy hàng hóa với ID: " + hangHoaId));
+        Kho kho = khoRepository.findById(khoId)
+                .orElseThrow(() -> new IllegalArgumentException("Không tìm thấy kho với ID: " + khoId));
+
+        LocalDate den = denNgay != null ? denNgay : LocalDate.now();
+        LocalDate tu = tuNgay != null ? tuNgay : den.withDayOfMonth(1);
+        if (tu.isAfter(den)) {
+            throw new IllegalArgumentException("Từ ngày phải trước hoặc bằng đến ngày");
+        }
+
+        long tonDauKy = tonDauThang(hangHoaId, khoId, tu.withDayOfMonth(1))
+                + bienDongTonKhoNgayRepository.tongThuan(hangHoaId, khoId, tu.withDayOfMonth(1), tu);
+
+        return new TheKho(hangHoa.getId(), hangHoa.getMaHangHoa(), hangHoa.getTenHangHoa(),
+                hangHoa.getDonViTinh() != null ? hangHoa.getDonViTinh().getTenDvt() : null,
+                kho.getId(), kho.getTenKho(), tu, den, tonDauKy);
+    }
+
+    /**
+     * Duyệt các dòng thẻ kho theo thứ tự thời gian, từng trang keyset (không mở transaction dài trong lúc ghi ra)
+     */
+    public TongKet duyet(TheKho theKho, NguoiNhanDong nguoiNhan) throws IOException {
+        LocalDateTime sauThoiDiem = theKho.tuNgay().atStartOfDay();
+        long sauId = -1L;
+        LocalDateTime den = theKho.denNgay().plusDays(1).atStartOfDay();
+
+        long ton = theKho.tonDauKy();
+        long tongNhap = 0;
+        long tongXuat = 0;
+        long soDong = 0;
+
+        while (true) {
+            List<Object[]> trang = lichSuTonKhoRepository.theKhoTiepTheo(
+                    theKho.hangHoaId(), theKho.khoId(), sauThoiDiem, sauId, den, kichThuocTrang);
+
+            for (Object[] row : trang) {
+                LichSuTonKho.LoaiBienDong loai = LichSuTonKho.LoaiBienDong.valueOf((String) row[2]);
+                int soLuong = Math.abs(((Number) row[4]).intValue());
+                boolean vao = BienDongTonKhoService.laVao(loai, ((Number) row[3]).intValue(), ((Number) row[5]).intValue());
+
+                if (vao) {
+                    ton += soLuong;
+                    tongNhap += soLuong;
+                } else {
+                    ton -= soLuong;
+                    tongXuat += soLuong;
+                }
+                soDong++;
+
+                nguoiNhan.nhan(new DongTheKho(thoiGian(row[1]), (String) row[8], loai.name(), (String) row[10],
+                        (String) row[9], vao ? soLuong : 0, vao ? 0 : soLuong, ton,
+                        (BigDecimal) row[6], (BigDecimal) row[7]));
+            }
+
+            if (trang.size() < kichThuocTrang) {
+                break;
+            }
+            Object[] cuoi = trang.get(trang.size() - 1);
+            sauThoiDiem = thoiGian(cuoi[1]);
+            sauId = ((Number) cuoi[0]).longValue();
+        }
+
+        return new TongKet(tongNhap, tongXuat, ton, soDong);
+    }
+
+    // ==================== XUẤT CSV / JSON ====================
+
+    public void ghiCsv(TheKho theKho, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        // BOM để Excel nhận đúng UTF-8
+        writer.write('\uFEFF');
+        writer.write("Thẻ kho," + csv(theKho.maHangHoa() + " - " + theKho.tenHangHoa())
+                + "," + csv(theKho.donViTinh()) + "," + csv(theKho.tenKho()) + "\n");
+        writer.write("Thời gian,Mã chứng từ,Loại biến động,Số lô,Diễn giải,Nhập,Xuất,Tồn,Đơn giá,Giá trị\n");
+        writer.write(",,,,Tồn đầu kỳ " + theKho.tuNgay() + ",,," + theKho.tonDauKy() + ",,\n");
+
+        TongKet tongKet = duyet(theKho, dong -> writer.write(
+                dong.thoiGian().format(DINH_DANG_THOI_GIAN) + ","
+                        + csv(dong.maChungTu()) + ","
+                        + dong.loaiBienDong() + ","
+                        + csv(dong.soLo()) + ","
+                        + csv(dong.dienGiai()) + ","
+                        + dong.soLuongNhap() + ","
+                        + dong.soLuongXuat() + ","
+                        + dong.ton() + ","
+                        + (dong.donGia() != null ? dong.donGia().toPlainString() : "") + ","
+                        + (dong.giaTri() != null ? dong.giaTri().toPlainString() : "") + "\n"));
+
+        writer.write(",,,,Tồn cuối kỳ " + theKho.denNgay() + "," + tongKet.tongNhap() + ","
+                + tongKet.tongXuat() + "," + tongKet.tonCuoiKy() + ",,\n");
+        writer.flush();
+        log.info("📄 Xuất thẻ kho CSV: hàng hóa {}, kho {}, {} dòng", theKho.hangHoaId(), theKho.khoId(), tongKet.soDong());
+    }
+
+    /**
+     * JSON cùng dạng ApiResponse: { success, data: { ...thông tin, tonDauKy, dong: [...], tongNhap, tongXuat, tonCuoiKy } }
+     */
+    public void ghiJson(TheKho theKho, OutputStream out) throws IOException {
+        try (JsonGenerator json = objectMapper.createGenerator(out)) {
+            json.writeStartObject();
+            json.writeBooleanField("success", true);
+            json.writeObjectFieldStart("data");
+            json.writeNumberField("hangHoaId", theKho.hangHoaId());
+            json.writeStringField("maHangHoa", theKho.maHangHoa());
+            json.writeStringField("tenHangHoa", theKho.tenHangHoa());
+            json.writeStringField("donViTinh", theKho.donViTinh());
+            json.writeNumberField("khoId", theKho.khoId());
+            json.writeStringField("tenKho", theKho.tenKho());
+            json.writeObjectField("tuNgay", theKho.tuNgay());
+            json.writeObjectField("denNgay", theKho.denNgay());
+            json.writeNumberField("tonDauKy", theKho.tonDauKy());
+
+            json.writeArrayFieldStart("dong");
+            TongKet tongKet = duyet(theKho, json::writeObject);
+            json.writeEndArray();
+
+            json.writeNumberField("tongNhap", tongKet.tongNhap());
+            json.writeNumberField("tongXuat", tongKet.tongXuat());
+            json.writeNumberField("tonCuoiKy", tongKet.tonCuoiKy());
+            json.writeEndObject();
+            json.writeNumberField("timestamp", System.currentTimeMillis());
+            json.writeEndObject();
+        }
+    }
+
+    // ==================== HELPER ====================
+
+    /**
+     * Tồn lúc 00:00 ngày đầu tháng: mốc đã lưu, hoặc mốc gần nhất trước đó + biến động ở giữa (rồi lưu lại)
+     */
+    private long tonDauThang(Long hangHoaId, Long khoId, LocalDate dauThang) {
+        Optional<TonDauKy> mocGanNhat = tonDauKyRepository
+                .findFirstByIdHangHoaIdAndIdKhoIdAndIdNgayLessThanEqualOrderByIdNgayDesc(hangHoaId, khoId, dauThang);
+        if (mocGanNhat.isPresent() && mocGanNhat.get().getId().getNgay().equals(dauThang)) {
+            return mocGanNhat.get().getSoLuong();
+        }
+
+        LocalDate tuNgay = mocGanNhat.map(m -> m.getId().getNgay()).orElse(NGAY_NHO_NHAT);
+        long ton = mocGanNhat.map(TonDauKy::getSoLuong).orElse(0L)
+                + bienDongTonKhoNgayRepository.tongThuan(hangHoaId, khoId, tuNgay, dauThang);
+
+        // Chỉ lưu khi các ngày trước mốc đều đã qua (không còn biến động mới)
+        if (!dauThang.isAfter(LocalDate.now())) {
+            tonDauKyRepository.luu(hangHoaId, khoId, dauThang, ton);
+        }
+        return ton;
+    }
+
+    private static LocalDateTime thoiGian(Object giaTri) {
+        return giaTri instanceof Timestamp ts ? ts.toLocalDateTime() : (LocalDateTime) giaTri;
+    }
+
+    private static String csv(String giaTri) {
+        if (giaTri == null) {
+            return "";
+        }
+        if (giaTri.indexOf(',') >= 0 || giaTri.indexOf('"') >= 0 || giaTri.indexOf('\n') >= 0) {
+            return "\"" + giaTri.replace("\"", "\"\"") + "\"";
+        }
+        return giaTri;
+    }
+}
@@ -0,0 +1,320 @@
+package com.hospital.warehouse.hospital_warehouse.service;
+
+import com.hospital.warehouse.hospital_warehouse.dto.ThongKeLoHangDTO;
+import com.hospital.warehouse.hospital_warehouse.entity.LoHang;
+import com.hospital.warehouse.hospital_warehouse.entity.ThongKeLoHang;
+import com.hospital.warehouse.hospital_warehouse.repository.LoHangRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.ThongKeLoHangRepository;
+import jakarta.persistence.EntityManager;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bộ đếm lô hàng theo (kho, trạng thái) - thong_ke_lo_hang.
+ *
+ * Mọi đường ghi làm đổi kho / trạng thái / số lượng hiện tại của lô (UPDATE có điều kiện khi xuất, hủy duyệt,
+ * làm mới trạng thái, thêm / sửa / xóa lô, nhập lô theo phiếu) bọc phần ghi giữa truocKhiGhi và sauKhiGhi
+ * (hoặc gọi ghi): truocKhiGhi khóa các lô theo ID tăng dần và đọc giá trị đang có trong DB, sauKhiGhi flush rồi
+ * đọc lại. Chênh lệch theo (kho, trạng thái) được gom trong transaction và cộng vào bộ đếm ngay trước khi commit
+ * → bộ đếm đổi cùng lúc với lô, rollback thì không cộng gì; ô bộ đếm chỉ bị khóa lúc commit (theo thứ tự cố định)
+ * chứ không suốt transaction duyệt phiếu. Lô mới tạo / đã xóa được tính như không có.
+ * Giữ hàng / trả hàng giữ (so_luong_da_dat) không đổi bộ đếm nên không cần bọc.
+ *
+ * Khi khởi động, hằng đêm và theo yêu cầu: đối chiếu bộ đếm với GROUP BY lo_hang để sửa lệch (nếu có).
+ */
+@Slf4j
+@Service
+public class ThongKeLoHangService {
+
+    private static final Comparator<Khoa> THU_TU_O = Comparator.comparingLong(Khoa::khoId)
+            .thenComparing(Khoa::trangThai);
+
+    private final LoHangRepository loHangRepository;
+    private final ThongKeLoHangRepository thongKeLoHangRepository;
+    private final EntityManager entityManager;
+    private final TransactionTemplate transactionMoi;
+
+    private final AtomicBoolean dangChay = new AtomicBoolean(false);
+
+    public record DoiChieu(long tongSoLo, int soOSua) {
+    }
+
+    /**
+     * Các lô đã khóa và giá trị của chúng trước khi ghi - truyền lại cho sauKhiGhi
+     *
+     * @param daDem [id, khoId, trangThai, soLuongHienTai]
+     */
+    public record TruocKhiGhi(Set<Long> loHangIds, List<Object[]> daDem) {
+    }
+
+    private record Khoa(long khoId, String trangThai) {
+    }
+
+    public ThongKeLoHangService(LoHangRepository loHangRepository,
+                                ThongKeLoHangRepository thongKeLoHangRepository,
+                                EntityManager entityManager,
+                                PlatformTransactionManager transactionManager) {
+        this.loHangRepository = loHangRepository;
+        this.thongKeLoHangRepository = thongKeLoHangRepository;
+        this.entityManager = entityManager;
+        this.transactionMoi = new TransactionTemplate(transactionManager);
+        this.transactionMoi.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    // ==================== TRUY VẤN ====================
+
+    /**
+     * Thống kê lô theo trạng thái và theo kho (vài dòng của bộ đếm)
+     */
+    @Transactional(readOnly = true)
+    public ThongKeLoHangDTO layThongKe() {
+        List<ThongKeLoHangDTO.TheoTrangThai> theoTrangThai = new ArrayList<>();
+        long tongSoLo = 0;
+        long tongSoLuong = 0;
+        for (Object[] row : thongKeLoHangRepository.theoTrangThai()) {
+            long soLo = ((Number) row[1]).longValue();
+            long soLuong = ((Number) row[2]).longValue();
+            theoTrangThai.add(new ThongKeLoHangDTO.TheoTrangThai((LoHang.TrangThaiLoHang) row[0], soLo, soLuong));
+            tongSoLo += soLo;
+            tongSoLuong += soLuong;
+        }
+
+        List<ThongKeLoHangDTO.TheoKho> theoKho = new ArrayList<>();
+        for (Object[] row : thongKeLoHangRepository.theoKho()) {
+            theoKho.add(new ThongKeLoHangDTO.TheoKho((Long) row[0], (String) row[1],
+                    ((Number) row[2]).longValue(), ((Number) row[3]).longValue()));
+        }
+
+        return ThongKeLoHangDTO.builder()
+                .tongSoLo(tongSoLo)
+                .tongSoLuong(tongSoLuong)
+                .theoTrangThai(theoTrangThai)
+                .theoKho(theoKho)
+                .build();
+    }
+
+    // ==================== CẬP NHẬT ====================
+
+    /**
+     * Khóa các lô sắp ghi và đọc giá trị hiện có trong DB. Không flush: thay đổi entity lô chưa flush
+     * được tính vào lần ghi này.
+     */
+    @Transactional
+    public TruocKhiGhi truocKhiGhi(Collection<Long> loHangIds) {
+        Set<Long> ids = new TreeSet<>(loHangIds);
+        return new TruocKhiGhi(ids, ids.isEmpty() ? List.of() : loHangRepository.findThongKeForUpdateByIdIn(ids));
+    }
+
+    /**
+     * Đọc lại các lô sau khi ghi và cộng chênh lệch vào bộ đếm (lúc commit)
+     */
+    @Transactional
+    public void sauKhiGhi(TruocKhiGhi truoc) {
+        sauKhiGhi(truoc, List.of());
+    }
+
+    /**
+     * Như sauKhiGhi(truoc), tính thêm các lô vừa tạo
+     */
+    @Transactional
+    public void sauKhiGhi(TruocKhiGhi truoc, Collection<Long> loMoiIds) {
+        Set<Long> ids = new TreeSet<>(truoc.loHangIds());
+        ids.addAll(loMoiIds);
+        if (ids.isEmpty()) {
+            return;
+        }
+        entityManager.flush();
+
+        Map<Khoa, long[]> chenhLech = new HashMap<>();
+        congDon(chenhLech, truoc.daDem(), -1);
+        congDon(chenhLech, loHangRepository.findThongKeByIdIn(ids), 1);
+        chenhLech.values().removeIf(d -> d[0] == 0 && d[1] == 0);
+        if (chenhLech.isEmpty()) {
+            return;
+        }
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()
+                || !TransactionSynchronizationManager.isActualTransactionActive()) {
+            ghiBoDem(chenhLech);
+            return;
+        }
+        chenhLech.forEach((khoa, d) -> layBoDem().chenhLech.merge(khoa, d,
+                (a, b) -> new long[]{a[0] + b[0], a[1] + b[1]}));
+    }
+
+    /**
+     * Cộng các lô vừa tạo vào bộ đếm (lúc commit)
+     */
+    @Transactional
+    public void daTao(Collection<Long> loMoiIds) {
+        sauKhiGhi(new TruocKhiGhi(Set.of(), List.of()), loMoiIds);
+    }
+
+    /**
+     * truocKhiGhi → ghi → sauKhiGhi
+     */
+    @Transactional
+    public void ghi(Collection<Long> loHangIds, Runnable ghi) {
+        TruocKhiGhi truoc = truocKhiGhi(loHangIds);
+        ghi.run();
+        sauKhiGhi(truoc);
+    }
+
+    // ==================== ĐỐI CHIẾU ====================
+
+    /**
+     * Đối chiếu bộ đếm khi khởi động (listener trả void - giá trị trả về khác null sẽ bị Spring phát lại thành event)
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void doiChieuKhiKhoiDong() {
+        doiChieu();
+    }
+
+    /**
+     * Sửa bộ đếm lệch so với lo_hang (khi khởi động, hằng đêm và theo yêu cầu). Bộ đếm được cập nhật cùng
+     * transaction với lô nên bình thường không có ô nào lệch - chỉ để sửa dữ liệu sửa tay / lỗi.
+     */
+    @Scheduled(cron = "${kho.lo-hang.cron-doi-chieu-thong-ke:0 40 0 * * *}")
+    public DoiChieu doiChieu() {
+        if (!dangChay.compareAndSet(false, true)) {
+            throw new IllegalStateException("Đang đối chiếu thống kê lô hàng, vui lòng thử lại sau");
+        }
+        try {
+            long batDau = System.currentTimeMillis();
+            DoiChieu ketQua = transactionMoi.execute(status -> suaBoDem());
+
+            if (ketQua.soOSua() > 0) {
+                log.warn("⚠️ Đối chiếu thống kê lô hàng: sửa {} ô bộ đếm lệch ({} lô, {} ms)",
+                        ketQua.soOSua(), ketQua.tongSoLo(), System.currentTimeMillis() - batDau);
+            } else {
+                log.info("✅ Đối chiếu thống kê lô hàng: bộ đếm khớp ({} lô, {} ms)",
+                        ketQua.tongSoLo(), System.currentTimeMillis() - batDau);
+            }
+            return ketQua;
+        } finally {
+            dangChay.set(false);
+        }
+    }
+
+    // ==================== HELPER ====================
+
+    /**
+     * @param rows [id, khoId, trangThai, soLuongHienTai]
+     */
+    private void congDon(Map<Khoa, long[]> chenhLech, List<Object[]> rows, int dau) {
+        for (Object[] row : rows) {
+            LoHang.TrangThaiLoHang trangThai = (LoHang.TrangThaiLoHang) row[2];
+            if (trangThai == null) {
+                continue;
+            }
+            long[] d = chenhLech.computeIfAbsent(new Khoa((Long) row[1], trangThai.name()), k -> new long[2]);
+            d[0] += dau;
+            d[1] += dau * (long) (Integer) row[3];
+        }
+    }
+
+    /**
+     * Cộng vào bộ đếm theo thứ tự ô cố định (hai transaction cùng cộng không khóa chéo nhau)
+     */
+    private void ghiBoDem(Map<Khoa, long[]> chenhLech) {
+        Map<Khoa, long[]> theoThuTu = new TreeMap<>(THU_TU_O);
+        theoThuTu.putAll(chenhLech);
+        theoThuTu.forEach((khoa, d) -> {
+            if (d[0] != 0 || d[1] != 0) {
+                thongKeLoHangRepository.congDon(khoa.khoId(), khoa.trangThai(), d[0], d[1]);
+            }
+        });
+    }
+
+    /**
+     * Bộ đệm chênh lệch gắn với synchronization của transaction hiện tại
+     * (transaction REQUIRES_NEW lồng bên trong có bộ đệm riêng vì synchronization bị tạm treo)
+     */
+    private BoDem layBoDem() {
+        for (TransactionSynchronization sync : TransactionSynchronizationManager.getSynchronizations()) {
+            if (sync instanceof BoDem boDem && boDem.service == this) {
+                return boDem;
+            }
+        }
+        BoDem boDem = new BoDem(this);
+        TransactionSynchronizationManager.registerSynchronization(boDem);
+        return boDem;
+    }
+
+    /**
+     * Bộ đếm phải bằng GROUP BY lo_hang. Hai lần đọc trong cùng transaction (cùng snapshot - lô và bộ đếm
+     * luôn commit cùng nhau); phần sửa được CỘNG thêm nên không mất chênh lệch của transaction commit song song.
+     */
+    private DoiChieu suaBoDem() {
+        Map<Khoa, long[]> dung = new HashMap<>();
+        long tongSoLo = 0;
+        for (Object[] row : loHangRepository.tinhThongKeTheoKhoVaTrangThai()) {
+            long soLo = ((Number) row[2]).longValue();
+            dung.put(new Khoa((Long) row[0], ((LoHang.TrangThaiLoHang) row[1]).name()),
+                    new long[]{soLo, ((Number) row[3]).longValue()});
+            tongSoLo += soLo;
+        }
+
+        Map<Khoa, long[]> hienTai = new HashMap<>();
+        for (ThongKeLoHang o : thongKeLoHangRepository.findAll()) {
+            hienTai.put(new Khoa(o.getId().getKhoId(), o.getId().getTrangThai().name()),
+                    new long[]{o.getSoLo(), o.getTongSoLuong()});
+        }
+
+        Set<Khoa> tatCa = new HashSet<>(dung.keySet());
+        tatCa.addAll(hienTai.keySet());
+        Map<Khoa, long[]> lech = new HashMap<>();
+        for (Khoa khoa : tatCa) {
+            long[] a = dung.getOrDefault(khoa, new long[2]);
+            long[] b = hienTai.getOrDefault(khoa, new long[2]);
+            if (a[0] != b[0] || a[1] != b[1]) {
+                lech.put(khoa, new long[]{a[0] - b[0], a[1] - b[1]});
+            }
+        }
+        ghiBoDem(lech);
+        return new DoiChieu(tongSoLo, lech.size());
+    }
+
+    private static final class BoDem implements TransactionSynchronization {
+
+        private final ThongKeLoHangService service;
+        private final Map<Khoa, long[]> chenhLech = new HashMap<>();
+
+        private BoDem(ThongKeLoHangService service) {
+            this.service = service;
+        }
+
+        @Override
+        public void beforeCommit(boolean readOnly) {
+            if (!chenhLech.isEmpty()) {
+                service.ghiBoDem(chenhLech);
+            }
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            chenhLech.clear();
+        }
+    }
+}
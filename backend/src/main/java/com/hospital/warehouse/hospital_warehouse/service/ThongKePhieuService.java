@@ -0,0 +1,168 @@
+package com.hospital.warehouse.hospital_warehouse.service;
+
+import com.hospital.warehouse.hospital_warehouse.entity.ThongKePhieuNgay;
+import com.hospital.warehouse.hospital_warehouse.repository.PhieuNhapKhoRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.PhieuXuatKhoRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.ThongKePhieuNgayRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Thống kê phiếu nhập / xuất theo trạng thái
+ *
+ * - Khoảng ngắn (dưới kho.thong-ke-phieu.so-ngay-truy-van-truc-tiep ngày): 1 câu COUNT / SUM ... GROUP BY trạng thái
+ *   trên bảng phiếu (dùng index kho + ngày chứng từ)
+ * - Khoảng dài / không giới hạn: đọc bảng tổng hợp thong_ke_phieu_ngay (mỗi ngày × kho × trạng thái 1 dòng)
+ *
+ * Bảng tổng hợp được cộng / trừ trong cùng transaction với tạo / duyệt / hủy / hủy duyệt / xóa phiếu,
+ * thứ tự 2 ô của một lần chuyển trạng thái cố định (theo tên trạng thái) để không deadlock.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ThongKePhieuService {
+
+    /** Trạng thái được cộng giá trị (giá trị phiếu chốt lúc duyệt) */
+    private static final Set<String> TRANG_THAI_TINH_GIA_TRI = Set.of("DA_DUYET", "DA_GIAO");
+
+    private static final LocalDate NGAY_NHO_NHAT = LocalDate.of(1900, 1, 1);
+    private static final LocalDate NGAY_LON_NHAT = LocalDate.of(9999, 12, 31);
+
+    private final ThongKePhieuNgayRepository thongKePhieuNgayRepository;
+    private final PhieuXuatKhoRepository phieuXuatKhoRepository;
+    private final PhieuNhapKhoRepository phieuNhapKhoRepository;
+
+    // Khoảng ngày ngắn hơn ngưỡng này được tính thẳng trên bảng phiếu
+    @Value("${kho.thong-ke-phieu.so-ngay-truy-van-truc-tiep:3}")
+    private int soNgayTruyVanTrucTiep;
+
+    /**
+     * Số phiếu và tổng giá trị của một trạng thái
+     */
+    public record DongThongKe(long soPhieu, BigDecimal tongGiaTri) {
+    }
+
+    // ==================== GHI NHẬN ====================
+
+    /**
+     * Ghi nhận một lần chuyển trạng thái của phiếu
+     *
+     * @param trangThaiCu  null khi tạo phiếu
+     * @param trangThaiMoi null khi xóa phiếu
+     * @param giaTri       Giá trị phiếu (chỉ cộng / trừ ở trạng thái đã duyệt / đã giao)
+     */
+    @Transactional
+    public void chuyenTrangThai(ThongKePhieuNgay.LoaiPhieu loaiPhieu,
+                                LocalDateTime ngayChungTu,
+                                Long khoId,
+                                Enum<?> trangThaiCu,
+                                Enum<?> trangThaiMoi,
+                                BigDecimal giaTri) {
+        if (trangThaiCu == trangThaiMoi) {
+            return;
+        }
+        LocalDate ngay = ngayChungTu.toLocalDate();
+
+        // Thứ tự khóa cố định giữa 2 ô
+        boolean cuTruoc = trangThaiMoi == null
+                || (trangThaiCu != null && trangThaiCu.name().compareTo(trangThaiMoi.name()) < 0);
+        if (cuTruoc) {
+            congDon(loaiPhieu, ngay, khoId, trangThaiCu, -1, giaTri);
+            congDon(loaiPhieu, ngay, khoId, trangThaiMoi, 1, giaTri);
+        } else {
+            congDon(loaiPhieu, ngay, khoId, trangThaiMoi, 1, giaTri);
+            congDon(loaiPhieu, ngay, khoId, trangThaiCu, -1, giaTri);
+        }
+    }
+
+    // ==================== TRA CỨU ====================
+
+    /**
+     * Số phiếu + tổng giá trị theo trạng thái: tên trạng thái → dòng thống kê
+     */
+    @Transactional(readOnly = true)
+    public Map<String, DongThongKe> thongKe(ThongKePhieuNgay.LoaiPhieu loaiPhieu,
+                                            Long khoId, LocalDate tuNgay, LocalDate denNgay) {
+        boolean trucTiep = tuNgay != null && denNgay != null
+                && ChronoUnit.DAYS.between(tuNgay, denNgay) < soNgayTruyVanTrucTiep;
+
+        List<Object[]> rows;
+        if (trucTiep) {
+            LocalDateTime tu = tuNgay.atStartOfDay();
+            LocalDateTime den = denNgay.plusDays(1).atStartOfDay();
+            rows = loaiPhieu == ThongKePhieuNgay.LoaiPhieu.XUAT
+                    ? phieuXuatKhoRepository.thongKeTheoTrangThai(khoId, tu, den)
+                    : phieuNhapKhoRepository.thongKeTheoTrangThai(khoId, tu, den);
+        } else {
+            rows = thongKePhieuNgayRepository.tongHopTheoTrangThai(loaiPhieu, khoId,
+                    tuNgay != null ? tuNgay : NGAY_NHO_NHAT,
+                    denNgay != null ? denNgay : NGAY_LON_NHAT);
+        }
+
+        Map<String, DongThongKe> ketQua = new HashMap<>();
+        for (Object[] row : rows) {
+            String trangThai = row[0] instanceof Enum<?> e ? e.name() : String.valueOf(row[0]);
+            long soPhieu = row[1] != null ? ((Number) row[1]).longValue() : 0L;
+            BigDecimal tongGiaTri = TRANG_THAI_TINH_GIA_TRI.contains(trangThai) && row[2] != null
+                    ? (BigDecimal) row[2] : BigDecimal.ZERO;
+            ketQua.put(trangThai, new DongThongKe(soPhieu, tongGiaTri));
+        }
+        return ketQua;
+    }
+
+    // ==================== ĐỒNG BỘ ====================
+
+    /**
+     * Tính lại toàn bộ bảng tổng hợp từ bảng phiếu
+     *
+     * @return Số dòng tổng hợp sau khi đồng bộ
+     */
+    @Transactional
+    public int dongBoLai() {
+        thongKePhieuNgayRepository.xoaTheoLoai(ThongKePhieuNgay.LoaiPhieu.XUAT);
+        thongKePhieuNgayRepository.xoaTheoLoai(ThongKePhieuNgay.LoaiPhieu.NHAP);
+        int soDong = thongKePhieuNgayRepository.dongBoPhieuXuat() + thongKePhieuNgayRepository.dongBoPhieuNhap();
+        log.info("✅ Rebuilt thong_ke_phieu_ngay: {} rows", soDong);
+        return soDong;
+    }
+
+    /**
+     * Lần đầu chạy (bảng còn trống) → khởi tạo từ các phiếu hiện có
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Transactional
+    public void khoiTaoNeuTrong() {
+        if (thongKePhieuNgayRepository.count() == 0
+                && (phieuXuatKhoRepository.count() > 0 || phieuNhapKhoRepository.count() > 0)) {
+            log.info("Khởi tạo bảng thống kê phiếu theo ngày từ các phiếu hiện có...");
+            dongBoLai();
+        }
+    }
+
+    // ==================== HELPER ====================
+
+    private void congDon(ThongKePhieuNgay.LoaiPhieu loaiPhieu, LocalDate ngay, Long khoId,
+                         Enum<?> trangThai, int soPhieu, BigDecimal giaTri) {
+        if (trangThai == null) {
+            return;
+        }
+        BigDecimal giaTriCong = TRANG_THAI_TINH_GIA_TRI.contains(trangThai.name()) && giaTri != null
+                ? (soPhieu < 0 ? giaTri.negate() : giaTri)
+                : BigDecimal.ZERO;
+        thongKePhieuNgayRepository.congDon(loaiPhieu.name(), ngay, khoId, trangThai.name(), soPhieu, giaTriCong);
+    }
+}
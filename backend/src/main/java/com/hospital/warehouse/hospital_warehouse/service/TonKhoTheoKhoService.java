@@ -0,0 +1,244 @@
+package com.hospital.warehouse.hospital_warehouse.service;
+
+import com.hospital.warehouse.hospital_warehouse.dto.GiaTriTonKhoDTO;
+import com.hospital.warehouse.hospital_warehouse.dto.TonKhoTheoKhoDTO;
+import com.hospital.warehouse.hospital_warehouse.entity.TonKhoTheoKho;
+import com.hospital.warehouse.hospital_warehouse.repository.TonKhoTheoKhoRepository;
+import com.hospital.warehouse.hospital_warehouse.util.DinhGiaTon;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Tồn kho theo (hàng hóa, kho)
+ *
+ * Được gọi trong CÙNG transaction với duyệt nhập / duyệt xuất / hủy duyệt,
+ * nên bảng ton_kho_theo_kho luôn khớp với chứng từ đã duyệt.
+ *
+ * Giá trị tồn (gia_tri_ton) được cộng / trừ cùng số lượng theo giá bình quân gia quyền di động - xem DinhGiaTon.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class TonKhoTheoKhoService {
+
+    private final TonKhoTheoKhoRepository tonKhoTheoKhoRepository;
+
+    // ==================== TRA CỨU ====================
+
+    /**
+     * Số lượng có thể xuất của hàng hóa tại kho - 1 lần tra khóa chính
+     */
+    @Transactional(readOnly = true)
+    public int getSoLuongCoTheXuat(Long hangHoaId, Long khoId) {
+        return tonKhoTheoKhoRepository
+                .findById(new TonKhoTheoKho.TonKhoTheoKhoId(hangHoaId, khoId))
+                .map(TonKhoTheoKho::getSoLuongCoTheXuat)
+                .orElse(0);
+    }
+
+    /**
+     * Tồn kho của nhiều hàng hóa trong 1 kho: hangHoaId → tồn kho
+     */
+    @Transactional(readOnly = true)
+    public Map<Long, TonKhoTheoKho> getTonKhoTaiKho(Long khoId, Collection<Long> hangHoaIds) {
+        if (hangHoaIds == null || hangHoaIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        return tonKhoTheoKhoRepository.findByIdKhoIdAndIdHangHoaIdIn(khoId, hangHoaIds)
+                .stream()
+                .collect(Collectors.toMap(t -> t.getId().getHangHoaId(), Function.identity()));
+    }
+
+    /**
+     * Tồn kho của một hàng hóa ở tất cả các kho
+     */
+    @Transactional(readOnly = true)
+    public List<TonKhoTheoKhoDTO> getTonKhoCacKho(Long hangHoaId) {
+        return tonKhoTheoKhoRepository.findByHangHoaIdWithKho(hangHoaId)
+                .stream()
+                .map(this::convertToDTO)
+                .collect(Collectors.toList());
+    }
+
+    // ==================== CẬP NHẬT ====================
+
+    /**
+     * Cộng tồn kho tại kho (duyệt nhập / hủy duyệt xuất)
+     *
+     * @param giaTri Giá trị cộng thêm (1/100 đồng - DinhGiaTon)
+     */
+    @Transactional
+    public void congTonKho(Long hangHoaId, Long khoId, int soLuong, long giaTri) {
+        tonKhoTheoKhoRepository.congTon(hangHoaId, khoId, soLuong, giaTri);
+        log.info("📥 Ton kho theo kho +{} (gia tri {}): HangHoa={}, Kho={}",
+                soLuong, DinhGiaTon.sangDong(giaTri), hangHoaId, khoId);
+    }
+
+    /**
+     * Xuất tồn kho tại kho theo giá bình quân hiện tại - khóa dòng, tính giá trị xuất, UPDATE có điều kiện
+     *
+     * @return Giá trị đã lấy ra (1/100 đồng) - lưu lại để hủy duyệt cộng lại chính xác
+     * @throws IllegalStateException Nếu kho không đủ hàng
+     */
+    @Transactional
+    public long truTonKho(Long hangHoaId, Long khoId, int soLuong) {
+        long[] tonKho = khoaVaDoc(hangHoaId, khoId);
+        if (tonKho[1] < soLuong) {
+            throw khongDuHang(hangHoaId, khoId, soLuong, (int) tonKho[1]);
+        }
+
+        long giaTri = DinhGiaTon.phanBo(tonKho[3], (int) tonKho[0], soLuong);
+        truTonKhoTheoGiaTri(hangHoaId, khoId, soLuong, giaTri);
+        return giaTri;
+    }
+
+    /**
+     * Trừ tồn kho tại kho với giá trị cho trước (hủy duyệt nhập: trừ đúng giá trị đã nhập)
+     *
+     * @throws IllegalStateException Nếu kho không đủ hàng
+     */
+    @Transactional
+    public void truTonKhoTheoGiaTri(Long hangHoaId, Long khoId, int soLuong, long giaTri) {
+        int soDong = tonKhoTheoKhoRepository.truTonCoDieuKien(hangHoaId, khoId, soLuong, giaTri);
+
+        if (soDong == 0) {
+            throw khongDuHang(hangHoaId, khoId, soLuong, getSoLuongCoTheXuat(hangHoaId, khoId));
+        }
+
+        log.info("📤 Ton kho theo kho -{} (gia tri {}): HangHoa={}, Kho={}",
+                soLuong, DinhGiaTon.sangDong(giaTri), hangHoaId, khoId);
+    }
+
+    /**
+     * Duyệt phiếu đã giữ hàng: phần đã giữ rời kho theo giá bình quân hiện tại
+     *
+     * @return Giá trị đã lấy ra (1/100 đồng); -1 nếu số lượng đã giữ bị lệch
+     */
+    @Transactional
+    public long xuatTuDatTru(Long hangHoaId, Long khoId, int soLuong) {
+        long[] tonKho = khoaVaDoc(hangHoaId, khoId);
+        long giaTri = DinhGiaTon.phanBo(tonKho[3], (int) tonKho[0], soLuong);
+        if (tonKho[2] < soLuong || tonKhoTheoKhoRepository.xuatTuDatTru(hangHoaId, khoId, soLuong, giaTri) == 0) {
+            return -1;
+        }
+        return giaTri;
+    }
+
+    /**
+     * Hủy duyệt phiếu xuất: cộng lại tồn kho tại kho xuất cho cả phiếu (1 câu lệnh)
+     */
+    @Transactional
+    public void hoanLaiTheoPhieuXuat(Long phieuXuatId, Long khoId) {
+        int soDong = tonKhoTheoKhoRepository.hoanLaiTheoPhieuXuat(phieuXuatId, khoId);
+        log.info("📥 Ton kho theo kho: hoàn lại phiếu xuất ID={} tại Kho={} ({} dòng)", phieuXuatId, khoId, soDong);
+    }
+
+    // ==================== GIÁ TRỊ TỒN ====================
+
+    /**
+     * Giá trị tồn của từng kho - cộng trên ton_kho_theo_kho (mỗi dòng 1 hàng hóa), không quét lô
+     */
+    @Transactional(readOnly = true)
+    public List<GiaTriTonKhoDTO> getGiaTriTheoKho() {
+        return tonKhoTheoKhoRepository.tongHopGiaTriTheoKho().stream()
+                .map(row -> GiaTriTonKhoDTO.builder()
+                        .khoId((Long) row[0])
+                        .tenKho((String) row[1])
+                        .soMatHang(((Number) row[2]).longValue())
+                        .tongSoLuong(((Number) row[3]).longValue())
+                        .giaTriTon(DinhGiaTon.sangDong(((Number) row[4]).longValue()))
+                        .build())
+                .collect(Collectors.toList());
+    }
+
+    // ==================== ĐỒNG BỘ ====================
+
+    /**
+     * Tính lại toàn bộ tồn kho theo kho:
+     * - (hàng hóa, kho) có lô → theo số lượng hiện tại của lô
+     * - (hàng hóa, kho) không có lô → theo chứng từ nhập / xuất đã duyệt
+     * - sau đó trừ phần đang được đặt trước ra khỏi "có thể xuất"
+     *
+     * @return Số dòng (hàng hóa, kho) sau khi đồng bộ
+     */
+    @Transactional
+    public int dongBoLai() {
+        tonKhoTheoKhoRepository.xoaTatCa();
+        int tuLo = tonKhoTheoKhoRepository.dongBoTuLoHang();
+        int tuChungTu = tonKhoTheoKhoRepository.dongBoTuChungTu();
+        int coDatTru = tonKhoTheoKhoRepository.apDungDatTruDangGiu();
+        log.info("✅ Rebuilt ton_kho_theo_kho: {} rows from lots, {} from vouchers, {} with reservations",
+                tuLo, tuChungTu, coDatTru);
+        return tuLo + tuChungTu;
+    }
+
+    /**
+     * Lần đầu chạy (bảng còn trống) → khởi tạo từ lô hàng và chứng từ hiện có
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Transactional
+    public void khoiTaoNeuTrong() {
+        if (tonKhoTheoKhoRepository.count() == 0) {
+            log.info("Khởi tạo bảng tồn kho theo kho từ lô hàng / chứng từ đã duyệt...");
+            dongBoLai();
+            return;
+        }
+
+        // Dòng có từ trước khi lưu giá trị tồn → định giá theo giá nhập trung bình hiện có
+        int soDong = tonKhoTheoKhoRepository.khoiTaoGiaTriCu();
+        if (soDong > 0) {
+            log.info("✅ Khởi tạo giá trị tồn cho {} dòng ton_kho_theo_kho", soDong);
+        }
+    }
+
+    // ==================== HELPER ====================
+
+    /**
+     * Khóa dòng tồn kho: [tongSoLuong, soLuongCoTheXuat, soLuongDaDat, giaTriTon] (dòng chưa có → toàn 0)
+     */
+    private long[] khoaVaDoc(Long hangHoaId, Long khoId) {
+        List<Object[]> rows = tonKhoTheoKhoRepository.khoaVaDoc(hangHoaId, khoId);
+        long[] tonKho = new long[4];
+        if (!rows.isEmpty()) {
+            Object[] row = rows.get(0);
+            for (int i = 0; i < tonKho.length; i++) {
+                tonKho[i] = row[i] != null ? ((Number) row[i]).longValue() : 0L;
+            }
+        }
+        return tonKho;
+    }
+
+    private IllegalStateException khongDuHang(Long hangHoaId, Long khoId, int soLuong, int coTheXuat) {
+        String errorMsg = String.format(
+                "Kho (ID: %d) không đủ hàng hóa ID %d: Yêu cầu %d, Có thể xuất %d",
+                khoId, hangHoaId, soLuong, coTheXuat);
+        log.error("❌ {}", errorMsg);
+        return new IllegalStateException(errorMsg);
+    }
+
+    private TonKhoTheoKhoDTO convertToDTO(TonKhoTheoKho entity) {
+        return TonKhoTheoKhoDTO.builder()
+                .hangHoaId(entity.getId().getHangHoaId())
+                .khoId(entity.getId().getKhoId())
+                .tenKho(entity.getKho() != null ? entity.getKho().getTenKho() : null)
+                .tongSoLuong(entity.getTongSoLuong())
+                .soLuongCoTheXuat(entity.getSoLuongCoTheXuat())
+                .soLuongDaDat(entity.getSoLuongDaDat())
+                .giaTriTon(entity.getGiaTriTon() != null ? DinhGiaTon.sangDong(entity.getGiaTriTon()) : null)
+                .giaBinhQuan(entity.getGiaTriTon() != null
+                        ? DinhGiaTon.giaBinhQuan(entity.getGiaTriTon(), entity.getTongSoLuong()) : null)
+                .updatedAt(entity.getUpdatedAt())
+                .build();
+    }
+}
@@ -0,0 +1,130 @@
+package com.hospital.warehouse.hospital_warehouse.service;
+
+import com.hospital.warehouse.hospital_warehouse.entity.HangHoa;
+import com.hospital.warehouse.hospital_warehouse.entity.LoHang;
+import com.hospital.warehouse.hospital_warehouse.repository.LoHangRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Làm mới trạng thái lô hàng theo hạn sử dụng / số lượng (hằng đêm, khi khởi động và theo yêu cầu).
+ *
+ * Không tải entity: lô hàng được duyệt theo từng khoảng id (kho.lo-hang.kich-thuoc-khoi-cap-nhat), mỗi khoảng
+ * trong 1 transaction ngắn gồm 1 câu SELECT tính trạng thái đúng và tối đa 5 câu UPDATE (mỗi trạng thái 1 câu)
+ * cho các lô bị lệch. Cửa sổ "gần hết hạn" lấy theo từng hàng hóa (HangHoa.canhBaoHetHan).
+ * Bộ đếm thống kê lô được cộng phần chênh lệch trong cùng transaction của khoảng (ThongKeLoHangService).
+ *
+ * Trạng thái được tính bằng câu SELECT đọc không khóa thay vì UPDATE ... (SELECT ... FROM hang_hoa):
+ * subquery trong UPDATE giữ khóa đọc trên hang_hoa, dễ deadlock với phiếu đang duyệt.
+ */
+@Slf4j
+@Service
+public class TrangThaiLoHangService {
+
+    /** Cửa sổ cảnh báo hết hạn khi hàng hóa không khai báo */
+    public static final int SO_NGAY_CANH_BAO_MAC_DINH = 30;
+
+    private final LoHangRepository loHangRepository;
+    private final ThongKeLoHangService thongKeLoHangService;
+    private final TransactionTemplate transactionMoi;
+
+    @Value("${kho.lo-hang.kich-thuoc-khoi-cap-nhat:5000}")
+    private int kichThuocKhoi;
+
+    private final AtomicBoolean dangChay = new AtomicBoolean(false);
+
+    public TrangThaiLoHangService(LoHangRepository loHangRepository,
+                                  ThongKeLoHangService thongKeLoHangService,
+                                  PlatformTransactionManager transactionManager) {
+        this.loHangRepository = loHangRepository;
+        this.thongKeLoHangService = thongKeLoHangService;
+        this.transactionMoi = new TransactionTemplate(transactionManager);
+        this.transactionMoi.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    /**
+     * Số ngày trước hạn sử dụng mà lô của hàng hóa được coi là gần hết hạn
+     */
+    public static int soNgayCanhBao(HangHoa hangHoa) {
+        return hangHoa != null && hangHoa.getCanhBaoHetHan() != null
+                ? hangHoa.getCanhBaoHetHan() : SO_NGAY_CANH_BAO_MAC_DINH;
+    }
+
+    /**
+     * Cập nhật trạng thái lô khi khởi động (listener trả void - giá trị trả về khác null sẽ bị Spring phát lại
+     * thành event)
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void capNhatTrangThaiKhiKhoiDong() {
+        capNhatTrangThai();
+    }
+
+    /**
+     * Cập nhật trạng thái toàn bộ lô hàng
+     *
+     * @return Số lô đã chuyển sang từng trạng thái
+     */
+    @Scheduled(cron = "${kho.lo-hang.cron-cap-nhat-trang-thai:0 5 0 * * *}")
+    public Map<LoHang.TrangThaiLoHang, Integer> capNhatTrangThai() {
+        if (!dangChay.compareAndSet(false, true)) {
+            throw new IllegalStateException("Đang cập nhật trạng thái lô hàng, vui lòng thử lại sau");
+        }
+        try {
+            long batDau = System.currentTimeMillis();
+            LocalDate homNay = LocalDate.now();
+            Map<LoHang.TrangThaiLoHang, Integer> soLoDaDoi = new EnumMap<>(LoHang.TrangThaiLoHang.class);
+            for (LoHang.TrangThaiLoHang trangThai : LoHang.TrangThaiLoHang.values()) {
+                soLoDaDoi.put(trangThai, 0);
+            }
+
+            long maxId = loHangRepository.findMaxId();
+            for (long tuId = 0; tuId <= maxId; tuId += kichThuocKhoi) {
+                long dau = tuId;
+                transactionMoi.executeWithoutResult(status ->
+                        capNhatKhoi(dau, dau + kichThuocKhoi, homNay, soLoDaDoi));
+            }
+
+            int tong = soLoDaDoi.values().stream().mapToInt(Integer::intValue).sum();
+            log.info("✅ Cập nhật trạng thái lô hàng: {} lô đổi trạng thái {} ({} ms)",
+                    tong, soLoDaDoi, System.currentTimeMillis() - batDau);
+            return soLoDaDoi;
+        } finally {
+            dangChay.set(false);
+        }
+    }
+
+    private void capNhatKhoi(long tuId, long denId, LocalDate homNay,
+                             Map<LoHang.TrangThaiLoHang, Integer> soLoDaDoi) {
+        Map<LoHang.TrangThaiLoHang, List<Long>> canDoi = new EnumMap<>(LoHang.TrangThaiLoHang.class);
+        for (Object[] row : loHangRepository.tinhTrangThaiTheoKhoangId(tuId, denId, homNay)) {
+            LoHang.TrangThaiLoHang moi = (LoHang.TrangThaiLoHang) row[2];
+            if (row[1] != moi) {
+                canDoi.computeIfAbsent(moi, k -> new ArrayList<>()).add((Long) row[0]);
+            }
+        }
+
+        if (canDoi.isEmpty()) {
+            return;
+        }
+
+        ThongKeLoHangService.TruocKhiGhi truoc = thongKeLoHangService.truocKhiGhi(
+                canDoi.values().stream().flatMap(List::stream).toList());
+        canDoi.forEach((trangThai, ids) ->
+                soLoDaDoi.merge(trangThai, loHangRepository.capNhatTrangThai(ids, trangThai, homNay), Integer::sum));
+        thongKeLoHangService.sauKhiGhi(truoc);
+    }
+}
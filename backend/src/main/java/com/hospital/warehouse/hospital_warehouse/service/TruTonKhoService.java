@@ -0,0 +1,149 @@
+package com.hospital.warehouse.hospital_warehouse.service;
+
+import com.hospital.warehouse.hospital_warehouse.entity.HangHoa;
+import com.hospital.warehouse.hospital_warehouse.entity.LoHang;
+import com.hospital.warehouse.hospital_warehouse.repository.HangHoaRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.LoHangRepository;
+import jakarta.persistence.EntityManager;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.Hibernate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Trừ số lượng lô / tồn kho hàng hóa khi xuất - nơi DUY NHẤT chọn cách trừ theo kho.xuat.tru-co-dieu-kien:
+ * - true (mặc định): mỗi lô / hàng hóa 1 câu UPDATE có điều kiện (qty >= n), theo thứ tự ID tăng dần
+ *   (tránh deadlock giữa các phiếu duyệt song song); sau đó nạp lại các entity đang nằm trong persistence
+ *   context để code phía sau trong cùng transaction (lịch sử, DTO, save) thấy số lượng mới, không ghi đè số cũ
+ * - false: đọc - kiểm tra - sửa entity (Hibernate flush lúc commit)
+ *
+ * Cả hai cách đổi trạng thái lô giống nhau: về 0 → HET_HANG, MOI → DANG_SU_DUNG.
+ * Các lô được khóa trước (ThongKeLoHangService.truocKhiGhi) để cộng chênh lệch vào bộ đếm thống kê lô.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class TruTonKhoService {
+
+    private final LoHangRepository loHangRepository;
+    private final HangHoaRepository hangHoaRepository;
+    private final ThongKeLoHangService thongKeLoHangService;
+    private final EntityManager entityManager;
+
+    @Value("${kho.xuat.tru-co-dieu-kien:true}")
+    private boolean truCoDieuKien;
+
+    /**
+     * Trừ số lượng các lô: [loHangId → số lượng xuất]
+     *
+     * @throws IllegalStateException Nếu một lô không đủ hàng (transaction của caller rollback)
+     */
+    @Transactional
+    public void truLo(Map<Long, Integer> xuatTheoLo) {
+        ThongKeLoHangService.TruocKhiGhi truoc = thongKeLoHangService.truocKhiGhi(xuatTheoLo.keySet());
+        for (Map.Entry<Long, Integer> entry : new TreeMap<>(xuatTheoLo).entrySet()) {
+            Long loId = entry.getKey();
+            int soLuongXuat = entry.getValue();
+
+            if (truCoDieuKien) {
+                if (loHangRepository.truSoLuongCoDieuKien(loId, soLuongXuat) == 0) {
+                    LoHang lo = timLo(loId);
+                    entityManager.refresh(lo);
+                    throw khongDuLo(lo, soLuongXuat, "có thể vừa bị phiếu khác xuất");
+                }
+                napLaiNeuDaNap(LoHang.class, loId);
+            } else {
+                LoHang lo = timLo(loId);
+                int coTheXuat = lo.getSoLuongHienTai() - (lo.getSoLuongDaDat() != null ? lo.getSoLuongDaDat() : 0);
+                if (coTheXuat < soLuongXuat) {
+                    throw khongDuLo(lo, soLuongXuat, "còn " + coTheXuat);
+                }
+                if (lo.getSoLuongHienTai() - soLuongXuat <= 0) {
+                    lo.setTrangThai(LoHang.TrangThaiLoHang.HET_HANG);
+                } else if (lo.getTrangThai() == LoHang.TrangThaiLoHang.MOI) {
+                    lo.setTrangThai(LoHang.TrangThaiLoHang.DANG_SU_DUNG);
+                }
+                lo.setSoLuongHienTai(lo.getSoLuongHienTai() - soLuongXuat);
+            }
+            log.info("✅ Trừ lô ID={} số lượng {}", loId, soLuongXuat);
+        }
+        thongKeLoHangService.sauKhiGhi(truoc);
+    }
+
+    /**
+     * Trừ tồn kho (có thể xuất + tổng) các hàng hóa: [hangHoaId → số lượng xuất]
+     *
+     * @throws IllegalStateException Nếu một hàng hóa không đủ hàng (transaction của caller rollback)
+     */
+    @Transactional
+    public void truHangHoa(Map<Long, Integer> tongCanXuat) {
+        for (Map.Entry<Long, Integer> entry : new TreeMap<>(tongCanXuat).entrySet()) {
+            Long hangHoaId = entry.getKey();
+            int soLuongXuat = entry.getValue();
+
+            if (truCoDieuKien) {
+                if (hangHoaRepository.truTonKhoCoDieuKien(hangHoaId, soLuongXuat) == 0) {
+                    HangHoa hangHoa = timHangHoa(hangHoaId);
+                    entityManager.refresh(hangHoa);
+                    throw khongDuHang(hangHoa, soLuongXuat);
+                }
+                napLaiNeuDaNap(HangHoa.class, hangHoaId);
+            } else {
+                HangHoa hangHoa = timHangHoa(hangHoaId);
+                int tonKhoHienTai = hangHoa.getSoLuongCoTheXuat() != null ? hangHoa.getSoLuongCoTheXuat() : 0;
+                if (tonKhoHienTai < soLuongXuat) {
+                    throw khongDuHang(hangHoa, soLuongXuat);
+                }
+                hangHoa.setSoLuongCoTheXuat(tonKhoHienTai - soLuongXuat);
+                hangHoa.setTongSoLuong(hangHoa.getTongSoLuong() - soLuongXuat);
+                hangHoa.setNgayXuatGanNhat(LocalDateTime.now());
+            }
+            log.info("✅ Trừ tồn kho hàng hóa ID={} số lượng {}", hangHoaId, soLuongXuat);
+        }
+    }
+
+    // ==================== HELPER ====================
+
+    /**
+     * UPDATE hàng loạt không sửa entity trong persistence context: entity đã nạp thì đọc lại từ DB
+     * (dòng đang bị transaction này khóa nên giá trị là chính xác); chưa nạp / proxy chưa khởi tạo thì thôi.
+     * Thay đổi chưa flush không bị mất - các câu UPDATE có điều kiện flush trước khi chạy.
+     */
+    private void napLaiNeuDaNap(Class<?> loai, Long id) {
+        Object entity = entityManager.getReference(loai, id);
+        if (Hibernate.isInitialized(entity)) {
+            entityManager.refresh(entity);
+        }
+    }
+
+    private LoHang timLo(Long loId) {
+        return loHangRepository.findById(loId)
+                .orElseThrow(() -> new IllegalArgumentException("Không tìm thấy lô hàng với ID: " + loId));
+    }
+
+    private HangHoa timHangHoa(Long hangHoaId) {
+        return hangHoaRepository.findById(hangHoaId)
+                .orElseThrow(() -> new IllegalArgumentException("Không tìm thấy hàng hóa với ID: " + hangHoaId));
+    }
+
+    private IllegalStateException khongDuLo(LoHang lo, int soLuongXuat, String chiTiet) {
+        String errorMsg = String.format("Lô '%s' (HSD: %s) không đủ hàng để xuất %d (%s)",
+                lo.getSoLo(), lo.getHanSuDung(), soLuongXuat, chiTiet);
+        log.error("❌ {}", errorMsg);
+        return new IllegalStateException(errorMsg);
+    }
+
+    private IllegalStateException khongDuHang(HangHoa hangHoa, int soLuongXuat) {
+        String errorMsg = String.format("Không đủ hàng để xuất! Hàng hóa '%s': Yêu cầu %d, Tồn kho %d",
+                hangHoa.getTenHangHoa(), soLuongXuat,
+                hangHoa.getSoLuongCoTheXuat() != null ? hangHoa.getSoLuongCoTheXuat() : 0);
+        log.error("❌ {}", errorMsg);
+        return new IllegalStateException(errorMsg);
+    }
+}
@@ -6,17 +6,24 @@ import com.hospital.warehouse.hospital_warehouse.entity.*;
 import com.hospital.warehouse.hospital_warehouse.repository.*;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.domain.Specification;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import jakarta.persistence.criteria.Predicate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.stream.Collectors;
 
 @Slf4j
@@ -226,6 +233,95 @@ public class ViTriKhoService {
                 .collect(Collectors.toList());
     }
 
+    // ==================== SỨC CHỨA (BỘ ĐẾM) ====================
+
+    /**
+     * Biến động hàng theo vị trí trong một thao tác nhập / xuất / hủy duyệt
+     */
+    public static final class BienDongViTri {
+
+        // Theo thứ tự ID vị trí → các transaction đồng thời khóa dòng vi_tri_kho cùng thứ tự
+        private final Map<Long, int[]> theoViTri = new TreeMap<>();
+
+        /**
+         * @param soLuong Số lượng hàng thêm vào (âm khi lấy ra)
+         * @param soDong  Số dòng hang_hoa_vi_tri tạo mới (âm khi xóa)
+         */
+        public BienDongViTri them(Long viTriKhoId, int soLuong, int soDong) {
+            int[] bienDong = theoViTri.computeIfAbsent(viTriKhoId, id -> new int[2]);
+            bienDong[0] += soLuong;
+            bienDong[1] += soDong;
+            return this;
+        }
+    }
+
+    /**
+     * Cập nhật bộ đếm sức chứa và trạng thái của các vị trí - mỗi vị trí một câu UPDATE, không đếm lại hang_hoa_vi_tri.
+     * Gọi trong transaction của thao tác, sau khi đã khóa lô hàng.
+     *
+     * @throws IllegalStateException Nếu nhập thêm vượt sức chứa tối đa của vị trí
+     */
+    @Transactional
+    public void apDungBienDong(BienDongViTri bienDong) {
+        bienDong.theoViTri.forEach((viTriKhoId, bd) -> {
+            if (bd[0] == 0 && bd[1] == 0) {
+                return;
+            }
+            if (viTriKhoRepository.apDungBienDong(viTriKhoId, bd[0], bd[1]) == 0) {
+                Object[] sucChua = viTriKhoRepository.findSucChuaById(viTriKhoId).stream().findFirst()
+                        .orElseThrow(() -> new IllegalArgumentException("Không tìm thấy vị trí kho ID: " + viTriKhoId));
+                int toiDa = ((Number) sucChua[1]).intValue();
+                int hienTai = ((Number) sucChua[2]).intValue();
+                String errorMessage = String.format(
+                        "Không thể nhập vào vị trí '%s': " +
+                                "Sức chứa tối đa %d, hiện tại đã có %d, " +
+                                "không thể nhập thêm %d (tổng sẽ là %d). " +
+                                "Vui lòng chọn vị trí khác hoặc tăng sức chứa.",
+                        sucChua[0], toiDa, hienTai, bd[0], hienTai + bd[0]);
+                log.error("❌ Validation failed: {}", errorMessage);
+                throw new IllegalStateException(errorMessage);
+            }
+        });
+    }
+
+    /**
+     * Tính lại bộ đếm và trạng thái của các vị trí từ hang_hoa_vi_tri
+     */
+    @Transactional
+    public void dongBoSucChua(Collection<Long> viTriKhoIds) {
+        if (!viTriKhoIds.isEmpty()) {
+            viTriKhoRepository.dongBoBoDemTheoId(new TreeSet<>(viTriKhoIds));
+        }
+    }
+
+    /**
+     * Đồng bộ sức chứa khi khởi động (listener trả void - giá trị trả về khác null sẽ bị Spring phát lại thành
+     * event). Gọi nội bộ không qua proxy nên transaction khai báo tại đây.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Transactional
+    public void dongBoSucChuaKhiKhoiDong() {
+        dongBoSucChua();
+    }
+
+    /**
+     * Sửa lệch bộ đếm sức chứa của toàn bộ vị trí từ hang_hoa_vi_tri (khi khởi động và định kỳ hằng đêm)
+     *
+     * @return Số vị trí bị lệch đã sửa
+     */
+    @Scheduled(cron = "${kho.vi-tri.cron-dong-bo-suc-chua:0 30 2 * * *}")
+    @Transactional
+    public int dongBoSucChua() {
+        int soViTri = viTriKhoRepository.dongBoBoDem();
+        int soTrangThai = viTriKhoRepository.dongBoTrangThai();
+        if (soViTri > 0 || soTrangThai > 0) {
+            log.warn("⚠️ Đồng bộ sức chứa vị trí kho: sửa bộ đếm {} vị trí, trạng thái {} vị trí", soViTri, soTrangThai);
+        } else {
+            log.info("✅ Bộ đếm sức chứa vị trí kho khớp với hang_hoa_vi_tri");
+        }
+        return soViTri;
+    }
+
     // ==================== PRIVATE HELPER METHODS ====================
 
     private void validateViTriKhoData(ViTriKhoDTO dto) {
@@ -238,8 +334,8 @@ public class ViTriKhoService {
     }
 
     private ViTriKhoDTO convertToDTO(ViTriKho entity) {
-        // Tính toán thông tin sử dụng
-        Integer soLuongHienTai = hangHoaViTriRepository.countByViTriKhoId(entity.getId()).intValue();
+        // Thông tin sử dụng đọc từ bộ đếm trên vị trí (không đếm lại hang_hoa_vi_tri)
+        Integer soLuongHienTai = entity.getSoDongHangHoa() != null ? entity.getSoDongHangHoa() : 0;
         Integer phanTramSuDung = 0;
         Boolean dangDay = false;
 
@@ -263,6 +359,7 @@ public class ViTriKhoService {
                 .nhietDoYeuCau(entity.getNhietDoYeuCau())
                 .trangThai(entity.getTrangThai())
                 .soLuongHienTai(soLuongHienTai)
+                .soLuongDangChua(entity.getSoLuongDangChua())
                 .phanTramSuDung(phanTramSuDung)
                 .dangDay(dangDay)
                 .createdAt(entity.getCreatedAt())
@@ -1,55 +1,57 @@
 package com.hospital.warehouse.hospital_warehouse.util;
 
+import com.hospital.warehouse.hospital_warehouse.service.SoChungTuService;
+import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Component;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Sinh mã danh mục. Số thứ tự lấy từ bộ đếm trong DB theo từng tiền tố (SoChungTuService)
+ * → không reset khi khởi động lại, không trùng khi chạy nhiều node.
+ */
 @Component
+@RequiredArgsConstructor
 public class CodeGenerator {
 
-    private static final AtomicInteger sequence = new AtomicInteger(1);
+    private final SoChungTuService soChungTuService;
 
     /**
      * Generate mã nhà cung cấp: NCC + YYYYMMDD + sequence
      */
     public String generateMaNCC() {
-        String dateStr = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd"));
-        int seq = sequence.getAndIncrement();
-        return String.format("NCC%s%03d", dateStr, seq);
+        String prefix = "NCC" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd"));
+        return String.format("%s%03d", prefix, soChungTuService.capSo(prefix));
     }
 
     /**
      * Generate mã danh mục: DM + sequence
      */
     public String generateMaDanhMuc(String prefix) {
-        int seq = sequence.getAndIncrement();
-        return String.format("%s%03d", prefix.toUpperCase(), seq);
+        String upperPrefix = prefix.toUpperCase();
+        return String.format("%s%03d", upperPrefix, soChungTuService.capSo(upperPrefix));
     }
 
     /**
      * Generate mã đơn vị tính: DVT + sequence
      */
     public String generateMaDVT() {
-        int seq = sequence.getAndIncrement();
-        return String.format("DVT%03d", seq);
+        return String.format("DVT%03d", soChungTuService.capSo("DVT"));
     }
 
     /**
      * Generate mã hàng hóa: HH + YYYYMMDD + sequence
      */
     public String generateMaHangHoa() {
-        String dateStr = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd"));
-        int seq = sequence.getAndIncrement();
-        return String.format("HH%s%04d", dateStr, seq);
+        String prefix = "HH" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd"));
+        return String.format("%s%04d", prefix, soChungTuService.capSo(prefix));
     }
 
     /**
      * Generate custom code with prefix
      */
     public String generateCode(String prefix, int length) {
-        int seq = sequence.getAndIncrement();
         String format = String.format("%%s%%0%dd", length);
-        return String.format(format, prefix, seq);
+        return String.format(format, prefix, soChungTuService.capSo(prefix));
     }
-}
\ No newline at end of file
+}
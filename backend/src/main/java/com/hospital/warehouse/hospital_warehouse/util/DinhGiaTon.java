@@ -0,0 +1,115 @@
+package com.hospital.warehouse.hospital_warehouse.util;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+
+/**
+ * Định giá tồn kho theo giá trị lũy kế (giá bình quân gia quyền di động).
+ *
+ * Giá trị tồn được lưu dạng số nguyên long theo đơn vị 1/100 đồng (đơn giá chứng từ có 2 chữ số thập phân),
+ * nên cộng / trừ luôn chính xác, không làm tròn. Giá bình quân không được lưu mà tính lúc đọc = giá trị / số lượng.
+ *
+ * - Nhập: cộng đúng đơn giá × số lượng
+ * - Xuất: lấy ra phần giá trị tương ứng số lượng xuất (làm tròn 1 lần); xuất hết thì lấy hết, không để lại số dư
+ * - Hủy duyệt: cộng / trừ lại đúng giá trị đã ghi khi duyệt
+ *
+ * Giá trị một dòng chứng từ chỉ có một cách tính, Java ({@link #tuDonGia}, {@link #tuThanhTien}) và các câu SQL
+ * (hủy duyệt hàng loạt, đồng bộ lại ton_kho_theo_kho) phải khớp nhau:
+ * - Dòng nhập / lô: ROUND(don_gia × 100) × số lượng (gia_nhap với lô)
+ * - Dòng xuất: gia_tri_xuat đã ghi lúc duyệt; dòng duyệt trước khi có định giá: ROUND(thanh_tien × 100)
+ *
+ * Các phép tính trên long không cấp phát đối tượng; chỉ chuyển đổi với BigDecimal ở biên (đơn giá vào, báo cáo ra).
+ */
+public final class DinhGiaTon {
+
+    /** Số chữ số thập phân của giá trị lưu trữ */
+    public static final int SO_LE = 2;
+
+    private DinhGiaTon() {
+    }
+
+    /**
+     * Giá trị (1/100 đồng) của soLuong đơn vị theo đơn giá chứng từ.
+     * Đơn giá hơn 2 chữ số thập phân được làm tròn nửa lên trước khi nhân - giống giá trị cột DECIMAL(…, 2)
+     * lưu xuống và ROUND(don_gia * 100) trong SQL.
+     *
+     * @throws ArithmeticException Nếu tràn long
+     */
+    public static long tuDonGia(BigDecimal donGia, int soLuong) {
+        if (donGia == null || soLuong == 0) {
+            return 0L;
+        }
+        return Math.multiplyExact(tuThanhTien(donGia), (long) soLuong);
+    }
+
+    /**
+     * Số tiền (đồng) → giá trị lưu trữ, làm tròn nửa lên như ROUND(so_tien * 100) trong SQL
+     *
+     * @throws ArithmeticException Nếu tràn long
+     */
+    public static long tuThanhTien(BigDecimal soTien) {
+        if (soTien == null) {
+            return 0L;
+        }
+        return soTien.movePointRight(SO_LE).setScale(0, RoundingMode.HALF_UP).longValueExact();
+    }
+
+    /**
+     * Phần giá trị ứng với soLuongLay trong tổng (giaTri, soLuong) - làm tròn nửa lên.
+     * Lấy hết số lượng thì trả về toàn bộ giá trị còn lại (không để dư do làm tròn).
+     */
+    public static long phanBo(long giaTri, int soLuong, int soLuongLay) {
+        if (soLuongLay <= 0 || giaTri <= 0) {
+            return 0L;
+        }
+        if (soLuongLay >= soLuong) {
+            return giaTri;
+        }
+        try {
+            return (Math.multiplyExact(giaTri, (long) soLuongLay) + soLuong / 2) / soLuong;
+        } catch (ArithmeticException e) {
+            // Chỉ xảy ra với giá trị rất lớn
+            return BigInteger.valueOf(giaTri).multiply(BigInteger.valueOf(soLuongLay))
+                    .add(BigInteger.valueOf(soLuong / 2))
+                    .divide(BigInteger.valueOf(soLuong))
+                    .longValueExact();
+        }
+    }
+
+    /**
+     * Chia giá trị (giaTri, tổng các soLuongCacDong) cho từng dòng theo số lượng, lần lượt bằng {@link #phanBo}
+     * trên phần còn lại: dòng cuối nhận phần dư nên tổng các dòng đúng bằng giaTri
+     */
+    public static long[] chiaTheoDong(long giaTri, int[] soLuongCacDong) {
+        int soLuongConLai = 0;
+        for (int soLuong : soLuongCacDong) {
+            soLuongConLai += soLuong;
+        }
+        long giaTriConLai = giaTri;
+        long[] ketQua = new long[soLuongCacDong.length];
+        for (int i = 0; i < soLuongCacDong.length; i++) {
+            ketQua[i] = phanBo(giaTriConLai, soLuongConLai, soLuongCacDong[i]);
+            soLuongConLai -= soLuongCacDong[i];
+            giaTriConLai -= ketQua[i];
+        }
+        return ketQua;
+    }
+
+    /**
+     * Giá trị lưu trữ → đồng
+     */
+    public static BigDecimal sangDong(long giaTri) {
+        return BigDecimal.valueOf(giaTri, SO_LE);
+    }
+
+    /**
+     * Giá bình quân (đồng / đơn vị) tính lúc đọc; null nếu hết hàng
+     */
+    public static BigDecimal giaBinhQuan(long giaTri, int soLuong) {
+        if (soLuong <= 0) {
+            return null;
+        }
+        return BigDecimal.valueOf(giaTri, SO_LE).divide(BigDecimal.valueOf(soLuong), SO_LE, RoundingMode.HALF_UP);
+    }
+}
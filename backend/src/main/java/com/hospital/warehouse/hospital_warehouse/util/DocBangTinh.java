@@ -0,0 +1,374 @@
+package com.hospital.warehouse.hospital_warehouse.util;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Đọc bảng tính (CSV hoặc XLSX) từng dòng một, không nạp cả file vào bộ nhớ.
+ *
+ * - CSV: UTF-8 (bỏ BOM), dấu phân cách tự nhận từ dòng đầu (',' ';' hoặc tab), ô có thể đặt trong "..."
+ * - XLSX: đọc thẳng XML của sheet đầu tiên bằng StAX; chỉ bảng chuỗi dùng chung (sharedStrings) được giữ trong bộ nhớ.
+ *   Ô ngày tháng trong XLSX là số serial của Excel (xem {@link #ngayTuSoExcel(String)})
+ *
+ * Lớp này không biết gì về nghiệp vụ - ý nghĩa các cột do service quyết định.
+ */
+public abstract class DocBangTinh implements Closeable {
+
+    /**
+     * Mở file theo phần mở rộng của tên file gốc (.csv / .xlsx)
+     *
+     * @throws IllegalArgumentException Nếu định dạng không hỗ trợ
+     */
+    public static DocBangTinh mo(Path file, String tenFile) throws IOException {
+        String ten = tenFile != null ? tenFile.toLowerCase(Locale.ROOT) : "";
+        if (ten.endsWith(".csv")) {
+            return new DocCsv(file);
+        }
+        if (ten.endsWith(".xlsx")) {
+            return new DocXlsx(file);
+        }
+        throw new IllegalArgumentException("Chỉ hỗ trợ file .csv hoặc .xlsx");
+    }
+
+    /**
+     * Dòng tiếp theo (các ô theo thứ tự cột, ô trống là ""), null khi hết file
+     */
+    public abstract List<String> docDong() throws IOException;
+
+    /**
+     * Số thứ tự (bắt đầu từ 1) của dòng vừa đọc trong file - dùng để báo lỗi
+     */
+    public abstract int soDong();
+
+    /**
+     * Ngày từ số serial của Excel (số ngày tính từ 1899-12-30), null nếu không phải số
+     */
+    public static LocalDate ngayTuSoExcel(String giaTri) {
+        try {
+            double serial = Double.parseDouble(giaTri.trim());
+            return LocalDate.of(1899, 12, 30).plusDays((long) Math.floor(serial));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // ==================== CSV ====================
+
+    private static final class DocCsv extends DocBangTinh {
+
+        private final Reader reader;
+        private final char phanCach;
+        private int soDong;
+        private int soDongVatLy;
+        private boolean hetFile;
+
+        private DocCsv(Path file) throws IOException {
+            BufferedReader buffered = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+            buffered.mark(1);
+            if (buffered.read() != '\uFEFF') {
+                buffered.reset();
+            }
+            this.reader = buffered;
+
+            // Nhận dấu phân cách từ dòng tiêu đề
+            buffered.mark(64 * 1024);
+            String dongDau = buffered.readLine();
+            buffered.reset();
+            this.phanCach = nhanPhanCach(dongDau != null ? dongDau : "");
+        }
+
+        private static char nhanPhanCach(String dong) {
+            char[] ungVien = {',', ';', '\t'};
+            char tot = ',';
+            long nhieuNhat = 0;
+            for (char c : ungVien) {
+                long dem = dong.chars().filter(ch -> ch == c).count();
+                if (dem > nhieuNhat) {
+                    nhieuNhat = dem;
+                    tot = c;
+                }
+            }
+            return tot;
+        }
+
+        @Override
+        public List<String> docDong() throws IOException {
+            while (!hetFile) {
+                List<String> dong = docBanGhi();
+                if (dong == null) {
+                    return null;
+                }
+                // Bỏ dòng trống hoàn toàn (thường ở cuối file)
+                if (dong.stream().anyMatch(o -> !o.isBlank())) {
+                    return dong;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Một bản ghi CSV - ô trong "..." được phép chứa dấu phân cách, xuống dòng và "" (dấu nháy kép)
+         */
+        private List<String> docBanGhi() throws IOException {
+            List<String> oList = new ArrayList<>();
+            StringBuilder o = new StringBuilder();
+            boolean trongNhay = false;
+            boolean coDuLieu = false;
+            soDong = soDongVatLy + 1;
+
+            int c;
+            while ((c = reader.read()) != -1) {
+                coDuLieu = true;
+                if (trongNhay) {
+                    if (c == '"') {
+                        reader.mark(1);
+                        int tiep = reader.read();
+                        if (tiep == '"') {
+                            o.append('"');
+                        } else {
+                            trongNhay = false;
+                            if (tiep != -1) {
+                                reader.reset();
+                            }
+                        }
+                    } else {
+                        if (c == '\n') {
+                            soDongVatLy++;
+                        }
+                        o.append((char) c);
+                    }
+                } else if (c == '"' && o.isEmpty()) {
+                    trongNhay = true;
+                } else if (c == phanCach) {
+                    oList.add(o.toString().trim());
+                    o.setLength(0);
+                } else if (c == '\n') {
+                    soDongVatLy++;
+                    oList.add(o.toString().trim());
+                    return oList;
+                } else if (c != '\r') {
+                    o.append((char) c);
+                }
+            }
+
+            hetFile = true;
+            if (!coDuLieu) {
+                return null;
+            }
+            soDongVatLy++;
+            oList.add(o.toString().trim());
+            return oList;
+        }
+
+        @Override
+        public int soDong() {
+            return soDong;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    // ==================== XLSX ====================
+
+    private static final class DocXlsx extends DocBangTinh {
+
+        private final ZipFile zip;
+        private final InputStream sheetStream;
+        private final XMLStreamReader xml;
+        private final List<String> chuoiDungChung;
+        private int soDong;
+
+        private DocXlsx(Path file) throws IOException {
+            this.zip = new ZipFile(file.toFile());
+            try {
+                XMLInputFactory factory = taoXmlFactory();
+                this.chuoiDungChung = docChuoiDungChung(zip, factory);
+
+                ZipEntry sheet = timSheetDauTien(zip);
+                this.sheetStream = zip.getInputStream(sheet);
+                this.xml = factory.createXMLStreamReader(sheetStream, StandardCharsets.UTF_8.name());
+            } catch (XMLStreamException | RuntimeException e) {
+                zip.close();
+                throw new IllegalArgumentException("File XLSX không hợp lệ: " + e.getMessage(), e);
+            }
+        }
+
+        private static XMLInputFactory taoXmlFactory() {
+            // Chặn DTD / entity ngoài (XXE) - file do người dùng tải lên
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            return factory;
+        }
+
+        private static ZipEntry timSheetDauTien(ZipFile zip) {
+            ZipEntry sheet1 = zip.getEntry("xl/worksheets/sheet1.xml");
+            if (sheet1 != null) {
+                return sheet1;
+            }
+            return Collections.list(zip.entries()).stream()
+                    .filter(e -> e.getName().startsWith("xl/worksheets/sheet") && e.getName().endsWith(".xml"))
+                    .min(Comparator.comparing(ZipEntry::getName))
+                    .orElseThrow(() -> new IllegalArgumentException("Không tìm thấy sheet nào"));
+        }
+
+        private static List<String> docChuoiDungChung(ZipFile zip, XMLInputFactory factory)
+                throws IOException, XMLStreamException {
+            ZipEntry entry = zip.getEntry("xl/sharedStrings.xml");
+            List<String> ketQua = new ArrayList<>();
+            if (entry == null) {
+                return ketQua;
+            }
+
+            try (InputStream in = zip.getInputStream(entry)) {
+                XMLStreamReader r = factory.createXMLStreamReader(in, StandardCharsets.UTF_8.name());
+                StringBuilder chuoi = null;
+                boolean trongPhienAm = false;
+                while (r.hasNext()) {
+                    int su = r.next();
+                    if (su == XMLStreamConstants.START_ELEMENT) {
+                        switch (r.getLocalName()) {
+                            case "si" -> chuoi = new StringBuilder();
+                            case "rPh" -> trongPhienAm = true;
+                            case "t" -> {
+                                if (chuoi != null && !trongPhienAm) {
+                                    chuoi.append(r.getElementText());
+                                }
+                            }
+                            default -> {
+                            }
+                        }
+                    } else if (su == XMLStreamConstants.END_ELEMENT) {
+                        if ("si".equals(r.getLocalName()) && chuoi != null) {
+                            ketQua.add(chuoi.toString());
+                            chuoi = null;
+                        } else if ("rPh".equals(r.getLocalName())) {
+                            trongPhienAm = false;
+                        }
+                    }
+                }
+                r.close();
+            }
+            return ketQua;
+        }
+
+        @Override
+        public List<String> docDong() throws IOException {
+            try {
+                while (xml.hasNext()) {
+                    if (xml.next() == XMLStreamConstants.START_ELEMENT && "row".equals(xml.getLocalName())) {
+                        String r = xml.getAttributeValue(null, "r");
+                        soDong = r != null ? Integer.parseInt(r) : soDong + 1;
+                        List<String> dong = docCacO();
+                        if (dong.stream().anyMatch(o -> !o.isBlank())) {
+                            return dong;
+                        }
+                    }
+                }
+                return null;
+            } catch (XMLStreamException e) {
+                throw new IOException("Lỗi đọc file XLSX tại dòng " + soDong + ": " + e.getMessage(), e);
+            }
+        }
+
+        /**
+         * Các ô của dòng hiện tại cho tới </row>; ô bị bỏ qua trong XML (ô trống) được điền ""
+         */
+        private List<String> docCacO() throws XMLStreamException {
+            List<String> dong = new ArrayList<>();
+            String kieu = null;
+            String giaTri = null;
+            int cot = -1;
+
+            while (xml.hasNext()) {
+                int su = xml.next();
+                if (su == XMLStreamConstants.START_ELEMENT) {
+                    switch (xml.getLocalName()) {
+                        case "c" -> {
+                            kieu = xml.getAttributeValue(null, "t");
+                            String ref = xml.getAttributeValue(null, "r");
+                            cot = ref != null ? chiSoCot(ref) : dong.size();
+                            giaTri = null;
+                        }
+                        case "v" -> giaTri = xml.getElementText();
+                        case "t" -> giaTri = (giaTri != null ? giaTri : "") + xml.getElementText();
+                        default -> {
+                        }
+                    }
+                } else if (su == XMLStreamConstants.END_ELEMENT) {
+                    if ("c".equals(xml.getLocalName())) {
+                        while (dong.size() < cot) {
+                            dong.add("");
+                        }
+                        dong.add(giaTriO(kieu, giaTri));
+                    } else if ("row".equals(xml.getLocalName())) {
+                        return dong;
+                    }
+                }
+            }
+            return dong;
+        }
+
+        private String giaTriO(String kieu, String giaTri) {
+            if (giaTri == null) {
+                return "";
+            }
+            if ("s".equals(kieu)) {
+                int chiSo = Integer.parseInt(giaTri.trim());
+                return chiSo < chuoiDungChung.size() ? chuoiDungChung.get(chiSo).trim() : "";
+            }
+            if ("b".equals(kieu)) {
+                return "1".equals(giaTri.trim()) ? "TRUE" : "FALSE";
+            }
+            return giaTri.trim();
+        }
+
+        /**
+         * "AB12" → 27 (cột bắt đầu từ 0)
+         */
+        private static int chiSoCot(String ref) {
+            int cot = 0;
+            for (int i = 0; i < ref.length() && Character.isLetter(ref.charAt(i)); i++) {
+                cot = cot * 26 + (Character.toUpperCase(ref.charAt(i)) - 'A' + 1);
+            }
+            return cot - 1;
+        }
+
+        @Override
+        public int soDong() {
+            return soDong;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                xml.close();
+            } catch (XMLStreamException ignored) {
+                // Đóng stream bên dưới ở dưới
+            }
+            sheetStream.close();
+            zip.close();
+        }
+    }
+}
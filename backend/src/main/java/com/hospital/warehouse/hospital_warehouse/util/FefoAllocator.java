@@ -0,0 +1,110 @@
+package com.hospital.warehouse.hospital_warehouse.util;
+
+import com.hospital.warehouse.hospital_warehouse.entity.ChiTietPhieuXuat;
+import com.hospital.warehouse.hospital_warehouse.entity.LoHang;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bộ phân bổ lô theo FEFO (First Expired First Out) chạy hoàn toàn trong bộ nhớ.
+ *
+ * Đầu vào là danh sách chi tiết phiếu xuất và danh sách lô khả dụng của từng hàng hóa
+ * (đã sắp xếp theo thứ tự FEFO). Phần đã được giữ cho phiếu khác (soLuongDaDat) không được phân bổ. Số lượng còn lại của mỗi lô được theo dõi riêng nên
+ * nhiều dòng cùng một hàng hóa sẽ dùng chung một "bể" lô, không lấy trùng.
+ *
+ * Lớp này không chạm vào DB và không sửa entity - việc áp dụng kết quả do service đảm nhiệm.
+ */
+public final class FefoAllocator {
+
+    private FefoAllocator() {
+    }
+
+    /**
+     * Một phần phân bổ: dòng chi tiết lấy {@code soLuong} từ {@code loHang}
+     */
+    public record PhanBo(ChiTietPhieuXuat chiTiet, LoHang loHang, int soLuong) {
+    }
+
+    /**
+     * Kết quả phân bổ cho cả phiếu
+     *
+     * @param phanBo   Các phần phân bổ theo đúng thứ tự dòng và thứ tự FEFO
+     * @param thieuHang Số lượng còn thiếu của từng dòng (chỉ chứa dòng bị thiếu)
+     */
+    public record KetQua(List<PhanBo> phanBo, Map<ChiTietPhieuXuat, Integer> thieuHang) {
+
+        public boolean duHang() {
+            return thieuHang.isEmpty();
+        }
+
+        public Map<ChiTietPhieuXuat, List<PhanBo>> theoChiTiet() {
+            Map<ChiTietPhieuXuat, List<PhanBo>> result = new LinkedHashMap<>();
+            for (PhanBo pb : phanBo) {
+                result.computeIfAbsent(pb.chiTiet(), k -> new ArrayList<>()).add(pb);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Phân bổ lô cho các dòng chi tiết
+     *
+     * @param chiTietList    Các dòng cần phân bổ (chỉ dòng hàng có quản lý lô)
+     * @param loTheoHangHoa  hangHoaId → danh sách lô khả dụng theo thứ tự FEFO
+     */
+    public static KetQua phanBo(List<ChiTietPhieuXuat> chiTietList,
+                                Map<Long, List<LoHang>> loTheoHangHoa) {
+        return phanBo(chiTietList, loTheoHangHoa, new HashMap<>());
+    }
+
+    /**
+     * Phân bổ lô với số lượng còn lại của từng lô cho trước (lô đã nạp trước cho nhiều phiếu,
+     * phiếu trước đã lấy bớt). Lô không có trong {@code conLaiTheoLo} tính theo {@link #soLuongKhaDung}.
+     *
+     * @param conLaiTheoLo loHangId → số lượng còn có thể phân bổ; map này bị sửa trong lúc phân bổ
+     */
+    public static KetQua phanBo(List<ChiTietPhieuXuat> chiTietList,
+                                Map<Long, List<LoHang>> loTheoHangHoa,
+                                Map<Long, Integer> conLaiTheoLo) {
+        List<PhanBo> phanBo = new ArrayList<>();
+        Map<ChiTietPhieuXuat, Integer> thieuHang = new LinkedHashMap<>();
+
+        for (ChiTietPhieuXuat chiTiet : chiTietList) {
+            int canXuat = chiTiet.getSoLuongXuat() != null ? chiTiet.getSoLuongXuat() : 0;
+            List<LoHang> danhSachLo = loTheoHangHoa.getOrDefault(
+                    chiTiet.getHangHoa().getId(), Collections.emptyList());
+
+            for (LoHang lo : danhSachLo) {
+                if (canXuat <= 0) break;
+
+                int conLai = conLaiTheoLo.computeIfAbsent(lo.getId(), k -> soLuongKhaDung(lo));
+                if (conLai <= 0) continue;
+
+                int lay = Math.min(conLai, canXuat);
+                conLaiTheoLo.put(lo.getId(), conLai - lay);
+                phanBo.add(new PhanBo(chiTiet, lo, lay));
+                canXuat -= lay;
+            }
+
+            if (canXuat > 0) {
+                thieuHang.put(chiTiet, canXuat);
+            }
+        }
+
+        return new KetQua(phanBo, thieuHang);
+    }
+
+    /**
+     * Số lượng của lô còn có thể phân bổ: hiện tại trừ phần đang giữ cho phiếu khác
+     */
+    public static int soLuongKhaDung(LoHang lo) {
+        int hienTai = lo.getSoLuongHienTai() != null ? lo.getSoLuongHienTai() : 0;
+        int daDat = lo.getSoLuongDaDat() != null ? lo.getSoLuongDaDat() : 0;
+        return Math.max(hienTai - daDat, 0);
+    }
+}
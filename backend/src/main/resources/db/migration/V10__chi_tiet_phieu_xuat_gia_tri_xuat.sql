@@ -0,0 +1,4 @@
+-- Gia tri xuat cua dong phieu xuat (1/100 dong) theo gia binh quan luc duyet
+
+alter table chi_tiet_phieu_xuat
+    add column gia_tri_xuat bigint;
@@ -0,0 +1,18 @@
+-- Thong ke phieu nhap / xuat theo ngay, kho, trang thai
+
+create table thong_ke_phieu_ngay (
+    ngay date not null,
+    tong_gia_tri decimal(18,2) not null,
+    kho_id bigint not null,
+    so_phieu bigint not null,
+    updated_at datetime(6),
+    trang_thai varchar(20) not null,
+    loai_phieu enum ('NHAP','XUAT') not null,
+    primary key (ngay, kho_id, trang_thai, loai_phieu)
+) engine=InnoDB;
+
+create index idx_phieu_nhap_kho_kho_ngay_nhap on phieu_nhap_kho (kho_id, ngay_nhap);
+
+create index idx_phieu_xuat_kho_kho_ngay_xuat on phieu_xuat_kho (kho_id, ngay_xuat);
+
+create index idx_thong_ke_phieu_ngay_kho on thong_ke_phieu_ngay (loai_phieu, kho_id, ngay);
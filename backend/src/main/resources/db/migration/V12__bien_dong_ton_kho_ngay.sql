@@ -0,0 +1,29 @@
+-- Bien dong ton kho cong don theo ngay; lich_su_ton_kho ghi them kho phat sinh
+
+create table bien_dong_ton_kho_ngay (
+    gia_tri_ra decimal(18,2) not null,
+    gia_tri_vao decimal(18,2) not null,
+    ngay date not null,
+    hang_hoa_id bigint not null,
+    kho_id bigint not null,
+    so_dong bigint not null,
+    so_luong_ra bigint not null,
+    so_luong_vao bigint not null,
+    updated_at datetime(6),
+    loai_bien_dong enum ('CHUYEN_KHO','DIEU_CHINH','HUY_DUYET_NHAP','HUY_DUYET_XUAT','HUY_HANG','KIEM_KE','NHAP_KHO','XUAT_KHO') not null,
+    primary key (ngay, hang_hoa_id, kho_id, loai_bien_dong)
+) engine=InnoDB;
+
+create index idx_bien_dong_ton_kho_ngay_kho on bien_dong_ton_kho_ngay (kho_id, ngay);
+
+create index idx_bien_dong_ton_kho_ngay_ngay on bien_dong_ton_kho_ngay (ngay);
+
+create index idx_bien_dong_ton_kho_ngay_hang_hoa on bien_dong_ton_kho_ngay (hang_hoa_id, kho_id, ngay);
+
+alter table lich_su_ton_kho
+    add column kho_id bigint;
+
+alter table lich_su_ton_kho
+    add constraint FKqyisolnc1ld3c8gusgy13wqdl
+    foreign key (kho_id)
+    references kho (id);
@@ -0,0 +1,14 @@
+-- Ton dau ky (dau thang) cho the kho; chi muc doc lich su theo hang hoa
+
+create table ton_dau_ky (
+    ngay date not null,
+    hang_hoa_id bigint not null,
+    kho_id bigint not null,
+    so_luong bigint not null,
+    updated_at datetime(6),
+    primary key (ngay, hang_hoa_id, kho_id)
+) engine=InnoDB;
+
+create index idx_lich_su_ton_kho_the_kho on lich_su_ton_kho (hang_hoa_id, created_at, id);
+
+create index idx_ton_dau_ky_hang_hoa_kho on ton_dau_ky (hang_hoa_id, kho_id, ngay);
@@ -0,0 +1,14 @@
+-- Canh bao tu dong khong trung lap (dau_vet), doi tuong LO_HANG; quet theo updated_at
+
+alter table canh_bao_he_thong
+    add column dau_vet varchar(100);
+
+alter table canh_bao_he_thong
+    modify column loai_doi_tuong enum ('HANG_HOA','HOA_DON','KHAC','KHO','LO_HANG','PHIEU_NHAP','PHIEU_XUAT','THIET_BI');
+
+alter table canh_bao_he_thong
+    add constraint uk_canh_bao_he_thong_dau_vet unique (dau_vet);
+
+create index idx_hang_hoa_updated_at on hang_hoa (updated_at);
+
+create index idx_lo_hang_updated_at on lo_hang (updated_at);
@@ -0,0 +1,11 @@
+-- Tin hieu lo da thay doi dung chung giua cac node (chi muc han su dung trong bo nho)
+
+create table thay_doi_lo_hang (
+    id bigint not null auto_increment,
+    lo_hang_id bigint not null,
+    thoi_gian datetime(6) not null,
+    ma_node varchar(36) not null,
+    primary key (id)
+) engine=InnoDB;
+
+create index idx_thay_doi_lo_hang_thoi_gian on thay_doi_lo_hang (thoi_gian);
@@ -0,0 +1,18 @@
+-- Chi muc cho cac truy van nong: xuat FEFO, lo sap het han, vi tri theo lo,
+-- tong xuat theo phieu, danh sach canh bao, lich su theo chung tu
+
+create index idx_canh_bao_he_thong_xu_ly on canh_bao_he_thong (da_xu_ly, created_at);
+
+create index idx_canh_bao_he_thong_doc on canh_bao_he_thong (da_doc, created_at);
+
+create index idx_canh_bao_he_thong_doi_tuong on canh_bao_he_thong (doi_tuong_lien_quan_id, loai_doi_tuong);
+
+create index idx_chi_tiet_phieu_xuat_phieu_hang on chi_tiet_phieu_xuat (phieu_xuat_id, hang_hoa_id, so_luong_xuat);
+
+create index idx_hang_hoa_vi_tri_hang_vi_tri_lo on hang_hoa_vi_tri (hang_hoa_id, vi_tri_kho_id, lo_hang_id);
+
+create index idx_lich_su_ton_kho_ma_chung_tu on lich_su_ton_kho (ma_chung_tu);
+
+create index idx_lo_hang_xuat on lo_hang (hang_hoa_id, kho_id, han_su_dung, ngay_san_xuat);
+
+create index idx_lo_hang_han_su_dung on lo_hang (han_su_dung);
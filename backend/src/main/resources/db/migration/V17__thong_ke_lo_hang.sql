@@ -0,0 +1,10 @@
+-- Bo dem lo theo kho x trang thai
+
+create table thong_ke_lo_hang (
+    kho_id bigint not null,
+    so_lo bigint not null,
+    tong_so_luong bigint not null,
+    updated_at datetime(6),
+    trang_thai enum ('DANG_SU_DUNG','GAN_HET_HAN','HET_HAN','HET_HANG','MOI') not null,
+    primary key (kho_id, trang_thai)
+) engine=InnoDB;
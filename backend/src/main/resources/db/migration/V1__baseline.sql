@@ -0,0 +1,612 @@
+-- Luoc do ban dau (truoc khi chuyen sang Flyway - cac bang do ddl-auto=update tao ra).
+-- CSDL da co san cac bang nay: spring.flyway.baseline-on-migrate danh dau V1 la da chay, chi chay tu V2.
+
+create table canh_bao_he_thong (
+    da_doc bit,
+    da_xu_ly bit,
+    ngay_het_hieu_luc date,
+    created_at datetime(6),
+    doi_tuong_lien_quan_id bigint,
+    id bigint not null auto_increment,
+    nguoi_xu_ly_id bigint,
+    thoi_gian_xu_ly datetime(6),
+    updated_at datetime(6),
+    ghi_chu_xu_ly TEXT,
+    noi_dung TEXT not null,
+    tieu_de varchar(255) not null,
+    loai_canh_bao enum ('GAN_HET_HAN','HET_HAN','KHAC','KIEM_KE','THANH_TOAN_QUA_HAN','THIET_BI_CAN_BAO_TRI','THIET_BI_HU_HONG','TON_KHO_THAP') not null,
+    loai_doi_tuong enum ('HANG_HOA','HOA_DON','KHAC','KHO','PHIEU_NHAP','PHIEU_XUAT','THIET_BI'),
+    muc_do enum ('CANH_BAO','KHAN_CAP','NGHIEM_TRONG','THONG_TIN'),
+    primary key (id)
+) engine=InnoDB;
+
+create table chi_tiet_phieu_nhap (
+    don_gia decimal(15,2) not null,
+    han_su_dung date,
+    ngay_san_xuat date,
+    so_luong integer not null,
+    thanh_tien decimal(15,2) not null,
+    tien_thue decimal(15,2),
+    ty_le_thue decimal(5,2),
+    created_at datetime(6),
+    hang_hoa_id bigint not null,
+    id bigint not null auto_increment,
+    lo_hang_id bigint,
+    phieu_nhap_id bigint not null,
+    updated_at datetime(6),
+    vi_tri_kho_id bigint,
+    so_lo varchar(50),
+    ghi_chu TEXT,
+    trang_thai enum ('CHO_NHAP','DA_NHAP','LOI'),
+    primary key (id)
+) engine=InnoDB;
+
+create table chi_tiet_phieu_xuat (
+    don_gia decimal(15,2) not null,
+    so_luong_xuat integer not null,
+    so_luong_yeu_cau integer not null,
+    thanh_tien decimal(15,2) not null,
+    ton_kho_hien_tai integer,
+    created_at datetime(6) not null,
+    hang_hoa_id bigint not null,
+    id bigint not null auto_increment,
+    lo_hang_id bigint,
+    phieu_xuat_id bigint not null,
+    updated_at datetime(6),
+    vi_tri_kho_id bigint,
+    ghi_chu TEXT,
+    trang_thai enum ('CHO_XUAT','DA_XUAT','THIEU_HANG'),
+    primary key (id)
+) engine=InnoDB;
+
+create table danh_muc (
+    thu_tu_sap_xep INT DEFAULT 0,
+    created_at datetime(6) not null,
+    danh_muc_cha_id bigint,
+    id bigint not null auto_increment,
+    updated_at datetime(6),
+    ma_danh_muc varchar(20) not null,
+    ten_danh_muc varchar(100) not null,
+    mo_ta TEXT,
+    loai_danh_muc enum ('HOA_CHAT','KHAC','THIET_BI_Y_TE','THUOC','TINH_THAT','VAT_TU_Y_TE'),
+    trang_thai ENUM('HOAT_DONG','NGUNG_HOAT_DONG') DEFAULT 'HOAT_DONG',
+    primary key (id)
+) engine=InnoDB;
+
+create table don_vi_tinh (
+    created_at datetime(6) not null,
+    id bigint not null auto_increment,
+    ma_dvt varchar(10) not null,
+    ten_dvt varchar(50) not null,
+    mo_ta varchar(255),
+    primary key (id)
+) engine=InnoDB;
+
+create table hang_hoa (
+    canh_bao_het_han INT DEFAULT 30,
+    co_han_su_dung TINYINT(1) DEFAULT 1,
+    co_kiem_soat_chat_luong TINYINT(1) DEFAULT 0,
+    co_quan_ly_lo TINYINT(1) DEFAULT 0,
+    gia_nhap_trung_binh DECIMAL(15,2) DEFAULT 0.00,
+    gia_xuat_trung_binh DECIMAL(15,2) DEFAULT 0.00,
+    han_su_dung_mac_dinh INT,
+    la_thuoc_doc TINYINT(1) DEFAULT 0,
+    la_thuoc_huong_than TINYINT(1) DEFAULT 0,
+    nhiet_do_bao_quan_max decimal(5,2),
+    nhiet_do_bao_quan_min decimal(5,2),
+    so_luong_co_the_xuat INT DEFAULT 0,
+    so_luong_da_dat INT DEFAULT 0,
+    so_luong_toi_da INT DEFAULT 0,
+    so_luong_toi_thieu INT DEFAULT 0,
+    tong_so_luong INT DEFAULT 0,
+    trong_luong decimal(8,3),
+    created_at datetime(6) not null,
+    created_by bigint,
+    danh_muc_id bigint not null,
+    don_vi_tinh_id bigint not null,
+    id bigint not null auto_increment,
+    ngay_nhap_gan_nhat datetime(6),
+    ngay_xuat_gan_nhat datetime(6),
+    nha_cung_cap_id bigint,
+    updated_at datetime(6),
+    updated_by bigint,
+    ma_hang_hoa varchar(30) not null,
+    do_am_bao_quan varchar(50),
+    ma_barcode varchar(50),
+    mau_sac varchar(50),
+    so_dang_ky varchar(50),
+    dong_goi varchar(100),
+    kich_thuoc varchar(100),
+    lieu_luong varchar(100),
+    ma_qr_code varchar(100),
+    xuat_xu varchar(100),
+    hang_san_xuat varchar(150),
+    ten_hang_hoa varchar(200) not null,
+    ten_khoa_hoc varchar(200),
+    cach_su_dung TEXT,
+    cong_dung TEXT,
+    ghi_chu TEXT,
+    mo_ta TEXT,
+    thanh_phan TEXT,
+    yeu_cau_bao_quan TEXT,
+    hinh_anh_url VARCHAR(500) DEFAULT NULL,
+    tai_lieu_dinh_kem longtext,
+    trang_thai ENUM('HOAT_DONG','TAM_DUNG','NGUNG_KINH_DOANH') DEFAULT 'HOAT_DONG',
+    primary key (id)
+) engine=InnoDB;
+
+create table hang_hoa_vi_tri (
+    so_luong INT DEFAULT 0 not null,
+    created_at datetime(6) not null,
+    hang_hoa_id bigint not null,
+    id bigint not null auto_increment,
+    lo_hang_id bigint,
+    updated_at datetime(6),
+    vi_tri_kho_id bigint not null,
+    primary key (id)
+) engine=InnoDB;
+
+create table kho (
+    dien_tich decimal(10,2),
+    do_am_max decimal(5,2),
+    do_am_min decimal(5,2),
+    nhiet_do_max decimal(5,2),
+    nhiet_do_min decimal(5,2),
+    created_at datetime(6) not null,
+    id bigint not null auto_increment,
+    khoa_phong_id bigint not null,
+    quan_ly_kho_id bigint,
+    updated_at datetime(6),
+    ma_kho varchar(20) not null,
+    ten_kho varchar(100) not null,
+    dia_chi varchar(255),
+    mo_ta TEXT,
+    loai_kho enum ('KHO_CHINH','KHO_DUOC','KHO_HOA_CHAT','KHO_THIET_BI','KHO_TINH_THAT','KHO_VAT_TU') not null,
+    trang_thai ENUM('HOAT_DONG','BAO_TRI','DONG_CUA') DEFAULT 'HOAT_DONG',
+    primary key (id)
+) engine=InnoDB;
+
+create table khoa_phong (
+    created_at datetime(6) not null,
+    id bigint not null auto_increment,
+    truong_khoa_id bigint,
+    updated_at datetime(6),
+    so_dien_thoai varchar(20),
+    email varchar(100),
+    dia_chi varchar(255),
+    ma_khoa_phong varchar(255) not null,
+    mo_ta varchar(255),
+    ten_khoa_phong varchar(255) not null,
+    trang_thai ENUM('HOAT_DONG','TAM_DUNG','DONG_CUA') DEFAULT 'HOAT_DONG',
+    primary key (id)
+) engine=InnoDB;
+
+create table lich_su_ton_kho (
+    don_gia decimal(15,2),
+    gia_tri_bien_dong decimal(15,2),
+    so_luong_bien_dong integer not null,
+    so_luong_sau integer not null,
+    so_luong_truoc integer not null,
+    created_at datetime(6),
+    hang_hoa_id bigint not null,
+    id bigint not null auto_increment,
+    lo_hang_id bigint,
+    nguoi_thuc_hien_id bigint,
+    vi_tri_kho_id bigint,
+    ma_chung_tu varchar(30),
+    ly_do TEXT,
+    loai_bien_dong enum ('CHUYEN_KHO','DIEU_CHINH','HUY_DUYET_NHAP','HUY_DUYET_XUAT','HUY_HANG','KIEM_KE','NHAP_KHO','XUAT_KHO') not null,
+    loai_chung_tu enum ('HUY_DUYET_NHAP','HUY_DUYET_XUAT','PHIEU_DIEU_CHINH','PHIEU_HUY','PHIEU_KIEM_KE','PHIEU_NHAP','PHIEU_XUAT'),
+    primary key (id)
+) engine=InnoDB;
+
+create table lo_hang (
+    gia_nhap decimal(15,2) not null,
+    han_su_dung date,
+    ngay_san_xuat date,
+    so_luong_hien_tai integer not null,
+    so_luong_nhap integer not null,
+    created_at datetime(6) not null,
+    hang_hoa_id bigint,
+    id bigint not null auto_increment,
+    kho_id bigint not null,
+    nha_cung_cap_id bigint,
+    updated_at datetime(6),
+    so_chung_tu_nhap varchar(50),
+    so_lo varchar(50) not null,
+    ghi_chu TEXT,
+    trang_thai enum ('DANG_SU_DUNG','GAN_HET_HAN','HET_HAN','HET_HANG','MOI'),
+    primary key (id)
+) engine=InnoDB;
+
+create table nha_cung_cap (
+    diem_danh_gia DECIMAL(3,2) DEFAULT 0.00,
+    created_at datetime(6) not null,
+    id bigint not null auto_increment,
+    updated_at datetime(6),
+    ma_ncc varchar(20) not null,
+    ma_so_thue varchar(20),
+    sdt_lien_he varchar(20),
+    so_dien_thoai varchar(20),
+    email varchar(100),
+    email_lien_he varchar(100),
+    nguoi_lien_he varchar(100),
+    ten_ncc varchar(150) not null,
+    dia_chi TEXT,
+    ghi_chu TEXT,
+    website varchar(255),
+    trang_thai ENUM('HOAT_DONG','TAM_DUNG','NGUNG_HOP_TAC') DEFAULT 'HOAT_DONG',
+    primary key (id)
+) engine=InnoDB;
+
+create table phieu_nhap_kho (
+    chi_phi_khac decimal(15,2),
+    chi_phi_van_chuyen decimal(15,2),
+    giam_gia decimal(15,2),
+    ngay_chung_tu date,
+    ngay_hoa_don date,
+    tien_thue decimal(15,2),
+    tong_thanh_toan decimal(15,2),
+    tong_tien_sau_thue decimal(15,2),
+    tong_tien_truoc_thue decimal(15,2),
+    ty_le_thue decimal(5,2),
+    created_at datetime(6) not null,
+    created_by bigint,
+    id bigint not null auto_increment,
+    kho_id bigint not null,
+    ngay_duyet datetime(6),
+    ngay_nhap datetime(6) not null,
+    nguoi_duyet_id bigint,
+    nguoi_kiem_tra_id bigint,
+    nguoi_nhan_id bigint not null,
+    nha_cung_cap_id bigint,
+    updated_at datetime(6),
+    updated_by bigint,
+    sdt_nguoi_giao varchar(20),
+    ma_phieu_nhap varchar(30) not null,
+    so_chung_tu varchar(50),
+    so_hoa_don varchar(50),
+    nguoi_giao varchar(100),
+    ghi_chu TEXT,
+    ly_do_huy TEXT,
+    loai_nhap enum ('NHAP_BAO_HANH','NHAP_CHUYEN_KHO','NHAP_DIEU_CHINH','NHAP_MOI','NHAP_TRA') not null,
+    trang_thai enum ('CHO_DUYET','DA_DUYET','HUY','NHAP'),
+    trang_thai_thanh_toan enum ('CHUA_THANH_TOAN','DA_THANH_TOAN','THANH_TOAN_1_PHAN'),
+    primary key (id)
+) engine=InnoDB;
+
+create table phieu_xuat_kho (
+    ngay_yeu_cau date,
+    tong_gia_tri decimal(15,2),
+    created_at datetime(6) not null,
+    created_by bigint,
+    id bigint not null auto_increment,
+    kho_id bigint not null,
+    khoa_phong_yeu_cau_id bigint,
+    ngay_duyet datetime(6),
+    ngay_giao datetime(6),
+    ngay_xuat datetime(6) not null,
+    nguoi_duyet_id bigint,
+    nguoi_kiem_tra_id bigint,
+    nguoi_xuat_id bigint not null,
+    updated_at datetime(6),
+    updated_by bigint,
+    sdt_nguoi_nhan varchar(20),
+    sdt_nguoi_yeu_cau varchar(20),
+    ma_phieu_xuat varchar(30) not null,
+    so_phieu_yeu_cau varchar(50),
+    nguoi_nhan varchar(100),
+    nguoi_yeu_cau varchar(100),
+    dia_chi_giao TEXT,
+    ghi_chu TEXT,
+    ly_do_huy TEXT,
+    ly_do_xuat TEXT,
+    loai_xuat enum ('XUAT_BAN','XUAT_CHUYEN_KHO','XUAT_HUY','XUAT_SUA_CHUA','XUAT_SU_DUNG','XUAT_TRA') not null,
+    trang_thai enum ('CHO_DUYET','DA_DUYET','DA_GIAO','HUY','XUAT'),
+    primary key (id)
+) engine=InnoDB;
+
+create table role (
+    id bigint not null auto_increment,
+    ten_vai_tro varchar(255) not null,
+    primary key (id)
+) engine=InnoDB;
+
+create table user (
+    created_at datetime(6) not null,
+    id bigint not null auto_increment,
+    khoa_phong_id bigint not null,
+    role_id bigint not null,
+    ma_user varchar(20),
+    email varchar(255) not null,
+    ho_ten varchar(255),
+    mat_khau varchar(255) not null,
+    so_dien_thoai varchar(255),
+    ten_dang_nhap varchar(255) not null,
+    trang_thai ENUM('HOAT_DONG','TAM_KHOA','NGHI_VIEC') DEFAULT 'HOAT_DONG',
+    primary key (id)
+) engine=InnoDB;
+
+create table vi_tri_kho (
+    nhiet_do_yeu_cau decimal(5,2),
+    suc_chua_toi_da INT DEFAULT 0,
+    trong_luong_toi_da decimal(10,2),
+    created_at datetime(6) not null,
+    id bigint not null auto_increment,
+    kho_id bigint not null,
+    updated_at datetime(6),
+    vi_tri_cha_id bigint,
+    ma_vi_tri varchar(30) not null,
+    ten_vi_tri varchar(100),
+    mo_ta TEXT,
+    loai_vi_tri enum ('KE','KHU_VUC','NGAN','O','TU_DONG','TU_LANH'),
+    trang_thai ENUM('TRONG','CO_HANG','DAY','BAO_TRI') DEFAULT 'TRONG',
+    primary key (id)
+) engine=InnoDB;
+
+alter table danh_muc
+    add constraint UK9othc2uqtu4xd65wmyg4w2k8l unique (ma_danh_muc);
+
+alter table don_vi_tinh
+    add constraint UK5qka5rmyjc1w1uhqpuymcgwrv unique (ma_dvt);
+
+alter table don_vi_tinh
+    add constraint UKt957u3jc7esv178cyj0rq6nwy unique (ten_dvt);
+
+alter table hang_hoa
+    add constraint UKcurpjvdr88w2ah83w181yk5is unique (ma_hang_hoa);
+
+alter table kho
+    add constraint UKoiha7s4wae8iwbisgcygnkstc unique (ma_kho);
+
+alter table khoa_phong
+    add constraint UKjccde3db1e5m507bupaks7uwl unique (ma_khoa_phong);
+
+alter table khoa_phong
+    add constraint UKso5mru6gbxcxl68i65yuxms95 unique (ten_khoa_phong);
+
+alter table nha_cung_cap
+    add constraint UKe2hj43verj2udyffqfmumujr7 unique (ma_ncc);
+
+alter table phieu_nhap_kho
+    add constraint UKlab2vd6xux9q976o097r7qtrw unique (ma_phieu_nhap);
+
+alter table phieu_xuat_kho
+    add constraint UKaf4v3ofyug5aaq47eg5uiwvjb unique (ma_phieu_xuat);
+
+alter table role
+    add constraint UKacp5j2m9bkrwovujyce7kvdpe unique (ten_vai_tro);
+
+alter table user
+    add constraint UKi8urapkcc81g4k90s901rksqt unique (ten_dang_nhap);
+
+alter table user
+    add constraint UKob8kqyqqgmefl0aco34akdtpe unique (email);
+
+alter table user
+    add constraint UKbhmi5eqbbhgu08fdjamoaimiv unique (ma_user);
+
+alter table chi_tiet_phieu_nhap
+    add constraint FKbaqctqnejcj3f96d994qcf0fk
+    foreign key (hang_hoa_id)
+    references hang_hoa (id);
+
+alter table chi_tiet_phieu_nhap
+    add constraint FKe8pumlk44x89xrcud9rmfkfin
+    foreign key (lo_hang_id)
+    references lo_hang (id);
+
+alter table chi_tiet_phieu_nhap
+    add constraint FKh2bn3nenpu3fpen8xdar3mse5
+    foreign key (phieu_nhap_id)
+    references phieu_nhap_kho (id);
+
+alter table chi_tiet_phieu_nhap
+    add constraint FKdyno9tqh19tgoky0h12o4p3hc
+    foreign key (vi_tri_kho_id)
+    references vi_tri_kho (id);
+
+alter table chi_tiet_phieu_xuat
+    add constraint FK1a3gk6ui6wgch6y0shtxq135i
+    foreign key (hang_hoa_id)
+    references hang_hoa (id);
+
+alter table chi_tiet_phieu_xuat
+    add constraint FKlf8bnj6sqc4rx1ws05l5kqfxu
+    foreign key (lo_hang_id)
+    references lo_hang (id);
+
+alter table chi_tiet_phieu_xuat
+    add constraint FKbhbastld2y9a5rfn7m48bn3we
+    foreign key (phieu_xuat_id)
+    references phieu_xuat_kho (id);
+
+alter table chi_tiet_phieu_xuat
+    add constraint FKo3vk6148tmj3vq3vxrp7rxh72
+    foreign key (vi_tri_kho_id)
+    references vi_tri_kho (id);
+
+alter table danh_muc
+    add constraint FKigkn5l55bd4scvaigt2u123yl
+    foreign key (danh_muc_cha_id)
+    references danh_muc (id);
+
+alter table hang_hoa
+    add constraint FKc4kuwvrqk6khef2pcqe8apcn9
+    foreign key (created_by)
+    references user (id);
+
+alter table hang_hoa
+    add constraint FKsqnwqh16hoy8tm56m5c7k0moh
+    foreign key (danh_muc_id)
+    references danh_muc (id);
+
+alter table hang_hoa
+    add constraint FKab4bcqmsxikae5dci0iq0npjd
+    foreign key (don_vi_tinh_id)
+    references don_vi_tinh (id);
+
+alter table hang_hoa
+    add constraint FKgdvklf2ny8ps7x73rn1c078q3
+    foreign key (nha_cung_cap_id)
+    references nha_cung_cap (id);
+
+alter table hang_hoa
+    add constraint FK3l2dkmdoplde2ag7l61wwwtio
+    foreign key (updated_by)
+    references user (id);
+
+alter table hang_hoa_vi_tri
+    add constraint FK54g5oymgwgma0pyhbhnfekqql
+    foreign key (hang_hoa_id)
+    references hang_hoa (id);
+
+alter table hang_hoa_vi_tri
+    add constraint FKht7vyrekm7jccwxmybn5x1nr
+    foreign key (lo_hang_id)
+    references lo_hang (id);
+
+alter table hang_hoa_vi_tri
+    add constraint FKk0vcackkrh0ffs6pysch46lgc
+    foreign key (vi_tri_kho_id)
+    references vi_tri_kho (id);
+
+alter table kho
+    add constraint FKb3r7sgyid8oodbc0ufll1c4ga
+    foreign key (khoa_phong_id)
+    references khoa_phong (id);
+
+alter table kho
+    add constraint FK1x1ljkd6dcxjryyiy1fs9aurl
+    foreign key (quan_ly_kho_id)
+    references user (id);
+
+alter table khoa_phong
+    add constraint FK6ncl48h7itf9eap1t2vjf5fvl
+    foreign key (truong_khoa_id)
+    references user (id);
+
+alter table lich_su_ton_kho
+    add constraint FKhq8hmpoobo6s1uxd0x6i7vpvn
+    foreign key (hang_hoa_id)
+    references hang_hoa (id);
+
+alter table lich_su_ton_kho
+    add constraint FKfsegmtsmj4efitshtusnoiwn3
+    foreign key (lo_hang_id)
+    references lo_hang (id);
+
+alter table lich_su_ton_kho
+    add constraint FKkgr8plfj6luywaimshn6j9jaj
+    foreign key (nguoi_thuc_hien_id)
+    references user (id);
+
+alter table lich_su_ton_kho
+    add constraint FKp27miiylb2sbtkktc0jg8fm7k
+    foreign key (vi_tri_kho_id)
+    references vi_tri_kho (id);
+
+alter table lo_hang
+    add constraint FKr48y90kbu206yd5uqj5q3wttc
+    foreign key (hang_hoa_id)
+    references hang_hoa (id);
+
+alter table lo_hang
+    add constraint FK4i0104j1ebvto71g915tx3uaw
+    foreign key (kho_id)
+    references kho (id);
+
+alter table lo_hang
+    add constraint FK1rromfee134u7k5la5d6gxwxm
+    foreign key (nha_cung_cap_id)
+    references nha_cung_cap (id);
+
+alter table phieu_nhap_kho
+    add constraint FKoiuyx5h48pcpvspco14uj2eq2
+    foreign key (created_by)
+    references user (id);
+
+alter table phieu_nhap_kho
+    add constraint FKh00fuyroc6qlp12btmtnvqu37
+    foreign key (kho_id)
+    references kho (id);
+
+alter table phieu_nhap_kho
+    add constraint FKr7sy1qcgi4d2c3ya5xeouvn0k
+    foreign key (nguoi_duyet_id)
+    references user (id);
+
+alter table phieu_nhap_kho
+    add constraint FK8yuhigh93cxlpswqhb5ttcy76
+    foreign key (nguoi_kiem_tra_id)
+    references user (id);
+
+alter table phieu_nhap_kho
+    add constraint FK2sbrgtlo5lxqexydq7cifo0c1
+    foreign key (nguoi_nhan_id)
+    references user (id);
+
+alter table phieu_nhap_kho
+    add constraint FKaccud7tbe30aokp3e738t2r0x
+    foreign key (nha_cung_cap_id)
+    references nha_cung_cap (id);
+
+alter table phieu_nhap_kho
+    add constraint FK1dmnie8ulg4xwfy6xo66ybveq
+    foreign key (updated_by)
+    references user (id);
+
+alter table phieu_xuat_kho
+    add constraint FK3jdxl0qm9hpvm3735915l94vw
+    foreign key (created_by)
+    references user (id);
+
+alter table phieu_xuat_kho
+    add constraint FKostwixhe0ym15br3x9basap1j
+    foreign key (kho_id)
+    references kho (id);
+
+alter table phieu_xuat_kho
+    add constraint FK7u52ov1k5k8n3ln2hkf82kd6r
+    foreign key (khoa_phong_yeu_cau_id)
+    references khoa_phong (id);
+
+alter table phieu_xuat_kho
+    add constraint FKg1p9g26hgflojwlyigtspwh99
+    foreign key (nguoi_duyet_id)
+    references user (id);
+
+alter table phieu_xuat_kho
+    add constraint FK2sf5ennm7yhnq21dy65alx9ix
+    foreign key (nguoi_kiem_tra_id)
+    references user (id);
+
+alter table phieu_xuat_kho
+    add constraint FKkscp40rbhanvxiov3sey5qcvn
+    foreign key (nguoi_xuat_id)
+    references user (id);
+
+alter table phieu_xuat_kho
+    add constraint FKfq1y132kq8smgqvoi0xyc58y1
+    foreign key (updated_by)
+    references user (id);
+
+alter table user
+    add constraint FKslapc37nngxeud3vi44blq1w5
+    foreign key (khoa_phong_id)
+    references khoa_phong (id);
+
+alter table user
+    add constraint FKn82ha3ccdebhokx3a8fgdqeyy
+    foreign key (role_id)
+    references role (id);
+
+alter table vi_tri_kho
+    add constraint FK7m58ve7wc9yl0041kh406x8fw
+    foreign key (kho_id)
+    references kho (id);
+
+alter table vi_tri_kho
+    add constraint FK4bp7fx5ewfx9v0g969gexrcwf
+    foreign key (vi_tri_cha_id)
+    references vi_tri_kho (id);
@@ -0,0 +1,22 @@
+-- Ton kho theo tung kho (hang hoa x kho) - so luong, so luong dat truoc, gia tri ton (1/100 dong)
+
+create table ton_kho_theo_kho (
+    so_luong_co_the_xuat integer not null,
+    so_luong_da_dat integer not null,
+    tong_so_luong integer not null,
+    gia_tri_ton BIGINT,
+    hang_hoa_id bigint not null,
+    kho_id bigint not null,
+    updated_at datetime(6),
+    primary key (hang_hoa_id, kho_id)
+) engine=InnoDB;
+
+alter table ton_kho_theo_kho
+    add constraint FKl37xqv2ux09p2ldaxogp5s0s0
+    foreign key (hang_hoa_id)
+    references hang_hoa (id);
+
+alter table ton_kho_theo_kho
+    add constraint FKf40qlowrbs1hkuh5qj9e9asxe
+    foreign key (kho_id)
+    references kho (id);
@@ -0,0 +1,48 @@
+-- Dat truoc ton kho theo lo khi tao phieu xuat; lo_hang.so_luong_da_dat la tong dang giu
+
+create table dat_tru_ton_kho (
+    so_luong integer not null,
+    chi_tiet_phieu_xuat_id bigint not null,
+    created_at datetime(6) not null,
+    hang_hoa_id bigint not null,
+    het_han_luc datetime(6) not null,
+    id bigint not null auto_increment,
+    kho_id bigint not null,
+    lo_hang_id bigint,
+    phieu_xuat_id bigint not null,
+    updated_at datetime(6),
+    trang_thai enum ('DANG_GIU','DA_HUY','DA_XUAT','HET_HAN') not null,
+    primary key (id)
+) engine=InnoDB;
+
+create index idx_dat_tru_phieu_xuat on dat_tru_ton_kho (phieu_xuat_id);
+
+create index idx_dat_tru_trang_thai_het_han on dat_tru_ton_kho (trang_thai, het_han_luc);
+
+alter table dat_tru_ton_kho
+    add constraint FK4x9n3pq1u4f7rtxuhaixq1hn8
+    foreign key (chi_tiet_phieu_xuat_id)
+    references chi_tiet_phieu_xuat (id);
+
+alter table dat_tru_ton_kho
+    add constraint FKqpa9cmlf3t04b4umf1pxkf7gl
+    foreign key (hang_hoa_id)
+    references hang_hoa (id);
+
+alter table dat_tru_ton_kho
+    add constraint FK629lr8862lntno94d8pwg2yus
+    foreign key (kho_id)
+    references kho (id);
+
+alter table dat_tru_ton_kho
+    add constraint FKb783a59i0yt9vfi3qctalcyug
+    foreign key (lo_hang_id)
+    references lo_hang (id);
+
+alter table dat_tru_ton_kho
+    add constraint FK56j5l54ucqg6axymipy5wtydc
+    foreign key (phieu_xuat_id)
+    references phieu_xuat_kho (id);
+
+alter table lo_hang
+    add column so_luong_da_dat integer;
@@ -0,0 +1,45 @@
+-- Phan bo xuat theo lo cua tung dong phieu xuat (huy duyet tra ve dung lo, dung gia von)
+
+create table phan_bo_xuat_lo (
+    don_gia decimal(15,2) not null,
+    so_luong integer not null,
+    chi_tiet_phieu_xuat_id bigint not null,
+    created_at datetime(6) not null,
+    hang_hoa_id bigint not null,
+    id bigint not null auto_increment,
+    lo_hang_id bigint not null,
+    phieu_xuat_id bigint not null,
+    vi_tri_kho_id bigint,
+    primary key (id)
+) engine=InnoDB;
+
+create index idx_phan_bo_xuat_lo_lo_hang on phan_bo_xuat_lo (lo_hang_id);
+
+create index idx_phan_bo_xuat_lo_phieu_xuat on phan_bo_xuat_lo (phieu_xuat_id);
+
+create index idx_phan_bo_xuat_lo_chi_tiet on phan_bo_xuat_lo (chi_tiet_phieu_xuat_id);
+
+alter table phan_bo_xuat_lo
+    add constraint FK7htgbgrqefpktwop9txrkyuep
+    foreign key (chi_tiet_phieu_xuat_id)
+    references chi_tiet_phieu_xuat (id);
+
+alter table phan_bo_xuat_lo
+    add constraint FKqs3vtyfxa3aoshhfwuk8hf50o
+    foreign key (hang_hoa_id)
+    references hang_hoa (id);
+
+alter table phan_bo_xuat_lo
+    add constraint FK8irwm940h6w6sdnhfoero14xv
+    foreign key (lo_hang_id)
+    references lo_hang (id);
+
+alter table phan_bo_xuat_lo
+    add constraint FKh4jh31l6ltwvnuapjpgypafna
+    foreign key (phieu_xuat_id)
+    references phieu_xuat_kho (id);
+
+alter table phan_bo_xuat_lo
+    add constraint FKkl2wtyi0nhgt3030ynsok6yet
+    foreign key (vi_tri_kho_id)
+    references vi_tri_kho (id);
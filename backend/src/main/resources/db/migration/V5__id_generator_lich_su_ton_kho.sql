@@ -0,0 +1,11 @@
+-- Bo dem id cua lich_su_ton_kho de ghi theo JDBC batch (khong dung AUTO_INCREMENT nua).
+-- Cot id van giu AUTO_INCREMENT cua ban cu - vo hai vi id luon duoc gan san; bo dem duoc nang
+-- len tren MAX(id) khi khoi dong (LichSuTonKhoWriter).
+
+create table id_generator (
+    gia_tri_tiep_theo bigint,
+    ten_bang varchar(255) not null,
+    primary key (ten_bang)
+) engine=InnoDB;
+
+insert into id_generator(ten_bang, gia_tri_tiep_theo) values ('lich_su_ton_kho',0);
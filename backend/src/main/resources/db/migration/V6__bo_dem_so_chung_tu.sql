@@ -0,0 +1,8 @@
+-- Bo dem so chung tu theo tien to (cap so theo khoi cho cac node)
+
+create table bo_dem_so_chung_tu (
+    gia_tri_hien_tai bigint not null,
+    updated_at datetime(6),
+    tien_to varchar(30) not null,
+    primary key (tien_to)
+) engine=InnoDB;
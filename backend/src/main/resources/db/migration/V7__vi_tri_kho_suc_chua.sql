@@ -0,0 +1,7 @@
+-- Bo dem suc chua vi tri kho (duoc dong bo lai tu hang_hoa_vi_tri khi khoi dong)
+
+alter table vi_tri_kho
+    add column so_luong_dang_chua INT DEFAULT 0;
+
+alter table vi_tri_kho
+    add column so_dong_hang_hoa INT DEFAULT 0;
@@ -0,0 +1,16 @@
+-- Ket qua yeu cau co Idempotency-Key
+
+create table ket_qua_yeu_cau (
+    ma_http integer,
+    created_at datetime(6) not null,
+    het_han_luc datetime(6) not null,
+    dau_van_tay varchar(64) not null,
+    kieu_noi_dung varchar(100),
+    khoa varchar(360) not null,
+    duong_dan varchar(255) not null,
+    noi_dung LONGTEXT,
+    trang_thai enum ('DANG_XU_LY','HOAN_THANH') not null,
+    primary key (khoa)
+) engine=InnoDB;
+
+create index idx_ket_qua_yeu_cau_het_han on ket_qua_yeu_cau (het_han_luc);
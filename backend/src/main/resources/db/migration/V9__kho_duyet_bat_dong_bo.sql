@@ -0,0 +1,4 @@
+-- Kho duyet phieu qua hang doi bat dong bo
+
+alter table kho
+    add column duyet_bat_dong_bo BOOLEAN DEFAULT FALSE;
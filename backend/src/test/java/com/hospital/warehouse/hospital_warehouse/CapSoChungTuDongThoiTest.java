@@ -0,0 +1,91 @@
+package com.hospital.warehouse.hospital_warehouse;
+
+import com.hospital.warehouse.hospital_warehouse.repository.BoDemSoChungTuRepository;
+import com.hospital.warehouse.hospital_warehouse.service.SoChungTuService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Cấp mã phiếu đồng thời từ 2 "node" (2 instance SoChungTuService dùng chung DB):
+ * 10.000 mã phiếu xuất trên 16 thread không được trùng nhau.
+ */
+@Import(SoChungTuService.class)
+@TestPropertySource(properties = {
+        "kho.so-chung-tu.kich-thuoc-khoi=20"
+})
+class CapSoChungTuDongThoiTest extends KiemThuH2 {
+
+    private static final int SO_PHIEU = 10_000;
+    private static final int SO_THREAD = 16;
+    private static final int KICH_THUOC_KHOI = 20;
+
+    @Autowired private SoChungTuService soChungTuService;
+    @Autowired private BoDemSoChungTuRepository boDemSoChungTuRepository;
+    @Autowired private PlatformTransactionManager transactionManager;
+
+    @Test
+    void capMaDongThoiKhongTrung() throws Exception {
+        SoChungTuService node2 = new SoChungTuService(boDemSoChungTuRepository, transactionManager);
+        ReflectionTestUtils.setField(node2, "kichThuocKhoi", KICH_THUOC_KHOI);
+        SoChungTuService[] nodes = {soChungTuService, node2};
+
+        Set<String> daCap = ConcurrentHashMap.newKeySet();
+        AtomicInteger conLai = new AtomicInteger(SO_PHIEU);
+        CountDownLatch batDau = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(SO_THREAD);
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < SO_THREAD; t++) {
+            SoChungTuService node = nodes[t % nodes.length];
+            futures.add(executor.submit(() -> {
+                batDau.await();
+                while (conLai.getAndDecrement() > 0) {
+                    String ma = node.capMaTheoNgay("PX", prefix -> 0L);
+                    assertTrue(daCap.add(ma), "Trùng mã phiếu: " + ma);
+                }
+                return null;
+            }));
+        }
+
+        batDau.countDown();
+        for (Future<?> future : futures) {
+            future.get(2, TimeUnit.MINUTES);
+        }
+        executor.shutdown();
+
+        assertEquals(SO_PHIEU, daCap.size());
+
+        // Mỗi node bỏ dở tối đa một khối → bộ đếm không vượt quá số mã đã cấp + 2 khối
+        String tienTo = "PX-" + LocalDate.now().format(DateTimeFormatter.BASIC_ISO_DATE) + "-";
+        long giaTri = boDemSoChungTuRepository.findGiaTriHienTai(tienTo);
+        assertTrue(giaTri >= SO_PHIEU && giaTri <= SO_PHIEU + 2L * KICH_THUOC_KHOI, "Bộ đếm: " + giaTri);
+        assertTrue(daCap.stream().allMatch(ma -> ma.startsWith(tienTo)));
+    }
+
+    @Test
+    void tienToMoiBatDauSauSoDaCo() {
+        // Dữ liệu cũ (trước khi có bộ đếm) đã dùng tới số 37
+        assertEquals(38, soChungTuService.capSo("PN-TEST-", prefix -> 37L));
+        assertEquals(39, soChungTuService.capSo("PN-TEST-", prefix -> 37L));
+
+        // Node khác (khởi động lại) lấy khối mới, không cấp lại số đã cấp
+        SoChungTuService node2 = new SoChungTuService(boDemSoChungTuRepository, transactionManager);
+        ReflectionTestUtils.setField(node2, "kichThuocKhoi", KICH_THUOC_KHOI);
+        assertEquals(38 + KICH_THUOC_KHOI, node2.capSo("PN-TEST-", prefix -> 37L));
+    }
+}
@@ -0,0 +1,232 @@
+package com.hospital.warehouse.hospital_warehouse;
+
+import com.hospital.warehouse.hospital_warehouse.entity.*;
+import com.hospital.warehouse.hospital_warehouse.repository.LoHangRepository;
+import com.hospital.warehouse.hospital_warehouse.service.ChiMucHanSuDungService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Chỉ mục hạn sử dụng trên 200 nghìn lô / 20 kho:
+ * - bộ nhớ ước tính (baoCaoBoNho) khớp bộ nhớ đo được và nằm trong ngân sách
+ * - "lô hết hạn trong N ngày tại kho K (của hàng hóa H)" trả đúng như truy vấn DB, mỗi lần chỉ vài chục micro giây
+ * - thay đổi lô commit trên node này được node khác thấy qua thay_doi_lo_hang, không phải đợi dựng lại
+ */
+@Import(ChiMucHanSuDungService.class)
+class ChiMucHanSuDungBenchmarkTest extends KiemThuH2 {
+
+    private static final int SO_LO = 200_000;
+    private static final int SO_KHO = 20;
+    private static final int SO_HANG_HOA = 50;
+    private static final long NGAN_SACH_BYTE = 40L * 1024 * 1024;
+
+    @Autowired private DuLieuMau duLieuMau;
+    @Autowired private ChiMucHanSuDungService chiMucHanSuDungService;
+    @Autowired private LoHangRepository loHangRepository;
+    @Autowired private ApplicationEventPublisher eventPublisher;
+    @Autowired private PlatformTransactionManager transactionManager;
+    @Autowired private DataSource dataSource;
+
+    @Test
+    void dungChiMuc200NghinLoVaTraCuuKhopDb() {
+        List<Kho> cacKho = new ArrayList<>();
+        List<HangHoa> cacHangHoa = new ArrayList<>();
+        for (int i = 0; i < SO_KHO; i++) {
+            cacKho.add(duLieuMau.taoKho("BM" + i));
+        }
+        for (int i = 0; i < SO_HANG_HOA; i++) {
+            cacHangHoa.add(duLieuMau.taoHangHoa("BM" + i, 0));
+        }
+        taoLo(cacKho, cacHangHoa);
+
+        long batDau = System.nanoTime();
+        chiMucHanSuDungService.dungLai();
+        long thoiGianDung = System.nanoTime() - batDau;
+
+        JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+        ChiMucHanSuDungService.BoNho boNho = chiMucHanSuDungService.baoCaoBoNho();
+        int soLoConHang = jdbc.queryForObject(
+                "SELECT COUNT(*) FROM lo_hang WHERE so_luong_hien_tai > 0 AND han_su_dung IS NOT NULL", Integer.class);
+        assertEquals(soLoConHang, boNho.soLo());
+        assertEquals(SO_KHO, boNho.soKho());
+        assertTrue(boNho.uocTinhByte() < NGAN_SACH_BYTE, boNho.toString());
+
+        // Bộ nhớ đo được của một chỉ mục dựng riêng (giữ tham chiếu để GC không thu hồi)
+        long truoc = boNhoDangDung();
+        ChiMucHanSuDungService banSao = new ChiMucHanSuDungService(loHangRepository, dataSource);
+        banSao.dungLai();
+        long doDuoc = boNhoDangDung() - truoc;
+        assertEquals(boNho.soLo(), banSao.baoCaoBoNho().soLo());
+        String baoCao = String.format("%d lô: dựng %d ms, ước tính %.1f MB (%d byte/lô), đo được %.1f MB",
+                boNho.soLo(), thoiGianDung / 1_000_000, boNho.uocTinhByte() / 1048576.0,
+                boNho.uocTinhByte() / boNho.soLo(), doDuoc / 1048576.0);
+        assertTrue(doDuoc < boNho.uocTinhByte() * 2 && doDuoc > boNho.uocTinhByte() / 2, baoCao);
+
+        // Tra cứu khớp truy vấn DB: từng kho, nhiều khoảng ngày, có / không lọc hàng hóa
+        LocalDate homNay = LocalDate.now();
+        for (Kho kho : cacKho) {
+            for (int soNgay : new int[]{0, 7, 30, 90, 365}) {
+                soSanhVoiDb(jdbc, kho.getId(), null, homNay, homNay.plusDays(soNgay));
+            }
+            soSanhVoiDb(jdbc, kho.getId(), cacHangHoa.get(kho.getId().intValue() % SO_HANG_HOA).getId(),
+                    homNay.minusDays(30), homNay.plusDays(180));
+        }
+        soSanhVoiDb(jdbc, null, null, homNay, homNay.plusDays(30));
+        soSanhVoiDb(jdbc, null, cacHangHoa.get(0).getId(), homNay.minusDays(10), homNay.plusDays(60));
+
+        // Thời gian một lần "hết hạn trong 30 ngày tại kho K" sau khi làm nóng
+        Long khoId = cacKho.get(0).getId();
+        for (int i = 0; i < 20_000; i++) {
+            chiMucHanSuDungService.timLo(khoId, null, homNay, homNay.plusDays(30));
+        }
+        int soLan = 20_000;
+        long tongSoLo = 0;
+        batDau = System.nanoTime();
+        for (int i = 0; i < soLan; i++) {
+            tongSoLo += chiMucHanSuDungService.tongHop(cacKho.get(i % SO_KHO).getId(), null,
+                    homNay, homNay.plusDays(30)).soLo();
+        }
+        long nano = (System.nanoTime() - batDau) / soLan;
+        assertTrue(tongSoLo > 0);
+        assertTrue(nano < 500_000, baoCao + String.format(", tra cứu %.1f us", nano / 1000.0));
+    }
+
+    @Test
+    void thayDoiTrenNodeKhacDuocDongBo() {
+        Kho kho = duLieuMau.taoKho("DB");
+        HangHoa hangHoa = duLieuMau.taoHangHoa("HH-DB", 0);
+        LocalDate han = LocalDate.now().plusDays(10);
+        LoHang loBan = duLieuMau.taoLoHang(hangHoa, kho, "LO-DB-1", 5, new BigDecimal("1000"), han);
+        LoHang loXoa = duLieuMau.taoLoHang(hangHoa, kho, "LO-DB-2", 7, new BigDecimal("1000"), han);
+
+        // Node A: bean trong context (nhận sự kiện), node B: chỉ mục riêng không nhận sự kiện
+        ChiMucHanSuDungService nodeB = new ChiMucHanSuDungService(loHangRepository, dataSource);
+        ReflectionTestUtils.setField(nodeB, "doTreGiay", 60L);
+        chiMucHanSuDungService.dungLai();
+        nodeB.dungLai();
+        assertEquals(List.of(loBan.getId(), loXoa.getId()), timLo(nodeB, kho, han));
+
+        JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+        TransactionTemplate tx = new TransactionTemplate(transactionManager);
+
+        // Rollback: không ghi tín hiệu
+        tx.executeWithoutResult(status -> {
+            jdbc.update("UPDATE lo_hang SET so_luong_hien_tai = 0 WHERE id = ?", loBan.getId());
+            eventPublisher.publishEvent(new ChiMucHanSuDungService.ThayDoi(List.of(loBan.getId())));
+            status.setRollbackOnly();
+        });
+        assertEquals(0, jdbc.queryForObject("SELECT COUNT(*) FROM thay_doi_lo_hang", Integer.class));
+
+        // Node A bán hết một lô và xóa lô kia
+        tx.executeWithoutResult(status -> {
+            jdbc.update("UPDATE lo_hang SET so_luong_hien_tai = 0 WHERE id = ?", loBan.getId());
+            jdbc.update("DELETE FROM lo_hang WHERE id = ?", loXoa.getId());
+            eventPublisher.publishEvent(new ChiMucHanSuDungService.ThayDoi(List.of(loBan.getId(), loXoa.getId())));
+        });
+        assertEquals(List.of(), timLo(chiMucHanSuDungService, kho, han));
+        assertEquals(List.of(loBan.getId(), loXoa.getId()), timLo(nodeB, kho, han));
+
+        nodeB.dongBo();
+        assertEquals(List.of(), timLo(nodeB, kho, han));
+        assertEquals(0, nodeB.tongHop(kho.getId(), null, han, han).soLo());
+
+        // Lô nhập lại hàng: đọc lần nữa trong khoảng độ trễ không áp dụng trùng
+        tx.executeWithoutResult(status -> {
+            jdbc.update("UPDATE lo_hang SET so_luong_hien_tai = 3 WHERE id = ?", loBan.getId());
+            eventPublisher.publishEvent(new ChiMucHanSuDungService.ThayDoi(List.of(loBan.getId())));
+        });
+        nodeB.dongBo();
+        nodeB.dongBo();
+        assertEquals(new ChiMucHanSuDungService.TongHop(1, 3), nodeB.tongHop(kho.getId(), null, han, han));
+        assertFalse(timLo(chiMucHanSuDungService, kho, han).isEmpty());
+    }
+
+    // ==================== HELPER ====================
+
+    /**
+     * 200 nghìn lô rải đều các kho / hàng hóa: hạn trong [-30, 720) ngày, ~5% hết hàng, ~2% không có hạn
+     */
+    private void taoLo(List<Kho> cacKho, List<HangHoa> cacHangHoa) {
+        Random random = new Random(20261018L);
+        LocalDate homNay = LocalDate.now();
+        Timestamp bayGio = Timestamp.valueOf(LocalDateTime.now());
+        List<Object[]> dong = new ArrayList<>(SO_LO);
+        for (int i = 0; i < SO_LO; i++) {
+            int soLuong = random.nextInt(20) == 0 ? 0 : 1 + random.nextInt(200);
+            Date han = random.nextInt(50) == 0 ? null : Date.valueOf(homNay.plusDays(random.nextInt(750) - 30));
+            dong.add(new Object[]{
+                    cacHangHoa.get(random.nextInt(SO_HANG_HOA)).getId(),
+                    cacKho.get(i % SO_KHO).getId(),
+                    "BM-" + i, han, soLuong + 10, soLuong, new BigDecimal("1000"), bayGio});
+        }
+        new JdbcTemplate(dataSource).batchUpdate("""
+                INSERT INTO lo_hang (hang_hoa_id, kho_id, so_lo, han_su_dung, so_luong_nhap, so_luong_hien_tai,
+                                     gia_nhap, created_at, so_luong_da_dat, trang_thai)
+                VALUES (?, ?, ?, ?, ?, ?, ?, ?, 0, 'MOI')
+                """, dong);
+    }
+
+    private void soSanhVoiDb(JdbcTemplate jdbc, Long khoId, Long hangHoaId, LocalDate tuNgay, LocalDate denNgay) {
+        String dieuKien = "so_luong_hien_tai > 0 AND han_su_dung BETWEEN ? AND ?"
+                + (khoId != null ? " AND kho_id = " + khoId : "")
+                + (hangHoaId != null ? " AND hang_hoa_id = " + hangHoaId : "");
+        List<Map<String, Object>> db = jdbc.queryForList(
+                "SELECT id, han_su_dung, so_luong_hien_tai FROM lo_hang WHERE " + dieuKien + " ORDER BY han_su_dung, id",
+                Date.valueOf(tuNgay), Date.valueOf(denNgay));
+        String moTa = "kho " + khoId + ", hàng " + hangHoaId + ", " + tuNgay + " → " + denNgay;
+
+        List<Long> chiMuc = chiMucHanSuDungService.timLo(khoId, hangHoaId, tuNgay, denNgay);
+        List<Long> dbIds = db.stream().map(d -> ((Number) d.get("id")).longValue()).toList();
+        assertEquals(dbIds.size(), chiMuc.size(), moTa);
+        assertEquals(new HashSet<>(dbIds), new HashSet<>(chiMuc), moTa);
+        // Thứ tự theo hạn sử dụng tăng dần (cùng ngày: thứ tự tùy ý)
+        Map<Long, String> hanTheoId = new HashMap<>();
+        db.forEach(d -> hanTheoId.put(((Number) d.get("id")).longValue(), d.get("han_su_dung").toString()));
+        assertEquals(db.stream().map(d -> d.get("han_su_dung").toString()).toList(),
+                chiMuc.stream().map(hanTheoId::get).toList(), moTa);
+
+        long soLuongDb = db.stream().mapToLong(d -> ((Number) d.get("so_luong_hien_tai")).longValue()).sum();
+        assertEquals(new ChiMucHanSuDungService.TongHop(db.size(), soLuongDb),
+                chiMucHanSuDungService.tongHop(khoId, hangHoaId, tuNgay, denNgay), moTa);
+    }
+
+    private List<Long> timLo(ChiMucHanSuDungService chiMuc, Kho kho, LocalDate han) {
+        return chiMuc.timLo(kho.getId(), null, han, han);
+    }
+
+    private static long boNhoDangDung() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,114 @@
+package com.hospital.warehouse.hospital_warehouse;
+
+import com.hospital.warehouse.hospital_warehouse.config.SqlStatementCounter;
+import com.hospital.warehouse.hospital_warehouse.dto.LoHangDTO;
+import com.hospital.warehouse.hospital_warehouse.dto.PageResponse;
+import com.hospital.warehouse.hospital_warehouse.entity.*;
+import com.hospital.warehouse.hospital_warehouse.repository.*;
+import com.hospital.warehouse.hospital_warehouse.service.ChiMucHanSuDungService;
+import com.hospital.warehouse.hospital_warehouse.service.LoHangService;
+import com.hospital.warehouse.hospital_warehouse.service.ThongKeLoHangService;
+import com.hospital.warehouse.hospital_warehouse.service.TruTonKhoService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * Danh sách lô hàng có phân trang: số câu lệnh SQL mỗi trang cố định (1 SELECT trang + 1 COUNT),
+ * không phụ thuộc số dòng - hàng hóa, đơn vị tính, danh mục, nhà cung cấp được nạp kèm trong câu SELECT.
+ */
+@Import({LoHangService.class, ChiMucHanSuDungService.class, ThongKeLoHangService.class, TruTonKhoService.class})
+class DanhSachLoHangSoCauLenhTest extends KiemThuH2 {
+
+    private static final int SO_HANG_HOA = 12;
+    private static final int SO_LO_MOI_HANG = 10;
+    private static final int KICH_THUOC_TRANG = 50;
+
+    @Autowired private DuLieuMau duLieuMau;
+    @Autowired private DanhMucRepository danhMucRepository;
+    @Autowired private DonViTinhRepository donViTinhRepository;
+    @Autowired private HangHoaRepository hangHoaRepository;
+    @Autowired private NhaCungCapRepository nhaCungCapRepository;
+    @Autowired private LoHangRepository loHangRepository;
+    @Autowired private LoHangService loHangService;
+
+    @BeforeEach
+    void taoDuLieu() {
+        if (loHangRepository.count() > 0) {
+            return;
+        }
+
+        Kho kho = duLieuMau.taoKho("DS");
+
+        for (int i = 0; i < SO_HANG_HOA; i++) {
+            // Mỗi hàng hóa một danh mục / ĐVT / NCC riêng → N+1 sẽ lộ ra ngay trong số câu lệnh
+            DanhMuc danhMuc = danhMucRepository.save(DanhMuc.builder()
+                    .maDanhMuc("DM-" + i).tenDanhMuc("Danh mục " + i).build());
+            DonViTinh donViTinh = donViTinhRepository.save(DonViTinh.builder()
+                    .maDvt("DVT" + i).tenDvt("Đơn vị " + i).build());
+            NhaCungCap nhaCungCap = nhaCungCapRepository.save(NhaCungCap.builder()
+                    .maNcc("NCC-" + i).tenNcc("Nhà cung cấp " + i).build());
+            HangHoa hangHoa = hangHoaRepository.save(HangHoa.builder()
+                    .maHangHoa("HH-" + i)
+                    .tenHangHoa("Thuốc " + i)
+                    .danhMuc(danhMuc)
+                    .donViTinh(donViTinh)
+                    .build());
+
+            for (int j = 0; j < SO_LO_MOI_HANG; j++) {
+                loHangRepository.save(LoHang.builder()
+                        .hangHoa(hangHoa)
+                        .kho(kho)
+                        .nhaCungCap(nhaCungCap)
+                        .soLo("LO-" + i + "-" + j)
+                        .hanSuDung(LocalDate.now().plusDays(10L + i * SO_LO_MOI_HANG + j))
+                        .soLuongNhap(100)
+                        .soLuongHienTai(100)
+                        .giaNhap(new BigDecimal("1000"))
+                        .trangThai(LoHang.TrangThaiLoHang.MOI)
+                        .build());
+            }
+        }
+    }
+
+    @Test
+    void moiTrangChiHaiCauLenh() {
+        for (int trang = 0; trang < 2; trang++) {
+            SqlStatementCounter.batDau();
+            PageResponse<LoHangDTO> ketQua = loHangService.getAllLoHang(null, null, null, null, null, null, null,
+                    PageRequest.of(trang, KICH_THUOC_TRANG, Sort.by("hanSuDung")));
+            long soCauLenh = SqlStatementCounter.ketThuc();
+
+            assertEquals(KICH_THUOC_TRANG, ketQua.getContent().size());
+            assertEquals(SO_HANG_HOA * SO_LO_MOI_HANG, ketQua.getTotalElements());
+            ketQua.getContent().forEach(dto -> {
+                assertNotNull(dto.getTenHangHoa());
+                assertNotNull(dto.getTenDonViTinh());
+                assertNotNull(dto.getTenNhaCungCap());
+            });
+            assertEquals(2, soCauLenh, "Trang " + trang + ": SELECT trang + COUNT");
+        }
+    }
+
+    @Test
+    void timKiemTheoTenHangHoaVanHaiCauLenh() {
+        SqlStatementCounter.batDau();
+        PageResponse<LoHangDTO> ketQua = loHangService.getAllLoHang("thuốc 1", null, null, null, null, null, null,
+                PageRequest.of(0, 5, Sort.by("hanSuDung")));
+        long soCauLenh = SqlStatementCounter.ketThuc();
+
+        // "Thuốc 1", "Thuốc 10", "Thuốc 11"
+        assertEquals(3L * SO_LO_MOI_HANG, ketQua.getTotalElements());
+        assertEquals(5, ketQua.getContent().size());
+        assertEquals(2, soCauLenh);
+    }
+}
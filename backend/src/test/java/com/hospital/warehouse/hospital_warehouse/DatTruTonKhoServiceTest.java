@@ -0,0 +1,161 @@
+package com.hospital.warehouse.hospital_warehouse;
+
+import com.hospital.warehouse.hospital_warehouse.entity.*;
+import com.hospital.warehouse.hospital_warehouse.repository.ChiTietPhieuXuatRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.TonKhoTheoKhoRepository;
+import com.hospital.warehouse.hospital_warehouse.service.DatTruTonKhoService;
+import com.hospital.warehouse.hospital_warehouse.service.ThongKeLoHangService;
+import com.hospital.warehouse.hospital_warehouse.service.TonKhoTheoKhoService;
+import com.hospital.warehouse.hospital_warehouse.util.FefoAllocator;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Giữ hàng → trả lại (hủy phiếu / hết hạn): số lượng đã đặt ở tồn kho theo kho, lô và hàng hóa
+ * về đúng như trước; số liệu giữ hàng bị lệch thì báo lỗi và không trả lại nửa chừng.
+ */
+@Import({DatTruTonKhoService.class, TonKhoTheoKhoService.class, ThongKeLoHangService.class})
+class DatTruTonKhoServiceTest extends KiemThuH2 {
+
+    private static final int TON_KHO = 20;
+    private static final AtomicInteger SO_THU_TU = new AtomicInteger();
+
+    @Autowired private DuLieuMau duLieuMau;
+    @Autowired private DatTruTonKhoService datTruTonKhoService;
+    @Autowired private TonKhoTheoKhoRepository tonKhoTheoKhoRepository;
+    @Autowired private ChiTietPhieuXuatRepository chiTietPhieuXuatRepository;
+    @Autowired private PlatformTransactionManager transactionManager;
+    @Autowired private DataSource dataSource;
+
+    private JdbcTemplate jdbc;
+    private Kho kho;
+    private User nguoiDung;
+    private HangHoa hangHoa;
+    private LoHang lo1;
+    private LoHang lo2;
+
+    @BeforeEach
+    void taoDuLieu() {
+        String ma = "DT" + SO_THU_TU.incrementAndGet();
+        jdbc = new JdbcTemplate(dataSource);
+        kho = duLieuMau.taoKho(ma);
+        nguoiDung = duLieuMau.taoNguoiDung("nd-" + ma);
+        hangHoa = duLieuMau.taoHangHoa("HH-" + ma, TON_KHO);
+        lo1 = duLieuMau.taoLoHang(hangHoa, kho, "LO1-" + ma, TON_KHO / 2, new BigDecimal("1000"), null);
+        lo2 = duLieuMau.taoLoHang(hangHoa, kho, "LO2-" + ma, TON_KHO / 2, new BigDecimal("1000"), null);
+        new TransactionTemplate(transactionManager).executeWithoutResult(s ->
+                tonKhoTheoKhoRepository.congTon(hangHoa.getId(), kho.getId(), TON_KHO, TON_KHO * 100_000L));
+    }
+
+    @Test
+    void giuRoiHuyPhieu() {
+        PhieuXuatKho phieu = giuHang("PX-HUY", lo1, 8);
+        assertDaDat(8, 8, 0);
+
+        datTruTonKhoService.giaiPhongTheoPhieu(phieu.getId());
+
+        assertDaDat(0, 0, 0);
+        assertEquals(List.of("DA_HUY"), trangThaiDatTru(phieu));
+    }
+
+    @Test
+    void giuRoiHetHan() {
+        PhieuXuatKho hetHan = giuHang("PX-HH-1", lo1, 5);
+        PhieuXuatKho conHan = giuHang("PX-HH-2", lo2, 3);
+        choHetHan(hetHan);
+
+        datTruTonKhoService.quetDatTruHetHan();
+
+        assertDaDat(3, 0, 3);
+        assertEquals(List.of("HET_HAN"), trangThaiDatTru(hetHan));
+        assertEquals(List.of("DANG_GIU"), trangThaiDatTru(conHan));
+    }
+
+    @Test
+    void lechSoLieuThiBaoLoiVaKhongTraNuaChung() {
+        PhieuXuatKho phieu = giuHang("PX-LECH", lo1, 6);
+        jdbc.update("UPDATE lo_hang SET so_luong_da_dat = 0 WHERE id = ?", lo1.getId());
+
+        assertThrows(IllegalStateException.class, () -> datTruTonKhoService.giaiPhongTheoPhieu(phieu.getId()));
+
+        assertEquals(6, soLuongDaDatTaiKho());
+        assertEquals(6, jdbc.queryForObject("SELECT so_luong_da_dat FROM hang_hoa WHERE id = ?",
+                Integer.class, hangHoa.getId()));
+        assertEquals(List.of("DANG_GIU"), trangThaiDatTru(phieu));
+    }
+
+    @Test
+    void quetHetHanVanTraPhieuHopLeKhiCoPhieuLech() {
+        PhieuXuatKho lech = giuHang("PX-QL-1", lo1, 4);
+        PhieuXuatKho hopLe = giuHang("PX-QL-2", lo2, 3);
+        choHetHan(lech);
+        choHetHan(hopLe);
+        jdbc.update("UPDATE lo_hang SET so_luong_da_dat = 0 WHERE id = ?", lo1.getId());
+
+        datTruTonKhoService.quetDatTruHetHan();
+
+        assertEquals(List.of("DANG_GIU"), trangThaiDatTru(lech));
+        assertEquals(List.of("HET_HAN"), trangThaiDatTru(hopLe));
+        assertEquals(4, soLuongDaDatTaiKho());
+        assertEquals(0, jdbc.queryForObject("SELECT so_luong_da_dat FROM lo_hang WHERE id = ?",
+                Integer.class, lo2.getId()));
+    }
+
+    // ==================== HELPER ====================
+
+    private PhieuXuatKho giuHang(String ma, LoHang loHang, int soLuong) {
+        PhieuXuatKho phieu = duLieuMau.taoPhieuXuatChoDuyet(ma, kho, nguoiDung, hangHoa, soLuong);
+        ChiTietPhieuXuat chiTiet = chiTietPhieuXuatRepository.findByPhieuXuatId(phieu.getId()).get(0);
+        datTruTonKhoService.giuHang(phieu, Map.of(hangHoa.getId(), soLuong),
+                List.of(new FefoAllocator.PhanBo(chiTiet, loHang, soLuong)), List.of());
+        return phieu;
+    }
+
+    private void choHetHan(PhieuXuatKho phieu) {
+        jdbc.update("UPDATE dat_tru_ton_kho SET het_han_luc = ? WHERE phieu_xuat_id = ?",
+                LocalDateTime.now().minusDays(1), phieu.getId());
+    }
+
+    private List<String> trangThaiDatTru(PhieuXuatKho phieu) {
+        return jdbc.queryForList("SELECT trang_thai FROM dat_tru_ton_kho WHERE phieu_xuat_id = ?",
+                String.class, phieu.getId());
+    }
+
+    private int soLuongDaDatTaiKho() {
+        return jdbc.queryForObject("SELECT so_luong_da_dat FROM ton_kho_theo_kho WHERE hang_hoa_id = ? AND kho_id = ?",
+                Integer.class, hangHoa.getId(), kho.getId());
+    }
+
+    /**
+     * Số lượng đã đặt ở tồn kho theo kho / hàng hóa và ở từng lô; "có thể xuất" = tồn - đã đặt
+     */
+    private void assertDaDat(int tong, int lo1DaDat, int lo2DaDat) {
+        assertEquals(tong, soLuongDaDatTaiKho());
+        assertEquals(TON_KHO - tong, jdbc.queryForObject(
+                "SELECT so_luong_co_the_xuat FROM ton_kho_theo_kho WHERE hang_hoa_id = ? AND kho_id = ?",
+                Integer.class, hangHoa.getId(), kho.getId()));
+        assertEquals(tong, jdbc.queryForObject("SELECT so_luong_da_dat FROM hang_hoa WHERE id = ?",
+                Integer.class, hangHoa.getId()));
+        assertEquals(TON_KHO - tong, jdbc.queryForObject("SELECT so_luong_co_the_xuat FROM hang_hoa WHERE id = ?",
+                Integer.class, hangHoa.getId()));
+        assertEquals(lo1DaDat, jdbc.queryForObject("SELECT so_luong_da_dat FROM lo_hang WHERE id = ?",
+                Integer.class, lo1.getId()));
+        assertEquals(lo2DaDat, jdbc.queryForObject("SELECT so_luong_da_dat FROM lo_hang WHERE id = ?",
+                Integer.class, lo2.getId()));
+    }
+}
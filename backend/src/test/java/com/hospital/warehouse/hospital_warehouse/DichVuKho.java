@@ -0,0 +1,18 @@
+package com.hospital.warehouse.hospital_warehouse;
+
+import com.hospital.warehouse.hospital_warehouse.service.*;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Import;
+
+/**
+ * Các service nghiệp vụ kho (phiếu nhập / xuất và những gì chúng phụ thuộc) cho test cấp service trên KiemThuH2.
+ * Job nền (@Scheduled, ApplicationReadyEvent) không chạy trong các test này.
+ */
+@TestConfiguration
+@Import({PhieuXuatKhoService.class, PhieuNhapKhoService.class, NhapFilePhieuNhapService.class,
+        LoHangService.class, HangHoaService.class, TruTonKhoService.class, TonKhoTheoKhoService.class,
+        DatTruTonKhoService.class, ViTriKhoService.class, LichSuTonKhoWriter.class, BienDongTonKhoService.class,
+        KeHoachXuatCache.class, ThongKePhieuService.class, NguoiDungHienTai.class, SoChungTuService.class,
+        ChiMucHanSuDungService.class, ThongKeLoHangService.class})
+class DichVuKho {
+}
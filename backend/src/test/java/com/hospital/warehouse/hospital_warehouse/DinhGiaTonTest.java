@@ -0,0 +1,114 @@
+package com.hospital.warehouse.hospital_warehouse;
+
+import com.hospital.warehouse.hospital_warehouse.util.DinhGiaTon;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Định giá tồn kho trên long (1/100 đồng): nhập → xuất (chia cho từng dòng) → hủy duyệt trả về đúng từng đơn vị,
+ * không dư / thiếu do làm tròn.
+ */
+class DinhGiaTonTest {
+
+    @Test
+    void giaTriDongNhapLamTronNhuCotDecimal() {
+        assertEquals(300_150L, DinhGiaTon.tuDonGia(new BigDecimal("1000.50"), 3));
+        // 3 chữ số thập phân: làm tròn nửa lên như ROUND(don_gia * 100)
+        assertEquals(1235L, DinhGiaTon.tuThanhTien(new BigDecimal("12.345")));
+        assertEquals(2 * 1235L, DinhGiaTon.tuDonGia(new BigDecimal("12.345"), 2));
+        assertEquals(1234L, DinhGiaTon.tuThanhTien(new BigDecimal("12.344")));
+        assertEquals(0L, DinhGiaTon.tuDonGia(null, 5));
+        assertEquals(0L, DinhGiaTon.tuThanhTien(null));
+        assertThrows(ArithmeticException.class, () -> DinhGiaTon.tuDonGia(new BigDecimal("90000000000000000"), 2));
+    }
+
+    @Test
+    void chiaTheoDongDongCuoiNhanPhanDu() {
+        // 1 đồng cho 3 dòng 1 đơn vị: 0.33 + 0.34 + 0.33
+        assertArrayEquals(new long[]{33, 34, 33}, DinhGiaTon.chiaTheoDong(100, new int[]{1, 1, 1}));
+        assertArrayEquals(new long[]{0, 0}, DinhGiaTon.chiaTheoDong(0, new int[]{2, 3}));
+        assertArrayEquals(new long[]{1_000_007}, DinhGiaTon.chiaTheoDong(1_000_007, new int[]{9}));
+
+        long[] giaTri = DinhGiaTon.chiaTheoDong(1_000_007, new int[]{2, 5, 2});
+        assertEquals(1_000_007, Arrays.stream(giaTri).sum());
+        assertEquals(222_224, giaTri[0]);
+        assertEquals(555_559, giaTri[1]);
+        assertEquals(222_224, giaTri[2]);
+    }
+
+    @Test
+    void nhapXuatHuyDuyetTraVeChinhXac() {
+        Random random = new Random(20241018L);
+        long giaTri = 0;
+        int soLuong = 0;
+
+        // Nhập nhiều dòng giá lẻ
+        Deque<long[]> daNhap = new ArrayDeque<>();
+        for (int i = 0; i < 20; i++) {
+            BigDecimal donGia = BigDecimal.valueOf(1000 + random.nextInt(500_000), 2);
+            int soLuongNhap = 1 + random.nextInt(50);
+            long giaTriNhap = DinhGiaTon.tuDonGia(donGia, soLuongNhap);
+            giaTri += giaTriNhap;
+            soLuong += soLuongNhap;
+            daNhap.push(new long[]{soLuongNhap, giaTriNhap});
+        }
+        long giaTriSauNhap = giaTri;
+        int soLuongSauNhap = soLuong;
+
+        // Xuất nhiều phiếu, mỗi phiếu nhiều dòng; phiếu cuối lấy hết
+        Deque<long[]> daXuat = new ArrayDeque<>();
+        while (soLuong > 0) {
+            int[] cacDong = new int[1 + random.nextInt(3)];
+            int tongPhieu = 0;
+            for (int i = 0; i < cacDong.length && tongPhieu < soLuong; i++) {
+                cacDong[i] = Math.min(1 + random.nextInt(40), soLuong - tongPhieu);
+                tongPhieu += cacDong[i];
+            }
+            long giaTriPhieu = DinhGiaTon.phanBo(giaTri, soLuong, tongPhieu);
+            long[] giaTriDong = DinhGiaTon.chiaTheoDong(giaTriPhieu, cacDong);
+            assertEquals(giaTriPhieu, Arrays.stream(giaTriDong).sum());
+            assertTrue(giaTriPhieu <= giaTri);
+
+            giaTri -= giaTriPhieu;
+            soLuong -= tongPhieu;
+            daXuat.push(new long[]{tongPhieu, Arrays.stream(giaTriDong).sum()});
+        }
+        assertEquals(0, giaTri, "Xuất hết phải lấy hết giá trị");
+
+        // Hủy duyệt các phiếu xuất theo thứ tự ngược: cộng lại đúng tổng giá trị các dòng
+        while (!daXuat.isEmpty()) {
+            long[] phieu = daXuat.pop();
+            soLuong += (int) phieu[0];
+            giaTri += phieu[1];
+        }
+        assertEquals(soLuongSauNhap, soLuong);
+        assertEquals(giaTriSauNhap, giaTri);
+
+        // Hủy duyệt các phiếu nhập: trừ đúng giá trị đã cộng
+        while (!daNhap.isEmpty()) {
+            long[] phieu = daNhap.pop();
+            soLuong -= (int) phieu[0];
+            giaTri -= phieu[1];
+        }
+        assertEquals(0, soLuong);
+        assertEquals(0, giaTri);
+    }
+
+    @Test
+    void giaBinhQuanVaDoiSangDong() {
+        assertEquals(new BigDecimal("10000.23"), DinhGiaTon.sangDong(1_000_023));
+        assertEquals(new BigDecimal("1000.02"), DinhGiaTon.giaBinhQuan(1_000_023, 10));
+        assertNull(DinhGiaTon.giaBinhQuan(0, 0));
+    }
+}
@@ -0,0 +1,188 @@
+package com.hospital.warehouse.hospital_warehouse;
+
+import com.hospital.warehouse.hospital_warehouse.util.DocBangTinh;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Đọc bảng tính từng dòng: CSV (BOM, tự nhận dấu phân cách, ô trong "..." chứa dấu phân cách / xuống dòng / "")
+ * và XLSX (chuỗi dùng chung, chuỗi trong ô, ô bị bỏ qua, DTD / entity ngoài bị chặn).
+ */
+class DocBangTinhTest {
+
+    private static final String BI_MAT = "noi-dung-bi-mat-khong-duoc-doc";
+
+    @TempDir
+    Path thuMuc;
+
+    // ==================== CSV ====================
+
+    @Test
+    void csvCoBomChamPhayVaONhay() throws IOException {
+        Path file = ghi("bom.csv", "\uFEFFma;ten;ghi_chu\r\n"
+                + "HH1;\"Thuốc; loại A\";\"dòng 1\ndòng 2\"\r\n"
+                + "HH2;\"Nói \"\"to\"\"\";\r\n"
+                + "\r\n"
+                + "HH3;;cuối\r\n");
+
+        List<List<String>> dong = new ArrayList<>();
+        List<Integer> soDong = new ArrayList<>();
+        try (DocBangTinh doc = DocBangTinh.mo(file, "bom.csv")) {
+            List<String> d;
+            while ((d = doc.docDong()) != null) {
+                dong.add(d);
+                soDong.add(doc.soDong());
+            }
+        }
+
+        assertEquals(List.of(
+                List.of("ma", "ten", "ghi_chu"),
+                List.of("HH1", "Thuốc; loại A", "dòng 1\ndòng 2"),
+                List.of("HH2", "Nói \"to\"", ""),
+                List.of("HH3", "", "cuối")), dong);
+        // Ô xuống dòng chiếm 2 dòng vật lý, dòng trống bị bỏ nhưng vẫn được đếm
+        assertEquals(List.of(1, 2, 4, 6), soDong);
+    }
+
+    @Test
+    void csvTuNhanDauTabVaDongCuoiKhongXuongDong() throws IOException {
+        Path file = ghi("tab.csv", "ma\tso_luong\tdon_gia\nHH1\t10\t1,5\nHH2\t\t2");
+
+        try (DocBangTinh doc = DocBangTinh.mo(file, "TAB.CSV")) {
+            assertEquals(List.of("ma", "so_luong", "don_gia"), doc.docDong());
+            assertEquals(List.of("HH1", "10", "1,5"), doc.docDong());
+            assertEquals(List.of("HH2", "", "2"), doc.docDong());
+            assertEquals(3, doc.soDong());
+            assertNull(doc.docDong());
+        }
+    }
+
+    @Test
+    void dinhDangKhongHoTro() {
+        assertThrows(IllegalArgumentException.class, () -> DocBangTinh.mo(thuMuc.resolve("a.xls"), "a.xls"));
+    }
+
+    // ==================== XLSX ====================
+
+    @Test
+    void xlsxChuoiDungChungChuoiTrongOVaOTrong() throws IOException {
+        Map<String, String> noiDung = new LinkedHashMap<>();
+        noiDung.put("xl/sharedStrings.xml", """
+                <?xml version="1.0" encoding="UTF-8"?>
+                <sst xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main" count="3" uniqueCount="3">
+                  <si><t>ma_hang_hoa</t></si>
+                  <si><r><t>Thuốc </t></r><r><rPr><b/></rPr><t>in đậm</t></r><rPh><t>phiên âm</t></rPh></si>
+                  <si><t xml:space="preserve">  có khoảng trắng  </t></si>
+                </sst>
+                """);
+        noiDung.put("xl/worksheets/sheet1.xml", """
+                <?xml version="1.0" encoding="UTF-8"?>
+                <worksheet xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main">
+                  <sheetData>
+                    <row r="1"><c r="A1" t="s"><v>0</v></c><c r="B1" t="inlineStr"><is><t>ten</t></is></c><c r="C1" t="str"><v>so_luong</v></c></row>
+                    <row r="2"><c r="A2" t="s"><v>1</v></c><c r="C2"><v>12</v></c><c r="E2" t="b"><v>1</v></c></row>
+                    <row r="3"><c r="A3"/><c r="B3" t="s"></c></row>
+                    <row r="5"><c r="B5" t="s"><v>2</v></c><c r="C5"><v>45292</v></c></row>
+                  </sheetData>
+                </worksheet>
+                """);
+        Path file = ghiZip("du-lieu.xlsx", noiDung);
+
+        try (DocBangTinh doc = DocBangTinh.mo(file, "du-lieu.xlsx")) {
+            assertEquals(List.of("ma_hang_hoa", "ten", "so_luong"), doc.docDong());
+            assertEquals(1, doc.soDong());
+            assertEquals(List.of("Thuốc in đậm", "", "12", "", "TRUE"), doc.docDong());
+            // Dòng 3 toàn ô trống bị bỏ qua; số dòng lấy theo thuộc tính r
+            assertEquals(List.of("", "có khoảng trắng", "45292"), doc.docDong());
+            assertEquals(5, doc.soDong());
+            assertNull(doc.docDong());
+        }
+        assertEquals("2024-01-01", DocBangTinh.ngayTuSoExcel("45292").toString());
+        assertNull(DocBangTinh.ngayTuSoExcel("không phải số"));
+    }
+
+    @Test
+    void xlsxKhongDocEntityNgoaiTrongSheet() throws IOException {
+        Map<String, String> noiDung = new LinkedHashMap<>();
+        noiDung.put("xl/worksheets/sheet1.xml", """
+                <?xml version="1.0" encoding="UTF-8"?>
+                <!DOCTYPE worksheet [<!ENTITY xxe SYSTEM "%s">]>
+                <worksheet xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main">
+                  <sheetData><row r="1"><c r="A1" t="inlineStr"><is><t>&xxe;</t></is></c></row></sheetData>
+                </worksheet>
+                """.formatted(fileBiMat().toUri()));
+
+        assertKhongLoBiMat(ghiZip("xxe-sheet.xlsx", noiDung));
+    }
+
+    @Test
+    void xlsxKhongDocEntityNgoaiTrongChuoiDungChung() throws IOException {
+        Map<String, String> noiDung = new LinkedHashMap<>();
+        noiDung.put("xl/sharedStrings.xml", """
+                <?xml version="1.0" encoding="UTF-8"?>
+                <!DOCTYPE sst [<!ENTITY xxe SYSTEM "%s">]>
+                <sst xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main"><si><t>&xxe;</t></si></sst>
+                """.formatted(fileBiMat().toUri()));
+        noiDung.put("xl/worksheets/sheet1.xml", """
+                <?xml version="1.0" encoding="UTF-8"?>
+                <worksheet xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main">
+                  <sheetData><row r="1"><c r="A1" t="s"><v>0</v></c></row></sheetData>
+                </worksheet>
+                """);
+
+        assertKhongLoBiMat(ghiZip("xxe-sst.xlsx", noiDung));
+    }
+
+    // ==================== HELPER ====================
+
+    /**
+     * Entity ngoài không được thay bằng nội dung file: hoặc báo lỗi, hoặc đọc ra nhưng không có nội dung đó
+     */
+    private void assertKhongLoBiMat(Path file) {
+        try (DocBangTinh doc = DocBangTinh.mo(file, file.getFileName().toString())) {
+            List<String> dong;
+            while ((dong = doc.docDong()) != null) {
+                assertFalse(String.join("|", dong).contains(BI_MAT), "Đã đọc nội dung entity ngoài");
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            assertFalse(String.valueOf(e.getMessage()).contains(BI_MAT), "Đã đọc nội dung entity ngoài");
+        }
+    }
+
+    private Path fileBiMat() throws IOException {
+        return ghi("bi-mat.txt", BI_MAT);
+    }
+
+    private Path ghi(String ten, String noiDung) throws IOException {
+        return Files.writeString(thuMuc.resolve(ten), noiDung, StandardCharsets.UTF_8);
+    }
+
+    private Path ghiZip(String ten, Map<String, String> noiDung) throws IOException {
+        Path file = thuMuc.resolve(ten);
+        try (OutputStream out = Files.newOutputStream(file); ZipOutputStream zip = new ZipOutputStream(out)) {
+            for (Map.Entry<String, String> entry : noiDung.entrySet()) {
+                zip.putNextEntry(new ZipEntry(entry.getKey()));
+                zip.write(entry.getValue().getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+        return file;
+    }
+}
@@ -0,0 +1,144 @@
+package com.hospital.warehouse.hospital_warehouse;
+
+import com.hospital.warehouse.hospital_warehouse.entity.*;
+import com.hospital.warehouse.hospital_warehouse.repository.*;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.test.context.TestComponent;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+/**
+ * Dữ liệu mẫu dùng chung cho các test H2 - mỗi lần gọi lưu ngay (commit riêng), mã truyền vào phải khác nhau
+ * giữa các lần gọi trong cùng database.
+ */
+@TestComponent
+@RequiredArgsConstructor
+class DuLieuMau {
+
+    private final KhoaPhongRepository khoaPhongRepository;
+    private final KhoRepository khoRepository;
+    private final DanhMucRepository danhMucRepository;
+    private final DonViTinhRepository donViTinhRepository;
+    private final HangHoaRepository hangHoaRepository;
+    private final LoHangRepository loHangRepository;
+    private final RoleRepository roleRepository;
+    private final UserRepository userRepository;
+    private final PhieuXuatKhoRepository phieuXuatKhoRepository;
+    private final ChiTietPhieuXuatRepository chiTietPhieuXuatRepository;
+    private final PhieuNhapKhoRepository phieuNhapKhoRepository;
+    private final ChiTietPhieuNhapRepository chiTietPhieuNhapRepository;
+
+    KhoaPhong taoKhoaPhong(String ma) {
+        return khoaPhongRepository.save(KhoaPhong.builder()
+                .maKhoaPhong("KP-" + ma).tenKhoaPhong("Khoa " + ma).build());
+    }
+
+    Kho taoKho(String ma) {
+        return khoRepository.save(Kho.builder()
+                .maKho("KHO-" + ma).tenKho("Kho " + ma)
+                .loaiKho(Kho.LoaiKho.KHO_DUOC)
+                .khoaPhong(taoKhoaPhong(ma))
+                .build());
+    }
+
+    /**
+     * Hàng hóa có quản lý lô, tồn kho tổng (chưa có tồn theo kho / lô)
+     */
+    HangHoa taoHangHoa(String ma, int tonKho) {
+        DanhMuc danhMuc = danhMucRepository.save(DanhMuc.builder()
+                .maDanhMuc("DM-" + ma).tenDanhMuc("Danh mục " + ma).build());
+        DonViTinh donViTinh = donViTinhRepository.save(DonViTinh.builder()
+                .maDvt(ma).tenDvt("Hộp " + ma).build());
+
+        return hangHoaRepository.save(HangHoa.builder()
+                .maHangHoa(ma)
+                .tenHangHoa("Paracetamol 500mg " + ma)
+                .danhMuc(danhMuc)
+                .donViTinh(donViTinh)
+                .coQuanLyLo(true)
+                .tongSoLuong(tonKho)
+                .soLuongCoTheXuat(tonKho)
+                .build());
+    }
+
+    LoHang taoLoHang(HangHoa hangHoa, Kho kho, String soLo, int soLuong, BigDecimal giaNhap, LocalDate hanSuDung) {
+        return loHangRepository.save(LoHang.builder()
+                .hangHoa(hangHoa)
+                .kho(kho)
+                .soLo(soLo)
+                .hanSuDung(hanSuDung)
+                .soLuongNhap(soLuong)
+                .soLuongHienTai(soLuong)
+                .giaNhap(giaNhap)
+                .trangThai(LoHang.TrangThaiLoHang.MOI)
+                .build());
+    }
+
+    User taoNguoiDung(String tenDangNhap) {
+        Role role = roleRepository.findByTenVaiTro("ADMIN")
+                .orElseGet(() -> roleRepository.save(new Role("ADMIN")));
+        User user = new User();
+        user.setTenDangNhap(tenDangNhap);
+        user.setMatKhau("x");
+        user.setEmail(tenDangNhap + "@test.local");
+        user.setHoTen("Người dùng " + tenDangNhap);
+        user.setRole(role);
+        user.setKhoaPhong(taoKhoaPhong("ND-" + tenDangNhap));
+        return userRepository.save(user);
+    }
+
+    /**
+     * Phiếu xuất chờ duyệt một dòng, chưa giữ hàng (như phiếu lập trước khi có đặt trước)
+     */
+    PhieuXuatKho taoPhieuXuatChoDuyet(String ma, Kho kho, User nguoiXuat, HangHoa hangHoa, int soLuong) {
+        PhieuXuatKho phieuXuat = phieuXuatKhoRepository.save(PhieuXuatKho.builder()
+                .maPhieuXuat(ma)
+                .kho(kho)
+                .loaiXuat(PhieuXuatKho.LoaiXuat.XUAT_SU_DUNG)
+                .ngayXuat(LocalDateTime.now())
+                .nguoiXuat(nguoiXuat)
+                .tongGiaTri(BigDecimal.ZERO)
+                .trangThai(PhieuXuatKho.TrangThaiPhieuXuat.CHO_DUYET)
+                .build());
+
+        chiTietPhieuXuatRepository.save(ChiTietPhieuXuat.builder()
+                .phieuXuat(phieuXuat)
+                .hangHoa(hangHoa)
+                .soLuongYeuCau(soLuong)
+                .soLuongXuat(soLuong)
+                .donGia(BigDecimal.ZERO)
+                .thanhTien(BigDecimal.ZERO)
+                .trangThai(ChiTietPhieuXuat.TrangThaiChiTiet.CHO_XUAT)
+                .build());
+        return phieuXuat;
+    }
+
+    /**
+     * Phiếu nhập đã duyệt một dòng đã tạo ra cả lô (tồn kho do test tự cộng)
+     */
+    PhieuNhapKho taoPhieuNhapDaDuyet(String ma, User nguoiNhan, LoHang loHang) {
+        PhieuNhapKho phieuNhap = phieuNhapKhoRepository.save(PhieuNhapKho.builder()
+                .maPhieuNhap(ma)
+                .kho(loHang.getKho())
+                .loaiNhap(PhieuNhapKho.LoaiNhap.NHAP_MOI)
+                .ngayNhap(LocalDateTime.now())
+                .nguoiNhan(nguoiNhan)
+                .nguoiDuyet(nguoiNhan)
+                .ngayDuyet(LocalDateTime.now())
+                .trangThai(PhieuNhapKho.TrangThaiPhieuNhap.DA_DUYET)
+                .build());
+
+        chiTietPhieuNhapRepository.save(ChiTietPhieuNhap.builder()
+                .phieuNhap(phieuNhap)
+                .hangHoa(loHang.getHangHoa())
+                .loHang(loHang)
+                .soLuong(loHang.getSoLuongNhap())
+                .donGia(loHang.getGiaNhap())
+                .thanhTien(loHang.getGiaNhap().multiply(BigDecimal.valueOf(loHang.getSoLuongNhap())))
+                .soLo(loHang.getSoLo())
+                .build());
+        return phieuNhap;
+    }
+}
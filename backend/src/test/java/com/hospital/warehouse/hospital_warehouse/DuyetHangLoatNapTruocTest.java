@@ -0,0 +1,170 @@
+package com.hospital.warehouse.hospital_warehouse;
+
+import com.hospital.warehouse.hospital_warehouse.config.SqlStatementCounter;
+import com.hospital.warehouse.hospital_warehouse.dto.KetQuaDuyetHangLoatDTO;
+import com.hospital.warehouse.hospital_warehouse.entity.*;
+import com.hospital.warehouse.hospital_warehouse.repository.*;
+import com.hospital.warehouse.hospital_warehouse.service.DuyetHangLoatService;
+import com.hospital.warehouse.hospital_warehouse.service.PhieuXuatKhoService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Duyệt hàng loạt phiếu xuất với hàng hóa / tồn kho / lô nạp trước theo nhóm kho:
+ * kết quả giống duyệt từng phiếu nhưng ít câu lệnh SQL hơn; dữ liệu nạp trước đã cũ
+ * không làm xuất vượt (UPDATE có điều kiện chặn lại, phiếu rollback trọn vẹn).
+ */
+@Import({DichVuKho.class, DuyetHangLoatService.class})
+class DuyetHangLoatNapTruocTest extends KiemThuH2 {
+
+    private static final int SO_PHIEU = 10;
+    private static final int SO_LUONG_MOI_PHIEU = 5;
+
+    @Autowired private DuLieuMau duLieuMau;
+    @Autowired private DuyetHangLoatService duyetHangLoatService;
+    @Autowired private PhieuXuatKhoService phieuXuatKhoService;
+    @Autowired private HangHoaRepository hangHoaRepository;
+    @Autowired private LoHangRepository loHangRepository;
+    @Autowired private TonKhoTheoKhoRepository tonKhoTheoKhoRepository;
+    @Autowired private PhieuXuatKhoRepository phieuXuatKhoRepository;
+    @Autowired private PlatformTransactionManager transactionManager;
+    @Autowired private DataSource dataSource;
+
+    @AfterEach
+    void xoaDangNhap() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    void duyetHangLoatGiongTungPhieuVaItCauLenhHon() {
+        // Hai kho giống hệt nhau: 42 đơn vị → 8 phiếu đầu đủ hàng, 2 phiếu cuối thiếu
+        User nguoiDuyet = dangNhap("hang-loat");
+        DuLieuKho loat = taoDuLieuKho("HL", nguoiDuyet);
+        DuLieuKho tungPhieu = taoDuLieuKho("TP", nguoiDuyet);
+
+        SqlStatementCounter.batDau();
+        List<KetQuaDuyetHangLoatDTO> ketQua;
+        try {
+            ketQua = duyetHangLoatService.duyetPhieuXuatHangLoat(loat.phieuIds);
+        } finally {
+            loat.soCauLenh = SqlStatementCounter.ketThuc();
+        }
+
+        SqlStatementCounter.batDau();
+        try {
+            for (Long id : tungPhieu.phieuIds) {
+                try {
+                    phieuXuatKhoService.duyetPhieuXuatTrongLo(id, nguoiDuyet, null);
+                } catch (IllegalStateException e) {
+                    // phiếu thiếu hàng
+                }
+            }
+        } finally {
+            tungPhieu.soCauLenh = SqlStatementCounter.ketThuc();
+        }
+
+        long soThanhCong = ketQua.stream().filter(KetQuaDuyetHangLoatDTO::getThanhCong).count();
+        assertEquals(8, soThanhCong);
+        assertFalse(ketQua.get(SO_PHIEU - 1).getThanhCong());
+        for (DuLieuKho kho : List.of(loat, tungPhieu)) {
+            assertEquals(0, soLuongLo(kho.loGan), kho.ma);
+            assertEquals(2, soLuongLo(kho.loXa), kho.ma);
+            TonKhoTheoKho tonKho = tonKhoTheoKhoRepository
+                    .findById(new TonKhoTheoKho.TonKhoTheoKhoId(kho.hangHoa.getId(), kho.kho.getId())).orElseThrow();
+            assertEquals(2, tonKho.getSoLuongCoTheXuat(), kho.ma);
+            assertEquals(2, hangHoaRepository.findById(kho.hangHoa.getId()).orElseThrow().getSoLuongCoTheXuat(),
+                    kho.ma);
+            for (int i = 0; i < SO_PHIEU; i++) {
+                PhieuXuatKho.TrangThaiPhieuXuat mongDoi = i < 8
+                        ? PhieuXuatKho.TrangThaiPhieuXuat.DA_DUYET
+                        : PhieuXuatKho.TrangThaiPhieuXuat.CHO_DUYET;
+                assertEquals(mongDoi, phieuXuatKhoRepository.findById(kho.phieuIds.get(i)).orElseThrow().getTrangThai(),
+                        kho.ma + "-" + i);
+            }
+        }
+        assertTrue(loat.soCauLenh < tungPhieu.soCauLenh,
+                "Hàng loạt: " + loat.soCauLenh + ", từng phiếu: " + tungPhieu.soCauLenh);
+    }
+
+    @Test
+    void napTruocDaCuKhongXuatVuot() {
+        User nguoiDuyet = dangNhap("nap-cu");
+        DuLieuKho duLieu = taoDuLieuKho("NC", nguoiDuyet);
+        PhieuXuatKhoService.NhomKhoDuyet nhom =
+                phieuXuatKhoService.napTruocNhomKho(duLieu.kho.getId(), duLieu.phieuIds);
+
+        // Lô hạn gần bị lấy hết ngoài lượt duyệt sau khi đã nạp trước
+        new JdbcTemplate(dataSource).update("UPDATE lo_hang SET so_luong_hien_tai = 0 WHERE id = ?",
+                duLieu.loGan.getId());
+
+        Long phieuId = duLieu.phieuIds.get(0);
+        assertThrows(IllegalStateException.class,
+                () -> phieuXuatKhoService.duyetPhieuXuatTrongLo(phieuId, nguoiDuyet, nhom));
+        assertEquals(PhieuXuatKho.TrangThaiPhieuXuat.CHO_DUYET,
+                phieuXuatKhoRepository.findById(phieuId).orElseThrow().getTrangThai());
+        assertEquals(12, soLuongLo(duLieu.loXa));
+
+        // Không dùng dữ liệu nạp trước → lấy từ lô còn hàng
+        phieuXuatKhoService.duyetPhieuXuatTrongLo(phieuId, nguoiDuyet, null);
+        assertEquals(12 - SO_LUONG_MOI_PHIEU, soLuongLo(duLieu.loXa));
+    }
+
+    // ==================== HELPER ====================
+
+    private static final class DuLieuKho {
+        private String ma;
+        private Kho kho;
+        private HangHoa hangHoa;
+        private LoHang loGan;
+        private LoHang loXa;
+        private final List<Long> phieuIds = new ArrayList<>();
+        private long soCauLenh;
+    }
+
+    private DuLieuKho taoDuLieuKho(String ma, User nguoiDuyet) {
+        DuLieuKho duLieu = new DuLieuKho();
+        duLieu.ma = ma;
+        duLieu.kho = duLieuMau.taoKho(ma);
+        duLieu.hangHoa = duLieuMau.taoHangHoa("HH-" + ma, 42);
+        duLieu.loGan = duLieuMau.taoLoHang(duLieu.hangHoa, duLieu.kho, "LO1-" + ma, 30, new BigDecimal("1000"),
+                LocalDate.now().plusMonths(3));
+        duLieu.loXa = duLieuMau.taoLoHang(duLieu.hangHoa, duLieu.kho, "LO2-" + ma, 12, new BigDecimal("1200"),
+                LocalDate.now().plusMonths(9));
+        new TransactionTemplate(transactionManager).executeWithoutResult(s -> tonKhoTheoKhoRepository.congTon(
+                duLieu.hangHoa.getId(), duLieu.kho.getId(), 42, 30 * 100_000L + 12 * 120_000L));
+        for (int i = 0; i < SO_PHIEU; i++) {
+            duLieu.phieuIds.add(duLieuMau.taoPhieuXuatChoDuyet("PX-" + ma + "-" + i, duLieu.kho, nguoiDuyet,
+                    duLieu.hangHoa, SO_LUONG_MOI_PHIEU).getId());
+        }
+        return duLieu;
+    }
+
+    private User dangNhap(String tenDangNhap) {
+        User nguoiDung = duLieuMau.taoNguoiDung(tenDangNhap);
+        SecurityContextHolder.getContext().setAuthentication(
+                new UsernamePasswordAuthenticationToken(nguoiDung.getTenDangNhap(), null, List.of()));
+        return nguoiDung;
+    }
+
+    private int soLuongLo(LoHang loHang) {
+        return loHangRepository.findById(loHang.getId()).orElseThrow().getSoLuongHienTai();
+    }
+}
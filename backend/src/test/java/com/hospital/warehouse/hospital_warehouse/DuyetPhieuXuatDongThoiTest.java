@@ -0,0 +1,181 @@
+package com.hospital.warehouse.hospital_warehouse;
+
+import com.hospital.warehouse.hospital_warehouse.entity.*;
+import com.hospital.warehouse.hospital_warehouse.repository.*;
+import com.hospital.warehouse.hospital_warehouse.service.HangHoaService;
+import com.hospital.warehouse.hospital_warehouse.service.PhieuXuatKhoService;
+import com.hospital.warehouse.hospital_warehouse.service.TruTonKhoService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Import;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Duyệt phiếu xuất đồng thời qua PhieuXuatKhoService (FEFO + trừ có điều kiện + lịch sử):
+ * không bán vượt, tồn theo lô / hàng hóa / kho khớp nhau, lịch sử tồn kho của các phiếu đã duyệt
+ * nối thành một chuỗi liên tục (tồn sau của phiếu này = tồn trước của phiếu kế tiếp).
+ */
+@Import(DichVuKho.class)
+class DuyetPhieuXuatDongThoiTest extends KiemThuH2 {
+
+    private static final int SO_PHIEU = 30;
+    private static final int SO_LUONG_MOI_PHIEU = 7;
+    private static final int SO_LUONG = 8;
+
+    @Autowired private DuLieuMau duLieuMau;
+    @Autowired private PhieuXuatKhoService phieuXuatKhoService;
+    @Autowired private HangHoaService hangHoaService;
+    @Autowired private TruTonKhoService truTonKhoService;
+    @Autowired private HangHoaRepository hangHoaRepository;
+    @Autowired private LoHangRepository loHangRepository;
+    @Autowired private TonKhoTheoKhoRepository tonKhoTheoKhoRepository;
+    @Autowired private PhieuXuatKhoRepository phieuXuatKhoRepository;
+    @Autowired private LichSuTonKhoRepository lichSuTonKhoRepository;
+    @Autowired private PhanBoXuatLoRepository phanBoXuatLoRepository;
+    @Autowired private PlatformTransactionManager transactionManager;
+
+    @AfterEach
+    void xoaDangNhap() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    void duyetDongThoiKhongBanVuotVaLichSuLienTuc() throws Exception {
+        Kho kho = duLieuMau.taoKho("DT");
+        User nguoiDuyet = duLieuMau.taoNguoiDung("duyet-dt");
+        HangHoa hangHoa = duLieuMau.taoHangHoa("HH-DT", 100);
+        LoHang lo1 = duLieuMau.taoLoHang(hangHoa, kho, "LO-DT-1", 60, new BigDecimal("1000"),
+                LocalDate.now().plusMonths(6));
+        LoHang lo2 = duLieuMau.taoLoHang(hangHoa, kho, "LO-DT-2", 40, new BigDecimal("1200"),
+                LocalDate.now().plusMonths(12));
+        new TransactionTemplate(transactionManager).executeWithoutResult(status ->
+                tonKhoTheoKhoRepository.congTon(hangHoa.getId(), kho.getId(), 100, 60 * 100_000L + 40 * 120_000L));
+
+        List<Long> phieuIds = new ArrayList<>();
+        for (int i = 0; i < SO_PHIEU; i++) {
+            phieuIds.add(duLieuMau.taoPhieuXuatChoDuyet("PX-DT-" + i, kho, nguoiDuyet, hangHoa, SO_LUONG_MOI_PHIEU)
+                    .getId());
+        }
+
+        CountDownLatch batDau = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(SO_LUONG);
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for (Long phieuId : phieuIds) {
+            futures.add(pool.submit(() -> {
+                SecurityContextHolder.getContext().setAuthentication(
+                        new UsernamePasswordAuthenticationToken(nguoiDuyet.getTenDangNhap(), null, List.of()));
+                batDau.await();
+                try {
+                    phieuXuatKhoService.duyetPhieuXuat(phieuId);
+                    return true;
+                } catch (RuntimeException e) {
+                    return false;
+                } finally {
+                    SecurityContextHolder.clearContext();
+                }
+            }));
+        }
+        batDau.countDown();
+
+        List<String> daDuyet = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            if (futures.get(i).get(2, TimeUnit.MINUTES)) {
+                daDuyet.add("PX-DT-" + i);
+            }
+        }
+        pool.shutdown();
+
+        int tonCon = 100 - daDuyet.size() * SO_LUONG_MOI_PHIEU;
+        assertTrue(!daDuyet.isEmpty() && daDuyet.size() < SO_PHIEU, "Số phiếu duyệt được: " + daDuyet.size());
+        assertTrue(tonCon >= 0, "Bán vượt tồn kho: " + tonCon);
+
+        // Tồn theo lô, hàng hóa, kho khớp nhau
+        HangHoa hangHoaSau = hangHoaRepository.findById(hangHoa.getId()).orElseThrow();
+        int tongLo = loHangRepository.findById(lo1.getId()).orElseThrow().getSoLuongHienTai()
+                + loHangRepository.findById(lo2.getId()).orElseThrow().getSoLuongHienTai();
+        TonKhoTheoKho tonKho = tonKhoTheoKhoRepository
+                .findById(new TonKhoTheoKho.TonKhoTheoKhoId(hangHoa.getId(), kho.getId())).orElseThrow();
+        assertEquals(tonCon, tongLo);
+        assertEquals(tonCon, hangHoaSau.getSoLuongCoTheXuat());
+        assertEquals(tonCon, hangHoaSau.getTongSoLuong());
+        assertEquals(tonCon, tonKho.getSoLuongCoTheXuat());
+
+        // Phiếu lỗi rollback trọn vẹn: vẫn chờ duyệt, không có lịch sử / phân bổ lô
+        List<LichSuTonKho> lichSu = new ArrayList<>();
+        for (int i = 0; i < SO_PHIEU; i++) {
+            String ma = "PX-DT-" + i;
+            PhieuXuatKho phieu = phieuXuatKhoRepository.findById(phieuIds.get(i)).orElseThrow();
+            List<LichSuTonKho> cuaPhieu = lichSuTonKhoRepository.findByMaChungTu(ma);
+            int daPhanBo = phanBoXuatLoRepository.findByPhieuXuatId(phieu.getId()).stream()
+                    .mapToInt(PhanBoXuatLo::getSoLuong).sum();
+            if (daDuyet.contains(ma)) {
+                assertEquals(PhieuXuatKho.TrangThaiPhieuXuat.DA_DUYET, phieu.getTrangThai());
+                assertEquals(1, cuaPhieu.size(), ma);
+                assertEquals(SO_LUONG_MOI_PHIEU, daPhanBo, ma);
+                lichSu.addAll(cuaPhieu);
+            } else {
+                assertEquals(PhieuXuatKho.TrangThaiPhieuXuat.CHO_DUYET, phieu.getTrangThai());
+                assertEquals(0, cuaPhieu.size(), ma);
+                assertEquals(0, daPhanBo, ma);
+            }
+        }
+
+        // Lịch sử nối liền: 100 → ... → tồn còn lại, mỗi bước trừ đúng số lượng phiếu
+        lichSu.sort(Comparator.comparing(LichSuTonKho::getSoLuongTruoc).reversed());
+        int tonTruoc = 100;
+        for (LichSuTonKho ls : lichSu) {
+            assertEquals(tonTruoc, ls.getSoLuongTruoc());
+            assertEquals(SO_LUONG_MOI_PHIEU, ls.getSoLuongBienDong());
+            assertEquals(tonTruoc - SO_LUONG_MOI_PHIEU, ls.getSoLuongSau());
+            tonTruoc = ls.getSoLuongSau();
+        }
+        assertEquals(tonCon, tonTruoc);
+    }
+
+    @Test
+    void entityDaNapThaySoLuongMoiVaKhongGhiDeSauKhiTru() {
+        HangHoa hangHoa = duLieuMau.taoHangHoa("HH-NL", 50);
+        LoHang loHang = duLieuMau.taoLoHang(hangHoa, duLieuMau.taoKho("NL"), "LO-NL", 50,
+                new BigDecimal("1000"), null);
+
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            HangHoa hangHoaDaNap = hangHoaRepository.findById(hangHoa.getId()).orElseThrow();
+            LoHang loDaNap = loHangRepository.findById(loHang.getId()).orElseThrow();
+
+            truTonKhoService.truLo(Map.of(loHang.getId(), 20));
+            hangHoaService.capNhatTonKhoSauXuat(hangHoa.getId(), 20);
+
+            assertEquals(30, loDaNap.getSoLuongHienTai());
+            assertEquals(30, hangHoaDaNap.getSoLuongCoTheXuat());
+            assertEquals(30, hangHoaDaNap.getTongSoLuong());
+
+            // Entity bị sửa sau đó → flush lúc commit ghi cả dòng, không được ghi đè lại số lượng cũ
+            loDaNap.setGhiChu("đã xuất");
+            hangHoaDaNap.setMoTa("đã xuất");
+        });
+
+        assertEquals(30, loHangRepository.findById(loHang.getId()).orElseThrow().getSoLuongHienTai());
+        HangHoa hangHoaSau = hangHoaRepository.findById(hangHoa.getId()).orElseThrow();
+        assertEquals(30, hangHoaSau.getSoLuongCoTheXuat());
+        assertEquals(30, hangHoaSau.getTongSoLuong());
+    }
+}
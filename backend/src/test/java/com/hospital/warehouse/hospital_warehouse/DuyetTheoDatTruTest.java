@@ -0,0 +1,120 @@
+package com.hospital.warehouse.hospital_warehouse;
+
+import com.hospital.warehouse.hospital_warehouse.entity.*;
+import com.hospital.warehouse.hospital_warehouse.repository.ChiTietPhieuXuatRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.LichSuTonKhoRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.LoHangRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.TonKhoTheoKhoRepository;
+import com.hospital.warehouse.hospital_warehouse.service.DatTruTonKhoService;
+import com.hospital.warehouse.hospital_warehouse.service.PhieuXuatKhoService;
+import com.hospital.warehouse.hospital_warehouse.util.FefoAllocator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Duyệt phiếu đã giữ hàng: lịch sử tồn kho theo "có thể xuất" như duyệt FEFO; lô đã giữ hết hạn sau lúc giữ
+ * thì không xuất lô đó, phần giữ được trả lại (DA_HUY) và phiếu được phân bổ lại theo FEFO sang lô còn hạn.
+ */
+@Import(DichVuKho.class)
+class DuyetTheoDatTruTest extends KiemThuH2 {
+
+    @Autowired private DuLieuMau duLieuMau;
+    @Autowired private PhieuXuatKhoService phieuXuatKhoService;
+    @Autowired private DatTruTonKhoService datTruTonKhoService;
+    @Autowired private LoHangRepository loHangRepository;
+    @Autowired private ChiTietPhieuXuatRepository chiTietPhieuXuatRepository;
+    @Autowired private TonKhoTheoKhoRepository tonKhoTheoKhoRepository;
+    @Autowired private LichSuTonKhoRepository lichSuTonKhoRepository;
+    @Autowired private PlatformTransactionManager transactionManager;
+    @Autowired private DataSource dataSource;
+
+    @AfterEach
+    void xoaDangNhap() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    void lichSuTheoSoLuongCoTheXuat() {
+        Kho kho = duLieuMau.taoKho("LS");
+        User nguoiDung = duLieuMau.taoNguoiDung("duyet-ls");
+        HangHoa hangHoa = duLieuMau.taoHangHoa("HH-LS", 16);
+        LoHang loHang = duLieuMau.taoLoHang(hangHoa, kho, "LO-LS-1", 16, new BigDecimal("1000"),
+                LocalDate.now().plusMonths(6));
+        new TransactionTemplate(transactionManager).executeWithoutResult(s ->
+                tonKhoTheoKhoRepository.congTon(hangHoa.getId(), kho.getId(), 16, 16 * 100_000L));
+
+        PhieuXuatKho phieu = duLieuMau.taoPhieuXuatChoDuyet("PX-LS-1", kho, nguoiDung, hangHoa, 5);
+        ChiTietPhieuXuat chiTiet = chiTietPhieuXuatRepository.findByPhieuXuatId(phieu.getId()).get(0);
+        datTruTonKhoService.giuHang(phieu, Map.of(hangHoa.getId(), 5),
+                List.of(new FefoAllocator.PhanBo(chiTiet, loHang, 5)), List.of());
+        PhieuXuatKho phieuKhac = duLieuMau.taoPhieuXuatChoDuyet("PX-LS-2", kho, nguoiDung, hangHoa, 3);
+        datTruTonKhoService.giuHang(phieuKhac, Map.of(hangHoa.getId(), 3), List.of(new FefoAllocator.PhanBo(
+                chiTietPhieuXuatRepository.findByPhieuXuatId(phieuKhac.getId()).get(0), loHang, 3)), List.of());
+
+        SecurityContextHolder.getContext().setAuthentication(
+                new UsernamePasswordAuthenticationToken(nguoiDung.getTenDangNhap(), null, List.of()));
+        phieuXuatKhoService.duyetPhieuXuat(phieu.getId());
+
+        // Có thể xuất: 16 - 3 (phiếu khác vẫn đang giữ) = 13 → sau khi duyệt 8 (tổng tồn là 11)
+        LichSuTonKho lichSu = lichSuTonKhoRepository.findByMaChungTu("PX-LS-1").get(0);
+        assertEquals(13, lichSu.getSoLuongTruoc());
+        assertEquals(8, lichSu.getSoLuongSau());
+        assertEquals(11, loHangRepository.findById(loHang.getId()).orElseThrow().getSoLuongHienTai());
+    }
+
+    @Test
+    void loDaGiuHetHanThiPhanBoLai() {
+        Kho kho = duLieuMau.taoKho("DG");
+        User nguoiDung = duLieuMau.taoNguoiDung("duyet-giu");
+        HangHoa hangHoa = duLieuMau.taoHangHoa("HH-DG", 16);
+        LoHang loGan = duLieuMau.taoLoHang(hangHoa, kho, "LO-DG-1", 6, new BigDecimal("1000"),
+                LocalDate.now().plusMonths(3));
+        LoHang loXa = duLieuMau.taoLoHang(hangHoa, kho, "LO-DG-2", 10, new BigDecimal("1500"),
+                LocalDate.now().plusMonths(9));
+        new TransactionTemplate(transactionManager).executeWithoutResult(s ->
+                tonKhoTheoKhoRepository.congTon(hangHoa.getId(), kho.getId(), 16, 6 * 100_000L + 10 * 150_000L));
+
+        // Giữ 5 từ lô hạn gần
+        PhieuXuatKho phieu = duLieuMau.taoPhieuXuatChoDuyet("PX-DG-1", kho, nguoiDung, hangHoa, 5);
+        ChiTietPhieuXuat chiTiet = chiTietPhieuXuatRepository.findByPhieuXuatId(phieu.getId()).get(0);
+        datTruTonKhoService.giuHang(phieu, Map.of(hangHoa.getId(), 5),
+                List.of(new FefoAllocator.PhanBo(chiTiet, loGan, 5)), List.of());
+
+        // Lô quá hạn sử dụng, trạng thái chưa được làm mới
+        JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+        jdbc.update("UPDATE lo_hang SET han_su_dung = ? WHERE id = ?", LocalDate.now().minusDays(1), loGan.getId());
+        assertEquals(0, (int) new TransactionTemplate(transactionManager).execute(s ->
+                loHangRepository.xuatTuDatTru(loGan.getId(), 5)));
+
+        SecurityContextHolder.getContext().setAuthentication(
+                new UsernamePasswordAuthenticationToken(nguoiDung.getTenDangNhap(), null, List.of()));
+        phieuXuatKhoService.duyetPhieuXuat(phieu.getId());
+
+        LoHang sauDuyetGan = loHangRepository.findById(loGan.getId()).orElseThrow();
+        assertEquals(6, sauDuyetGan.getSoLuongHienTai());
+        assertEquals(0, sauDuyetGan.getSoLuongDaDat());
+        assertEquals(5, loHangRepository.findById(loXa.getId()).orElseThrow().getSoLuongHienTai());
+        assertEquals(List.of("DA_HUY"), jdbc.queryForList(
+                "SELECT trang_thai FROM dat_tru_ton_kho WHERE phieu_xuat_id = ?", String.class, phieu.getId()));
+
+        TonKhoTheoKho tonKho = tonKhoTheoKhoRepository
+                .findById(new TonKhoTheoKho.TonKhoTheoKhoId(hangHoa.getId(), kho.getId())).orElseThrow();
+        assertEquals(11, tonKho.getTongSoLuong());
+        assertEquals(0, tonKho.getSoLuongDaDat());
+    }
+}
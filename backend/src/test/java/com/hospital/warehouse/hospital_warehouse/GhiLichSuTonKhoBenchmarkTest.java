@@ -0,0 +1,127 @@
+package com.hospital.warehouse.hospital_warehouse;
+
+import com.hospital.warehouse.hospital_warehouse.config.SqlStatementCounter;
+import com.hospital.warehouse.hospital_warehouse.entity.*;
+import com.hospital.warehouse.hospital_warehouse.repository.*;
+import com.hospital.warehouse.hospital_warehouse.service.BienDongTonKhoService;
+import com.hospital.warehouse.hospital_warehouse.service.LichSuTonKhoWriter;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Đo tốc độ ghi lịch sử tồn kho cho một phiếu 500 dòng:
+ * - Trước: mỗi dòng một câu INSERT riêng (như IDENTITY - không gom batch được)
+ * - Sau: LichSuTonKhoWriter gom lại, persist khi commit theo JDBC batch
+ */
+@Import({LichSuTonKhoWriter.class, BienDongTonKhoService.class})
+class GhiLichSuTonKhoBenchmarkTest extends KiemThuH2 {
+
+    private static final int SO_DONG = 500;
+    private static final long ID_CU = 1_000_000L;
+
+    @Autowired private DuLieuMau duLieuMau;
+    @Autowired private LichSuTonKhoRepository lichSuTonKhoRepository;
+    @Autowired private LichSuTonKhoWriter lichSuTonKhoWriter;
+    @Autowired private PlatformTransactionManager transactionManager;
+    @Autowired private DataSource dataSource;
+
+    @Test
+    void ghiTheoLoNhanhHonGhiTungDong() {
+        HangHoa hangHoa = duLieuMau.taoHangHoa("HH-B", 0);
+        TransactionTemplate tx = new TransactionTemplate(transactionManager);
+
+        // Dữ liệu cũ sinh bởi AUTO_INCREMENT → khởi động phải nâng bộ đếm ID lên trên MAX(id)
+        new JdbcTemplate(dataSource).update("INSERT INTO lich_su_ton_kho (id, hang_hoa_id, loai_bien_dong, "
+                        + "so_luong_truoc, so_luong_bien_dong, so_luong_sau, created_at) "
+                        + "VALUES (?, ?, 'NHAP_KHO', 0, 1, 1, ?)",
+                ID_CU, hangHoa.getId(), Timestamp.valueOf(LocalDateTime.now()));
+        lichSuTonKhoWriter.canChinhBoDemId();
+
+        // Làm nóng JIT / kết nối cho cả hai cách
+        ghiTungDong(tx, taoLichSu(hangHoa, "PN-WARMUP-1"));
+        ghiTheoLo(tx, taoLichSu(hangHoa, "PN-WARMUP-2"));
+
+        // Trước: mỗi dòng một INSERT ngay (như IDENTITY)
+        SqlStatementCounter.batDau();
+        long thoiGianTruoc = ghiTungDong(tx, taoLichSu(hangHoa, "PN-TRUOC"));
+        long soCauLenhTruoc = SqlStatementCounter.ketThuc();
+
+        // Sau: gom lại, persist khi commit theo JDBC batch
+        SqlStatementCounter.batDau();
+        long thoiGianSau = ghiTheoLo(tx, taoLichSu(hangHoa, "PN-SAU"));
+        long soCauLenhSau = SqlStatementCounter.ketThuc();
+
+        String ketQua = String.format("Ghi %d dòng lịch sử: từng dòng %.0f dòng/s (%d câu lệnh) | theo lô %.0f dòng/s (%d câu lệnh)",
+                SO_DONG,
+                SO_DONG / (thoiGianTruoc / 1e9), soCauLenhTruoc,
+                SO_DONG / (thoiGianSau / 1e9), soCauLenhSau);
+
+        List<LichSuTonKho> daGhi = lichSuTonKhoRepository.findByMaChungTu("PN-SAU");
+        assertEquals(SO_DONG, daGhi.size());
+        assertTrue(daGhi.stream().allMatch(ls -> ls.getId() > ID_CU), "ID mới phải nằm trên dữ liệu cũ");
+        assertTrue(soCauLenhTruoc >= SO_DONG, ketQua);
+        assertTrue(soCauLenhSau < SO_DONG / 10, ketQua);
+    }
+
+    private long ghiTungDong(TransactionTemplate tx, List<LichSuTonKho> lichSuList) {
+        long batDau = System.nanoTime();
+        tx.executeWithoutResult(status -> {
+            for (LichSuTonKho lichSu : lichSuList) {
+                lichSuTonKhoRepository.saveAndFlush(lichSu);
+            }
+        });
+        return System.nanoTime() - batDau;
+    }
+
+    private long ghiTheoLo(TransactionTemplate tx, List<LichSuTonKho> lichSuList) {
+        long batDau = System.nanoTime();
+        tx.executeWithoutResult(status -> {
+            lichSuTonKhoWriter.ghi(lichSuList);
+            // Chưa commit → chưa có dòng nào trong DB
+            assertEquals(0, lichSuTonKhoRepository.findByMaChungTu(lichSuList.get(0).getMaChungTu()).size());
+        });
+        return System.nanoTime() - batDau;
+    }
+
+    @Test
+    void rollbackThiKhongGhi() {
+        HangHoa hangHoa = duLieuMau.taoHangHoa("HH-R", 0);
+        TransactionTemplate tx = new TransactionTemplate(transactionManager);
+
+        tx.executeWithoutResult(status -> {
+            lichSuTonKhoWriter.ghi(taoLichSu(hangHoa, "PN-ROLLBACK"));
+            status.setRollbackOnly();
+        });
+
+        assertEquals(0, lichSuTonKhoRepository.findByMaChungTu("PN-ROLLBACK").size());
+    }
+
+    private List<LichSuTonKho> taoLichSu(HangHoa hangHoa, String maChungTu) {
+        List<LichSuTonKho> lichSuList = new ArrayList<>(SO_DONG);
+        for (int i = 0; i < SO_DONG; i++) {
+            lichSuList.add(LichSuTonKho.builder()
+                    .hangHoa(hangHoa)
+                    .loaiBienDong(LichSuTonKho.LoaiBienDong.NHAP_KHO)
+                    .soLuongTruoc(i)
+                    .soLuongBienDong(1)
+                    .soLuongSau(i + 1)
+                    .maChungTu(maChungTu)
+                    .loaiChungTu(LichSuTonKho.LoaiChungTu.PHIEU_NHAP)
+                    .build());
+        }
+        return lichSuList;
+    }
+}
@@ -0,0 +1,119 @@
+package com.hospital.warehouse.hospital_warehouse;
+
+import com.hospital.warehouse.hospital_warehouse.entity.*;
+import com.hospital.warehouse.hospital_warehouse.repository.ChiTietPhieuXuatRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.LoHangRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.TonKhoTheoKhoRepository;
+import com.hospital.warehouse.hospital_warehouse.service.DatTruTonKhoService;
+import com.hospital.warehouse.hospital_warehouse.service.LoHangService;
+import com.hospital.warehouse.hospital_warehouse.service.PhieuNhapKhoService;
+import com.hospital.warehouse.hospital_warehouse.util.FefoAllocator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Hủy duyệt phiếu nhập khi lô đã nhập đang được giữ cho phiếu xuất: không rút được (lô giữ nguyên);
+ * sau khi phiếu xuất trả lại phần giữ, hủy duyệt rút lô về 0 (giữ lại lô, không xóa).
+ * Xóa lô: bị chặn khi đang giữ, các dòng giữ hàng đã trả lại bị xóa theo lô.
+ */
+@Import(DichVuKho.class)
+class HuyDuyetPhieuNhapTest extends KiemThuH2 {
+
+    @Autowired private DuLieuMau duLieuMau;
+    @Autowired private PhieuNhapKhoService phieuNhapKhoService;
+    @Autowired private DatTruTonKhoService datTruTonKhoService;
+    @Autowired private LoHangService loHangService;
+    @Autowired private LoHangRepository loHangRepository;
+    @Autowired private ChiTietPhieuXuatRepository chiTietPhieuXuatRepository;
+    @Autowired private TonKhoTheoKhoRepository tonKhoTheoKhoRepository;
+    @Autowired private PlatformTransactionManager transactionManager;
+    @Autowired private DataSource dataSource;
+
+    @AfterEach
+    void xoaDangNhap() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    void loDangGiuThiKhongRutDuoc() {
+        Kho kho = duLieuMau.taoKho("HN");
+        User nguoiDung = duLieuMau.taoNguoiDung("huy-nhap");
+        HangHoa hangHoa = duLieuMau.taoHangHoa("HH-HN", 20);
+        LoHang loNhap = duLieuMau.taoLoHang(hangHoa, kho, "LO-HN-1", 10, new BigDecimal("1000"),
+                LocalDate.now().plusMonths(6));
+        duLieuMau.taoLoHang(hangHoa, kho, "LO-HN-2", 10, new BigDecimal("1000"), LocalDate.now().plusMonths(6));
+        new TransactionTemplate(transactionManager).executeWithoutResult(s ->
+                tonKhoTheoKhoRepository.congTon(hangHoa.getId(), kho.getId(), 20, 20 * 100_000L));
+        PhieuNhapKho phieuNhap = duLieuMau.taoPhieuNhapDaDuyet("PN-HN-1", nguoiDung, loNhap);
+
+        // Giữ 4 từ lô vừa nhập - tồn của hàng hóa vẫn đủ để rút 10, chỉ lô là không đủ
+        PhieuXuatKho phieuXuat = duLieuMau.taoPhieuXuatChoDuyet("PX-HN-1", kho, nguoiDung, hangHoa, 4);
+        ChiTietPhieuXuat chiTiet = chiTietPhieuXuatRepository.findByPhieuXuatId(phieuXuat.getId()).get(0);
+        datTruTonKhoService.giuHang(phieuXuat, Map.of(hangHoa.getId(), 4),
+                List.of(new FefoAllocator.PhanBo(chiTiet, loNhap, 4)), List.of());
+
+        SecurityContextHolder.getContext().setAuthentication(
+                new UsernamePasswordAuthenticationToken(nguoiDung.getTenDangNhap(), null, List.of()));
+        RuntimeException loi = assertThrows(RuntimeException.class,
+                () -> phieuNhapKhoService.huyDuyetPhieuNhap(phieuNhap.getId(), "Nhập nhầm lô"));
+        assertTrue(loi.getMessage().contains("đang được giữ"), loi.getMessage());
+        LoHang sauLoi = loHangRepository.findById(loNhap.getId()).orElseThrow();
+        assertEquals(10, sauLoi.getSoLuongHienTai());
+        assertEquals(4, sauLoi.getSoLuongDaDat());
+
+        // Trả lại phần giữ (DA_HUY) → hủy duyệt rút lô về 0, lô và dòng giữ hàng đã trả lại vẫn còn
+        datTruTonKhoService.giaiPhongTheoPhieu(phieuXuat.getId());
+        phieuNhapKhoService.huyDuyetPhieuNhap(phieuNhap.getId(), "Nhập nhầm lô");
+
+        LoHang sauHuyDuyet = loHangRepository.findById(loNhap.getId()).orElseThrow();
+        assertEquals(0, sauHuyDuyet.getSoLuongNhap());
+        assertEquals(0, sauHuyDuyet.getSoLuongHienTai());
+        assertEquals(LoHang.TrangThaiLoHang.HET_HANG, sauHuyDuyet.getTrangThai());
+        assertEquals(List.of("DA_HUY"), trangThaiDatTru(phieuXuat));
+    }
+
+    @Test
+    void xoaLoDangGiuBiChanDaTraLaiThiXoaTheo() {
+        Kho kho = duLieuMau.taoKho("XL");
+        User nguoiDung = duLieuMau.taoNguoiDung("xoa-lo");
+        HangHoa hangHoa = duLieuMau.taoHangHoa("HH-XL", 5);
+        LoHang loHang = duLieuMau.taoLoHang(hangHoa, kho, "LO-XL-1", 5, new BigDecimal("1000"), null);
+        new TransactionTemplate(transactionManager).executeWithoutResult(s ->
+                tonKhoTheoKhoRepository.congTon(hangHoa.getId(), kho.getId(), 5, 5 * 100_000L));
+        PhieuXuatKho phieuXuat = duLieuMau.taoPhieuXuatChoDuyet("PX-XL-1", kho, nguoiDung, hangHoa, 2);
+        ChiTietPhieuXuat chiTiet = chiTietPhieuXuatRepository.findByPhieuXuatId(phieuXuat.getId()).get(0);
+        datTruTonKhoService.giuHang(phieuXuat, Map.of(hangHoa.getId(), 2),
+                List.of(new FefoAllocator.PhanBo(chiTiet, loHang, 2)), List.of());
+
+        assertThrows(IllegalStateException.class, () -> loHangService.deleteLoHang(loHang.getId()));
+
+        datTruTonKhoService.giaiPhongTheoPhieu(phieuXuat.getId());
+        loHangService.deleteLoHang(loHang.getId());
+
+        assertFalse(loHangRepository.existsById(loHang.getId()));
+        assertEquals(List.of(), trangThaiDatTru(phieuXuat));
+    }
+
+    private List<String> trangThaiDatTru(PhieuXuatKho phieuXuat) {
+        return new JdbcTemplate(dataSource).queryForList(
+                "SELECT trang_thai FROM dat_tru_ton_kho WHERE phieu_xuat_id = ?", String.class, phieuXuat.getId());
+    }
+}
@@ -0,0 +1,104 @@
+package com.hospital.warehouse.hospital_warehouse;
+
+import com.hospital.warehouse.hospital_warehouse.entity.*;
+import com.hospital.warehouse.hospital_warehouse.repository.*;
+import com.hospital.warehouse.hospital_warehouse.service.PhieuXuatKhoService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Import;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Duyệt rồi hủy duyệt phiếu xuất lấy từ 2 lô khác giá: lô, tồn theo kho trở về như cũ,
+ * lịch sử hủy duyệt ghi đúng giá vốn của từng lô (không dùng đơn giá bình quân của dòng).
+ */
+@Import(DichVuKho.class)
+class HuyDuyetPhieuXuatTest extends KiemThuH2 {
+
+    @Autowired private DuLieuMau duLieuMau;
+    @Autowired private PhieuXuatKhoService phieuXuatKhoService;
+    @Autowired private LoHangRepository loHangRepository;
+    @Autowired private HangHoaRepository hangHoaRepository;
+    @Autowired private TonKhoTheoKhoRepository tonKhoTheoKhoRepository;
+    @Autowired private LichSuTonKhoRepository lichSuTonKhoRepository;
+    @Autowired private PlatformTransactionManager transactionManager;
+
+    @AfterEach
+    void xoaDangNhap() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    void huyDuyetPhieuHaiLoKhacGia() {
+        Kho kho = duLieuMau.taoKho("HD");
+        User nguoiDung = duLieuMau.taoNguoiDung("huy-duyet");
+        HangHoa hangHoa = duLieuMau.taoHangHoa("HH-HD", 16);
+        LoHang loRe = duLieuMau.taoLoHang(hangHoa, kho, "LO-HD-1", 6, new BigDecimal("1000"),
+                LocalDate.now().plusMonths(3));
+        LoHang loDat = duLieuMau.taoLoHang(hangHoa, kho, "LO-HD-2", 10, new BigDecimal("1500"),
+                LocalDate.now().plusMonths(9));
+        long giaTriBanDau = 6 * 100_000L + 10 * 150_000L;
+        new TransactionTemplate(transactionManager).executeWithoutResult(s ->
+                tonKhoTheoKhoRepository.congTon(hangHoa.getId(), kho.getId(), 16, giaTriBanDau));
+        PhieuXuatKho phieu = duLieuMau.taoPhieuXuatChoDuyet("PX-HD-1", kho, nguoiDung, hangHoa, 9);
+        SecurityContextHolder.getContext().setAuthentication(
+                new UsernamePasswordAuthenticationToken(nguoiDung.getTenDangNhap(), null, List.of()));
+
+        // Duyệt: FEFO lấy hết lô hạn gần (6 @1000) rồi 3 @1500
+        phieuXuatKhoService.duyetPhieuXuat(phieu.getId());
+        assertEquals(0, soLuongLo(loRe));
+        assertEquals(7, soLuongLo(loDat));
+
+        phieuXuatKhoService.huyDuyetPhieuXuat(phieu.getId(), "Nhập sai số lượng");
+
+        assertEquals(6, soLuongLo(loRe));
+        assertEquals(10, soLuongLo(loDat));
+        assertEquals(16, hangHoaRepository.findById(hangHoa.getId()).orElseThrow().getSoLuongCoTheXuat());
+        TonKhoTheoKho tonKho = tonKhoTheoKhoRepository
+                .findById(new TonKhoTheoKho.TonKhoTheoKhoId(hangHoa.getId(), kho.getId())).orElseThrow();
+        assertEquals(16, tonKho.getTongSoLuong());
+        assertEquals(giaTriBanDau, tonKho.getGiaTriTon());
+
+        List<LichSuTonKho> hoanLai = lichSuTonKhoRepository.findByMaChungTu("PX-HD-1").stream()
+                .filter(ls -> ls.getLoaiBienDong() == LichSuTonKho.LoaiBienDong.HUY_DUYET_XUAT)
+                .sorted(Comparator.comparing(LichSuTonKho::getSoLuongTruoc))
+                .toList();
+        assertEquals(2, hoanLai.size());
+
+        LichSuTonKho dongLoRe = dongCuaLo(hoanLai, loRe);
+        assertEquals(6, dongLoRe.getSoLuongBienDong());
+        assertEquals(0, new BigDecimal("1000").compareTo(dongLoRe.getDonGia()));
+        assertEquals(0, new BigDecimal("6000").compareTo(dongLoRe.getGiaTriBienDong()));
+
+        LichSuTonKho dongLoDat = dongCuaLo(hoanLai, loDat);
+        assertEquals(3, dongLoDat.getSoLuongBienDong());
+        assertEquals(0, new BigDecimal("1500").compareTo(dongLoDat.getDonGia()));
+        assertEquals(0, new BigDecimal("4500").compareTo(dongLoDat.getGiaTriBienDong()));
+
+        // Chuỗi tồn trước / sau của lịch sử hoàn lại: 7 → ... → 16
+        assertEquals(7, hoanLai.get(0).getSoLuongTruoc());
+        assertEquals(hoanLai.get(0).getSoLuongSau(), hoanLai.get(1).getSoLuongTruoc());
+        assertEquals(16, hoanLai.get(1).getSoLuongSau());
+    }
+
+    private LichSuTonKho dongCuaLo(List<LichSuTonKho> lichSu, LoHang loHang) {
+        return lichSu.stream()
+                .filter(ls -> ls.getLoHang() != null && loHang.getId().equals(ls.getLoHang().getId()))
+                .findFirst().orElseThrow();
+    }
+
+    private int soLuongLo(LoHang loHang) {
+        return loHangRepository.findById(loHang.getId()).orElseThrow().getSoLuongHienTai();
+    }
+}
@@ -0,0 +1,195 @@
+package com.hospital.warehouse.hospital_warehouse;
+
+import com.hospital.warehouse.hospital_warehouse.repository.CanhBaoRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.ChiTietPhieuXuatRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.HangHoaViTriRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.LichSuTonKhoRepository;
+import com.hospital.warehouse.hospital_warehouse.repository.LoHangRepository;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.TestPropertySource;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Kế hoạch thực thi (EXPLAIN) của các truy vấn nóng phải đi qua chỉ mục do script Flyway tạo ra:
+ * câu SQL đúng như Hibernate sinh ra cho phương thức repository được EXPLAIN lại trên H2 (chế độ MySQL)
+ * với lược đồ đã migrate.
+ * Đổi tên / bỏ chỉ mục hoặc sửa truy vấn làm mất chỉ mục → test đỏ.
+ */
+@TestPropertySource(properties = {
+        "spring.jpa.properties.hibernate.session_factory.statement_inspector="
+                + "com.hospital.warehouse.hospital_warehouse.KeHoachTruyVanChiMucTest$GhiCauLenh"
+})
+class KeHoachTruyVanChiMucTest extends KiemThuH2 {
+
+    @Autowired private LoHangRepository loHangRepository;
+    @Autowired private HangHoaViTriRepository hangHoaViTriRepository;
+    @Autowired private CanhBaoRepository canhBaoRepository;
+    @Autowired private ChiTietPhieuXuatRepository chiTietPhieuXuatRepository;
+    @Autowired private LichSuTonKhoRepository lichSuTonKhoRepository;
+    @Autowired private DataSource dataSource;
+
+    private static final int SO_DONG = 5000;
+
+    /**
+     * Bảng rỗng thì H2 luôn chọn quét bảng → đổ dữ liệu có độ phân tán gần thực tế rồi ANALYZE
+     */
+    @BeforeEach
+    void taoDuLieu() {
+        JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+        if (jdbc.queryForObject("SELECT COUNT(*) FROM lo_hang", Long.class) > 0) {
+            return;
+        }
+
+        boChiMucKhoaNgoaiThua(jdbc);
+        jdbc.execute("SET REFERENTIAL_INTEGRITY FALSE");
+        jdbc.update("INSERT INTO lo_hang (hang_hoa_id, kho_id, so_lo, so_luong_nhap, so_luong_hien_tai, gia_nhap, "
+                + "trang_thai, han_su_dung, ngay_san_xuat, created_at) "
+                + "SELECT MOD(X, 50) + 1, MOD(X / 50, 50) + 1, CONCAT('LO-', X), 10, MOD(X, 3) * 10, 1000, 'MOI', "
+                + "DATEADD('DAY', MOD(X, 730) - 30, CURRENT_DATE), DATEADD('DAY', -MOD(X, 365), CURRENT_DATE), "
+                + "CURRENT_TIMESTAMP FROM SYSTEM_RANGE(1, ?)", SO_DONG);
+        jdbc.update("INSERT INTO hang_hoa_vi_tri (hang_hoa_id, vi_tri_kho_id, lo_hang_id, so_luong, created_at) "
+                + "SELECT MOD(X, 500) + 1, MOD(X, 50) + 1, X, 10, CURRENT_TIMESTAMP FROM SYSTEM_RANGE(1, ?)", SO_DONG);
+        jdbc.update("INSERT INTO chi_tiet_phieu_xuat (phieu_xuat_id, hang_hoa_id, so_luong_yeu_cau, so_luong_xuat, "
+                + "don_gia, thanh_tien, created_at) "
+                + "SELECT X / 10 + 1, MOD(X, 500) + 1, 1, 1, 1000, 1000, CURRENT_TIMESTAMP FROM SYSTEM_RANGE(1, ?)",
+                SO_DONG);
+        jdbc.update("INSERT INTO canh_bao_he_thong (loai_canh_bao, tieu_de, noi_dung, da_doc, da_xu_ly, created_at) "
+                + "SELECT 'TON_KHO_THAP', 'Cảnh báo', 'Nội dung', MOD(X, 10) = 0, MOD(X, 20) = 0, "
+                + "DATEADD('MINUTE', -X, CURRENT_TIMESTAMP) FROM SYSTEM_RANGE(1, ?)", SO_DONG);
+        jdbc.update("INSERT INTO lich_su_ton_kho (id, hang_hoa_id, loai_bien_dong, so_luong_truoc, "
+                + "so_luong_bien_dong, so_luong_sau, ma_chung_tu, created_at) "
+                + "SELECT X, MOD(X, 500) + 1, 'NHAP_KHO', 0, 1, 1, CONCAT('PN-', X / 5), CURRENT_TIMESTAMP "
+                + "FROM SYSTEM_RANGE(1, ?)", SO_DONG);
+        jdbc.execute("SET REFERENTIAL_INTEGRITY TRUE");
+        jdbc.execute("ANALYZE");
+    }
+
+    /**
+     * MySQL tự bỏ chỉ mục ngầm của khóa ngoại khi script sau thêm chỉ mục khác bắt đầu bằng cột khóa ngoại đó;
+     * H2 giữ cả hai và có thể chọn chỉ mục của khóa ngoại → tạo lại các khóa ngoại này để H2 dùng chung chỉ mục
+     * kia, lược đồ giống MySQL sau khi migrate.
+     */
+    private static void boChiMucKhoaNgoaiThua(JdbcTemplate jdbc) {
+        List<Map<String, Object>> khoaNgoai = jdbc.queryForList("""
+                SELECT tc.TABLE_NAME, tc.CONSTRAINT_NAME, kcu.COLUMN_NAME, cha.TABLE_NAME AS BANG_CHA
+                FROM INFORMATION_SCHEMA.TABLE_CONSTRAINTS tc
+                JOIN INFORMATION_SCHEMA.KEY_COLUMN_USAGE kcu ON kcu.CONSTRAINT_NAME = tc.CONSTRAINT_NAME
+                JOIN INFORMATION_SCHEMA.REFERENTIAL_CONSTRAINTS rc ON rc.CONSTRAINT_NAME = tc.CONSTRAINT_NAME
+                JOIN INFORMATION_SCHEMA.TABLE_CONSTRAINTS cha ON cha.CONSTRAINT_NAME = rc.UNIQUE_CONSTRAINT_NAME
+                WHERE tc.CONSTRAINT_TYPE = 'FOREIGN KEY' AND tc.TABLE_SCHEMA = 'PUBLIC'
+                  AND EXISTS (SELECT 1 FROM INFORMATION_SCHEMA.INDEX_COLUMNS ic
+                              WHERE ic.TABLE_NAME = tc.TABLE_NAME AND ic.COLUMN_NAME = kcu.COLUMN_NAME
+                                AND ic.ORDINAL_POSITION = 1 AND ic.INDEX_NAME <> tc.INDEX_NAME)
+                """);
+        for (Map<String, Object> fk : khoaNgoai) {
+            jdbc.execute("ALTER TABLE " + fk.get("TABLE_NAME") + " DROP CONSTRAINT " + fk.get("CONSTRAINT_NAME"));
+            jdbc.execute("ALTER TABLE " + fk.get("TABLE_NAME") + " ADD CONSTRAINT " + fk.get("CONSTRAINT_NAME")
+                    + " FOREIGN KEY (" + fk.get("COLUMN_NAME") + ") REFERENCES " + fk.get("BANG_CHA") + " (id)");
+        }
+    }
+
+    /**
+     * Giữ câu SELECT cuối cùng Hibernate sinh ra
+     */
+    public static class GhiCauLenh implements StatementInspector {
+
+        static volatile String cauCuoi;
+
+        @Override
+        public String inspect(String sql) {
+            if (sql.trim().toLowerCase().startsWith("select")) {
+                cauCuoi = sql;
+            }
+            return sql;
+        }
+    }
+
+    @Test
+    void loKhaDungDeXuatDungChiMucXuat() throws SQLException {
+        loHangRepository.findAvailableLoHangForXuat(1L, 1L, 0);
+        assertDungChiMuc("IDX_LO_HANG_XUAT", 1L, 1L, 0);
+    }
+
+    @Test
+    void loSapHetHanDungChiMucHanSuDung() throws SQLException {
+        LocalDate homNay = LocalDate.now();
+        loHangRepository.findExpiringSoon(homNay, homNay.plusDays(30));
+        assertDungChiMuc("IDX_LO_HANG_HAN_SU_DUNG", homNay, homNay.plusDays(30));
+    }
+
+    @Test
+    void hangHoaViTriTheoHangViTriLoDungChiMuc() throws SQLException {
+        hangHoaViTriRepository.findByHangHoaIdAndViTriKhoIdAndLoHangId(1L, 1L, 1L);
+        assertDungChiMuc("IDX_HANG_HOA_VI_TRI_HANG_VI_TRI_LO", 1L, 1L, 1L, 1L);
+    }
+
+    @Test
+    void canhBaoChuaXuLyDungChiMucXuLy() throws SQLException {
+        canhBaoRepository.findByDaXuLyFalseOrderByCreatedAtDesc(PageRequest.of(0, 20));
+        assertDungChiMuc("IDX_CANH_BAO_HE_THONG_XU_LY");
+    }
+
+    @Test
+    void chiTietPhieuXuatTheoPhieuKhongQuetBang() throws SQLException {
+        // Dữ liệu mẫu không có hàng hóa / phiếu cha → gọi với phiếu không tồn tại, chỉ lấy câu SQL
+        chiTietPhieuXuatRepository.findByPhieuXuatId(-1L);
+        String keHoach = explain(GhiCauLenh.cauCuoi, 1L);
+        assertFalse(keHoach.contains("tableScan"), keHoach);
+        assertFalse(keHoach.toUpperCase().contains("JOIN"), keHoach);
+    }
+
+    @Test
+    void tongXuatTheoPhieuVaHangHoaChiDocChiMuc() throws SQLException {
+        // Subquery trong TonKhoTheoKhoRepository#hoanLaiTheoPhieuXuat
+        String keHoach = explain("SELECT SUM(ct.so_luong_xuat) FROM chi_tiet_phieu_xuat ct "
+                + "WHERE ct.phieu_xuat_id = ? AND ct.hang_hoa_id = ?", 1L, 1L);
+        assertTrue(keHoach.toUpperCase().contains("IDX_CHI_TIET_PHIEU_XUAT_PHIEU_HANG"), keHoach);
+    }
+
+    @Test
+    void lichSuTheoChungTuDungChiMucMaChungTu() throws SQLException {
+        lichSuTonKhoRepository.findByMaChungTu("PX-000001");
+        assertDungChiMuc("IDX_LICH_SU_TON_KHO_MA_CHUNG_TU", "PX-000001");
+    }
+
+    // ==================== HELPER ====================
+
+    /**
+     * EXPLAIN câu SELECT vừa chạy với cùng tham số, kế hoạch phải nhắc tới chỉ mục
+     */
+    private void assertDungChiMuc(String chiMuc, Object... thamSo) throws SQLException {
+        String keHoach = explain(GhiCauLenh.cauCuoi, thamSo);
+        assertTrue(keHoach.toUpperCase().contains(chiMuc), "Kế hoạch không dùng " + chiMuc + ":\n" + keHoach);
+    }
+
+    private String explain(String sql, Object... thamSo) throws SQLException {
+        assertNotNull(sql, "Chưa ghi nhận câu SELECT nào");
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement ps = connection.prepareStatement("EXPLAIN " + sql)) {
+            for (int i = 0; i < thamSo.length; i++) {
+                ps.setObject(i + 1, thamSo[i]);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                return rs.getString(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.hospital.warehouse.hospital_warehouse;
+
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Nền chung cho các test chạy trên H2 (chế độ MySQL): chỉ dựng tầng JPA + các bean lớp con @Import,
+ * mỗi context một database riêng trong bộ nhớ.
+ *
+ * Lược đồ được dựng bằng các script Flyway (db/migration) như trên MySQL, Hibernate chỉ kiểm tra khớp entity:
+ * script thiếu bảng / cột hoặc sai kiểu → context không khởi động được.
+ *
+ * Không bọc test trong transaction (NOT_SUPPORTED): các luồng đồng thời, REQUIRES_NEW và câu lệnh
+ * có điều kiện phải commit thật như khi chạy trên MySQL. Lớp con thêm thuộc tính riêng bằng
+ * @TestPropertySource của mình (được gộp với thuộc tính dưới đây).
+ */
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+@Import(DuLieuMau.class)
+@TestPropertySource(properties = {
+        "spring.datasource.url=jdbc:h2:mem:${random.uuid};MODE=MySQL;NON_KEYWORDS=USER;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=30000",
+        "spring.datasource.username=sa",
+        "spring.datasource.password=",
+        "spring.datasource.hikari.connection-init-sql=SELECT 1",
+        "spring.datasource.hikari.maximum-pool-size=20",
+        "spring.jpa.hibernate.ddl-auto=validate",
+        "spring.jpa.show-sql=false"
+})
+abstract class KiemThuH2 {
+}
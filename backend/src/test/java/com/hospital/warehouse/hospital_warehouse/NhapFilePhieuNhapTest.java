@@ -0,0 +1,177 @@
+package com.hospital.warehouse.hospital_warehouse;
+
+import com.hospital.warehouse.hospital_warehouse.dto.TienTrinhNhapFileDTO;
+import com.hospital.warehouse.hospital_warehouse.entity.*;
+import com.hospital.warehouse.hospital_warehouse.repository.*;
+import com.hospital.warehouse.hospital_warehouse.service.NhapFilePhieuNhapService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Import;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Nhập chi tiết phiếu nhập từ file: mặc định có dòng lỗi thì không nhập gì; boQuaDongLoi = true
+ * nhập các dòng hợp lệ theo lô và cộng đúng tổng tiền; phiếu đã duyệt không nhận thêm dòng
+ * (UPDATE cộng tổng tiền có điều kiện trả 0 dòng).
+ */
+@Import(DichVuKho.class)
+@TestPropertySource(properties = "kho.nhap-file.kich-thuoc-lo=2")
+class NhapFilePhieuNhapTest extends KiemThuH2 {
+
+    private static final AtomicInteger SO_THU_TU = new AtomicInteger();
+
+    @Autowired private DuLieuMau duLieuMau;
+    @Autowired private NhapFilePhieuNhapService nhapFilePhieuNhapService;
+    @Autowired private PhieuNhapKhoRepository phieuNhapKhoRepository;
+    @Autowired private ChiTietPhieuNhapRepository chiTietPhieuNhapRepository;
+    @Autowired private ViTriKhoRepository viTriKhoRepository;
+    @Autowired private PlatformTransactionManager transactionManager;
+
+    private String ma;
+    private Kho kho;
+    private User nguoiNhan;
+
+    @BeforeEach
+    void taoDuLieu() {
+        ma = "NF" + SO_THU_TU.incrementAndGet();
+        kho = duLieuMau.taoKho(ma);
+        nguoiNhan = duLieuMau.taoNguoiDung("nd-" + ma);
+        duLieuMau.taoHangHoa("HH-" + ma, 0);
+        viTriKhoRepository.save(ViTriKho.builder()
+                .kho(kho)
+                .maViTri("VT-" + ma)
+                .tenViTri("Kệ " + ma)
+                .loaiViTri(ViTriKho.LoaiViTri.KE)
+                .sucChuaToiDa(0)
+                .soLuongDangChua(0)
+                .soDongHangHoa(0)
+                .trangThai(ViTriKho.TrangThaiViTri.TRONG)
+                .build());
+    }
+
+    @Test
+    void coDongLoiThiKhongNhapDongNao() {
+        PhieuNhapKho phieuNhap = taoPhieuNhap(PhieuNhapKho.TrangThaiPhieuNhap.CHO_DUYET);
+
+        TienTrinhNhapFileDTO ketQua = nhapVaCho(phieuNhap, false);
+
+        assertEquals(TienTrinhNhapFileDTO.TrangThai.THAT_BAI, ketQua.getTrangThai(), ketQua.getThongBao());
+        assertEquals(2, ketQua.getSoDongLoi());
+        assertEquals(List.of(3, 5), ketQua.getLoi().stream().map(TienTrinhNhapFileDTO.LoiDong::getDong).toList());
+        assertEquals(List.of("ma_hang_hoa", "so_luong"),
+                ketQua.getLoi().stream().map(TienTrinhNhapFileDTO.LoiDong::getCot).toList());
+        assertEquals(0, ketQua.getSoDongDaNhap());
+        assertEquals(0, chiTietPhieuNhapRepository.findByPhieuNhapId(phieuNhap.getId()).size());
+        assertTongTien(phieuNhap, "0", "0");
+    }
+
+    @Test
+    void boQuaDongLoiNhapDongHopLeVaCongTongTien() {
+        PhieuNhapKho phieuNhap = taoPhieuNhap(PhieuNhapKho.TrangThaiPhieuNhap.CHO_DUYET);
+
+        TienTrinhNhapFileDTO ketQua = nhapVaCho(phieuNhap, true);
+
+        assertEquals(TienTrinhNhapFileDTO.TrangThai.HOAN_THANH, ketQua.getTrangThai(), ketQua.getThongBao());
+        assertEquals(5, ketQua.getSoDongDaDoc());
+        assertEquals(3, ketQua.getSoDongDaNhap());
+        assertEquals(2, ketQua.getSoDongLoi());
+        assertEquals(0, new BigDecimal("18111.49").compareTo(ketQua.getTongTienDaNhap()));
+
+        List<ChiTietPhieuNhap> chiTiet = chiTietPhieuNhapRepository.findByPhieuNhapId(phieuNhap.getId());
+        assertEquals(3, chiTiet.size());
+        assertEquals(14, chiTiet.stream().mapToInt(ChiTietPhieuNhap::getSoLuong).sum());
+        // 10 x 1000 (thuế 5%) + 3 x 2500.5 + 1 x 99.99 (thuế 10% → 10.00)
+        assertTongTien(phieuNhap, "17601.49", "510.00");
+    }
+
+    @Test
+    void phieuDaDuyetKhongNhanThemDong() {
+        PhieuNhapKho daDuyet = taoPhieuNhap(PhieuNhapKho.TrangThaiPhieuNhap.DA_DUYET);
+        PhieuNhapKho choDuyet = taoPhieuNhap(PhieuNhapKho.TrangThaiPhieuNhap.CHO_DUYET);
+
+        assertThrows(IllegalStateException.class, () -> nhapFilePhieuNhapService.batDauNhap(
+                daDuyet.getId(), taoFile(), true));
+
+        // Phiếu được duyệt giữa chừng: câu UPDATE cộng tổng tiền của lô dòng tiếp theo không khớp dòng nào
+        TransactionTemplate tx = new TransactionTemplate(transactionManager);
+        assertEquals(0, (int) tx.execute(s -> phieuNhapKhoRepository.congTongTienChuaDuyet(
+                daDuyet.getId(), new BigDecimal("100"), new BigDecimal("10"))));
+        assertEquals(1, (int) tx.execute(s -> phieuNhapKhoRepository.congTongTienChuaDuyet(
+                choDuyet.getId(), new BigDecimal("100"), new BigDecimal("10"))));
+
+        assertTongTien(daDuyet, "0", "0");
+        assertTongTien(choDuyet, "100", "10");
+    }
+
+    // ==================== HELPER ====================
+
+    private PhieuNhapKho taoPhieuNhap(PhieuNhapKho.TrangThaiPhieuNhap trangThai) {
+        return phieuNhapKhoRepository.save(PhieuNhapKho.builder()
+                .maPhieuNhap("PN-" + ma + "-" + trangThai.ordinal())
+                .kho(kho)
+                .loaiNhap(PhieuNhapKho.LoaiNhap.NHAP_MOI)
+                .ngayNhap(LocalDateTime.now())
+                .nguoiNhan(nguoiNhan)
+                .tongTienTruocThue(BigDecimal.ZERO)
+                .tienThue(BigDecimal.ZERO)
+                .tongTienSauThue(BigDecimal.ZERO)
+                .tongThanhToan(BigDecimal.ZERO)
+                .trangThai(trangThai)
+                .build());
+    }
+
+    /**
+     * 5 dòng dữ liệu: dòng 3 sai mã hàng hóa, dòng 5 số lượng âm
+     */
+    private MockMultipartFile taoFile() {
+        String hangHoa = "HH-" + ma;
+        String viTri = "VT-" + ma;
+        String csv = "Mã hàng hóa,Mã vị trí,Số lượng,Đơn giá,Tỷ lệ thuế,Số lô,Hạn sử dụng\n"
+                + hangHoa + "," + viTri + ",10,1000,5,L1,2030-01-31\n"
+                + "KHONG-CO," + viTri + ",1,1000,,L2,2030-01-31\n"
+                + hangHoa.toLowerCase() + "," + viTri.toLowerCase() + ",3,2500.5,,L3,31/12/2030\n"
+                + hangHoa + "," + viTri + ",-1,1000,,L4,2030-01-31\n"
+                + hangHoa + "," + viTri + ",1,99.99,10,L5,2030-06-30\n";
+        return new MockMultipartFile("file", "chi-tiet.csv", "text/csv", csv.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private TienTrinhNhapFileDTO nhapVaCho(PhieuNhapKho phieuNhap, boolean boQuaDongLoi) {
+        String maTienTrinh = nhapFilePhieuNhapService.batDauNhap(phieuNhap.getId(), taoFile(), boQuaDongLoi)
+                .getMaTienTrinh();
+        long hetHan = System.currentTimeMillis() + 30_000;
+        while (System.currentTimeMillis() < hetHan) {
+            TienTrinhNhapFileDTO tienTrinh = nhapFilePhieuNhapService.layTienTrinh(maTienTrinh).orElseThrow();
+            if (tienTrinh.getTrangThai() == TienTrinhNhapFileDTO.TrangThai.HOAN_THANH
+                    || tienTrinh.getTrangThai() == TienTrinhNhapFileDTO.TrangThai.THAT_BAI) {
+                return tienTrinh;
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+        throw new IllegalStateException("Nhập file chưa xong sau 30 giây");
+    }
+
+    private void assertTongTien(PhieuNhapKho phieuNhap, String truocThue, String thue) {
+        PhieuNhapKho sau = phieuNhapKhoRepository.findById(phieuNhap.getId()).orElseThrow();
+        assertEquals(0, new BigDecimal(truocThue).compareTo(sau.getTongTienTruocThue()));
+        assertEquals(0, new BigDecimal(thue).compareTo(sau.getTienThue()));
+        assertEquals(0, new BigDecimal(truocThue).add(new BigDecimal(thue)).compareTo(sau.getTongThanhToan()));
+    }
+}
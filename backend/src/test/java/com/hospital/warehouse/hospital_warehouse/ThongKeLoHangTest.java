@@ -0,0 +1,149 @@
+package com.hospital.warehouse.hospital_warehouse;
+
+import com.hospital.warehouse.hospital_warehouse.dto.LoHangDTO;
+import com.hospital.warehouse.hospital_warehouse.entity.*;
+import com.hospital.warehouse.hospital_warehouse.repository.*;
+import com.hospital.warehouse.hospital_warehouse.service.LoHangService;
+import com.hospital.warehouse.hospital_warehouse.service.PhieuXuatKhoService;
+import com.hospital.warehouse.hospital_warehouse.service.ThongKeLoHangService;
+import com.hospital.warehouse.hospital_warehouse.service.TrangThaiLoHangService;
+import com.hospital.warehouse.hospital_warehouse.service.TruTonKhoService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Bộ đếm thong_ke_lo_hang đổi cùng transaction với lô trên mọi đường ghi (duyệt / hủy duyệt xuất, sửa, xóa lô,
+ * làm mới trạng thái): sau mỗi bước khớp GROUP BY lo_hang, rollback không để lại gì, đối chiếu không phải sửa ô nào.
+ */
+@Import({DichVuKho.class, TrangThaiLoHangService.class})
+class ThongKeLoHangTest extends KiemThuH2 {
+
+    @Autowired private DuLieuMau duLieuMau;
+    @Autowired private ThongKeLoHangService thongKeLoHangService;
+    @Autowired private PhieuXuatKhoService phieuXuatKhoService;
+    @Autowired private TruTonKhoService truTonKhoService;
+    @Autowired private LoHangService loHangService;
+    @Autowired private TrangThaiLoHangService trangThaiLoHangService;
+    @Autowired private LoHangRepository loHangRepository;
+    @Autowired private ThongKeLoHangRepository thongKeLoHangRepository;
+    @Autowired private TonKhoTheoKhoRepository tonKhoTheoKhoRepository;
+    @Autowired private PlatformTransactionManager transactionManager;
+    @Autowired private DataSource dataSource;
+
+    @AfterEach
+    void xoaDangNhap() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    void duyetHuyDuyetVaRollback() {
+        Kho kho = duLieuMau.taoKho("TK1");
+        User nguoiDung = duLieuMau.taoNguoiDung("thong-ke-lo");
+        HangHoa hangHoa = duLieuMau.taoHangHoa("HH-TK1", 16);
+        LoHang loRe = duLieuMau.taoLoHang(hangHoa, kho, "LO-TK-1", 6, new BigDecimal("1000"),
+                LocalDate.now().plusMonths(3));
+        LoHang loDat = duLieuMau.taoLoHang(hangHoa, kho, "LO-TK-2", 10, new BigDecimal("1500"),
+                LocalDate.now().plusMonths(9));
+        TransactionTemplate tx = new TransactionTemplate(transactionManager);
+        tx.executeWithoutResult(s -> tonKhoTheoKhoRepository.congTon(hangHoa.getId(), kho.getId(), 16, 0L));
+
+        // Lô tạo thẳng qua repository (như dữ liệu cũ) → đối chiếu đưa vào bộ đếm
+        assertEquals(1, thongKeLoHangService.doiChieu().soOSua());
+        assertEquals(Map.of(kho.getId() + "/MOI", "2/16"), boDem(kho));
+
+        // Duyệt 9: FEFO lấy hết lô hạn gần → HET_HANG, lô còn lại DANG_SU_DUNG
+        PhieuXuatKho phieu = duLieuMau.taoPhieuXuatChoDuyet("PX-TK-1", kho, nguoiDung, hangHoa, 9);
+        SecurityContextHolder.getContext().setAuthentication(
+                new UsernamePasswordAuthenticationToken(nguoiDung.getTenDangNhap(), null, List.of()));
+        phieuXuatKhoService.duyetPhieuXuat(phieu.getId());
+        assertEquals(Map.of(kho.getId() + "/HET_HANG", "1/0", kho.getId() + "/DANG_SU_DUNG", "1/7"), boDem(kho));
+        khopLoHang();
+
+        phieuXuatKhoService.huyDuyetPhieuXuat(phieu.getId(), "Nhập sai số lượng");
+        assertEquals(Map.of(kho.getId() + "/DANG_SU_DUNG", "2/16"), boDem(kho));
+        khopLoHang();
+
+        // Rollback (chủ động / không đủ hàng) → lô và bộ đếm giữ nguyên
+        tx.executeWithoutResult(s -> {
+            truTonKhoService.truLo(Map.of(loRe.getId(), 6, loDat.getId(), 10));
+            s.setRollbackOnly();
+        });
+        assertThrows(IllegalStateException.class, () -> tx.executeWithoutResult(s ->
+                truTonKhoService.truLo(Map.of(loRe.getId(), 1, loDat.getId(), 11))));
+        assertEquals(Map.of(kho.getId() + "/DANG_SU_DUNG", "2/16"), boDem(kho));
+        khopLoHang();
+
+        assertEquals(0, thongKeLoHangService.doiChieu().soOSua());
+    }
+
+    @Test
+    void suaXoaLoVaLamMoiTrangThai() {
+        Kho kho = duLieuMau.taoKho("TK2");
+        HangHoa hangHoa = duLieuMau.taoHangHoa("HH-TK2", 12);
+        LoHang loA = duLieuMau.taoLoHang(hangHoa, kho, "LO-TK-A", 5, new BigDecimal("1000"),
+                LocalDate.now().plusYears(1));
+        LoHang loB = duLieuMau.taoLoHang(hangHoa, kho, "LO-TK-B", 7, new BigDecimal("1000"),
+                LocalDate.now().plusYears(1));
+        thongKeLoHangService.doiChieu();
+
+        // Sửa hạn sử dụng → trạng thái đổi theo
+        loHangService.updateLoHang(loA.getId(), LoHangDTO.builder()
+                .hanSuDung(LocalDate.now().minusDays(1)).build());
+        assertEquals(Map.of(kho.getId() + "/HET_HAN", "1/5", kho.getId() + "/MOI", "1/7"), boDem(kho));
+
+        // Hạn sử dụng sửa ngoài ứng dụng: trạng thái (và bộ đếm) chỉ đổi khi làm mới trạng thái
+        new JdbcTemplate(dataSource).update("UPDATE lo_hang SET han_su_dung = ? WHERE id = ?",
+                LocalDate.now().plusDays(5), loB.getId());
+        trangThaiLoHangService.capNhatTrangThai();
+        assertEquals(Map.of(kho.getId() + "/HET_HAN", "1/5", kho.getId() + "/GAN_HET_HAN", "1/7"), boDem(kho));
+        khopLoHang();
+
+        loHangService.deleteLoHang(loA.getId());
+        assertEquals(Map.of(kho.getId() + "/GAN_HET_HAN", "1/7"), boDem(kho));
+        khopLoHang();
+
+        assertEquals(0, thongKeLoHangService.doiChieu().soOSua());
+    }
+
+    // ==================== HELPER ====================
+
+    /**
+     * Các ô khác 0 của bộ đếm (cả hai test dùng chung database): "khoId/trangThai" → "soLo/tongSoLuong"
+     */
+    private Map<String, String> boDem(Kho kho) {
+        Map<String, String> ketQua = new TreeMap<>();
+        for (ThongKeLoHang o : thongKeLoHangRepository.findAll()) {
+            if ((kho == null || o.getId().getKhoId().equals(kho.getId()))
+                    && (o.getSoLo() != 0 || o.getTongSoLuong() != 0)) {
+                ketQua.put(o.getId().getKhoId() + "/" + o.getId().getTrangThai(),
+                        o.getSoLo() + "/" + o.getTongSoLuong());
+            }
+        }
+        return ketQua;
+    }
+
+    private void khopLoHang() {
+        Map<String, String> dung = new TreeMap<>();
+        for (Object[] row : loHangRepository.tinhThongKeTheoKhoVaTrangThai()) {
+            dung.put(row[0] + "/" + row[1], row[2] + "/" + row[3]);
+        }
+        assertEquals(dung, boDem(null));
+    }
+}
@@ -0,0 +1,147 @@
+package com.hospital.warehouse.hospital_warehouse;
+
+import com.hospital.warehouse.hospital_warehouse.entity.*;
+import com.hospital.warehouse.hospital_warehouse.repository.*;
+import com.hospital.warehouse.hospital_warehouse.service.TonKhoTheoKhoService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Bảng ton_kho_theo_kho: cộng / trừ nguyên tử (upsert) và đồng bộ lại toàn bộ
+ * (hàng có lô theo lô, hàng không có lô theo chứng từ, trừ phần đang đặt trước).
+ */
+@Import(TonKhoTheoKhoService.class)
+class TonKhoTheoKhoDongBoTest extends KiemThuH2 {
+
+    @Autowired private DuLieuMau duLieuMau;
+    @Autowired private TonKhoTheoKhoService tonKhoTheoKhoService;
+    @Autowired private TonKhoTheoKhoRepository tonKhoTheoKhoRepository;
+    @Autowired private HangHoaRepository hangHoaRepository;
+    @Autowired private PhieuNhapKhoRepository phieuNhapKhoRepository;
+    @Autowired private ChiTietPhieuNhapRepository chiTietPhieuNhapRepository;
+    @Autowired private ChiTietPhieuXuatRepository chiTietPhieuXuatRepository;
+    @Autowired private DatTruTonKhoRepository datTruTonKhoRepository;
+    @Autowired private PlatformTransactionManager transactionManager;
+    @Autowired private DataSource dataSource;
+
+    @Test
+    void congTonTaoDongRoiCongDonTruCoDieuKien() {
+        Kho khoA = duLieuMau.taoKho("UP-A");
+        Kho khoB = duLieuMau.taoKho("UP-B");
+        HangHoa hangHoa = duLieuMau.taoHangHoa("HH-UP", 0);
+        TransactionTemplate tx = new TransactionTemplate(transactionManager);
+
+        tx.executeWithoutResult(s -> {
+            tonKhoTheoKhoService.congTonKho(hangHoa.getId(), khoA.getId(), 10, 100_000L);
+            tonKhoTheoKhoService.congTonKho(hangHoa.getId(), khoA.getId(), 5, 60_000L);
+            tonKhoTheoKhoService.congTonKho(hangHoa.getId(), khoB.getId(), 3, 30_000L);
+        });
+
+        assertTon(hangHoa, khoA, 15, 15, 0, 160_000L);
+        assertTon(hangHoa, khoB, 3, 3, 0, 30_000L);
+
+        // Không đủ → không trừ gì; đủ → trừ; lấy hết → giá trị về 0
+        assertEquals(0, (int) tx.execute(s -> tonKhoTheoKhoRepository.truTonCoDieuKien(
+                hangHoa.getId(), khoB.getId(), 4, 40_000L)));
+        assertTon(hangHoa, khoB, 3, 3, 0, 30_000L);
+        tx.executeWithoutResult(s -> tonKhoTheoKhoService.truTonKhoTheoGiaTri(hangHoa.getId(), khoA.getId(), 5, 50_000L));
+        assertTon(hangHoa, khoA, 10, 10, 0, 110_000L);
+        tx.executeWithoutResult(s -> tonKhoTheoKhoService.truTonKhoTheoGiaTri(hangHoa.getId(), khoB.getId(), 3, 29_999L));
+        assertTon(hangHoa, khoB, 0, 0, 0, 0L);
+    }
+
+    @Test
+    void dongBoLaiTheoLoHangChungTuVaDatTru() {
+        Kho khoA = duLieuMau.taoKho("DB-A");
+        Kho khoB = duLieuMau.taoKho("DB-B");
+        User nguoiDung = duLieuMau.taoNguoiDung("dong-bo");
+
+        // Hàng có lô: tồn theo lô, chứng từ nhập của nó (lệch với lô) bị bỏ qua
+        HangHoa coLo = duLieuMau.taoHangHoa("HH-DB-LO", 65);
+        LoHang loA1 = duLieuMau.taoLoHang(coLo, khoA, "LO-DB-1", 30, new BigDecimal("1000.50"), null);
+        duLieuMau.taoLoHang(coLo, khoA, "LO-DB-2", 20, new BigDecimal("1200"), null);
+        duLieuMau.taoLoHang(coLo, khoB, "LO-DB-3", 15, new BigDecimal("900"), null);
+        taoPhieuNhapDaDuyet("PN-DB-1", khoA, nguoiDung, coLo, 999, new BigDecimal("1"));
+
+        // Hàng không có lô: tồn theo chứng từ đã duyệt
+        HangHoa khongLo = duLieuMau.taoHangHoa("HH-DB-KL", 6);
+        khongLo.setCoQuanLyLo(false);
+        hangHoaRepository.save(khongLo);
+        taoPhieuNhapDaDuyet("PN-DB-2", khoA, nguoiDung, khongLo, 10, new BigDecimal("500"));
+        PhieuXuatKho phieuXuat = duLieuMau.taoPhieuXuatChoDuyet("PX-DB-1", khoA, nguoiDung, khongLo, 4);
+        JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+        jdbc.update("UPDATE phieu_xuat_kho SET trang_thai = 'DA_DUYET' WHERE id = ?", phieuXuat.getId());
+        jdbc.update("UPDATE chi_tiet_phieu_xuat SET thanh_tien = 2000 WHERE phieu_xuat_id = ?", phieuXuat.getId());
+
+        // Đặt trước: DANG_GIU được tính, HET_HAN thì không
+        PhieuXuatKho phieuGiu = duLieuMau.taoPhieuXuatChoDuyet("PX-DB-2", khoA, nguoiDung, coLo, 8);
+        taoDatTru(phieuGiu, coLo, khoA, loA1, 8, DatTruTonKho.TrangThaiDatTru.DANG_GIU);
+        PhieuXuatKho phieuHetHan = duLieuMau.taoPhieuXuatChoDuyet("PX-DB-3", khoA, nguoiDung, coLo, 5);
+        taoDatTru(phieuHetHan, coLo, khoA, loA1, 5, DatTruTonKho.TrangThaiDatTru.HET_HAN);
+
+        // Dữ liệu cũ sai lệch bị thay hoàn toàn
+        new TransactionTemplate(transactionManager).executeWithoutResult(s ->
+                tonKhoTheoKhoRepository.congTon(coLo.getId(), khoA.getId(), 1234, 1L));
+
+        int soDong = new TransactionTemplate(transactionManager).execute(s -> tonKhoTheoKhoService.dongBoLai());
+
+        assertEquals(3, soDong);
+        assertTon(coLo, khoA, 50, 42, 8, 30 * 100_050L + 20 * 120_000L);
+        assertTon(coLo, khoB, 15, 15, 0, 15 * 90_000L);
+        assertTon(khongLo, khoA, 6, 6, 0, 10 * 50_000L - 200_000L);
+    }
+
+    // ==================== HELPER ====================
+
+    private void assertTon(HangHoa hangHoa, Kho kho, int tong, int coTheXuat, int daDat, long giaTri) {
+        TonKhoTheoKho ton = tonKhoTheoKhoRepository
+                .findById(new TonKhoTheoKho.TonKhoTheoKhoId(hangHoa.getId(), kho.getId())).orElseThrow();
+        String ma = hangHoa.getMaHangHoa() + "@" + kho.getMaKho();
+        assertEquals(tong, ton.getTongSoLuong(), ma);
+        assertEquals(coTheXuat, ton.getSoLuongCoTheXuat(), ma);
+        assertEquals(daDat, ton.getSoLuongDaDat(), ma);
+        assertEquals(giaTri, ton.getGiaTriTon(), ma);
+    }
+
+    private void taoPhieuNhapDaDuyet(String ma, Kho kho, User nguoiNhan, HangHoa hangHoa, int soLuong, BigDecimal donGia) {
+        PhieuNhapKho phieuNhap = phieuNhapKhoRepository.save(PhieuNhapKho.builder()
+                .maPhieuNhap(ma)
+                .kho(kho)
+                .loaiNhap(PhieuNhapKho.LoaiNhap.NHAP_MOI)
+                .ngayNhap(LocalDateTime.now())
+                .nguoiNhan(nguoiNhan)
+                .trangThai(PhieuNhapKho.TrangThaiPhieuNhap.DA_DUYET)
+                .build());
+        chiTietPhieuNhapRepository.save(ChiTietPhieuNhap.builder()
+                .phieuNhap(phieuNhap)
+                .hangHoa(hangHoa)
+                .soLuong(soLuong)
+                .donGia(donGia)
+                .thanhTien(donGia.multiply(BigDecimal.valueOf(soLuong)))
+                .build());
+    }
+
+    private void taoDatTru(PhieuXuatKho phieuXuat, HangHoa hangHoa, Kho kho, LoHang loHang, int soLuong,
+                           DatTruTonKho.TrangThaiDatTru trangThai) {
+        datTruTonKhoRepository.save(DatTruTonKho.builder()
+                .phieuXuat(phieuXuat)
+                .chiTietPhieuXuat(chiTietPhieuXuatRepository.findByPhieuXuatId(phieuXuat.getId()).get(0))
+                .hangHoa(hangHoa)
+                .kho(kho)
+                .loHang(loHang)
+                .soLuong(soLuong)
+                .hetHanLuc(LocalDateTime.now().plusHours(1))
+                .trangThai(trangThai)
+                .build());
+    }
+}
@@ -0,0 +1,111 @@
+package com.hospital.warehouse.hospital_warehouse;
+
+import com.hospital.warehouse.hospital_warehouse.entity.*;
+import com.hospital.warehouse.hospital_warehouse.repository.*;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Kiểm tra trừ tồn kho (theo kho, lô, hàng hóa) bằng UPDATE có điều kiện khi nhiều luồng cùng xuất một mặt hàng:
+ * tổng số lượng xuất thành công không bao giờ vượt tồn kho ban đầu (không bán vượt).
+ */
+class TruTonKhoDongThoiTest extends KiemThuH2 {
+
+    private static final int TON_KHO_BAN_DAU = 500;
+    private static final int SO_LUONG = 16;
+    private static final int SO_LAN_MOI_LUONG = 60;
+
+    @Autowired private DuLieuMau duLieuMau;
+    @Autowired private HangHoaRepository hangHoaRepository;
+    @Autowired private LoHangRepository loHangRepository;
+    @Autowired private TonKhoTheoKhoRepository tonKhoTheoKhoRepository;
+    @Autowired private PlatformTransactionManager transactionManager;
+
+    @Test
+    void khongBanVuotKhiDuyetDongThoi() throws Exception {
+        HangHoa hangHoa = duLieuMau.taoHangHoa("HH-TEST", TON_KHO_BAN_DAU);
+        LoHang loHang = duLieuMau.taoLoHang(hangHoa, duLieuMau.taoKho("TEST"), "LO-001", TON_KHO_BAN_DAU,
+                new BigDecimal("1000"), null);
+        Long khoId = loHang.getKho().getId();
+        TransactionTemplate tx = new TransactionTemplate(transactionManager);
+
+        // Nhập 2 lần để kiểm tra cả nhánh INSERT và ON DUPLICATE KEY UPDATE
+        tx.executeWithoutResult(status -> {
+            tonKhoTheoKhoRepository.congTon(hangHoa.getId(), khoId, TON_KHO_BAN_DAU - 100, 0L);
+            tonKhoTheoKhoRepository.congTon(hangHoa.getId(), khoId, 100, 0L);
+        });
+
+        AtomicInteger daXuat = new AtomicInteger();
+        AtomicInteger biTuChoi = new AtomicInteger();
+        AtomicInteger tongYeuCau = new AtomicInteger();
+        CountDownLatch batDau = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(SO_LUONG);
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (int t = 0; t < SO_LUONG; t++) {
+            futures.add(pool.submit(() -> {
+                batDau.await();
+                for (int i = 0; i < SO_LAN_MOI_LUONG; i++) {
+                    int soLuong = ThreadLocalRandom.current().nextInt(1, 4);
+                    tongYeuCau.addAndGet(soLuong);
+                    try {
+                        // Giống luồng duyệt phiếu: trừ tồn theo kho, lô, hàng hóa trong cùng transaction
+                        tx.executeWithoutResult(status -> {
+                            if (tonKhoTheoKhoRepository.truTonCoDieuKien(hangHoa.getId(), khoId, soLuong, 0L) == 0
+                                    || loHangRepository.truSoLuongCoDieuKien(loHang.getId(), soLuong) == 0
+                                    || hangHoaRepository.truTonKhoCoDieuKien(hangHoa.getId(), soLuong) == 0) {
+                                throw new IllegalStateException("Không đủ hàng");
+                            }
+                        });
+                        daXuat.addAndGet(soLuong);
+                    } catch (IllegalStateException e) {
+                        biTuChoi.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+
+        batDau.countDown();
+        for (Future<?> f : futures) {
+            f.get(2, TimeUnit.MINUTES);
+        }
+        pool.shutdown();
+
+        LoHang loSau = loHangRepository.findById(loHang.getId()).orElseThrow();
+        HangHoa hangHoaSau = hangHoaRepository.findById(hangHoa.getId()).orElseThrow();
+        TonKhoTheoKho tonKhoSau = tonKhoTheoKhoRepository
+                .findById(new TonKhoTheoKho.TonKhoTheoKhoId(hangHoa.getId(), khoId)).orElseThrow();
+
+        assertTrue(tongYeuCau.get() > TON_KHO_BAN_DAU, "Tổng yêu cầu phải vượt tồn kho để có tranh chấp");
+        assertTrue(biTuChoi.get() > 0);
+        assertTrue(daXuat.get() <= TON_KHO_BAN_DAU);
+        assertEquals(TON_KHO_BAN_DAU - daXuat.get(), loSau.getSoLuongHienTai());
+        assertEquals(TON_KHO_BAN_DAU - daXuat.get(), hangHoaSau.getSoLuongCoTheXuat());
+        assertEquals(TON_KHO_BAN_DAU - daXuat.get(), hangHoaSau.getTongSoLuong());
+        assertEquals(TON_KHO_BAN_DAU - daXuat.get(), tonKhoSau.getSoLuongCoTheXuat());
+        assertEquals(TON_KHO_BAN_DAU - daXuat.get(), tonKhoSau.getTongSoLuong());
+        assertTrue(loSau.getSoLuongHienTai() >= 0);
+        if (loSau.getSoLuongHienTai() == 0) {
+            assertEquals(LoHang.TrangThaiLoHang.HET_HANG, loSau.getTrangThai());
+        } else {
+            assertEquals(LoHang.TrangThaiLoHang.DANG_SU_DUNG, loSau.getTrangThai());
+        }
+    }
+}